@@ -0,0 +1,864 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+
+/**
+ * Adapter running the operations of a map store, a {@link BerkeleyStoreMap}
+ * by default, on a dedicated bounded executor so that a slow disk does not
+ * stall the {@code Hazelcast} threads calling the map store.
+ * <p>
+ * The operations are run by lanes, each one a single thread with a bounded
+ * queue, a key always going to the same lane. The operations of a key are
+ * thus run in the order they were submitted, so that a store given up by its
+ * caller can neither overtake nor be overtaken by a later write of the same
+ * key (e.g. the retry of the {@code Hazelcast} write-behind queue). Batch
+ * operations are split by lane and their parts run in parallel.
+ * <p>
+ * The asynchronous methods ({@link #loadAsync(Object)},
+ * {@link #storeAsync(Object, Object)}, ...) return futures. The
+ * {@link MapStore} methods wait for them at most {@code asynctimeout}
+ * milliseconds, then throw a {@link BerkeleyStoreMapException}, so that the
+ * latency seen by the caller stays bounded. The operations still waiting in
+ * their lane at the timeout are cancelled and never run. An operation
+ * already running is not interrupted, since an interrupted Berkeley DB
+ * operation invalidates the environment: it completes after the exception,
+ * whose message gives the number of operations cancelled. Cancelling a
+ * future returned by an asynchronous method cancels its operation the same
+ * way. A batch operation that fails or times out leaves the given collection
+ * untouched, except for a {@link BerkeleyStoreMapException} listing the
+ * failed keys, after which only those remain.
+ * <p>
+ * When the queue of a lane is full, the submitting thread waits for room at
+ * most {@code asynctimeout} milliseconds (back-pressure), then the operation
+ * fails.
+ * <p>
+ * The map store properties are:
+ * <ul>
+ * <li>{@code asyncdelegate}: class name of the map store the operations are
+ * delegated to, initialized with the same properties
+ * ({@link BerkeleyStoreMap} by default),</li>
+ * <li>{@code asyncthreads}: number of lanes ({@code 4} by default),</li>
+ * <li>{@code asyncqueuesize}: maximum number of operations waiting in a lane
+ * ({@code 1024} by default),</li>
+ * <li>{@code asynctimeout}: timeout of the operations in milliseconds, from
+ * their submission ({@code 10000} by default).</li>
+ * </ul>
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ * @param <V> Value of the map.
+ */
+@SuppressWarnings({ "unchecked", "nls" })
+public class BerkeleyAsyncStoreMap<K, V> implements MapLoaderLifecycleSupport, MapStore<K, V>
+{
+	/**
+	 * Operation waiting in a lane, never run once cancelled.
+	 * <p>
+	 * @param <R> Type of the result.
+	 */
+	private static final class Operation<R> extends CompletableFuture<R> implements Runnable
+	{
+		/**
+		 * Task of the operation.
+		 */
+		private final Callable<R> task;
+
+		/**
+		 * Lane of the operation.
+		 */
+		private final ThreadPoolExecutor lane;
+
+		/**
+		 * Has the operation started or been cancelled?
+		 */
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		/**
+		 * Creates a new operation.
+		 * <p>
+		 * @param task Task of the operation.
+		 * @param lane Lane of the operation.
+		 */
+		Operation(final Callable<R> task, final ThreadPoolExecutor lane)
+		{
+			this.task = task;
+			this.lane = lane;
+		}
+
+		@Override
+		public void run()
+		{
+			if (!claimed.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			try
+			{
+				complete(task.call());
+			}
+			catch (Throwable e)
+			{
+				completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Cancels the operation and removes it from its lane if it has not
+		 * started yet.
+		 * <p>
+		 * @param interrupt Ignored, a running operation is never interrupted.
+		 * @return {@code true} if the operation was cancelled.
+		 */
+		@Override
+		public boolean cancel(final boolean interrupt)
+		{
+			if (!claimed.compareAndSet(false, true))
+			{
+				return false;
+			}
+			lane.remove(this);
+
+			return super.cancel(false);
+		}
+	}
+
+	/**
+	 * Logger.
+	 */
+	private final ILogger LOG = Logger.getLogger(BerkeleyAsyncStoreMap.class.getName());
+
+	/**
+	 * Map store the operations are delegated to.
+	 */
+	private MapStore<K, V> delegate;
+
+	/**
+	 * Lanes running the operations.
+	 */
+	private ThreadPoolExecutor[] lanes;
+
+	/**
+	 * Timeout of the operations in milliseconds.
+	 */
+	private long timeout;
+
+	/**
+	 * Number of operations rejected because their lane was full.
+	 */
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * Number of operations whose caller gave up waiting.
+	 */
+	private final LongAdder timeouts = new LongAdder();
+
+	/**
+	 * Name of the map.
+	 */
+	private String mapName;
+
+	/**
+	 * Creates an adapter whose delegate is given by the {@code asyncdelegate}
+	 * property.
+	 */
+	public BerkeleyAsyncStoreMap()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates an adapter of a map store.
+	 * <p>
+	 * @param delegate Map store the operations are delegated to, initialized
+	 * by {@link #init(HazelcastInstance, Properties, String)} if it supports
+	 * it.
+	 */
+	public BerkeleyAsyncStoreMap(final MapStore<K, V> delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void init(final HazelcastInstance instance, final Properties properties, final String mapName)
+	{
+		this.mapName = mapName;
+
+		if (delegate == null)
+		{
+			String name = properties.getProperty("asyncdelegate", BerkeleyStoreMap.class.getName());
+			try
+			{
+				delegate = (MapStore<K, V>) Class.forName(name).getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | ClassCastException e)
+			{
+				throw new IllegalArgumentException("Invalid asyncdelegate: " + name, e);
+			}
+		}
+		if (delegate instanceof MapLoaderLifecycleSupport)
+		{
+			((MapLoaderLifecycleSupport) delegate).init(instance, properties, mapName);
+		}
+
+		int threads = Integer.parseInt(properties.getProperty("asyncthreads", "4"));
+		int queueSize = Integer.parseInt(properties.getProperty("asyncqueuesize", "1024"));
+		timeout = Long.parseLong(properties.getProperty("asynctimeout", "10000"));
+		if (threads <= 0 || queueSize <= 0 || timeout <= 0)
+		{
+			throw new IllegalArgumentException("Invalid asyncthreads, asyncqueuesize or asynctimeout: " + threads + ", " + queueSize + ", " + timeout);
+		}
+
+		RejectedExecutionHandler backPressure = new RejectedExecutionHandler()
+		{
+			@Override
+			public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor)
+			{
+				if (executor.isShutdown())
+				{
+					throw new RejectedExecutionException("Lane shut down");
+				}
+				try
+				{
+					if (!executor.getQueue().offer(runnable, timeout, TimeUnit.MILLISECONDS))
+					{
+						rejected.increment();
+						throw new RejectedExecutionException("Lane full for " + timeout + " ms");
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException(e);
+				}
+			}
+		};
+
+		lanes = new ThreadPoolExecutor[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			final String name = this.getClass().getSimpleName() + "-" + mapName + "-io-" + i;
+			lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			}, backPressure);
+		}
+	}
+
+	@Override
+	public void destroy()
+	{
+		if (lanes != null)
+		{
+			// Not interrupted, an interrupted Berkeley DB operation invalidates the environment.
+			for (ThreadPoolExecutor lane : lanes)
+			{
+				lane.shutdown();
+			}
+			for (ThreadPoolExecutor lane : lanes)
+			{
+				try
+				{
+					if (!lane.awaitTermination(1, TimeUnit.MINUTES))
+					{
+						LOG.log(Level.WARNING, this.getClass().getCanonicalName() + ":" + mapName + ":pending operations:" + lane.getQueue().size());
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			lanes = null;
+		}
+
+		if (delegate instanceof MapLoaderLifecycleSupport)
+		{
+			((MapLoaderLifecycleSupport) delegate).destroy();
+		}
+	}
+
+	/**
+	 * Returns the map store the operations are delegated to.
+	 * <p>
+	 * @return Map store.
+	 */
+	public final MapStore<K, V> getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * Returns the number of operations waiting or running.
+	 * <p>
+	 * @return Number of operations, 0 once destroyed.
+	 */
+	public final long getPendingCount()
+	{
+		ThreadPoolExecutor[] lanes = this.lanes;
+		if (lanes == null)
+		{
+			return 0;
+		}
+
+		long pending = 0;
+		for (ThreadPoolExecutor lane : lanes)
+		{
+			pending += lane.getQueue().size() + lane.getActiveCount();
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Returns the number of operations rejected because their lane was full.
+	 * <p>
+	 * @return Number of operations.
+	 */
+	public final long getRejectedCount()
+	{
+		return rejected.sum();
+	}
+
+	/**
+	 * Returns the number of operations whose caller gave up waiting.
+	 * <p>
+	 * @return Number of operations.
+	 */
+	public final long getTimeoutCount()
+	{
+		return timeouts.sum();
+	}
+
+	/**
+	 * Returns the lane of a key.
+	 * <p>
+	 * @param key Key.
+	 * @return Index of the lane.
+	 */
+	private int lane(final Object key)
+	{
+		int hash = key.hashCode();
+
+		return ((hash ^ hash >>> 16) & 0x7FFFFFFF) % lanes.length;
+	}
+
+	/**
+	 * Submits a task to a lane.
+	 * <p>
+	 * @param lane Index of the lane.
+	 * @param task Task.
+	 * @return Future of the result, failed with a
+	 * {@link BerkeleyStoreMapException} if the lane stayed full. Cancelling it
+	 * cancels the task if it has not started yet.
+	 * @param <R> Type of the result.
+	 */
+	private <R> CompletableFuture<R> submit(final int lane, final Callable<R> task)
+	{
+		Operation<R> future = new Operation<>(task, lanes[lane]);
+		try
+		{
+			lanes[lane].execute(future);
+		}
+		catch (RejectedExecutionException e)
+		{
+			future.completeExceptionally(new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":rejected:" + e.getMessage(), e));
+		}
+
+		return future;
+	}
+
+	/**
+	 * Splits keys by lane.
+	 * <p>
+	 * @param keys Keys.
+	 * @return Keys of each lane.
+	 * @param <T> Type of the keys.
+	 */
+	private <T> Map<Integer, List<T>> split(final Collection<T> keys)
+	{
+		Map<Integer, List<T>> parts = new HashMap<>();
+		for (T key : keys)
+		{
+			Integer lane = Integer.valueOf(lane(key));
+			List<T> part = parts.get(lane);
+			if (part == null)
+			{
+				part = new ArrayList<>();
+				parts.put(lane, part);
+			}
+			part.add(key);
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Returns the cause of a failed future.
+	 * <p>
+	 * @param future Completed future.
+	 * @return Cause or {@code null} if the future succeeded.
+	 */
+	private static Throwable cause(final CompletableFuture<?> future)
+	{
+		try
+		{
+			future.join();
+
+			return null;
+		}
+		catch (CompletionException e)
+		{
+			return e.getCause();
+		}
+		catch (CancellationException e)
+		{
+			return e;
+		}
+	}
+
+	/**
+	 * Combines the parts of a batch operation into a single future, failed
+	 * with a {@link BerkeleyStoreMapException} listing the failed keys if any
+	 * part failed.
+	 * <p>
+	 * @param operation Label of the operation.
+	 * @param parts Futures of the parts with their keys.
+	 * @return Future of the batch operation.
+	 */
+	private CompletableFuture<Void> combine(final String operation, final Map<CompletableFuture<Void>, List<K>> parts)
+	{
+		return CompletableFuture.allOf(parts.keySet().toArray(new CompletableFuture<?>[parts.size()])).handle(new BiFunction<Void, Throwable, Void>()
+		{
+			@Override
+			public Void apply(final Void result, final Throwable exception)
+			{
+				Map<Object, Throwable> failures = new LinkedHashMap<>();
+				for (Map.Entry<CompletableFuture<Void>, List<K>> part : parts.entrySet())
+				{
+					Throwable cause = cause(part.getKey());
+					if (cause instanceof BerkeleyStoreMapException && !((BerkeleyStoreMapException) cause).getFailures().isEmpty())
+					{
+						failures.putAll(((BerkeleyStoreMapException) cause).getFailures());
+					}
+					else if (cause != null)
+					{
+						for (K key : part.getValue())
+						{
+							failures.put(key, cause);
+						}
+					}
+				}
+				if (!failures.isEmpty())
+				{
+					throw new BerkeleyStoreMapException(BerkeleyAsyncStoreMap.this.getClass().getCanonicalName() + ":" + mapName + ":" + operation + ":" + failures.size() + " failure(s)", failures);
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Waits for an operation submitted at a given time, cancelling the tasks
+	 * not started yet if it does not complete in time.
+	 * <p>
+	 * @param future Future of the operation.
+	 * @param tasks Futures of the tasks of the operation.
+	 * @param operation Label of the operation.
+	 * @param start Submission time in nanoseconds.
+	 * @return Result of the operation.
+	 * @throws BerkeleyStoreMapException Thrown if the operation failed or did
+	 * not complete in time.
+	 * @param <R> Type of the result.
+	 */
+	private <R> R await(final CompletableFuture<R> future, final Collection<? extends Future<?>> tasks, final String operation, final long start)
+	{
+		try
+		{
+			return future.get(Math.max(0, TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - start)), TimeUnit.NANOSECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			timeouts.increment();
+			int cancelled = 0;
+			for (Future<?> task : tasks)
+			{
+				if (task.cancel(false))
+				{
+					cancelled++;
+				}
+			}
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":" + operation + ":timed out after " + timeout + " ms:" + cancelled + " of " + tasks.size() + " task(s) cancelled", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":" + operation + ":" + e.getCause().getMessage(), e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":" + operation + ":interrupted", e);
+		}
+	}
+
+	/**
+	 * Loads the value of a key asynchronously.
+	 * <p>
+	 * @param key Key.
+	 * @return Future of the value, {@code null} if not found.
+	 */
+	public final CompletableFuture<V> loadAsync(final K key)
+	{
+		return submit(lane(key), new Callable<V>()
+		{
+			@Override
+			public V call()
+			{
+				return delegate.load(key);
+			}
+		});
+	}
+
+	/**
+	 * Loads the values of keys asynchronously.
+	 * <p>
+	 * @param keys Keys.
+	 * @return Future of the values found.
+	 */
+	public final CompletableFuture<Map<K, V>> loadAllAsync(final Collection<K> keys)
+	{
+		return combineLoads(keys, loadAllParts(keys));
+	}
+
+	/**
+	 * Submits the parts of a batch load.
+	 * <p>
+	 * @param keys Keys.
+	 * @return Futures of the parts.
+	 */
+	private List<CompletableFuture<Map<K, V>>> loadAllParts(final Collection<K> keys)
+	{
+		List<CompletableFuture<Map<K, V>>> parts = new ArrayList<>();
+		for (Map.Entry<Integer, List<K>> part : split(keys).entrySet())
+		{
+			final List<K> partKeys = part.getValue();
+			parts.add(submit(part.getKey().intValue(), new Callable<Map<K, V>>()
+			{
+				@Override
+				public Map<K, V> call()
+				{
+					return delegate.loadAll(partKeys);
+				}
+			}));
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Combines the parts of a batch load into a single future.
+	 * <p>
+	 * @param keys Keys.
+	 * @param parts Futures of the parts.
+	 * @return Future of the values found.
+	 * @param <K> Key of the map.
+	 * @param <V> Value of the map.
+	 */
+	private static <K, V> CompletableFuture<Map<K, V>> combineLoads(final Collection<K> keys, final List<CompletableFuture<Map<K, V>>> parts)
+	{
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(new Function<Void, Map<K, V>>()
+		{
+			@Override
+			public Map<K, V> apply(final Void result)
+			{
+				Map<K, V> map = new HashMap<>(keys.size());
+				for (CompletableFuture<Map<K, V>> part : parts)
+				{
+					map.putAll(part.join());
+				}
+
+				return map;
+			}
+		});
+	}
+
+	/**
+	 * Stores an entry asynchronously.
+	 * <p>
+	 * @param key Key.
+	 * @param value Value.
+	 * @return Future of the completion.
+	 */
+	public final CompletableFuture<Void> storeAsync(final K key, final V value)
+	{
+		return submit(lane(key), new Callable<Void>()
+		{
+			@Override
+			public Void call()
+			{
+				delegate.store(key, value);
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Stores entries asynchronously. The given map is copied.
+	 * <p>
+	 * @param map Entries.
+	 * @return Future of the completion, failed with a
+	 * {@link BerkeleyStoreMapException} listing the failed keys.
+	 */
+	public final CompletableFuture<Void> storeAllAsync(final Map<K, V> map)
+	{
+		return combine("storeAll", storeAllParts(map));
+	}
+
+	/**
+	 * Submits the parts of a batch store.
+	 * <p>
+	 * @param map Entries.
+	 * @return Futures of the parts with their keys.
+	 */
+	private Map<CompletableFuture<Void>, List<K>> storeAllParts(final Map<K, V> map)
+	{
+		Map<CompletableFuture<Void>, List<K>> parts = new LinkedHashMap<>();
+		for (Map.Entry<Integer, List<K>> part : split(map.keySet()).entrySet())
+		{
+			final Map<K, V> entries = new HashMap<>(part.getValue().size() * 2);
+			for (K key : part.getValue())
+			{
+				entries.put(key, map.get(key));
+			}
+			parts.put(submit(part.getKey().intValue(), new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					delegate.storeAll(entries);
+
+					return null;
+				}
+			}), part.getValue());
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Deletes a key asynchronously.
+	 * <p>
+	 * @param key Key.
+	 * @return Future of the completion.
+	 */
+	public final CompletableFuture<Void> deleteAsync(final K key)
+	{
+		return submit(lane(key), new Callable<Void>()
+		{
+			@Override
+			public Void call()
+			{
+				delegate.delete(key);
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Deletes keys asynchronously. The given collection is copied.
+	 * <p>
+	 * @param keys Keys.
+	 * @return Future of the completion, failed with a
+	 * {@link BerkeleyStoreMapException} listing the failed keys.
+	 */
+	public final CompletableFuture<Void> deleteAllAsync(final Collection<K> keys)
+	{
+		return combine("deleteAll", deleteAllParts(keys));
+	}
+
+	/**
+	 * Submits the parts of a batch delete.
+	 * <p>
+	 * @param keys Keys.
+	 * @return Futures of the parts with their keys.
+	 */
+	private Map<CompletableFuture<Void>, List<K>> deleteAllParts(final Collection<K> keys)
+	{
+		Map<CompletableFuture<Void>, List<K>> parts = new LinkedHashMap<>();
+		for (Map.Entry<Integer, List<K>> part : split(keys).entrySet())
+		{
+			final List<K> partKeys = new ArrayList<>(part.getValue());
+			parts.put(submit(part.getKey().intValue(), new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					delegate.deleteAll(partKeys);
+
+					return null;
+				}
+			}), part.getValue());
+		}
+
+		return parts;
+	}
+
+	@Override
+	public V load(final K key)
+	{
+		long start = System.nanoTime();
+		CompletableFuture<V> future = loadAsync(key);
+
+		return await(future, Collections.singleton(future), "load", start);
+	}
+
+	@Override
+	public Map<K, V> loadAll(final Collection<K> keys)
+	{
+		long start = System.nanoTime();
+		List<CompletableFuture<Map<K, V>>> parts = loadAllParts(keys);
+
+		return await(combineLoads(keys, parts), parts, "loadAll", start);
+	}
+
+	/**
+	 * Returns the keys of the delegate, read on the calling thread since they
+	 * are only loaded when the map is initialized.
+	 * <p>
+	 * @return Keys.
+	 */
+	@Override
+	public Iterable<K> loadAllKeys()
+	{
+		return delegate.loadAllKeys();
+	}
+
+	@Override
+	public void store(final K key, final V value)
+	{
+		long start = System.nanoTime();
+		CompletableFuture<Void> future = storeAsync(key, value);
+		await(future, Collections.singleton(future), "store", start);
+	}
+
+	@Override
+	public void storeAll(final Map<K, V> map)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			Map<CompletableFuture<Void>, List<K>> parts = storeAllParts(map);
+			await(combine("storeAll", parts), parts.keySet(), "storeAll", start);
+		}
+		catch (BerkeleyStoreMapException e)
+		{
+			retainFailures(map.keySet(), e);
+			throw e;
+		}
+	}
+
+	@Override
+	public void delete(final K key)
+	{
+		long start = System.nanoTime();
+		CompletableFuture<Void> future = deleteAsync(key);
+		await(future, Collections.singleton(future), "delete", start);
+	}
+
+	@Override
+	public void deleteAll(final Collection<K> keys)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			Map<CompletableFuture<Void>, List<K>> parts = deleteAllParts(keys);
+			await(combine("deleteAll", parts), parts.keySet(), "deleteAll", start);
+		}
+		catch (BerkeleyStoreMapException e)
+		{
+			retainFailures(keys, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Keeps only the failed keys of a batch operation in the caller's
+	 * collection, when the failures are known.
+	 * <p>
+	 * @param keys Collection of keys passed by the caller.
+	 * @param exception Failure of the batch operation.
+	 */
+	private static void retainFailures(final Collection<?> keys, final BerkeleyStoreMapException exception)
+	{
+		if (exception.getFailures().isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			keys.retainAll(exception.getFailures().keySet());
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// The caller's collection is read only, failures are still reported by the exception.
+		}
+	}
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.util.DbBackup;
+
+/**
+ * Online backup of a {@link BerkeleyEnvironment} into a directory.
+ * <p>
+ * The backup relies on the Berkeley DB {@link DbBackup} helper: the maps
+ * keep on reading and writing while the log files are copied, the cleaner
+ * being prevented from deleting the files of the backup set until it is
+ * complete. Since Berkeley DB log files are append only, a backup into a
+ * directory holding a previous backup is incremental: only the log files
+ * written since the last file of the previous backup, recorded in the
+ * {@link #MANIFEST} of the directory, are copied. The copy is throttled to
+ * a maximum bandwidth so that it does not starve the maps of disk I/O.
+ * <p>
+ * A backup directory is itself a valid environment directory. It can either
+ * be copied back as a whole into an empty directory with
+ * {@link #restore(File, File, long)} before the environment is opened, or
+ * serve to rebuild the database of a single map of a live environment with
+ * {@link BerkeleyStoreMap#restore(File)}.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyBackup
+{
+	/**
+	 * Name of the file describing the last backup of a backup directory.
+	 */
+	public static final String MANIFEST = "backup.properties";
+
+	/**
+	 * Suffix of the Berkeley DB log files.
+	 */
+	private static final String LOG_SUFFIX = ".jdb";
+
+	/**
+	 * Size of the copy buffer.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Environment backed up.
+	 */
+	private final BerkeleyEnvironment environment;
+
+	/**
+	 * Backup directory.
+	 */
+	private final File directory;
+
+	/**
+	 * Maximum bandwidth of the copy in bytes per second, {@code 0} if
+	 * unlimited.
+	 */
+	private final long bandwidth;
+
+	/**
+	 * Creates a new backup of an environment.
+	 * <p>
+	 * @param environment Environment to back up.
+	 * @param directory Backup directory, created if it does not exist.
+	 * @param bandwidth Maximum bandwidth of the copy in bytes per second,
+	 * {@code 0} if unlimited.
+	 */
+	public BerkeleyBackup(final BerkeleyEnvironment environment, final File directory, final long bandwidth)
+	{
+		if (bandwidth < 0)
+		{
+			throw new IllegalArgumentException("Invalid bandwidth: " + bandwidth);
+		}
+		this.environment = environment;
+		this.directory = directory;
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Backs up the environment while it is in use.
+	 * <p>
+	 * The databases of the environment are synchronized first so that the
+	 * backup holds the entries written so far (the write buffers of the maps
+	 * should be flushed by the caller, see
+	 * {@link BerkeleyStoreMap#backup(File, long)}). Entries written during the
+	 * copy belong to the next backup.
+	 * <p>
+	 * @return Report of the backup.
+	 * @throws IOException Thrown in case an error occurs while copying a log
+	 * file or writing the manifest.
+	 */
+	public final Report backup() throws IOException
+	{
+		if (!directory.exists() && !directory.mkdirs())
+		{
+			throw new IOException("Cannot create: " + directory);
+		}
+
+		long start = System.nanoTime();
+		long previous = readLastFile(directory);
+		environment.sync();
+
+		DbBackup helper = new DbBackup(environment.getEnvironment());
+		helper.startBackup();
+		try
+		{
+			List<String> files = new ArrayList<>();
+			for (String file : helper.getLogFilesInBackupSet())
+			{
+				// The files of the previous backup are already copied.
+				if (fileNumber(file) > previous)
+				{
+					files.add(file);
+				}
+			}
+			Throttle throttle = new Throttle(bandwidth);
+			long bytes = 0;
+			for (String file : files)
+			{
+				bytes += copy(new File(environment.getDirectory(), file), new File(directory, file), throttle);
+			}
+
+			long last = helper.getLastFileInBackupSet();
+			writeManifest(last);
+
+			return new Report(files.size(), bytes, (System.nanoTime() - start) / 1000000, previous >= 0);
+		}
+		finally
+		{
+			helper.endBackup();
+		}
+	}
+
+	/**
+	 * Returns the number of a log file, its name being that number in
+	 * hexadecimal followed by the {@code .jdb} extension.
+	 * <p>
+	 * @param file Name of the log file, relative to the environment directory.
+	 * @return Number of the log file.
+	 */
+	private static long fileNumber(final String file)
+	{
+		String name = new File(file).getName();
+
+		return Long.parseLong(name.substring(0, name.indexOf('.')), 16);
+	}
+
+	/**
+	 * Returns the last log file of the previous backup of a directory.
+	 * <p>
+	 * @param directory Backup directory.
+	 * @return Number of the last log file or {@code -1} if the directory holds
+	 * no backup.
+	 * @throws IOException Thrown in case an error occurs while reading the
+	 * manifest.
+	 */
+	private static long readLastFile(final File directory) throws IOException
+	{
+		File manifest = new File(directory, MANIFEST);
+		if (!manifest.exists())
+		{
+			return -1;
+		}
+
+		Properties properties = new Properties();
+		try (InputStream input = new FileInputStream(manifest))
+		{
+			properties.load(input);
+		}
+
+		return Long.parseLong(properties.getProperty("lastfile", "-1"));
+	}
+
+	/**
+	 * Writes the manifest of the backup directory.
+	 * <p>
+	 * @param lastFile Number of the last log file of the backup.
+	 * @throws IOException Thrown in case an error occurs while writing the
+	 * manifest.
+	 */
+	private void writeManifest(final long lastFile) throws IOException
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", environment.getName());
+		properties.setProperty("lastfile", String.valueOf(lastFile));
+		properties.setProperty("time", String.valueOf(System.currentTimeMillis()));
+
+		// Written aside then renamed so that a failed backup keeps the previous manifest.
+		File temporary = new File(directory, MANIFEST + ".tmp");
+		try (OutputStream output = new FileOutputStream(temporary))
+		{
+			properties.store(output, BerkeleyBackup.class.getName());
+		}
+		File manifest = new File(directory, MANIFEST);
+		if (manifest.exists() && !manifest.delete() || !temporary.renameTo(manifest))
+		{
+			throw new IOException("Cannot write: " + manifest);
+		}
+	}
+
+	/**
+	 * Restores a backup into the directory of an environment which is not
+	 * open.
+	 * <p>
+	 * @param backup Backup directory.
+	 * @param directory Directory of the environment, created if it does not
+	 * exist. It must not hold any log file.
+	 * @param bandwidth Maximum bandwidth of the copy in bytes per second,
+	 * {@code 0} if unlimited.
+	 * @return Report of the restore.
+	 * @throws IOException Thrown in case an error occurs while copying a log
+	 * file.
+	 */
+	public static Report restore(final File backup, final File directory, final long bandwidth) throws IOException
+	{
+		File[] files = backup.listFiles();
+		if (files == null || readLastFile(backup) < 0)
+		{
+			throw new IOException("Not a backup directory: " + backup);
+		}
+		if (!directory.exists() && !directory.mkdirs())
+		{
+			throw new IOException("Cannot create: " + directory);
+		}
+		File[] existing = directory.listFiles();
+		for (File file : existing == null ? new File[0] : existing)
+		{
+			if (file.getName().endsWith(LOG_SUFFIX))
+			{
+				throw new IOException("Not an empty environment directory: " + directory);
+			}
+		}
+
+		long start = System.nanoTime();
+		Throttle throttle = new Throttle(bandwidth);
+		int count = 0;
+		long bytes = 0;
+		for (File file : files)
+		{
+			if (file.getName().endsWith(LOG_SUFFIX))
+			{
+				bytes += copy(file, new File(directory, file.getName()), throttle);
+				count++;
+			}
+		}
+
+		return new Report(count, bytes, (System.nanoTime() - start) / 1000000, false);
+	}
+
+	/**
+	 * Opens a backup directory as a read only environment.
+	 * <p>
+	 * @param backup Backup directory.
+	 * @return Environment, to be closed by the caller.
+	 * @throws IOException Thrown if the directory does not hold a backup.
+	 */
+	static Environment open(final File backup) throws IOException
+	{
+		if (readLastFile(backup) < 0)
+		{
+			throw new IOException("Not a backup directory: " + backup);
+		}
+
+		EnvironmentConfig config = new EnvironmentConfig();
+		config.setAllowCreate(false);
+		config.setReadOnly(true);
+		config.setTransactional(false);
+		config.setSharedCache(true);
+
+		return new Environment(backup, config);
+	}
+
+	/**
+	 * Copies a file.
+	 * <p>
+	 * @param from Source file.
+	 * @param to Target file, overwritten if it exists.
+	 * @param throttle Throttle of the copy.
+	 * @return Number of bytes copied.
+	 * @throws IOException Thrown in case an error occurs while copying the
+	 * file.
+	 */
+	private static long copy(final File from, final File to, final Throttle throttle) throws IOException
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long bytes = 0;
+		try (InputStream input = new FileInputStream(from); FileOutputStream output = new FileOutputStream(to))
+		{
+			int read;
+			while ((read = input.read(buffer)) > 0)
+			{
+				output.write(buffer, 0, read);
+				bytes += read;
+				throttle.acquire(read);
+			}
+			output.getFD().sync();
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Throttle limiting a copy to a maximum bandwidth.
+	 */
+	private static final class Throttle
+	{
+		/**
+		 * Maximum bandwidth in bytes per second, {@code 0} if unlimited.
+		 */
+		private final long bandwidth;
+
+		/**
+		 * Start of the copy in nanoseconds.
+		 */
+		private final long start = System.nanoTime();
+
+		/**
+		 * Number of bytes copied so far.
+		 */
+		private long bytes;
+
+		/**
+		 * Creates a new throttle.
+		 * <p>
+		 * @param bandwidth Maximum bandwidth in bytes per second, {@code 0} if
+		 * unlimited.
+		 */
+		Throttle(final long bandwidth)
+		{
+			this.bandwidth = bandwidth;
+		}
+
+		/**
+		 * Accounts for copied bytes, waiting as long as the copy is ahead of
+		 * the maximum bandwidth.
+		 * <p>
+		 * @param count Number of bytes copied.
+		 * @throws IOException Thrown if the thread is interrupted while
+		 * waiting.
+		 */
+		final void acquire(final int count) throws IOException
+		{
+			if (bandwidth == 0)
+			{
+				return;
+			}
+
+			bytes += count;
+			long ahead = bytes * 1000000000L / bandwidth - (System.nanoTime() - start);
+			if (ahead > 0)
+			{
+				try
+				{
+					Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while throttling the copy", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Report of a backup or of a restore.
+	 */
+	public static final class Report
+	{
+		/**
+		 * Number of files copied.
+		 */
+		private final int files;
+
+		/**
+		 * Number of bytes copied.
+		 */
+		private final long bytes;
+
+		/**
+		 * Duration in milliseconds.
+		 */
+		private final long duration;
+
+		/**
+		 * Is the backup incremental?
+		 */
+		private final boolean incremental;
+
+		/**
+		 * Creates a new report.
+		 * <p>
+		 * @param files Number of files copied.
+		 * @param bytes Number of bytes copied.
+		 * @param duration Duration in milliseconds.
+		 * @param incremental Is the backup incremental?
+		 */
+		Report(final int files, final long bytes, final long duration, final boolean incremental)
+		{
+			this.files = files;
+			this.bytes = bytes;
+			this.duration = duration;
+			this.incremental = incremental;
+		}
+
+		/**
+		 * Returns the number of files copied.
+		 * <p>
+		 * @return Number of files.
+		 */
+		public final int getFiles()
+		{
+			return files;
+		}
+
+		/**
+		 * Returns the number of bytes copied.
+		 * <p>
+		 * @return Number of bytes.
+		 */
+		public final long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * Returns the duration of the copy.
+		 * <p>
+		 * @return Duration in milliseconds.
+		 */
+		public final long getDuration()
+		{
+			return duration;
+		}
+
+		/**
+		 * Returns if the backup only copied the files written since the
+		 * previous backup.
+		 * <p>
+		 * @return {@code true} if the backup is incremental.
+		 */
+		public final boolean isIncremental()
+		{
+			return incremental;
+		}
+
+		@Override
+		public String toString()
+		{
+			return (incremental ? "incremental:" : "") + files + " file(s):" + bytes + " byte(s):" + duration + " ms";
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapMetrics.Operation;
+
+/**
+ * Outcome of a batch operation of a map store ({@code storeAll} or
+ * {@code deleteAll}), shared by the {@link BerkeleyStoreMap} and the
+ * {@link BerkeleyStorageStoreMap}.
+ * <p>
+ * The batch collects the keys processed and the keys failed, synchronizes
+ * the storage once at the end of the batch, records the metrics of the
+ * operation and reports the failed keys by a
+ * {@link BerkeleyStoreMapException}.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ */
+@SuppressWarnings("nls")
+final class BerkeleyBatch<K>
+{
+	/**
+	 * Name of the map store prefixing the message of the exception.
+	 */
+	private final String name;
+
+	/**
+	 * Metrics of the map.
+	 */
+	private final BerkeleyStoreMapMetrics metrics;
+
+	/**
+	 * Batch operation.
+	 */
+	private final Operation operation;
+
+	/**
+	 * Start time of the operation.
+	 */
+	private final long start;
+
+	/**
+	 * Keys successfully processed.
+	 */
+	private final List<K> processed;
+
+	/**
+	 * Keys that failed to be processed with their cause.
+	 */
+	private final Map<Object, Throwable> failures = new LinkedHashMap<>();
+
+	/**
+	 * Starts a batch operation.
+	 * <p>
+	 * @param name Name of the map store prefixing the message of the
+	 * exception.
+	 * @param metrics Metrics of the map.
+	 * @param operation Batch operation.
+	 * @param size Number of keys of the batch.
+	 */
+	BerkeleyBatch(final String name, final BerkeleyStoreMapMetrics metrics, final Operation operation, final int size)
+	{
+		this.name = name;
+		this.metrics = metrics;
+		this.operation = operation;
+		this.start = BerkeleyStoreMapMetrics.start();
+		this.processed = new ArrayList<>(size);
+		metrics.batch(size);
+	}
+
+	/**
+	 * Records a key successfully processed.
+	 * <p>
+	 * @param key Key.
+	 */
+	final void processed(final K key)
+	{
+		processed.add(key);
+	}
+
+	/**
+	 * Records a key that failed to be processed.
+	 * <p>
+	 * @param key Key.
+	 * @param cause Cause of the failure.
+	 */
+	final void failed(final Object key, final Throwable cause)
+	{
+		failures.put(key, cause);
+	}
+
+	/**
+	 * Completes the batch operation. The storage is synchronized once if at
+	 * least one key was processed, the processed keys being considered as
+	 * failed if the synchronization fails. The processed keys are then
+	 * removed from the caller's collection (when it is modifiable) so that
+	 * only the failed ones remain in case of a partial failure.
+	 * <p>
+	 * @param keys Collection of keys passed by the caller.
+	 * @param written Synchronizes the storage or marks it dirty.
+	 * @throws BerkeleyStoreMapException Thrown if at least one key failed to
+	 * be processed.
+	 */
+	final void complete(final Collection<K> keys, final Runnable written)
+	{
+		if (!processed.isEmpty())
+		{
+			try
+			{
+				written.run();
+			}
+			catch (Exception e)
+			{
+				for (K key : processed)
+				{
+					failures.put(key, e);
+				}
+				processed.clear();
+			}
+		}
+
+		metrics.record(operation, start);
+		if (failures.isEmpty())
+		{
+			return;
+		}
+		metrics.error(operation, failures.size());
+
+		try
+		{
+			keys.removeAll(new HashSet<>(processed));
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// The caller's collection is read only, failures are still reported by the exception.
+		}
+
+		throw new BerkeleyStoreMapException(name + ":" + operation.getLabel() + ":" + failures.size() + " failure(s) out of " + (processed.size() + failures.size()), failures);
+	}
+
+	/**
+	 * Synchronizes a storage right away, recording the synchronization in the
+	 * metrics of the map.
+	 * <p>
+	 * @param metrics Metrics of the map.
+	 * @param sync Synchronization of the storage.
+	 */
+	static void sync(final BerkeleyStoreMapMetrics metrics, final Runnable sync)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		try
+		{
+			sync.run();
+		}
+		catch (RuntimeException e)
+		{
+			metrics.error(Operation.SYNC);
+			throw e;
+		}
+		finally
+		{
+			metrics.record(Operation.SYNC, start);
+		}
+	}
+
+	/**
+	 * Record of a batch operation holding its serialized key and its value.
+	 * <p>
+	 * Records are ordered by the unsigned lexicographic order of their
+	 * serialized key, i.e. the default B-tree order of a Berkeley DB
+	 * database.
+	 * <hr>
+	 * @param <K> Key of the map.
+	 */
+	static final class Record<K> implements Comparable<Record<K>>
+	{
+		/**
+		 * Key object.
+		 */
+		final K object;
+
+		/**
+		 * Serialized key.
+		 */
+		final byte[] key;
+
+		/**
+		 * Value object, {@code null} for a deletion or a load.
+		 */
+		final Object value;
+
+		/**
+		 * Creates a new batch record.
+		 * <p>
+		 * @param object Key object.
+		 * @param key Serialized key.
+		 * @param value Value object.
+		 */
+		Record(final K object, final byte[] key, final Object value)
+		{
+			this.object = object;
+			this.key = key;
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(final Record<K> other)
+		{
+			return BerkeleyStoreMap.compare(key, 0, key.length, other.key, 0, other.key.length);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Immutable key made of several components, e.g. a tenant and a timestamp.
+ * <p>
+ * Components are {@link Integer}, {@link Long}, {@link String} or {@link UUID}
+ * values. Encoded by {@link BerkeleyKeyCodecs#COMPOSITE}, composite keys are
+ * sorted component by component and a composite key is a prefix of all the
+ * composite keys starting with the same components, which makes it usable by
+ * {@link BerkeleyStoreMap#scanPrefix(Object, BerkeleyScanConsumer)}.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+public final class BerkeleyCompositeKey implements Serializable
+{
+	/**
+	 * Default serialization identifier.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Components of the key.
+	 */
+	private final Object[] components;
+
+	/**
+	 * Creates a new composite key.
+	 * <p>
+	 * @param components Components of the key.
+	 */
+	private BerkeleyCompositeKey(final Object[] components)
+	{
+		this.components = components;
+	}
+
+	/**
+	 * Creates a composite key.
+	 * <p>
+	 * @param components Components of the key.
+	 * @return Composite key.
+	 * @throws IllegalArgumentException Thrown if a component is {@code null}
+	 * or of an unsupported type.
+	 */
+	@SuppressWarnings("nls")
+	public static BerkeleyCompositeKey of(final Object... components)
+	{
+		for (Object component : components)
+		{
+			if (!(component instanceof Integer || component instanceof Long || component instanceof String || component instanceof UUID))
+			{
+				throw new IllegalArgumentException("Unsupported composite key component: " + component);
+			}
+		}
+
+		return new BerkeleyCompositeKey(components.clone());
+	}
+
+	/**
+	 * Returns the number of components.
+	 * <p>
+	 * @return Number of components.
+	 */
+	public final int size()
+	{
+		return components.length;
+	}
+
+	/**
+	 * Returns a component.
+	 * <p>
+	 * @param index Index of the component.
+	 * @return Component.
+	 */
+	public final Object get(final int index)
+	{
+		return components[index];
+	}
+
+	@Override
+	public final boolean equals(final Object other)
+	{
+		return other instanceof BerkeleyCompositeKey && Arrays.equals(components, ((BerkeleyCompositeKey) other).components);
+	}
+
+	@Override
+	public final int hashCode()
+	{
+		return Arrays.hashCode(components);
+	}
+
+	@Override
+	public final String toString()
+	{
+		return Arrays.toString(components);
+	}
+}
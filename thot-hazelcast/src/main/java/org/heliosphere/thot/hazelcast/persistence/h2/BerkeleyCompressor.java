@@ -0,0 +1,499 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Compression stage of the serialized values of a {@link BerkeleyStoreMap}.
+ * <p>
+ * Each value starts with a header byte telling how it is stored: as is when
+ * it is smaller than the threshold or when compressing it does not save any
+ * byte, or compressed with {@code Deflate}, optionally primed with a preset
+ * dictionary (see {@link #train(List, int)}) so that small values sharing the
+ * same class names and strings compress well too. Compressed values are
+ * followed by their uncompressed length. The map store properties are:
+ * <ul>
+ * <li>{@code compression}: {@code deflate} or {@code none} ({@code none} by
+ * default). Values of a database written without compression do not have
+ * any header, so compression can only be enabled on a new database,</li>
+ * <li>{@code compressionthreshold}: serialized size in bytes below which
+ * values are not compressed ({@code 512} by default),</li>
+ * <li>{@code compressionlevel}: {@code Deflate} level from {@code 1} to
+ * {@code 9} ({@code 6} by default),</li>
+ * <li>{@code compressiondictionary}: path of a preset dictionary file. The
+ * dictionary used to write values is required to read them.</li>
+ * </ul>
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyCompressor
+{
+	/**
+	 * Header of a value stored as is.
+	 */
+	public static final int RAW = 0;
+
+	/**
+	 * Header of a value compressed with {@code Deflate}.
+	 */
+	public static final int DEFLATE = 1;
+
+	/**
+	 * Header of a value compressed with {@code Deflate} and a preset
+	 * dictionary.
+	 */
+	public static final int DEFLATE_DICTIONARY = 2;
+
+	/**
+	 * Length of the segments of the samples considered by the dictionary
+	 * training.
+	 */
+	private static final int SEGMENT = 16;
+
+	/**
+	 * Compression level.
+	 */
+	private final int level;
+
+	/**
+	 * Serialized size below which values are not compressed.
+	 */
+	private final int threshold;
+
+	/**
+	 * Preset dictionary, may be {@code null}.
+	 */
+	private final byte[] dictionary;
+
+	/**
+	 * Checksum identifying the dictionary.
+	 */
+	private final int dictionaryId;
+
+	/**
+	 * Per thread compression buffers.
+	 */
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>()
+	{
+		@Override
+		protected Buffers initialValue()
+		{
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * Creates a new compressor.
+	 * <p>
+	 * @param level Compression level.
+	 * @param threshold Serialized size below which values are not compressed.
+	 * @param dictionary Preset dictionary, may be {@code null}.
+	 */
+	public BerkeleyCompressor(final int level, final int threshold, final byte[] dictionary)
+	{
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+		{
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+
+		this.level = level;
+		this.threshold = threshold;
+		this.dictionary = dictionary == null || dictionary.length == 0 ? null : dictionary.clone();
+
+		Adler32 adler = new Adler32();
+		if (this.dictionary != null)
+		{
+			adler.update(this.dictionary);
+		}
+		dictionaryId = (int) adler.getValue();
+	}
+
+	/**
+	 * Creates the compressor configured by the map store properties.
+	 * <p>
+	 * @param properties Properties of the map store.
+	 * @return Compressor or {@code null} if the compression is disabled.
+	 * @throws IOException Thrown if the dictionary cannot be read.
+	 */
+	public static BerkeleyCompressor fromProperties(final Properties properties) throws IOException
+	{
+		String compression = properties.getProperty("compression", "none").trim().toLowerCase();
+		if ("none".equals(compression))
+		{
+			return null;
+		}
+		if (!"deflate".equals(compression))
+		{
+			throw new IllegalArgumentException("Invalid compression: " + compression);
+		}
+
+		String path = properties.getProperty("compressiondictionary");
+
+		return new BerkeleyCompressor(Integer.parseInt(properties.getProperty("compressionlevel", "6")), Integer.parseInt(properties.getProperty("compressionthreshold", "512")), path == null ? null : Files.readAllBytes(Paths.get(path)));
+	}
+
+	/**
+	 * Compresses a serialized value.
+	 * <p>
+	 * @param value Array of bytes containing the serialized value.
+	 * @param length Length of the serialized value.
+	 * @return Reusable output of the calling thread containing the header and
+	 * the stored value, valid until the next compression of the thread.
+	 */
+	public final Output compress(final byte[] value, final int length)
+	{
+		return compress(value, 0, length);
+	}
+
+	/**
+	 * Compresses a serialized value preceded by a prefix, e.g. the expiry
+	 * timestamp of the value, copied as is before the header.
+	 * <p>
+	 * @param value Array of bytes containing the prefix and the serialized
+	 * value.
+	 * @param prefix Length of the prefix.
+	 * @param end End of the serialized value.
+	 * @return Reusable output of the calling thread containing the prefix,
+	 * the header and the stored value, valid until the next compression of
+	 * the thread.
+	 */
+	public final Output compress(final byte[] value, final int prefix, final int end)
+	{
+		Buffers local = buffers.get();
+		Output output = local.output();
+		output.writeBytes(value, 0, prefix);
+		int length = end - prefix;
+
+		if (length >= threshold)
+		{
+			Deflater deflater = local.deflater;
+			deflater.reset();
+			deflater.setLevel(level);
+			if (dictionary != null)
+			{
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(value, prefix, length);
+			deflater.finish();
+
+			// Compressed bytes must save at least the length of the uncompressed length.
+			byte[] scratch = local.scratch(length);
+			int size = 0;
+			while (!deflater.finished() && size < length - 5)
+			{
+				size += deflater.deflate(scratch, size, length - 5 - size);
+			}
+			if (deflater.finished())
+			{
+				output.writeByte(dictionary == null ? DEFLATE : DEFLATE_DICTIONARY);
+				output.writeInt(length, true);
+				output.writeBytes(scratch, 0, size);
+
+				return output;
+			}
+		}
+
+		output.writeByte(RAW);
+		output.writeBytes(value, prefix, length);
+
+		return output;
+	}
+
+	/**
+	 * Deserializes a stored value.
+	 * <p>
+	 * @param data Array of bytes containing the stored value.
+	 * @param offset Offset of the stored value.
+	 * @param length Length of the stored value.
+	 * @return Value.
+	 */
+	public final Object read(final byte[] data, final int offset, final int length)
+	{
+		if (data[offset] == RAW)
+		{
+			return KryoSerializer.read(data, offset + 1, length - 1);
+		}
+
+		Buffers local = buffers.get();
+		int size = inflate(local, data, offset, length);
+
+		return KryoSerializer.read(local.inflated, 0, size);
+	}
+
+	/**
+	 * Returns the serialized value of a stored value.
+	 * <p>
+	 * @param data Array of bytes containing the stored value.
+	 * @param offset Offset of the stored value.
+	 * @param length Length of the stored value.
+	 * @return Serialized value.
+	 */
+	public final byte[] decompress(final byte[] data, final int offset, final int length)
+	{
+		if (data[offset] == RAW)
+		{
+			byte[] value = new byte[length - 1];
+			System.arraycopy(data, offset + 1, value, 0, value.length);
+
+			return value;
+		}
+
+		Buffers local = buffers.get();
+		int size = inflate(local, data, offset, length);
+		byte[] value = new byte[size];
+		System.arraycopy(local.inflated, 0, value, 0, size);
+
+		return value;
+	}
+
+	/**
+	 * Inflates a compressed value into the inflate buffer of the thread.
+	 * <p>
+	 * @param local Buffers of the thread.
+	 * @param data Array of bytes containing the stored value.
+	 * @param offset Offset of the stored value.
+	 * @param length Length of the stored value.
+	 * @return Length of the serialized value.
+	 */
+	private int inflate(final Buffers local, final byte[] data, final int offset, final int length)
+	{
+		int header = data[offset];
+		if (header != DEFLATE && header != DEFLATE_DICTIONARY)
+		{
+			throw new IllegalStateException("Invalid value header: " + header);
+		}
+
+		Input input = new Input(data, offset + 1, offset + length);
+		int size = input.readInt(true);
+		int start = input.position();
+
+		byte[] target = local.inflated(size);
+		Inflater inflater = local.inflater;
+		inflater.reset();
+		inflater.setInput(data, start, offset + length - start);
+		try
+		{
+			int read = 0;
+			while (read < size)
+			{
+				int count = inflater.inflate(target, read, size - read);
+				if (count == 0 && inflater.needsDictionary())
+				{
+					if (dictionary == null || inflater.getAdler() != dictionaryId)
+					{
+						throw new IllegalStateException("Value compressed with another dictionary: " + inflater.getAdler());
+					}
+					inflater.setDictionary(dictionary);
+				}
+				else if (count == 0 && (inflater.finished() || inflater.needsInput()))
+				{
+					throw new IllegalStateException("Truncated compressed value");
+				}
+				read += count;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Trains a preset dictionary from samples of serialized values.
+	 * <p>
+	 * The segments found in most samples are kept, the most frequent ones at
+	 * the end of the dictionary where {@code Deflate} reaches them with the
+	 * shortest distances.
+	 * <p>
+	 * @param samples Serialized values.
+	 * @param size Maximum size of the dictionary in bytes ({@code 32768} at
+	 * most are used by {@code Deflate}).
+	 * @return Dictionary.
+	 */
+	public static byte[] train(final List<byte[]> samples, final int size)
+	{
+		final Map<ByteBuffer, Integer> counts = new HashMap<>();
+		for (byte[] sample : samples)
+		{
+			Set<ByteBuffer> segments = new HashSet<>();
+			for (int i = 0; i + SEGMENT <= sample.length; i += SEGMENT / 4)
+			{
+				segments.add(ByteBuffer.wrap(sample, i, SEGMENT).slice());
+			}
+			for (ByteBuffer segment : segments)
+			{
+				Integer count = counts.get(segment);
+				counts.put(segment, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+			}
+		}
+
+		List<ByteBuffer> segments = new ArrayList<>();
+		for (Map.Entry<ByteBuffer, Integer> entry : counts.entrySet())
+		{
+			if (entry.getValue().intValue() > 1)
+			{
+				segments.add(entry.getKey());
+			}
+		}
+		Collections.sort(segments, new Comparator<ByteBuffer>()
+		{
+			@Override
+			public int compare(final ByteBuffer a, final ByteBuffer b)
+			{
+				return counts.get(b).intValue() - counts.get(a).intValue();
+			}
+		});
+
+		int length = Math.min(size, segments.size() * SEGMENT);
+		byte[] dictionary = new byte[length];
+		int position = length;
+		for (ByteBuffer segment : segments)
+		{
+			if (position < SEGMENT)
+			{
+				break;
+			}
+			position -= SEGMENT;
+			segment.duplicate().get(dictionary, position, SEGMENT);
+		}
+
+		byte[] trimmed = new byte[length - position];
+		System.arraycopy(dictionary, position, trimmed, 0, trimmed.length);
+
+		return trimmed;
+	}
+
+	/**
+	 * Returns the serialized size below which values are not compressed.
+	 * <p>
+	 * @return Threshold in bytes.
+	 */
+	public final int getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Compression buffers of a thread.
+	 */
+	private static final class Buffers
+	{
+		/**
+		 * Initial size of a buffer.
+		 */
+		private static final int INITIAL_SIZE = 1024;
+
+		/**
+		 * Maximum size of a buffer kept between two values.
+		 */
+		private static final int RETAINED_SIZE = 1024 * 1024;
+
+		/**
+		 * Deflater.
+		 */
+		private final Deflater deflater = new Deflater();
+
+		/**
+		 * Inflater.
+		 */
+		private final Inflater inflater = new Inflater();
+
+		/**
+		 * Output receiving the stored values.
+		 */
+		private Output output = new Output(INITIAL_SIZE, -1);
+
+		/**
+		 * Buffer receiving the compressed bytes.
+		 */
+		private byte[] compressed = new byte[INITIAL_SIZE];
+
+		/**
+		 * Buffer receiving the inflated values.
+		 */
+		private byte[] inflated = new byte[INITIAL_SIZE];
+
+		/**
+		 * Returns the cleared output.
+		 * <p>
+		 * @return Output.
+		 */
+		final Output output()
+		{
+			if (output.getBuffer().length > RETAINED_SIZE)
+			{
+				output = new Output(INITIAL_SIZE, -1);
+			}
+			output.clear();
+
+			return output;
+		}
+
+		/**
+		 * Returns the buffer receiving the compressed bytes.
+		 * <p>
+		 * @param length Minimum length of the buffer.
+		 * @return Buffer.
+		 */
+		final byte[] scratch(final int length)
+		{
+			if (compressed.length < length || compressed.length > RETAINED_SIZE && length <= RETAINED_SIZE)
+			{
+				compressed = new byte[length];
+			}
+
+			return compressed;
+		}
+
+		/**
+		 * Returns the buffer receiving the inflated values.
+		 * <p>
+		 * @param length Minimum length of the buffer.
+		 * @return Buffer.
+		 */
+		final byte[] inflated(final int length)
+		{
+			if (inflated.length < length || inflated.length > RETAINED_SIZE && length <= RETAINED_SIZE)
+			{
+				inflated = new byte[Math.max(length, INITIAL_SIZE)];
+			}
+
+			return inflated;
+		}
+	}
+}
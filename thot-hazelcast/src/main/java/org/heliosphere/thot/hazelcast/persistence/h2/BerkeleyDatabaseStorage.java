@@ -0,0 +1,253 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * {@link BerkeleyStorage} backed by a deferred write Berkeley DB database of a
+ * shared {@link BerkeleyEnvironment}, configured as the database of a
+ * {@link BerkeleyStoreMap} so that a map can be moved from one map store to
+ * the other (without compression nor time to live).
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+public final class BerkeleyDatabaseStorage implements BerkeleyStorage
+{
+	/**
+	 * Environment.
+	 */
+	private BerkeleyEnvironment environment;
+
+	/**
+	 * Database.
+	 */
+	private Database database;
+
+	@Override
+	public void open(final String mapName, final Properties properties)
+	{
+		environment = BerkeleyEnvironment.acquire(properties);
+
+		DatabaseConfig config = new DatabaseConfig();
+		config.setAllowCreate(true);
+		config.setDeferredWrite(true);
+		config.setSortedDuplicates(false);
+		config.setTransactional(false);
+		database = environment.openDatabase(mapName, config);
+	}
+
+	/**
+	 * Returns the environment of the database.
+	 * <p>
+	 * @return Environment, {@code null} if the storage is not open.
+	 */
+	public final BerkeleyEnvironment getEnvironment()
+	{
+		return environment;
+	}
+
+	/**
+	 * Returns the database.
+	 * <p>
+	 * @return Database, {@code null} if the storage is not open.
+	 */
+	final Database getDatabase()
+	{
+		return database;
+	}
+
+	@Override
+	public byte[] get(final byte[] key)
+	{
+		DatabaseEntry value = new DatabaseEntry();
+		if (database.get(null, new DatabaseEntry(key), value, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+		{
+			return null;
+		}
+
+		return toBytes(value);
+	}
+
+	/**
+	 * Returns the bytes of an entry, copied only if the entry does not span
+	 * its whole array.
+	 * <p>
+	 * @param entry Entry.
+	 * @return Array of bytes.
+	 */
+	private static byte[] toBytes(final DatabaseEntry entry)
+	{
+		return entry.getOffset() == 0 && entry.getSize() == entry.getData().length ? entry.getData() : Arrays.copyOfRange(entry.getData(), entry.getOffset(), entry.getOffset() + entry.getSize());
+	}
+
+	@Override
+	public void put(final byte[] key, final byte[] value, final int offset, final int length)
+	{
+		database.put(null, new DatabaseEntry(key), new DatabaseEntry(value, offset, length));
+	}
+
+	@Override
+	public boolean delete(final byte[] key)
+	{
+		return database.delete(null, new DatabaseEntry(key)) == OperationStatus.SUCCESS;
+	}
+
+	@Override
+	public void getAll(final byte[][] keys, final byte[][] values, final Throwable[] failures)
+	{
+		Cursor cursor = database.openCursor(null, null);
+		try
+		{
+			DatabaseEntry keyEntry = new DatabaseEntry();
+			DatabaseEntry valueEntry = new DatabaseEntry();
+			for (int i = 0; i < keys.length; i++)
+			{
+				try
+				{
+					keyEntry.setData(keys[i]);
+					values[i] = cursor.getSearchKey(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS ? toBytes(valueEntry) : null;
+				}
+				catch (Exception e)
+				{
+					failures[i] = e;
+				}
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void putAll(final byte[][] keys, final byte[][] values, final Throwable[] failures)
+	{
+		Cursor cursor = database.openCursor(null, null);
+		try
+		{
+			DatabaseEntry keyEntry = new DatabaseEntry();
+			DatabaseEntry valueEntry = new DatabaseEntry();
+			for (int i = 0; i < keys.length; i++)
+			{
+				try
+				{
+					keyEntry.setData(keys[i]);
+					valueEntry.setData(values[i]);
+					cursor.put(keyEntry, valueEntry);
+				}
+				catch (Exception e)
+				{
+					failures[i] = e;
+				}
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void deleteAll(final byte[][] keys, final Throwable[] failures)
+	{
+		Cursor cursor = database.openCursor(null, null);
+		try
+		{
+			DatabaseEntry keyEntry = new DatabaseEntry();
+			DatabaseEntry valueEntry = new DatabaseEntry();
+			valueEntry.setPartial(0, 0, true);
+			for (int i = 0; i < keys.length; i++)
+			{
+				try
+				{
+					keyEntry.setData(keys[i]);
+					if (cursor.getSearchKey(keyEntry, valueEntry, LockMode.RMW) == OperationStatus.SUCCESS)
+					{
+						cursor.delete();
+					}
+				}
+				catch (Exception e)
+				{
+					failures[i] = e;
+				}
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void keys(final BerkeleyKeyConsumer<byte[]> consumer)
+	{
+		Cursor cursor = database.openCursor(null, null);
+		try
+		{
+			DatabaseEntry foundKey = new DatabaseEntry();
+			DatabaseEntry foundData = new DatabaseEntry();
+			foundData.setPartial(0, 0, true);
+			while (cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+			{
+				if (!consumer.accept(Arrays.copyOfRange(foundKey.getData(), foundKey.getOffset(), foundKey.getOffset() + foundKey.getSize())))
+				{
+					break;
+				}
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	@Override
+	public long count()
+	{
+		return database.count();
+	}
+
+	@Override
+	public void sync()
+	{
+		database.sync();
+	}
+
+	@Override
+	public void close()
+	{
+		if (database != null)
+		{
+			try
+			{
+				database.sync();
+			}
+			finally
+			{
+				environment.closeDatabase(database);
+				environment.release();
+				database = null;
+				environment = null;
+			}
+		}
+	}
+}
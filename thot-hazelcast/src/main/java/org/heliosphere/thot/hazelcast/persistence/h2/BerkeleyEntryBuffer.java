@@ -0,0 +1,299 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.Arrays;
+
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * Per thread reusable buffers used to encode the keys and values of a
+ * {@link BerkeleyStoreMap} without allocation.
+ * <p>
+ * Keys are encoded by the {@link BerkeleyKeyCodec} of the map and values are
+ * serialized by Kryo. Both are written into a reusable Kryo {@link Output} and the
+ * reusable {@link DatabaseEntry} points straight at the output buffer, i.e.
+ * the serialized bytes are neither copied nor allocated. Berkeley DB copies
+ * the data it keeps, so the entries are only valid until the next encoding
+ * done by the same thread.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+public final class BerkeleyEntryBuffer
+{
+	/**
+	 * Initial size of a buffer.
+	 */
+	private static final int INITIAL_SIZE = 1024;
+
+	/**
+	 * Maximum size of a buffer kept between two encodings. A buffer grown
+	 * beyond this size by a large object is replaced by a new one.
+	 */
+	private static final int RETAINED_SIZE = 1024 * 1024;
+
+	/**
+	 * Buffers of the threads.
+	 */
+	private static final ThreadLocal<BerkeleyEntryBuffer> buffers = new ThreadLocal<BerkeleyEntryBuffer>()
+	{
+		@Override
+		protected BerkeleyEntryBuffer initialValue()
+		{
+			return new BerkeleyEntryBuffer();
+		}
+	};
+
+	/**
+	 * Output used to serialize keys.
+	 */
+	private Output keyOutput = new Output(INITIAL_SIZE, -1);
+
+	/**
+	 * Output used to serialize values.
+	 */
+	private Output valueOutput = new Output(INITIAL_SIZE, -1);
+
+	/**
+	 * Key entry.
+	 */
+	private final DatabaseEntry key = new DatabaseEntry();
+
+	/**
+	 * Value entry.
+	 */
+	private final DatabaseEntry value = new DatabaseEntry();
+
+	/**
+	 * Creates a new entry buffer.
+	 */
+	private BerkeleyEntryBuffer()
+	{
+	}
+
+	/**
+	 * Returns the entry buffer of the current thread.
+	 * <p>
+	 * @return Entry buffer.
+	 */
+	public static BerkeleyEntryBuffer get()
+	{
+		return buffers.get();
+	}
+
+	/**
+	 * Encodes a key into the reusable key entry.
+	 * <p>
+	 * @param codec Codec of the key.
+	 * @param object Key to encode.
+	 * @return Key entry pointing at the encoded key.
+	 * @param <K> Type of the key.
+	 */
+	public final <K> DatabaseEntry key(final BerkeleyKeyCodec<K> codec, final K object)
+	{
+		keyOutput = encode(keyOutput, codec, object);
+		key.setData(keyOutput.getBuffer(), 0, keyOutput.position());
+
+		return key;
+	}
+
+	/**
+	 * Encodes a value into the reusable value entry.
+	 * <p>
+	 * @param object Value to encode.
+	 * @return Value entry pointing at the serialized value.
+	 */
+	public final DatabaseEntry value(final Object object)
+	{
+		return value(null, object);
+	}
+
+	/**
+	 * Encodes a value into the reusable value entry, compressing it if a
+	 * compressor is given.
+	 * <p>
+	 * @param compressor Compressor of the values, may be {@code null}.
+	 * @param object Value to encode.
+	 * @return Value entry pointing at the stored value.
+	 */
+	public final DatabaseEntry value(final BerkeleyCompressor compressor, final Object object)
+	{
+		return value(compressor, object, -1);
+	}
+
+	/**
+	 * Encodes a value into the reusable value entry, preceded by its expiry
+	 * timestamp if it expires and compressed if a compressor is given.
+	 * <p>
+	 * @param compressor Compressor of the values, may be {@code null}.
+	 * @param object Value to encode.
+	 * @param expiry Expiry timestamp of the value in milliseconds (see
+	 * {@link BerkeleyExpiry}), negative if the values of the map do not
+	 * expire.
+	 * @return Value entry pointing at the stored value.
+	 */
+	public final DatabaseEntry value(final BerkeleyCompressor compressor, final Object object, final long expiry)
+	{
+		valueOutput = reuse(valueOutput);
+		int prefix = 0;
+		if (expiry >= 0)
+		{
+			valueOutput.writeLong(expiry);
+			prefix = BerkeleyExpiry.SIZE;
+		}
+		BerkeleyKeyCodecs.KRYO.write(object, valueOutput);
+
+		if (compressor == null)
+		{
+			value.setData(valueOutput.getBuffer(), 0, valueOutput.position());
+		}
+		else
+		{
+			Output compressed = compressor.compress(valueOutput.getBuffer(), prefix, valueOutput.position());
+			value.setData(compressed.getBuffer(), 0, compressed.position());
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns the reusable value entry emptied, to receive a value read from a
+	 * database.
+	 * <p>
+	 * @return Empty value entry.
+	 */
+	public final DatabaseEntry value()
+	{
+		value.setData(null);
+
+		return value;
+	}
+
+	/**
+	 * Encodes a key into a new array of bytes, using the reusable key output
+	 * as a scratch buffer.
+	 * <p>
+	 * @param codec Codec of the key.
+	 * @param object Key to encode.
+	 * @return Array of bytes of the exact size of the encoded key.
+	 * @param <K> Type of the key.
+	 */
+	public final <K> byte[] keyBytes(final BerkeleyKeyCodec<K> codec, final K object)
+	{
+		keyOutput = encode(keyOutput, codec, object);
+
+		return Arrays.copyOf(keyOutput.getBuffer(), keyOutput.position());
+	}
+
+	/**
+	 * Deserializes the value of an entry, reading the entry data in place.
+	 * <p>
+	 * @param entry Entry to deserialize.
+	 * @return Value or {@code null} if the entry is empty.
+	 */
+	public static Object read(final DatabaseEntry entry)
+	{
+		if (entry.getSize() == 0)
+		{
+			return null;
+		}
+
+		return KryoSerializer.read(entry.getData(), entry.getOffset(), entry.getSize());
+	}
+
+	/**
+	 * Deserializes the value of an entry, decompressing it if a compressor is
+	 * given.
+	 * <p>
+	 * @param compressor Compressor of the values, may be {@code null}.
+	 * @param entry Entry to deserialize.
+	 * @return Value or {@code null} if the entry is empty.
+	 */
+	public static Object read(final BerkeleyCompressor compressor, final DatabaseEntry entry)
+	{
+		return read(compressor, entry.getData(), entry.getOffset(), entry.getSize());
+	}
+
+	/**
+	 * Deserializes a stored value, decompressing it if a compressor is given.
+	 * <p>
+	 * @param compressor Compressor of the values, may be {@code null}.
+	 * @param data Array of bytes containing the stored value.
+	 * @param offset Offset of the stored value.
+	 * @param length Length of the stored value.
+	 * @return Value or {@code null} if the stored value is empty.
+	 */
+	public static Object read(final BerkeleyCompressor compressor, final byte[] data, final int offset, final int length)
+	{
+		if (length == 0)
+		{
+			return null;
+		}
+
+		return compressor == null ? KryoSerializer.read(data, offset, length) : compressor.read(data, offset, length);
+	}
+
+	/**
+	 * Decodes the key of an entry, reading the entry data in place.
+	 * <p>
+	 * @param codec Codec of the key.
+	 * @param entry Entry to decode.
+	 * @return Key.
+	 * @param <K> Type of the key.
+	 */
+	public static <K> K read(final BerkeleyKeyCodec<K> codec, final DatabaseEntry entry)
+	{
+		return codec.read(new Input(entry.getData(), entry.getOffset(), entry.getOffset() + entry.getSize()));
+	}
+
+	/**
+	 * Encodes an object into an output.
+	 * <p>
+	 * @param output Output to reuse.
+	 * @param codec Codec of the object.
+	 * @param object Object to encode.
+	 * @return Output containing the encoded object, a new one if the given
+	 * output has been grown beyond the retained size.
+	 * @param <T> Type of the object.
+	 */
+	private static <T> Output encode(final Output output, final BerkeleyKeyCodec<T> codec, final T object)
+	{
+		Output target = reuse(output);
+		codec.write(object, target);
+
+		return target;
+	}
+
+	/**
+	 * Returns an output cleared for a new encoding.
+	 * <p>
+	 * @param output Output to reuse.
+	 * @return Cleared output, a new one if the given output has been grown
+	 * beyond the retained size.
+	 */
+	private static Output reuse(final Output output)
+	{
+		Output target = output;
+		if (target.getBuffer().length > RETAINED_SIZE)
+		{
+			target = new Output(INITIAL_SIZE, -1);
+		}
+		target.clear();
+
+		return target;
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+import com.sleepycat.je.CheckpointConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.SecondaryConfig;
+import com.sleepycat.je.SecondaryDatabase;
+
+/**
+ * Named Berkeley DB {@link Environment} shared by the {@link BerkeleyStoreMap}
+ * configured with the same environment name.
+ * <p>
+ * The environment is configured from the properties of the {@code Hazelcast}
+ * map store configuration of the first map opening it and closed when its
+ * last map releases it: each {@link #acquire(Properties)} is paired with a
+ * {@link #release()}, once the databases opened by the caller are closed.
+ * Several named environments (i.e. several directories, caches and settings)
+ * can be used in a same JVM. All the properties are parsed and validated
+ * before the environment is opened. Supported properties are:
+ * <ul>
+ * <li>{@code environment}: name of the environment ({@code default} by default),</li>
+ * <li>{@code directory}: directory of the environment ({@code ${user.dir}/db/}
+ * for the default environment, {@code ${user.dir}/db/<name>/} otherwise),</li>
+ * <li>{@code cachesize}: cache size in bytes, supersedes {@code cachepercent},</li>
+ * <li>{@code cachepercent}: cache size in percentage of the heap ({@code 10} by default),</li>
+ * <li>{@code sharedcache}: is the cache shared with the other environments ({@code true} by default),</li>
+ * <li>{@code logfilemax}: maximum size of a log file in bytes ({@code 104857600} by default),</li>
+ * <li>{@code logbuffersize}: size of a log buffer in bytes,</li>
+ * <li>{@code lognumbuffers}: number of log buffers,</li>
+ * <li>{@code logtotalbufferbytes}: total memory used by the log buffers in bytes,</li>
+ * <li>{@code cleanerthreads}: number of cleaner threads,</li>
+ * <li>{@code evictorthreads}: number of evictor core threads,</li>
+ * <li>{@code checkpointerbytes}: number of bytes written between two checkpoints,</li>
+ * <li>{@code durability}: ignored, the environment being non transactional the
+ * Berkeley DB durability does not apply to its deferred write databases,
+ * whose writes are made durable by the synchronizations of the maps (see the
+ * {@code syncinterval} of {@link BerkeleyStoreMap}),</li>
+ * <li>{@code cleanonclose}: is the log cleaned when the environment is closed ({@code true} by default),</li>
+ * <li>{@code syncthreads}: number of threads of the {@link BerkeleySyncScheduler} ({@code 1} by default),</li>
+ * <li>{@code je.*}: any other Berkeley DB parameter, passed as is.</li>
+ * </ul>
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyEnvironment
+{
+	/**
+	 * Logger.
+	 */
+	private static final ILogger LOG = Logger.getLogger(BerkeleyEnvironment.class.getName());
+
+	/**
+	 * Name of the default environment.
+	 */
+	public static final String DEFAULT = "default";
+
+	/**
+	 * Open environments by name.
+	 */
+	private static final Map<String, BerkeleyEnvironment> environments = new HashMap<>();
+
+	/**
+	 * Name of the environment.
+	 */
+	private final String name;
+
+	/**
+	 * Directory of the environment.
+	 */
+	private final File directory;
+
+	/**
+	 * Berkeley DB environment.
+	 */
+	private final Environment environment;
+
+	/**
+	 * Synchronization scheduler shared by the databases of the environment.
+	 */
+	private final BerkeleySyncScheduler scheduler;
+
+	/**
+	 * Is the log cleaned when the environment is closed?
+	 */
+	private final boolean cleanOnClose;
+
+	/**
+	 * Open database handles.
+	 */
+	private final Set<Database> databases = new HashSet<>();
+
+	/**
+	 * Number of acquisitions not yet released.
+	 */
+	private int references;
+
+	/**
+	 * Creates and opens a new environment.
+	 * <p>
+	 * @param name Name of the environment.
+	 * @param properties Properties configuring the environment.
+	 */
+	private BerkeleyEnvironment(final String name, final Properties properties)
+	{
+		this.name = name;
+
+		boolean sharedCache = Boolean.parseBoolean(properties.getProperty("sharedcache", "true"));
+		long cacheSize = Long.parseLong(properties.getProperty("cachesize", "0"));
+		int cachePercent = Integer.parseInt(properties.getProperty("cachepercent", "10"));
+		int syncThreads = Integer.parseInt(properties.getProperty("syncthreads", "1"));
+		boolean clean = Boolean.parseBoolean(properties.getProperty("cleanonclose", "true"));
+		if (cacheSize < 0 || cachePercent <= 0 || cachePercent > 90 || syncThreads <= 0)
+		{
+			throw new IllegalArgumentException("Invalid cachesize, cachepercent or syncthreads: " + cacheSize + ", " + cachePercent + ", " + syncThreads);
+		}
+		if (properties.getProperty("durability") != null)
+		{
+			LOG.log(Level.WARNING, BerkeleyStoreMap.class.getCanonicalName() + ":" + name + ":durability ignored by a non transactional environment, see syncinterval");
+		}
+
+		// Berkeley DB validates the parameters when they are set.
+		EnvironmentConfig envConfig = new EnvironmentConfig();
+		envConfig.setAllowCreate(true);
+		envConfig.setLocking(true);
+		envConfig.setTransactional(false);
+		envConfig.setSharedCache(sharedCache);
+		if (cacheSize > 0)
+		{
+			envConfig.setCacheSize(cacheSize);
+		}
+		else
+		{
+			envConfig.setCachePercent(cachePercent);
+		}
+		envConfig.setConfigParam(EnvironmentConfig.LOG_FILE_MAX, properties.getProperty("logfilemax", "104857600"));
+		setConfigParam(envConfig, properties, "logbuffersize", EnvironmentConfig.LOG_BUFFER_SIZE);
+		setConfigParam(envConfig, properties, "lognumbuffers", EnvironmentConfig.LOG_NUM_BUFFERS);
+		setConfigParam(envConfig, properties, "logtotalbufferbytes", EnvironmentConfig.LOG_TOTAL_BUFFER_BYTES);
+		setConfigParam(envConfig, properties, "cleanerthreads", EnvironmentConfig.CLEANER_THREADS);
+		setConfigParam(envConfig, properties, "evictorthreads", EnvironmentConfig.EVICTOR_CORE_THREADS);
+		setConfigParam(envConfig, properties, "checkpointerbytes", EnvironmentConfig.CHECKPOINTER_BYTES_INTERVAL);
+		for (String key : properties.stringPropertyNames())
+		{
+			if (key.startsWith("je."))
+			{
+				envConfig.setConfigParam(key, properties.getProperty(key));
+			}
+		}
+
+		String path = properties.getProperty("directory");
+		if (path == null)
+		{
+			path = System.getProperty("user.dir", ".") + "/db/" + (DEFAULT.equals(name) ? "" : name + "/");
+		}
+		directory = new File(path);
+		if (!directory.exists() && !directory.mkdirs())
+		{
+			throw new BerkeleyStoreMapException("Cannot create: " + path);
+		}
+
+		environment = new Environment(directory, envConfig);
+		cleanOnClose = clean;
+		scheduler = new BerkeleySyncScheduler(BerkeleyStoreMap.class.getSimpleName() + "-" + name, syncThreads);
+	}
+
+	/**
+	 * Sets a Berkeley DB parameter from a property if it is defined.
+	 * <p>
+	 * @param config Environment configuration.
+	 * @param properties Properties.
+	 * @param property Property name.
+	 * @param parameter Berkeley DB parameter name.
+	 */
+	private static void setConfigParam(final EnvironmentConfig config, final Properties properties, final String property, final String parameter)
+	{
+		String value = properties.getProperty(property);
+		if (value != null)
+		{
+			config.setConfigParam(parameter, value);
+		}
+	}
+
+	/**
+	 * Returns the environment named by the given properties, opening it if it
+	 * is not already open. The environment stays open until it is released by
+	 * {@link #release()}, so that it is not closed by another map between its
+	 * acquisition and the opening of the databases of the caller.
+	 * <p>
+	 * @param properties Properties of the map store configuration.
+	 * @return Environment.
+	 */
+	public static synchronized BerkeleyEnvironment acquire(final Properties properties)
+	{
+		String name = properties.getProperty("environment", DEFAULT);
+		BerkeleyEnvironment environment = environments.get(name);
+		if (environment == null)
+		{
+			environment = new BerkeleyEnvironment(name, properties);
+			environments.put(name, environment);
+		}
+		environment.references++;
+
+		return environment;
+	}
+
+	/**
+	 * Releases an environment returned by {@link #acquire(Properties)}. The
+	 * environment is closed when its last acquisition is released and all its
+	 * databases are closed.
+	 */
+	public final void release()
+	{
+		synchronized (BerkeleyEnvironment.class)
+		{
+			if (references > 0 && --references == 0 && databases.isEmpty())
+			{
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Returns an open environment.
+	 * <p>
+	 * @param name Name of the environment.
+	 * @return Environment or {@code null} if no environment with this name is
+	 * open.
+	 */
+	public static synchronized BerkeleyEnvironment get(final String name)
+	{
+		return environments.get(name);
+	}
+
+	/**
+	 * Opens a database of the environment.
+	 * <p>
+	 * @param databaseName Name of the database.
+	 * @param config Database configuration.
+	 * @return Database.
+	 */
+	public final Database openDatabase(final String databaseName, final DatabaseConfig config)
+	{
+		synchronized (BerkeleyEnvironment.class)
+		{
+			Database database = environment.openDatabase(null, databaseName, config);
+			databases.add(database);
+
+			return database;
+		}
+	}
+
+	/**
+	 * Opens a secondary database of the environment, associated to a primary
+	 * database. It is closed by {@link #closeDatabase(Database)}, before its
+	 * primary database.
+	 * <p>
+	 * @param databaseName Name of the secondary database.
+	 * @param primary Primary database.
+	 * @param config Secondary database configuration.
+	 * @return Secondary database.
+	 */
+	public final SecondaryDatabase openSecondaryDatabase(final String databaseName, final Database primary, final SecondaryConfig config)
+	{
+		synchronized (BerkeleyEnvironment.class)
+		{
+			SecondaryDatabase database = environment.openSecondaryDatabase(null, databaseName, primary, config);
+			databases.add(database);
+
+			return database;
+		}
+	}
+
+	/**
+	 * Closes a database of the environment. When the last database is closed
+	 * and the environment is released, the environment is closed as well.
+	 * <p>
+	 * @param database Database handle to close.
+	 */
+	public final void closeDatabase(final Database database)
+	{
+		synchronized (BerkeleyEnvironment.class)
+		{
+			if (databases.remove(database))
+			{
+				scheduler.unregister(database);
+				try
+				{
+					database.close();
+				}
+				catch (Throwable ex)
+				{
+					LOG.log(Level.WARNING, ex.getMessage(), ex);
+				}
+			}
+
+			if (databases.isEmpty() && references == 0)
+			{
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Synchronizes all the open databases of the environment, so that the
+	 * entries of the deferred write databases held in the cache are written
+	 * to the log files, then flushes the log to the disk.
+	 */
+	public final void sync()
+	{
+		synchronized (BerkeleyEnvironment.class)
+		{
+			for (Database database : databases)
+			{
+				database.sync();
+			}
+			environment.flushLog(true);
+		}
+	}
+
+	/**
+	 * Closes the environment.
+	 */
+	private void close()
+	{
+		scheduler.shutdown();
+		environments.remove(name);
+
+		if (cleanOnClose)
+		{
+			try
+			{
+				boolean anyCleaned = false;
+				while (environment.cleanLog() > 0)
+				{
+					anyCleaned = true;
+				}
+				if (anyCleaned)
+				{
+					CheckpointConfig force = new CheckpointConfig();
+					force.setForce(true);
+					environment.checkpoint(force);
+				}
+			}
+			catch (Throwable ex)
+			{
+				LOG.log(Level.WARNING, ex.getMessage(), ex);
+			}
+		}
+
+		try
+		{
+			environment.close();
+		}
+		catch (Throwable ex)
+		{
+			LOG.log(Level.WARNING, ex.getMessage(), ex);
+		}
+
+		LOG.log(Level.INFO, BerkeleyStoreMap.class.getCanonicalName() + ":" + name + ":BerkeleyDB is empty!");
+	}
+
+	/**
+	 * Returns the name of the environment.
+	 * <p>
+	 * @return Name.
+	 */
+	public final String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns the directory of the environment.
+	 * <p>
+	 * @return Directory.
+	 */
+	public final File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Returns the Berkeley DB environment.
+	 * <p>
+	 * @return Environment.
+	 */
+	public final Environment getEnvironment()
+	{
+		return environment;
+	}
+
+	/**
+	 * Returns the synchronization scheduler of the environment.
+	 * <p>
+	 * @return Synchronization scheduler.
+	 */
+	public final BerkeleySyncScheduler getSyncScheduler()
+	{
+		return scheduler;
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.Arrays;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.SecondaryConfig;
+import com.sleepycat.je.SecondaryCursor;
+import com.sleepycat.je.SecondaryDatabase;
+import com.sleepycat.je.SecondaryKeyCreator;
+
+/**
+ * Expiration of the entries of a {@link BerkeleyStoreMap} whose values have a
+ * time to live.
+ * <p>
+ * Each stored value starts with its expiry timestamp in milliseconds, written
+ * in big-endian order before the (possibly compressed) value, so that the
+ * loads tell an expired entry by a partial read of its first
+ * {@link #SIZE} bytes. The timestamps are also the keys of a Berkeley DB
+ * {@link SecondaryDatabase} with sorted duplicates, ordered by time since
+ * positive big-endian longs compare as unsigned bytes, so that
+ * {@link #sweep(long, int, BerkeleyValueCache)} deletes the expired entries
+ * by walking the head of the index only.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+final class BerkeleyExpiry implements SecondaryKeyCreator
+{
+	/**
+	 * Size of the expiry timestamp preceding a stored value.
+	 */
+	static final int SIZE = 8;
+
+	/**
+	 * Name of the secondary database, appended to the name of the map.
+	 */
+	private static final String SUFFIX = "#expiry";
+
+	/**
+	 * Time to live of the values in milliseconds.
+	 */
+	private final long ttl;
+
+	/**
+	 * Secondary database ordering the entries by expiry timestamp.
+	 */
+	private SecondaryDatabase database;
+
+	/**
+	 * Creates the expiration of a map.
+	 * <p>
+	 * @param ttl Time to live of the values in milliseconds.
+	 */
+	BerkeleyExpiry(final long ttl)
+	{
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Opens the secondary database of the expiry timestamps.
+	 * <p>
+	 * @param environment Environment of the map.
+	 * @param primary Database of the map.
+	 * @param mapName Name of the map.
+	 */
+	final void open(final BerkeleyEnvironment environment, final Database primary, final String mapName)
+	{
+		SecondaryConfig config = new SecondaryConfig();
+		config.setAllowCreate(true);
+		config.setAllowPopulate(true);
+		config.setDeferredWrite(true);
+		config.setSortedDuplicates(true);
+		config.setTransactional(false);
+		config.setKeyCreator(this);
+		database = environment.openSecondaryDatabase(mapName + SUFFIX, primary, config);
+	}
+
+	@Override
+	public boolean createSecondaryKey(final SecondaryDatabase secondary, final DatabaseEntry key, final DatabaseEntry data, final DatabaseEntry result)
+	{
+		if (data.getSize() < SIZE)
+		{
+			return false;
+		}
+
+		result.setData(Arrays.copyOfRange(data.getData(), data.getOffset(), data.getOffset() + SIZE));
+
+		return true;
+	}
+
+	/**
+	 * Returns the expiry timestamp of a value written now.
+	 * <p>
+	 * @return Expiry timestamp in milliseconds.
+	 */
+	final long next()
+	{
+		return System.currentTimeMillis() + ttl;
+	}
+
+	/**
+	 * Reads the expiry timestamp preceding a stored value.
+	 * <p>
+	 * @param data Array of bytes containing the stored value.
+	 * @param offset Offset of the stored value.
+	 * @return Expiry timestamp in milliseconds.
+	 */
+	static long read(final byte[] data, final int offset)
+	{
+		long timestamp = 0;
+		for (int i = 0; i < SIZE; i++)
+		{
+			timestamp = timestamp << 8 | data[offset + i] & 0xFF;
+		}
+
+		return timestamp;
+	}
+
+	/**
+	 * Tells if a stored value, or at least its first {@link #SIZE} bytes, is
+	 * expired.
+	 * <p>
+	 * @param entry Entry containing the stored value.
+	 * @param now Current time in milliseconds.
+	 * @return {@code true} if the value is expired.
+	 */
+	static boolean expired(final DatabaseEntry entry, final long now)
+	{
+		return entry.getSize() >= SIZE && read(entry.getData(), entry.getOffset()) <= now;
+	}
+
+	/**
+	 * Deletes the entries expired at a given time, in the order of their
+	 * expiry timestamps.
+	 * <p>
+	 * The expiry timestamp of the primary entry is checked again before its
+	 * deletion so that an entry rewritten since the index was read is kept.
+	 * <p>
+	 * @param now Current time in milliseconds.
+	 * @param limit Maximum number of entries deleted.
+	 * @param cache Value cache of the map, may be {@code null}.
+	 * @return Number of entries deleted.
+	 */
+	final int sweep(final long now, final int limit, final BerkeleyValueCache cache)
+	{
+		int count = 0;
+		SecondaryCursor cursor = database.openCursor(null, null);
+		try
+		{
+			DatabaseEntry foundTimestamp = new DatabaseEntry();
+			DatabaseEntry foundKey = new DatabaseEntry();
+			DatabaseEntry foundData = new DatabaseEntry();
+			foundData.setPartial(0, SIZE, true);
+
+			while (count < limit && cursor.getNext(foundTimestamp, foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			{
+				if (read(foundTimestamp.getData(), foundTimestamp.getOffset()) > now)
+				{
+					break;
+				}
+				if (expired(foundData, now) && cursor.delete() == OperationStatus.SUCCESS)
+				{
+					if (cache != null)
+					{
+						cache.invalidate(Arrays.copyOfRange(foundKey.getData(), foundKey.getOffset(), foundKey.getOffset() + foundKey.getSize()));
+					}
+					count++;
+				}
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the time to live of the values.
+	 * <p>
+	 * @return Time to live in milliseconds.
+	 */
+	final long getTtl()
+	{
+		return ttl;
+	}
+
+	/**
+	 * Returns the secondary database of the expiry timestamps.
+	 * <p>
+	 * @return Secondary database or {@code null} if it is not open.
+	 */
+	final SecondaryDatabase getDatabase()
+	{
+		return database;
+	}
+
+	/**
+	 * Forgets the secondary database once it is closed.
+	 */
+	final void closed()
+	{
+		database = null;
+	}
+}
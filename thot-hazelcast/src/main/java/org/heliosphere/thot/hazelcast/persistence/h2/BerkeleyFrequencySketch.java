@@ -0,0 +1,193 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+/**
+ * Approximate access frequency of the binary keys of a map, kept in a fixed
+ * amount of memory whatever the number of keys.
+ * <p>
+ * The sketch is a count-min sketch of {@value #DEPTH} rows of saturating
+ * byte counters sharing a single table: an access increments the counter of
+ * the key in each row and the estimate of a key is the smallest of its
+ * counters, which can only over-estimate its frequency. Once the number of
+ * accesses reaches ten times the width of the table, all the counters are
+ * halved, so that the estimates favor the recent accesses and a key that is
+ * no longer read cools down.
+ * <p>
+ * Counters are updated without synchronization: an increment lost by a race
+ * only lowers an estimate by one. A caller hashing its keys once, such as the
+ * {@link BerkeleyValueCache}, passes the {@link #hash(byte[], int, int)} of a
+ * key rather than the key itself.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+final class BerkeleyFrequencySketch
+{
+	/**
+	 * Number of counters per key.
+	 */
+	private static final int DEPTH = 4;
+
+	/**
+	 * Maximum value of a counter.
+	 */
+	private static final int MAX = 127;
+
+	/**
+	 * Counters.
+	 */
+	private final byte[] table;
+
+	/**
+	 * Mask of an index in the table.
+	 */
+	private final int mask;
+
+	/**
+	 * Number of accesses after which the counters are halved.
+	 */
+	private final int period;
+
+	/**
+	 * Number of accesses since the counters were last halved.
+	 */
+	private int accesses;
+
+	/**
+	 * Creates a new sketch.
+	 * <p>
+	 * @param width Minimum number of counters, rounded up to a power of two.
+	 */
+	BerkeleyFrequencySketch(final int width)
+	{
+		if (width <= 0 || width > 1 << 30)
+		{
+			throw new IllegalArgumentException("Invalid sketch width: " + width);
+		}
+
+		int size = Math.max(DEPTH, Integer.highestOneBit(width - 1) << 1);
+		table = new byte[size];
+		mask = size - 1;
+		period = (int) Math.min(Integer.MAX_VALUE, 10L * size);
+	}
+
+	/**
+	 * Hashes a binary key.
+	 * <p>
+	 * @param data Array of bytes containing the key.
+	 * @param offset Offset of the key.
+	 * @param length Length of the key.
+	 * @return Hash.
+	 */
+	static long hash(final byte[] data, final int offset, final int length)
+	{
+		long hash = 0xCBF29CE484222325L;
+		for (int i = offset; i < offset + length; i++)
+		{
+			hash = (hash ^ data[i]) * 0x100000001B3L;
+		}
+
+		// Final mix so that the high and low halves are both well distributed.
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+
+		return hash;
+	}
+
+	/**
+	 * Records an access to a key.
+	 * <p>
+	 * @param data Array of bytes containing the key.
+	 * @param offset Offset of the key.
+	 * @param length Length of the key.
+	 */
+	final void increment(final byte[] data, final int offset, final int length)
+	{
+		increment(hash(data, offset, length));
+	}
+
+	/**
+	 * Records an access to a key.
+	 * <p>
+	 * @param hash Hash of the key.
+	 */
+	final void increment(final long hash)
+	{
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < DEPTH; i++)
+		{
+			int index = h1 + i * h2 & mask;
+			if (table[index] < MAX)
+			{
+				table[index]++;
+			}
+		}
+
+		if (++accesses >= period)
+		{
+			age();
+		}
+	}
+
+	/**
+	 * Returns the estimated number of recent accesses to a key.
+	 * <p>
+	 * @param data Array of bytes containing the key.
+	 * @param offset Offset of the key.
+	 * @param length Length of the key.
+	 * @return Estimated frequency.
+	 */
+	final int estimate(final byte[] data, final int offset, final int length)
+	{
+		return estimate(hash(data, offset, length));
+	}
+
+	/**
+	 * Returns the estimated number of recent accesses to a key.
+	 * <p>
+	 * @param hash Hash of the key.
+	 * @return Estimated frequency.
+	 */
+	final int estimate(final long hash)
+	{
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		int frequency = MAX;
+		for (int i = 0; i < DEPTH; i++)
+		{
+			frequency = Math.min(frequency, table[h1 + i * h2 & mask]);
+		}
+
+		return frequency;
+	}
+
+	/**
+	 * Halves all the counters.
+	 */
+	private synchronized void age()
+	{
+		if (accesses < period)
+		{
+			return;
+		}
+
+		for (int i = 0; i < table.length; i++)
+		{
+			table[i] = (byte) (table[i] >> 1);
+		}
+		accesses = 0;
+	}
+}
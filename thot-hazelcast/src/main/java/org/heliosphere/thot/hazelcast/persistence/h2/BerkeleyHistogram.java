@@ -0,0 +1,218 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of positive values, e.g. latencies in nanoseconds or
+ * batch sizes.
+ * <p>
+ * Values below {@code 16} have their own bucket, larger ones fall into one of
+ * the {@code 8} linear sub-buckets of their power of two, hence a percentile
+ * is reported with a relative error below {@code 12.5%} whatever the range
+ * of the values. Recording a value costs a few atomic increments and no
+ * allocation, so that the histograms can be left on under full load.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+public final class BerkeleyHistogram
+{
+	/**
+	 * Number of sub-buckets per power of two, as a power of two.
+	 */
+	private static final int SUB_BITS = 3;
+
+	/**
+	 * Number of values having their own bucket.
+	 */
+	private static final int LINEAR = 2 << SUB_BITS;
+
+	/**
+	 * Number of buckets.
+	 */
+	private static final int BUCKETS = LINEAR + (63 - (SUB_BITS + 1)) * (1 << SUB_BITS);
+
+	/**
+	 * Number of values per bucket.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Number of values.
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * Sum of the values.
+	 */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Maximum value.
+	 */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value.
+	 * <p>
+	 * @param value Value, negative values are recorded as {@code 0}.
+	 */
+	public final void record(final long value)
+	{
+		long v = Math.max(0, value);
+		counts.incrementAndGet(bucket(v));
+		count.increment();
+		sum.add(v);
+
+		long current;
+		while (v > (current = max.get()) && !max.compareAndSet(current, v))
+		{
+			// Retry until the maximum is updated.
+		}
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 * <p>
+	 * @param value Positive value.
+	 * @return Bucket.
+	 */
+	private static int bucket(final long value)
+	{
+		if (value < LINEAR)
+		{
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+
+		return LINEAR + (exponent - (SUB_BITS + 1)) * (1 << SUB_BITS) + sub;
+	}
+
+	/**
+	 * Returns the highest value of a bucket.
+	 * <p>
+	 * @param bucket Bucket.
+	 * @return Highest value.
+	 */
+	private static long highest(final int bucket)
+	{
+		if (bucket < LINEAR)
+		{
+			return bucket;
+		}
+
+		int exponent = (bucket - LINEAR) / (1 << SUB_BITS) + SUB_BITS + 1;
+		long sub = (bucket - LINEAR) % (1 << SUB_BITS);
+		long width = 1L << (exponent - SUB_BITS);
+
+		return ((1L << SUB_BITS) + sub) * width + width - 1;
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 * <p>
+	 * @return Number of values.
+	 */
+	public final long getCount()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of the values recorded.
+	 * <p>
+	 * @return Sum.
+	 */
+	public final long getSum()
+	{
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the maximum value recorded.
+	 * <p>
+	 * @return Maximum value.
+	 */
+	public final long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the values recorded.
+	 * <p>
+	 * @return Mean or {@code 0} if no value has been recorded.
+	 */
+	public final double getMean()
+	{
+		long n = count.sum();
+
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns a percentile of the values recorded.
+	 * <p>
+	 * @param percentile Percentile, between {@code 0} and {@code 100}.
+	 * @return Highest value of the bucket of the percentile (at most the
+	 * maximum value) or {@code 0} if no value has been recorded.
+	 */
+	public final long getPercentile(final double percentile)
+	{
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= rank)
+			{
+				return Math.min(highest(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * Clears the histogram.
+	 * <p>
+	 * Values recorded concurrently may be partially cleared.
+	 */
+	public final void clear()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import com.esotericsoftware.kryo.io.Output;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.SecondaryConfig;
+import com.sleepycat.je.SecondaryCursor;
+import com.sleepycat.je.SecondaryDatabase;
+import com.sleepycat.je.SecondaryKeyCreator;
+
+/**
+ * Secondary index of a {@link BerkeleyStoreMap} on an attribute of its values.
+ * <p>
+ * The index is a Berkeley DB {@link SecondaryDatabase} with sorted duplicates
+ * associated to the database of the map, so that Berkeley DB maintains it on
+ * each write and delete of the map. Its keys are the attributes extracted from
+ * the deserialized values, encoded by the codec of the index, and its data
+ * are the binary keys of the map. An empty index is populated from the
+ * existing entries when it is opened.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ * @param <V> Value of the map.
+ */
+@SuppressWarnings("unchecked")
+final class BerkeleyIndex<K, V> implements SecondaryKeyCreator
+{
+	/**
+	 * Name of the index.
+	 */
+	private final String name;
+
+	/**
+	 * Extractor of the indexed attribute.
+	 */
+	private final BerkeleyIndexExtractor<V> extractor;
+
+	/**
+	 * Codec of the attributes.
+	 */
+	private final BerkeleyKeyCodec<Object> codec;
+
+	/**
+	 * Codec of the keys of the map.
+	 */
+	private BerkeleyKeyCodec<K> keyCodec;
+
+	/**
+	 * Compressor of the values of the map, {@code null} if disabled.
+	 */
+	private BerkeleyCompressor compressor;
+
+	/**
+	 * Length of the expiry timestamp preceding the stored values, {@code 0}
+	 * if the values of the map do not expire.
+	 */
+	private int prefix;
+
+	/**
+	 * Secondary database.
+	 */
+	private SecondaryDatabase database;
+
+	/**
+	 * Creates a new index.
+	 * <p>
+	 * @param name Name of the index.
+	 * @param extractor Extractor of the indexed attribute.
+	 * @param codec Codec of the attributes.
+	 */
+	BerkeleyIndex(final String name, final BerkeleyIndexExtractor<V> extractor, final BerkeleyKeyCodec<?> codec)
+	{
+		this.name = name;
+		this.extractor = extractor;
+		this.codec = (BerkeleyKeyCodec<Object>) codec;
+	}
+
+	/**
+	 * Opens the secondary database of the index.
+	 * <p>
+	 * @param environment Environment of the map.
+	 * @param primary Database of the map.
+	 * @param mapName Name of the map.
+	 * @param keyCodec Codec of the keys of the map.
+	 * @param compressor Compressor of the values of the map, may be
+	 * {@code null}.
+	 * @param prefix Length of the expiry timestamp preceding the stored
+	 * values (see {@link BerkeleyExpiry}), {@code 0} if they do not expire.
+	 */
+	final void open(final BerkeleyEnvironment environment, final Database primary, final String mapName, final BerkeleyKeyCodec<K> keyCodec, final BerkeleyCompressor compressor, final int prefix)
+	{
+		this.keyCodec = keyCodec;
+		this.compressor = compressor;
+		this.prefix = prefix;
+
+		SecondaryConfig config = new SecondaryConfig();
+		config.setAllowCreate(true);
+		config.setAllowPopulate(true);
+		config.setDeferredWrite(true);
+		config.setSortedDuplicates(true);
+		config.setTransactional(false);
+		config.setKeyCreator(this);
+		database = environment.openSecondaryDatabase(mapName + "#" + name, primary, config);
+	}
+
+	@Override
+	public boolean createSecondaryKey(final SecondaryDatabase secondary, final DatabaseEntry key, final DatabaseEntry data, final DatabaseEntry result)
+	{
+		Object attribute = extractor.extract((V) value(data));
+		if (attribute == null)
+		{
+			return false;
+		}
+
+		result.setData(encode(attribute));
+
+		return true;
+	}
+
+	/**
+	 * Deserializes a stored value, skipping its expiry timestamp.
+	 * <p>
+	 * @param data Entry containing the stored value.
+	 * @return Value.
+	 */
+	private Object value(final DatabaseEntry data)
+	{
+		return BerkeleyEntryBuffer.read(compressor, data.getData(), data.getOffset() + prefix, data.getSize() - prefix);
+	}
+
+	/**
+	 * Encodes an attribute.
+	 * <p>
+	 * The reusable buffers of the thread are not used since the secondary
+	 * keys are created while the binary key of the written entry may still
+	 * be held by them.
+	 * <p>
+	 * @param attribute Attribute.
+	 * @return Binary attribute.
+	 */
+	final byte[] encode(final Object attribute)
+	{
+		Output output = new Output(32, -1);
+		codec.write(attribute, output);
+
+		return output.toBytes();
+	}
+
+	/**
+	 * Streams the entries whose attribute is in a range, in the order of the
+	 * binary attributes, skipping the expired ones.
+	 * <p>
+	 * @param from Lowest binary attribute (inclusive).
+	 * @param to Highest binary attribute (exclusive), {@code null} for no
+	 * bound.
+	 * @param exact Are only the entries whose attribute equals {@code from}
+	 * read?
+	 * @param values Are the values read? Otherwise only the keys are read and
+	 * the consumer is called with {@code null} values.
+	 * @param consumer Consumer of the entries.
+	 */
+	final void query(final byte[] from, final byte[] to, final boolean exact, final boolean values, final BerkeleyScanConsumer<K, V> consumer)
+	{
+		SecondaryCursor cursor = database.openCursor(null, null);
+		try
+		{
+			DatabaseEntry foundAttribute = new DatabaseEntry(from);
+			DatabaseEntry foundKey = new DatabaseEntry();
+			DatabaseEntry foundData = new DatabaseEntry();
+			if (!values)
+			{
+				foundData.setPartial(0, prefix, true);
+			}
+			long now = System.currentTimeMillis();
+
+			OperationStatus status = exact ? cursor.getSearchKey(foundAttribute, foundKey, foundData, LockMode.READ_UNCOMMITTED) : cursor.getSearchKeyRange(foundAttribute, foundKey, foundData, LockMode.READ_UNCOMMITTED);
+			while (status == OperationStatus.SUCCESS)
+			{
+				if (!exact && to != null && BerkeleyStoreMap.compare(foundAttribute.getData(), foundAttribute.getOffset(), foundAttribute.getSize(), to, 0, to.length) >= 0)
+				{
+					break;
+				}
+				if ((prefix == 0 || !BerkeleyExpiry.expired(foundData, now)) && !consumer.accept(BerkeleyEntryBuffer.read(keyCodec, foundKey), values ? (V) value(foundData) : null))
+				{
+					break;
+				}
+				status = exact ? cursor.getNextDup(foundAttribute, foundKey, foundData, LockMode.READ_UNCOMMITTED) : cursor.getNext(foundAttribute, foundKey, foundData, LockMode.READ_UNCOMMITTED);
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the name of the index.
+	 * <p>
+	 * @return Name.
+	 */
+	final String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns the codec of the attributes.
+	 * <p>
+	 * @return Codec.
+	 */
+	final BerkeleyKeyCodec<Object> getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * Returns the secondary database of the index.
+	 * <p>
+	 * @return Secondary database or {@code null} if the index is not open.
+	 */
+	final SecondaryDatabase getDatabase()
+	{
+		return database;
+	}
+
+	/**
+	 * Forgets the secondary database once it is closed.
+	 */
+	final void closed()
+	{
+		database = null;
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+/**
+ * Extractor of the attribute of a value indexed by a secondary index of a
+ * {@link BerkeleyStoreMap}.
+ * <p>
+ * An extractor is called with the deserialized value each time an entry is
+ * written or deleted, hence it must be fast, stateless and thread safe. The
+ * attribute is encoded by the codec of the index, an order preserving codec
+ * enabling range queries.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <V> Value of the map.
+ */
+public interface BerkeleyIndexExtractor<V>
+{
+	/**
+	 * Extracts the indexed attribute of a value.
+	 * <p>
+	 * @param value Value.
+	 * @return Attribute or {@code null} if the value is not indexed.
+	 */
+	Object extract(V value);
+}
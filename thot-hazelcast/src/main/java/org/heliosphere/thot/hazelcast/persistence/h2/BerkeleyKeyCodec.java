@@ -0,0 +1,54 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Codec converting the keys of a {@link BerkeleyStoreMap} to the binary keys
+ * of its Berkeley DB database.
+ * <p>
+ * Berkeley DB sorts the records by the unsigned lexicographic order of their
+ * binary keys. An ordered codec produces binary keys sorted like the keys
+ * themselves, which is required by the range and prefix scans of the map.
+ * Built-in codecs are provided by {@link BerkeleyKeyCodecs}.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ */
+public interface BerkeleyKeyCodec<K>
+{
+	/**
+	 * Writes a key.
+	 * <p>
+	 * @param key Key to write.
+	 * @param output Output receiving the binary key.
+	 */
+	void write(K key, Output output);
+
+	/**
+	 * Reads a key.
+	 * <p>
+	 * @param input Input positioned on the binary key.
+	 * @return Key.
+	 */
+	K read(Input input);
+
+	/**
+	 * Does the order of the binary keys follow the order of the keys?
+	 * <p>
+	 * @return {@code true} if the codec is order preserving.
+	 */
+	boolean isOrdered();
+}
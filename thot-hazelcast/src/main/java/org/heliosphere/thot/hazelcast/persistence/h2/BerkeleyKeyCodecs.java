@@ -0,0 +1,460 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Built-in {@link BerkeleyKeyCodec}.
+ * <p>
+ * Apart from {@link #KRYO}, the codecs are order preserving:
+ * <ul>
+ * <li>{@link #INTEGER} and {@link #LONG}: big endian with the sign bit
+ * flipped,</li>
+ * <li>{@link #STRING}: UTF-8 (hence ordered by code point) where the bytes
+ * {@code 0x00} and {@code 0x01} are escaped, terminated by {@code 0x00},</li>
+ * <li>{@link #UUID}: most then least significant bits, as {@link #LONG},</li>
+ * <li>{@link #COMPOSITE}: components of a {@link BerkeleyCompositeKey}, each
+ * one prefixed by a type tag.</li>
+ * </ul>
+ * The binary prefix of a key (see {@link #prefix(BerkeleyKeyCodec, Object, byte[])})
+ * omits the terminator of a string, so that the prefix of a string matches
+ * all the strings starting with it.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyKeyCodecs
+{
+	/**
+	 * Kryo codec (default), not order preserving.
+	 */
+	public static final BerkeleyKeyCodec<Object> KRYO = new KryoCodec();
+
+	/**
+	 * {@link Integer} codec.
+	 */
+	public static final BerkeleyKeyCodec<Integer> INTEGER = new IntegerCodec();
+
+	/**
+	 * {@link Long} codec.
+	 */
+	public static final BerkeleyKeyCodec<Long> LONG = new LongCodec();
+
+	/**
+	 * {@link String} codec.
+	 */
+	public static final BerkeleyKeyCodec<String> STRING = new StringCodec();
+
+	/**
+	 * {@link java.util.UUID} codec.
+	 */
+	public static final BerkeleyKeyCodec<UUID> UUID = new UUIDCodec();
+
+	/**
+	 * {@link BerkeleyCompositeKey} codec.
+	 */
+	public static final BerkeleyKeyCodec<BerkeleyCompositeKey> COMPOSITE = new CompositeCodec();
+
+	/**
+	 * Type tag of an {@link Integer} component.
+	 */
+	private static final int TAG_INTEGER = 0x10;
+
+	/**
+	 * Type tag of a {@link Long} component.
+	 */
+	private static final int TAG_LONG = 0x11;
+
+	/**
+	 * Type tag of a {@link String} component.
+	 */
+	private static final int TAG_STRING = 0x20;
+
+	/**
+	 * Type tag of a {@link java.util.UUID} component.
+	 */
+	private static final int TAG_UUID = 0x30;
+
+	/**
+	 * Prevents the instantiation.
+	 */
+	private BerkeleyKeyCodecs()
+	{
+	}
+
+	/**
+	 * Returns a codec by name.
+	 * <p>
+	 * @param name {@code kryo}, {@code integer}, {@code long}, {@code string},
+	 * {@code uuid}, {@code composite} or the class name of a
+	 * {@link BerkeleyKeyCodec} having a public no-argument constructor.
+	 * @return Codec.
+	 * @throws IllegalArgumentException Thrown if the codec cannot be created.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static BerkeleyKeyCodec<?> forName(final String name)
+	{
+		switch (name.trim().toLowerCase())
+		{
+			case "kryo":
+				return KRYO;
+
+			case "integer":
+				return INTEGER;
+
+			case "long":
+				return LONG;
+
+			case "string":
+				return STRING;
+
+			case "uuid":
+				return UUID;
+
+			case "composite":
+				return COMPOSITE;
+
+			default:
+				try
+				{
+					return (BerkeleyKeyCodec) Class.forName(name.trim()).getDeclaredConstructor().newInstance();
+				}
+				catch (Exception e)
+				{
+					throw new IllegalArgumentException("Invalid key codec: " + name, e);
+				}
+		}
+	}
+
+	/**
+	 * Returns the binary prefix of the keys starting with a key: its binary
+	 * key without the terminator of the string it ends with, if any, for a
+	 * {@link #STRING} key or a {@link #COMPOSITE} key whose last component is
+	 * a string.
+	 * <p>
+	 * @param codec Codec of the key.
+	 * @param key Key.
+	 * @param bytes Binary key.
+	 * @return Binary prefix.
+	 */
+	static byte[] prefix(final BerkeleyKeyCodec<?> codec, final Object key, final byte[] bytes)
+	{
+		boolean string = codec == STRING;
+		if (codec == COMPOSITE)
+		{
+			BerkeleyCompositeKey composite = (BerkeleyCompositeKey) key;
+			string = composite.size() > 0 && composite.get(composite.size() - 1) instanceof String;
+		}
+
+		return string ? Arrays.copyOf(bytes, bytes.length - 1) : bytes;
+	}
+
+	/**
+	 * Writes a string.
+	 * <p>
+	 * @param value String to write.
+	 * @param output Output.
+	 */
+	private static void writeString(final String value, final Output output)
+	{
+		int i = 0;
+		while (i < value.length())
+		{
+			int codePoint = value.codePointAt(i);
+			i += Character.charCount(codePoint);
+			if (Character.isSurrogate((char) codePoint) && codePoint <= 0xffff)
+			{
+				// Lone surrogate, replaced as by the standard UTF-8 encoder.
+				codePoint = '?';
+			}
+
+			if (codePoint < 0x80)
+			{
+				writeEscaped(codePoint, output);
+			}
+			else if (codePoint < 0x800)
+			{
+				output.writeByte(0xc0 | codePoint >> 6);
+				output.writeByte(0x80 | codePoint & 0x3f);
+			}
+			else if (codePoint < 0x10000)
+			{
+				output.writeByte(0xe0 | codePoint >> 12);
+				output.writeByte(0x80 | codePoint >> 6 & 0x3f);
+				output.writeByte(0x80 | codePoint & 0x3f);
+			}
+			else
+			{
+				output.writeByte(0xf0 | codePoint >> 18);
+				output.writeByte(0x80 | codePoint >> 12 & 0x3f);
+				output.writeByte(0x80 | codePoint >> 6 & 0x3f);
+				output.writeByte(0x80 | codePoint & 0x3f);
+			}
+		}
+		output.writeByte(0);
+	}
+
+	/**
+	 * Writes an ASCII byte, escaping {@code 0x00} as {@code 0x01 0x01} and
+	 * {@code 0x01} as {@code 0x01 0x02} to keep {@code 0x00} as terminator.
+	 * <p>
+	 * @param value Byte to write.
+	 * @param output Output.
+	 */
+	private static void writeEscaped(final int value, final Output output)
+	{
+		if (value <= 1)
+		{
+			output.writeByte(1);
+			output.writeByte(value + 1);
+		}
+		else
+		{
+			output.writeByte(value);
+		}
+	}
+
+	/**
+	 * Reads a string.
+	 * <p>
+	 * @param input Input.
+	 * @return String.
+	 */
+	private static String readString(final Input input)
+	{
+		byte[] bytes = new byte[16];
+		int length = 0;
+		int value;
+		while ((value = input.readByteUnsigned()) != 0)
+		{
+			if (value == 1)
+			{
+				value = input.readByteUnsigned() - 1;
+			}
+			if (length == bytes.length)
+			{
+				bytes = Arrays.copyOf(bytes, length * 2);
+			}
+			bytes[length++] = (byte) value;
+		}
+
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Kryo codec.
+	 */
+	private static final class KryoCodec implements BerkeleyKeyCodec<Object>
+	{
+		@Override
+		public void write(final Object key, final Output output)
+		{
+			KryoSerializer.write(key, output);
+		}
+
+		@Override
+		public Object read(final Input input)
+		{
+			return KryoSerializer.read(input);
+		}
+
+		@Override
+		public boolean isOrdered()
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * {@link Integer} codec.
+	 */
+	private static final class IntegerCodec implements BerkeleyKeyCodec<Integer>
+	{
+		@Override
+		public void write(final Integer key, final Output output)
+		{
+			output.writeInt(key.intValue() ^ Integer.MIN_VALUE);
+		}
+
+		@Override
+		public Integer read(final Input input)
+		{
+			return Integer.valueOf(input.readInt() ^ Integer.MIN_VALUE);
+		}
+
+		@Override
+		public boolean isOrdered()
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * {@link Long} codec.
+	 */
+	private static final class LongCodec implements BerkeleyKeyCodec<Long>
+	{
+		@Override
+		public void write(final Long key, final Output output)
+		{
+			output.writeLong(key.longValue() ^ Long.MIN_VALUE);
+		}
+
+		@Override
+		public Long read(final Input input)
+		{
+			return Long.valueOf(input.readLong() ^ Long.MIN_VALUE);
+		}
+
+		@Override
+		public boolean isOrdered()
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * {@link String} codec.
+	 */
+	private static final class StringCodec implements BerkeleyKeyCodec<String>
+	{
+		@Override
+		public void write(final String key, final Output output)
+		{
+			writeString(key, output);
+		}
+
+		@Override
+		public String read(final Input input)
+		{
+			return readString(input);
+		}
+
+		@Override
+		public boolean isOrdered()
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * {@link java.util.UUID} codec.
+	 */
+	private static final class UUIDCodec implements BerkeleyKeyCodec<UUID>
+	{
+		@Override
+		public void write(final UUID key, final Output output)
+		{
+			output.writeLong(key.getMostSignificantBits() ^ Long.MIN_VALUE);
+			output.writeLong(key.getLeastSignificantBits() ^ Long.MIN_VALUE);
+		}
+
+		@Override
+		public UUID read(final Input input)
+		{
+			long most = input.readLong() ^ Long.MIN_VALUE;
+
+			return new UUID(most, input.readLong() ^ Long.MIN_VALUE);
+		}
+
+		@Override
+		public boolean isOrdered()
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * {@link BerkeleyCompositeKey} codec.
+	 */
+	private static final class CompositeCodec implements BerkeleyKeyCodec<BerkeleyCompositeKey>
+	{
+		@Override
+		public void write(final BerkeleyCompositeKey key, final Output output)
+		{
+			for (int i = 0; i < key.size(); i++)
+			{
+				Object component = key.get(i);
+				if (component instanceof Integer)
+				{
+					output.writeByte(TAG_INTEGER);
+					INTEGER.write((Integer) component, output);
+				}
+				else if (component instanceof Long)
+				{
+					output.writeByte(TAG_LONG);
+					LONG.write((Long) component, output);
+				}
+				else if (component instanceof String)
+				{
+					output.writeByte(TAG_STRING);
+					STRING.write((String) component, output);
+				}
+				else
+				{
+					output.writeByte(TAG_UUID);
+					UUID.write((UUID) component, output);
+				}
+			}
+		}
+
+		@Override
+		public BerkeleyCompositeKey read(final Input input)
+		{
+			List<Object> components = new ArrayList<>(4);
+			while (input.position() < input.limit())
+			{
+				int tag = input.readByteUnsigned();
+				switch (tag)
+				{
+					case TAG_INTEGER:
+						components.add(INTEGER.read(input));
+						break;
+
+					case TAG_LONG:
+						components.add(LONG.read(input));
+						break;
+
+					case TAG_STRING:
+						components.add(STRING.read(input));
+						break;
+
+					case TAG_UUID:
+						components.add(UUID.read(input));
+						break;
+
+					default:
+						throw new IllegalStateException("Invalid composite key component tag: " + tag);
+				}
+			}
+
+			return BerkeleyCompositeKey.of(components.toArray());
+		}
+
+		@Override
+		public boolean isOrdered()
+		{
+			return true;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+/**
+ * Consumer of the keys read by a query of a {@link BerkeleyStoreMap}.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ */
+public interface BerkeleyKeyConsumer<K>
+{
+	/**
+	 * Accepts a key.
+	 * <p>
+	 * @param key Key.
+	 * @return {@code true} to continue the query, {@code false} to stop it.
+	 */
+	boolean accept(K key);
+}
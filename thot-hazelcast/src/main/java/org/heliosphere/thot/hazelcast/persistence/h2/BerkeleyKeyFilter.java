@@ -0,0 +1,123 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of binary keys, answering in memory whether a key may have
+ * been added or has certainly not been.
+ * <p>
+ * A key sets {@value #PROBES} bits of a fixed size bit set, derived from its
+ * {@link BerkeleyFrequencySketch#hash(byte[], int, int)}. A key is not
+ * removed from the filter, which only grows more permissive until it is
+ * cleared.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+final class BerkeleyKeyFilter
+{
+	/**
+	 * Number of bits per key.
+	 */
+	private static final int PROBES = 4;
+
+	/**
+	 * Bits, 64 per long.
+	 */
+	private final AtomicLongArray bits;
+
+	/**
+	 * Mask of a bit index.
+	 */
+	private final int mask;
+
+	/**
+	 * Creates a new filter.
+	 * <p>
+	 * @param size Minimum number of bits, rounded up to a power of two.
+	 */
+	BerkeleyKeyFilter(final int size)
+	{
+		if (size <= 0 || size > 1 << 30)
+		{
+			throw new IllegalArgumentException("Invalid filter size: " + size);
+		}
+
+		int length = Math.max(64, Integer.highestOneBit(size - 1) << 1);
+		bits = new AtomicLongArray(length >>> 6);
+		mask = length - 1;
+	}
+
+	/**
+	 * Adds a key.
+	 * <p>
+	 * @param data Array of bytes containing the key.
+	 * @param offset Offset of the key.
+	 * @param length Length of the key.
+	 */
+	final void add(final byte[] data, final int offset, final int length)
+	{
+		long hash = BerkeleyFrequencySketch.hash(data, offset, length);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < PROBES; i++)
+		{
+			int index = h1 + i * h2 & mask;
+			long bit = 1L << index;
+			long word = bits.get(index >>> 6);
+			while ((word & bit) == 0 && !bits.compareAndSet(index >>> 6, word, word | bit))
+			{
+				word = bits.get(index >>> 6);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a key may have been added.
+	 * <p>
+	 * @param data Array of bytes containing the key.
+	 * @param offset Offset of the key.
+	 * @param length Length of the key.
+	 * @return {@code false} if the key has not been added since the filter
+	 * was last cleared.
+	 */
+	final boolean mightContain(final byte[] data, final int offset, final int length)
+	{
+		long hash = BerkeleyFrequencySketch.hash(data, offset, length);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < PROBES; i++)
+		{
+			int index = h1 + i * h2 & mask;
+			if ((bits.get(index >>> 6) & 1L << index) == 0)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes all the keys.
+	 */
+	final void clear()
+	{
+		for (int i = 0; i < bits.length(); i++)
+		{
+			bits.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,935 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+
+/**
+ * {@link BerkeleyStorage} backed by a memory-mapped append-only log, suited to
+ * mostly append workloads.
+ * <p>
+ * The log is a sequence of segment files of a fixed size, mapped in memory.
+ * Each write appends a record (CRC, key length, value length, key and value,
+ * a negative value length marking a delete) to the last segment, so that a
+ * write never seeks nor rewrites any byte. An in-memory hash index maps each
+ * live key to the segment and offset of its last record; it is rebuilt by
+ * replaying the segments in order when the log is opened, a record whose CRC
+ * does not match ending the replay of its segment (e.g. a write torn by a
+ * crash). A background compaction copies the live records of the segments
+ * whose live bytes fell below a ratio to the end of the log, then deletes
+ * them. A delete record is kept by the compaction as long as an older segment
+ * may still hold a record of its key.
+ * <p>
+ * The map store properties are:
+ * <ul>
+ * <li>{@code directory}: parent directory of the logs
+ * ({@code ${user.dir}/db/} by default), the log of a map being held by the
+ * {@code <map>.log} sub-directory,</li>
+ * <li>{@code logsegmentsize}: size of a segment in bytes ({@code 67108864} by
+ * default), a larger record getting a segment of its own,</li>
+ * <li>{@code logcompactioninterval}: interval between two compactions in
+ * seconds, {@code 0} to only compact on demand ({@code 30} by default),</li>
+ * <li>{@code logcompactionratio}: ratio of live bytes below which a segment is
+ * compacted ({@code 0.5} by default).</li>
+ * </ul>
+ * The keys and their locations are held in memory, hence the log suits maps
+ * whose keys fit in the heap.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyLogStorage implements BerkeleyStorage
+{
+	/**
+	 * Logger.
+	 */
+	private final ILogger LOG = Logger.getLogger(BerkeleyLogStorage.class.getName());
+
+	/**
+	 * Size of the header of a record: CRC, key length and value length.
+	 */
+	private static final int HEADER = 12;
+
+	/**
+	 * Value length of a delete record.
+	 */
+	private static final int DELETED = -1;
+
+	/**
+	 * Suffix of the segment files.
+	 */
+	private static final String SUFFIX = ".log";
+
+	/**
+	 * Lock guarding the index and the segments: reads share it, writes and
+	 * the steps of the compaction own it.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Location of the last record of each live key.
+	 */
+	private final Map<ByteBuffer, Long> index = new HashMap<>();
+
+	/**
+	 * Segments by identifier, in the order of the log.
+	 */
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+	/**
+	 * Segments written since the last synchronization.
+	 */
+	private final Set<Segment> dirty = new HashSet<>();
+
+	/**
+	 * Number of segments deleted by the compaction.
+	 */
+	private final AtomicLong compactedCount = new AtomicLong();
+
+	/**
+	 * Segment receiving the writes.
+	 */
+	private Segment active;
+
+	/**
+	 * Directory of the log.
+	 */
+	private File directory;
+
+	/**
+	 * Size of a segment in bytes.
+	 */
+	private int segmentSize;
+
+	/**
+	 * Ratio of live bytes below which a segment is compacted.
+	 */
+	private double compactionRatio;
+
+	/**
+	 * Executor running the background compaction, {@code null} if disabled.
+	 */
+	private ScheduledThreadPoolExecutor compactor;
+
+	@Override
+	public void open(final String mapName, final Properties properties)
+	{
+		String path = properties.getProperty("directory", System.getProperty("user.dir", ".") + "/db/");
+		directory = new File(path, mapName + SUFFIX);
+		if (!directory.exists() && !directory.mkdirs())
+		{
+			throw new BerkeleyStoreMapException("Cannot create: " + directory);
+		}
+		segmentSize = Integer.parseInt(properties.getProperty("logsegmentsize", "67108864"));
+		compactionRatio = Double.parseDouble(properties.getProperty("logcompactionratio", "0.5"));
+		if (segmentSize <= HEADER || compactionRatio < 0 || compactionRatio > 1)
+		{
+			throw new IllegalArgumentException("Invalid logsegmentsize or logcompactionratio: " + segmentSize + ", " + compactionRatio);
+		}
+
+		try
+		{
+			replay();
+		}
+		catch (IOException e)
+		{
+			throw new BerkeleyStoreMapException(BerkeleyLogStorage.class.getCanonicalName() + ":" + mapName + ":" + e.getMessage(), e);
+		}
+
+		long interval = Long.parseLong(properties.getProperty("logcompactioninterval", "30"));
+		if (interval > 0)
+		{
+			final String name = BerkeleyLogStorage.class.getSimpleName() + "-" + mapName + "-compaction";
+			compactor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+			compactor.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						compact();
+					}
+					catch (Throwable ex)
+					{
+						LOG.log(Level.SEVERE, ex.getMessage(), ex);
+					}
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Opens the segments and rebuilds the index by replaying their records.
+	 * <p>
+	 * @throws IOException Thrown in case an error occurs while mapping a
+	 * segment.
+	 */
+	private void replay() throws IOException
+	{
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files)
+		{
+			if (file.getName().endsWith(SUFFIX))
+			{
+				int id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length()), 16);
+				segments.put(Integer.valueOf(id), new Segment(id, file, (int) file.length()));
+			}
+		}
+
+		for (Segment segment : segments.values())
+		{
+			int offset = 0;
+			Record record = new Record();
+			while (record.read(segment, offset))
+			{
+				ByteBuffer key = ByteBuffer.wrap(record.key);
+				Long previous = record.valueLength == DELETED ? index.remove(key) : index.put(key, Long.valueOf(location(segment.id, offset)));
+				if (previous != null)
+				{
+					release(previous.longValue());
+				}
+				if (record.valueLength != DELETED)
+				{
+					segment.live += record.size();
+				}
+				offset += record.size();
+			}
+			segment.position = offset;
+			if (offset < segment.capacity && segment != segments.lastEntry().getValue() && record.keyLength != 0)
+			{
+				LOG.log(Level.WARNING, BerkeleyLogStorage.class.getCanonicalName() + ":" + segment.file + ":corrupted record at " + offset);
+			}
+		}
+
+		active = segments.isEmpty() ? roll(0) : segments.lastEntry().getValue();
+	}
+
+	/**
+	 * Packs the location of a record.
+	 * <p>
+	 * @param segment Identifier of the segment.
+	 * @param offset Offset of the record in the segment.
+	 * @return Location.
+	 */
+	private static long location(final int segment, final int offset)
+	{
+		return (long) segment << 32 | offset & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Returns the segment of a location.
+	 * <p>
+	 * @param location Location of a record.
+	 * @return Segment.
+	 */
+	private Segment segment(final long location)
+	{
+		return segments.get(Integer.valueOf((int) (location >>> 32)));
+	}
+
+	/**
+	 * Releases the record at a location, no longer live.
+	 * <p>
+	 * @param location Location of the record.
+	 */
+	private void release(final long location)
+	{
+		Segment segment = segment(location);
+		ByteBuffer buffer = segment.buffer;
+		int offset = (int) location;
+		segment.live -= HEADER + buffer.getInt(offset + 4) + Math.max(0, buffer.getInt(offset + 8));
+	}
+
+	/**
+	 * Creates a new segment at the end of the log and makes it active.
+	 * <p>
+	 * @param size Minimum size of the segment.
+	 * @return Segment.
+	 * @throws IOException Thrown in case an error occurs while creating the
+	 * segment.
+	 */
+	private Segment roll(final int size) throws IOException
+	{
+		int id = segments.isEmpty() ? 0 : segments.lastKey().intValue() + 1;
+		Segment segment = new Segment(id, new File(directory, String.format("%08x", Integer.valueOf(id)) + SUFFIX), Math.max(segmentSize, size));
+		segments.put(Integer.valueOf(id), segment);
+		active = segment;
+
+		return segment;
+	}
+
+	/**
+	 * Appends a record to the log. The caller owns the write lock.
+	 * <p>
+	 * @param key Binary key.
+	 * @param value Array of bytes containing the binary value, ignored for a
+	 * delete record.
+	 * @param offset Offset of the value.
+	 * @param length Length of the value, {@link #DELETED} for a delete record.
+	 * @return Location of the record.
+	 */
+	private long append(final byte[] key, final byte[] value, final int offset, final int length)
+	{
+		int size = HEADER + key.length + Math.max(0, length);
+		try
+		{
+			if (size > active.capacity - active.position)
+			{
+				roll(size);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new BerkeleyStoreMapException(BerkeleyLogStorage.class.getCanonicalName() + ":" + directory + ":" + e.getMessage(), e);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(key, 0, key.length);
+		if (length > 0)
+		{
+			crc.update(value, offset, length);
+		}
+
+		// The write lock makes the writer the only user of the buffer position.
+		MappedByteBuffer buffer = active.buffer;
+		int position = active.position;
+		buffer.position(position + HEADER);
+		buffer.put(key);
+		if (length > 0)
+		{
+			buffer.put(value, offset, length);
+		}
+		buffer.putInt(position, (int) crc.getValue());
+		buffer.putInt(position + 8, length);
+		buffer.putInt(position + 4, key.length);
+		active.position += size;
+		dirty.add(active);
+
+		return location(active.id, position);
+	}
+
+	/**
+	 * Reads the value of a key. The caller owns the read lock.
+	 * <p>
+	 * @param key Binary key.
+	 * @return Binary value or {@code null} if the key is not found.
+	 */
+	private byte[] read(final byte[] key)
+	{
+		Long location = index.get(ByteBuffer.wrap(key));
+		if (location == null)
+		{
+			return null;
+		}
+
+		int offset = (int) location.longValue();
+		ByteBuffer buffer = segment(location.longValue()).buffer.duplicate();
+		byte[] value = new byte[buffer.getInt(offset + 8)];
+		buffer.position(offset + HEADER + key.length);
+		buffer.get(value);
+
+		return value;
+	}
+
+	/**
+	 * Writes the value of a key. The caller owns the write lock.
+	 * <p>
+	 * @param key Binary key.
+	 * @param value Array of bytes containing the binary value.
+	 * @param offset Offset of the value.
+	 * @param length Length of the value.
+	 */
+	private void write(final byte[] key, final byte[] value, final int offset, final int length)
+	{
+		long location = append(key, value, offset, length);
+		Long previous = index.put(ByteBuffer.wrap(key), Long.valueOf(location));
+		if (previous != null)
+		{
+			release(previous.longValue());
+		}
+		active.live += HEADER + key.length + length;
+	}
+
+	/**
+	 * Deletes a key. The caller owns the write lock.
+	 * <p>
+	 * @param key Binary key.
+	 * @return {@code true} if the key was found.
+	 */
+	private boolean remove(final byte[] key)
+	{
+		Long previous = index.remove(ByteBuffer.wrap(key));
+		if (previous == null)
+		{
+			return false;
+		}
+		release(previous.longValue());
+		append(key, null, 0, DELETED);
+
+		return true;
+	}
+
+	@Override
+	public byte[] get(final byte[] key)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return read(key);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(final byte[] key, final byte[] value, final int offset, final int length)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			write(key, value, offset, length);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean delete(final byte[] key)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			return remove(key);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void getAll(final byte[][] keys, final byte[][] values, final Throwable[] failures)
+	{
+		lock.readLock().lock();
+		try
+		{
+			for (int i = 0; i < keys.length; i++)
+			{
+				try
+				{
+					values[i] = read(keys[i]);
+				}
+				catch (Exception e)
+				{
+					failures[i] = e;
+				}
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void putAll(final byte[][] keys, final byte[][] values, final Throwable[] failures)
+	{
+		// A single acquisition of the write lock appends the whole batch.
+		lock.writeLock().lock();
+		try
+		{
+			for (int i = 0; i < keys.length; i++)
+			{
+				try
+				{
+					write(keys[i], values[i], 0, values[i].length);
+				}
+				catch (Exception e)
+				{
+					failures[i] = e;
+				}
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteAll(final byte[][] keys, final Throwable[] failures)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			for (int i = 0; i < keys.length; i++)
+			{
+				try
+				{
+					remove(keys[i]);
+				}
+				catch (Exception e)
+				{
+					failures[i] = e;
+				}
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void keys(final BerkeleyKeyConsumer<byte[]> consumer)
+	{
+		List<ByteBuffer> keys;
+		lock.readLock().lock();
+		try
+		{
+			keys = new ArrayList<>(index.keySet());
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		for (ByteBuffer key : keys)
+		{
+			if (!consumer.accept(key.array()))
+			{
+				break;
+			}
+		}
+	}
+
+	@Override
+	public long count()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return index.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void sync()
+	{
+		List<Segment> written;
+		lock.writeLock().lock();
+		try
+		{
+			written = new ArrayList<>(dirty);
+			dirty.clear();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		for (Segment segment : written)
+		{
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Compacts the segments, except the active one, whose ratio of live bytes
+	 * is below the compaction ratio. It is called in the background every
+	 * {@code logcompactioninterval} seconds.
+	 * <p>
+	 * The live records are copied one at a time, so that the map store keeps
+	 * on reading and writing during the compaction; the copies are made
+	 * durable before the segment is deleted.
+	 * <p>
+	 * @return Number of segments deleted.
+	 */
+	public synchronized int compact()
+	{
+		List<Segment> candidates = new ArrayList<>();
+		lock.readLock().lock();
+		try
+		{
+			for (Segment segment : segments.values())
+			{
+				if (segment != active && segment.live < segment.position * compactionRatio)
+				{
+					candidates.add(segment);
+				}
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		for (Segment segment : candidates)
+		{
+			int offset = 0;
+			Record record = new Record();
+			while (offset < segment.position && record.read(segment, offset))
+			{
+				lock.writeLock().lock();
+				try
+				{
+					ByteBuffer key = ByteBuffer.wrap(record.key);
+					if (record.valueLength == DELETED)
+					{
+						// Needed as long as an older segment may hold a record of the key.
+						if (segments.firstKey().intValue() != segment.id && !index.containsKey(key))
+						{
+							append(record.key, null, 0, DELETED);
+						}
+					}
+					else
+					{
+						Long current = index.get(key);
+						if (current != null && current.longValue() == location(segment.id, offset))
+						{
+							long location = append(record.key, record.value, 0, record.valueLength);
+							index.put(key, Long.valueOf(location));
+							segment.live -= record.size();
+							active.live += record.size();
+						}
+					}
+				}
+				finally
+				{
+					lock.writeLock().unlock();
+				}
+				offset += record.size();
+			}
+
+			sync();
+			lock.writeLock().lock();
+			try
+			{
+				segments.remove(Integer.valueOf(segment.id));
+				dirty.remove(segment);
+				segment.close();
+				if (!segment.file.delete())
+				{
+					LOG.log(Level.WARNING, BerkeleyLogStorage.class.getCanonicalName() + ":cannot delete:" + segment.file);
+				}
+				compactedCount.incrementAndGet();
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+		}
+
+		return candidates.size();
+	}
+
+	@Override
+	public void close()
+	{
+		if (compactor != null)
+		{
+			compactor.shutdown();
+			try
+			{
+				compactor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			compactor = null;
+		}
+
+		sync();
+		lock.writeLock().lock();
+		try
+		{
+			for (Segment segment : segments.values())
+			{
+				segment.close();
+			}
+			segments.clear();
+			index.clear();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of segments of the log.
+	 * <p>
+	 * @return Number of segments.
+	 */
+	public final int getSegmentCount()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return segments.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written in the segments of the log.
+	 * <p>
+	 * @return Number of bytes.
+	 */
+	public final long getSize()
+	{
+		lock.readLock().lock();
+		try
+		{
+			long size = 0;
+			for (Segment segment : segments.values())
+			{
+				size += segment.position;
+			}
+
+			return size;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of the live records of the log.
+	 * <p>
+	 * @return Number of bytes.
+	 */
+	public final long getLiveSize()
+	{
+		lock.readLock().lock();
+		try
+		{
+			long live = 0;
+			for (Segment segment : segments.values())
+			{
+				live += segment.live;
+			}
+
+			return live;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of segments deleted by the compaction.
+	 * <p>
+	 * @return Number of segments.
+	 */
+	public final long getCompactedCount()
+	{
+		return compactedCount.get();
+	}
+
+	/**
+	 * Segment file of the log.
+	 */
+	private static final class Segment
+	{
+		/**
+		 * Identifier, i.e. position in the log.
+		 */
+		private final int id;
+
+		/**
+		 * File.
+		 */
+		private final File file;
+
+		/**
+		 * Channel of the file.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * Mapped content of the file.
+		 */
+		private final MappedByteBuffer buffer;
+
+		/**
+		 * Size of the file.
+		 */
+		private final int capacity;
+
+		/**
+		 * End of the records.
+		 */
+		private int position;
+
+		/**
+		 * Number of bytes of the live records.
+		 */
+		private long live;
+
+		/**
+		 * Opens or creates a segment.
+		 * <p>
+		 * @param id Identifier.
+		 * @param file File.
+		 * @param capacity Size of the file.
+		 * @throws IOException Thrown in case an error occurs while mapping
+		 * the file.
+		 */
+		Segment(final int id, final File file, final int capacity) throws IOException
+		{
+			this.id = id;
+			this.file = file;
+			this.capacity = capacity;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+			{
+				raf.setLength(capacity);
+				channel = raf.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			}
+		}
+
+		/**
+		 * Closes the segment; its mapping is released by the garbage
+		 * collector.
+		 */
+		final void close()
+		{
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Record read from a segment.
+	 */
+	private static final class Record
+	{
+		/**
+		 * Length of the key, {@code 0} past the last record.
+		 */
+		private int keyLength;
+
+		/**
+		 * Length of the value, {@link #DELETED} for a delete record.
+		 */
+		private int valueLength;
+
+		/**
+		 * Key.
+		 */
+		private byte[] key;
+
+		/**
+		 * Value, {@code null} for a delete record.
+		 */
+		private byte[] value;
+
+		/**
+		 * Reads the record at an offset of a segment.
+		 * <p>
+		 * @param segment Segment.
+		 * @param offset Offset of the record.
+		 * @return {@code true} if a valid record has been read, {@code false}
+		 * past the last record or if the record is corrupted.
+		 */
+		final boolean read(final Segment segment, final int offset)
+		{
+			keyLength = 0;
+			if (offset > segment.capacity - HEADER)
+			{
+				return false;
+			}
+
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int crc = buffer.getInt(offset);
+			keyLength = buffer.getInt(offset + 4);
+			valueLength = buffer.getInt(offset + 8);
+			if (keyLength <= 0 || valueLength < DELETED || (long) offset + HEADER + keyLength + Math.max(0, valueLength) > segment.capacity)
+			{
+				return false;
+			}
+
+			key = new byte[keyLength];
+			value = valueLength == DELETED ? null : new byte[valueLength];
+			buffer.position(offset + HEADER);
+			buffer.get(key);
+			CRC32 check = new CRC32();
+			check.update(key, 0, keyLength);
+			if (value != null)
+			{
+				buffer.get(value);
+				check.update(value, 0, valueLength);
+			}
+
+			return (int) check.getValue() == crc;
+		}
+
+		/**
+		 * Returns the size of the record in the segment.
+		 * <p>
+		 * @return Size in bytes.
+		 */
+		final int size()
+		{
+			return HEADER + keyLength + Math.max(0, valueLength);
+		}
+	}
+}
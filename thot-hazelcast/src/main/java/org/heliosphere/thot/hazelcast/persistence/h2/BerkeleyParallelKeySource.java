@@ -0,0 +1,627 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapMetrics.Operation;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.PartitionService;
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * Source of keys reading the keys of a {@link BerkeleyStoreMap} database on
+ * several threads.
+ * <p>
+ * The key space is split into contiguous ranges of about the same number of
+ * records, the range boundaries being found by skipping over the B-tree
+ * without reading the records. Each range is read by its own thread by
+ * chunks, as the sequential key source does, without fetching the values,
+ * and the keys of a chunk are decoded on the reading thread once its cursor
+ * is closed, hence in parallel batches. When the map is bound to a {@code Hazelcast} instance, the
+ * keys of a chunk are grouped by partition so that they are dispatched in full
+ * partition batches. Chunks are handed to the iterating thread through a
+ * bounded queue, which keeps the memory used by the initial load bounded.
+ * A range reader failing stops the other readers and its failure is thrown
+ * by the iterator, so that a partial key set is never taken for a complete
+ * one.
+ * <p>
+ * The keys of a {@link BerkeleyStorage} backend, streamed in no particular
+ * order, are read as a single range by one thread, chunked, decoded and
+ * handed to the iterating thread the same way.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ */
+@SuppressWarnings("nls")
+final class BerkeleyParallelKeySource<K> implements Iterable<K>, Closeable
+{
+	/**
+	 * Logger.
+	 */
+	private final ILogger LOG = Logger.getLogger(BerkeleyParallelKeySource.class.getName());
+
+	/**
+	 * Time waited by a blocked thread before it checks whether the source has
+	 * been closed (in milliseconds).
+	 */
+	private static final long POLL_TIMEOUT = 100;
+
+	/**
+	 * Database to read, {@code null} for a storage.
+	 */
+	private final Database database;
+
+	/**
+	 * Storage to read, {@code null} for a database.
+	 */
+	private final BerkeleyStorage storage;
+
+	/**
+	 * Codec of the keys.
+	 */
+	private final BerkeleyKeyCodec<K> codec;
+
+	/**
+	 * Do the stored values start with an expiry timestamp?
+	 */
+	private final boolean expiring;
+
+	/**
+	 * Maximum number of keys read per chunk.
+	 */
+	private final int size;
+
+	/**
+	 * Maximum number of reading threads.
+	 */
+	private final int threads;
+
+	/**
+	 * {@code Hazelcast} instance used to group the keys by partition, may be
+	 * {@code null}.
+	 */
+	private final HazelcastInstance hazelcast;
+
+	/**
+	 * Metrics recording the latency of the chunk reads.
+	 */
+	private final BerkeleyStoreMapMetrics metrics;
+
+	/**
+	 * Name used to name the reading threads.
+	 */
+	private final String name;
+
+	/**
+	 * Is the source closed?
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * First failure of a range reader, {@code null} if none.
+	 */
+	private volatile Exception failure;
+
+	/**
+	 * Creates a new parallel key source.
+	 * <p>
+	 * @param database Database to read.
+	 * @param codec Codec of the keys.
+	 * @param expiring Do the stored values start with an expiry timestamp
+	 * (see {@link BerkeleyExpiry})? Keys of expired entries are skipped.
+	 * @param size Maximum number of keys read per chunk.
+	 * @param threads Maximum number of reading threads.
+	 * @param hazelcast {@code Hazelcast} instance, may be {@code null}.
+	 * @param metrics Metrics recording the latency of the chunk reads.
+	 * @param name Name used to name the reading threads.
+	 */
+	BerkeleyParallelKeySource(final Database database, final BerkeleyKeyCodec<K> codec, final boolean expiring, final int size, final int threads, final HazelcastInstance hazelcast, final BerkeleyStoreMapMetrics metrics, final String name)
+	{
+		this.database = database;
+		storage = null;
+		this.codec = codec;
+		this.expiring = expiring;
+		this.size = size;
+		this.threads = threads;
+		this.hazelcast = hazelcast;
+		this.metrics = metrics;
+		this.name = name;
+	}
+
+	/**
+	 * Creates a new key source reading the keys of a storage backend on one
+	 * thread.
+	 * <p>
+	 * @param storage Storage to read.
+	 * @param codec Codec of the keys.
+	 * @param size Maximum number of keys read per chunk.
+	 * @param hazelcast {@code Hazelcast} instance, may be {@code null}.
+	 * @param metrics Metrics recording the latency of the chunk reads.
+	 * @param name Name used to name the reading thread.
+	 */
+	BerkeleyParallelKeySource(final BerkeleyStorage storage, final BerkeleyKeyCodec<K> codec, final int size, final HazelcastInstance hazelcast, final BerkeleyStoreMapMetrics metrics, final String name)
+	{
+		database = null;
+		this.storage = storage;
+		this.codec = codec;
+		expiring = false;
+		this.size = size;
+		threads = 1;
+		this.hazelcast = hazelcast;
+		this.metrics = metrics;
+		this.name = name;
+	}
+
+	@Override
+	public Iterator<K> iterator()
+	{
+		if (storage != null)
+		{
+			return new ParallelIterator(Arrays.<byte[]> asList((byte[]) null));
+		}
+
+		return new ParallelIterator(boundaries());
+	}
+
+	@Override
+	public void close()
+	{
+		closed = true;
+	}
+
+	/**
+	 * Splits the key space into ranges of about the same number of records.
+	 * <p>
+	 * @return Lowest binary key of each range, {@code null} for the first one.
+	 */
+	private List<byte[]> boundaries()
+	{
+		List<byte[]> boundaries = new ArrayList<>(threads);
+		boundaries.add(null);
+
+		Cursor cursor = null;
+		try
+		{
+			long count = database.count();
+			int ranges = (int) Math.max(1, Math.min(threads, count / size));
+			long step = count / ranges;
+
+			cursor = database.openCursor(null, null);
+			DatabaseEntry foundKey = new DatabaseEntry();
+			DatabaseEntry foundData = new DatabaseEntry();
+			foundData.setPartial(0, 0, true);
+			if (ranges > 1 && cursor.getFirst(foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+			{
+				for (int i = 1; i < ranges; i++)
+				{
+					if (cursor.skipNext(step, foundKey, foundData, LockMode.READ_UNCOMMITTED) < step)
+					{
+						break;
+					}
+					boundaries.add(copy(foundKey));
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			// Falls back to a single range.
+			LOG.log(Level.WARNING, e.getMessage(), e);
+		}
+		finally
+		{
+			if (cursor != null)
+			{
+				cursor.close();
+			}
+		}
+
+		return boundaries;
+	}
+
+	/**
+	 * Copies the binary key of an entry.
+	 * <p>
+	 * @param entry Entry.
+	 * @return Binary key.
+	 */
+	private static byte[] copy(final DatabaseEntry entry)
+	{
+		return Arrays.copyOfRange(entry.getData(), entry.getOffset(), entry.getOffset() + entry.getSize());
+	}
+
+	/**
+	 * Groups the keys of a chunk by partition, keeping their order within a
+	 * partition.
+	 * <p>
+	 * @param chunk Chunk of keys.
+	 * @return Keys grouped by partition.
+	 */
+	private List<K> groupByPartition(final List<K> chunk)
+	{
+		if (hazelcast == null || chunk.size() < 2)
+		{
+			return chunk;
+		}
+
+		PartitionService service = hazelcast.getPartitionService();
+		int[] partitions = new int[chunk.size()];
+		int max = 0;
+		for (int i = 0; i < partitions.length; i++)
+		{
+			partitions[i] = service.getPartition(chunk.get(i)).getPartitionId();
+			max = Math.max(max, partitions[i]);
+		}
+
+		// Counting sort by partition.
+		int[] starts = new int[max + 2];
+		for (int partition : partitions)
+		{
+			starts[partition + 1]++;
+		}
+		for (int i = 1; i < starts.length; i++)
+		{
+			starts[i] += starts[i - 1];
+		}
+		Object[] grouped = new Object[partitions.length];
+		for (int i = 0; i < partitions.length; i++)
+		{
+			grouped[starts[partitions[i]]++] = chunk.get(i);
+		}
+
+		@SuppressWarnings("unchecked")
+		List<K> keys = (List<K>) Arrays.asList(grouped);
+
+		return keys;
+	}
+
+	/**
+	 * Iterator over the keys read by the range readers.
+	 */
+	private final class ParallelIterator implements Iterator<K>
+	{
+		/**
+		 * Marker published by a range reader when its range is read.
+		 */
+		private final List<K> end = new ArrayList<>(0);
+
+		/**
+		 * Chunks read and not yet iterated.
+		 */
+		private final BlockingQueue<List<K>> queue;
+
+		/**
+		 * Executor of the range readers.
+		 */
+		private final ExecutorService executor;
+
+		/**
+		 * Number of ranges.
+		 */
+		private final int ranges;
+
+		/**
+		 * Number of ranges entirely read.
+		 */
+		private int finished = 0;
+
+		/**
+		 * Current chunk.
+		 */
+		private List<K> chunk = end;
+
+		/**
+		 * Position in the current chunk.
+		 */
+		private int position = 0;
+
+		/**
+		 * Creates a new iterator and starts the range readers.
+		 * <p>
+		 * @param boundaries Lowest binary key of each range.
+		 */
+		ParallelIterator(final List<byte[]> boundaries)
+		{
+			ranges = boundaries.size();
+			queue = new ArrayBlockingQueue<>(2 * ranges);
+
+			final AtomicInteger counter = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(ranges, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, name + "-load-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			for (int i = 0; i < ranges; i++)
+			{
+				final byte[] from = boundaries.get(i);
+				final byte[] to = i + 1 < ranges ? boundaries.get(i + 1) : null;
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						read(from, to);
+					}
+				});
+			}
+			executor.shutdown();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (position == chunk.size())
+			{
+				if (failure != null)
+				{
+					closed = true;
+					throw new BerkeleyStoreMapException(name + ":loadAllKeys:" + failure.getMessage(), failure);
+				}
+				if (finished == ranges || closed)
+				{
+					return false;
+				}
+
+				try
+				{
+					List<K> next = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+					if (next == end)
+					{
+						finished++;
+					}
+					else if (next != null)
+					{
+						chunk = next;
+						position = 0;
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					closed = true;
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		public K next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+
+			return chunk.get(position++);
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Reads a range of keys by chunks.
+		 * <p>
+		 * @param from Lowest binary key of the range (inclusive), {@code null}
+		 * for the first key.
+		 * @param to Highest binary key of the range (exclusive), {@code null}
+		 * for no bound.
+		 */
+		private void read(final byte[] from, final byte[] to)
+		{
+			try
+			{
+				if (storage != null)
+				{
+					readStorage();
+					return;
+				}
+
+				byte[] last = from;
+				boolean inclusive = true;
+				boolean exhausted = false;
+				while (!exhausted && !closed && failure == null)
+				{
+					List<byte[]> binaryKeys = new ArrayList<>(size);
+					long start = BerkeleyStoreMapMetrics.start();
+					Cursor cursor = database.openCursor(null, null);
+					try
+					{
+						DatabaseEntry foundKey = new DatabaseEntry();
+						DatabaseEntry foundData = new DatabaseEntry();
+						// A zero length partial read does not fetch the values, only the expiry timestamps are read.
+						foundData.setPartial(0, expiring ? BerkeleyExpiry.SIZE : 0, true);
+						long now = System.currentTimeMillis();
+
+						OperationStatus status;
+						if (last == null)
+						{
+							status = cursor.getFirst(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+						}
+						else
+						{
+							foundKey.setData(last);
+							status = cursor.getSearchKeyRange(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+							if (!inclusive && status == OperationStatus.SUCCESS && Arrays.equals(last, copy(foundKey)))
+							{
+								status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+							}
+						}
+
+						while (status == OperationStatus.SUCCESS)
+						{
+							if (to != null && BerkeleyStoreMap.compare(foundKey.getData(), foundKey.getOffset(), foundKey.getSize(), to, 0, to.length) >= 0)
+							{
+								status = OperationStatus.NOTFOUND;
+								break;
+							}
+							if (expiring && BerkeleyExpiry.expired(foundData, now))
+							{
+								metrics.skipped(1);
+							}
+							else
+							{
+								binaryKeys.add(copy(foundKey));
+							}
+							if (binaryKeys.size() == size)
+							{
+								break;
+							}
+							status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+						}
+
+						if (status == OperationStatus.SUCCESS)
+						{
+							last = copy(foundKey);
+							inclusive = false;
+						}
+						else
+						{
+							exhausted = true;
+						}
+					}
+					finally
+					{
+						cursor.close();
+					}
+
+					// Decoded once the cursor is closed, so that it is held for the reads only.
+					decode(binaryKeys, start);
+				}
+			}
+			catch (Exception e)
+			{
+				metrics.error(Operation.LOAD_ALL_KEYS);
+				LOG.log(Level.SEVERE, e.getMessage(), e);
+				synchronized (BerkeleyParallelKeySource.this)
+				{
+					if (failure == null)
+					{
+						failure = e;
+					}
+				}
+			}
+			finally
+			{
+				publish(end);
+			}
+		}
+
+		/**
+		 * Reads the keys of the storage by chunks.
+		 */
+		private void readStorage()
+		{
+			final List<byte[]> binaryKeys = new ArrayList<>(size);
+			final long[] start = { BerkeleyStoreMapMetrics.start() };
+			storage.keys(new BerkeleyKeyConsumer<byte[]>()
+			{
+				@Override
+				public boolean accept(final byte[] key)
+				{
+					binaryKeys.add(key);
+					if (binaryKeys.size() == size)
+					{
+						decode(binaryKeys, start[0]);
+						binaryKeys.clear();
+						start[0] = BerkeleyStoreMapMetrics.start();
+					}
+
+					return !closed && failure == null;
+				}
+			});
+			decode(binaryKeys, start[0]);
+		}
+
+		/**
+		 * Decodes a chunk of binary keys and hands it to the iterating thread.
+		 * <p>
+		 * @param binaryKeys Binary keys.
+		 * @param start Start time of the chunk read.
+		 */
+		private void decode(final List<byte[]> binaryKeys, final long start)
+		{
+			List<K> keys = new ArrayList<>(binaryKeys.size());
+			try
+			{
+				for (byte[] binaryKey : binaryKeys)
+				{
+					keys.add(codec.read(new Input(binaryKey)));
+				}
+			}
+			finally
+			{
+				metrics.record(Operation.LOAD_ALL_KEYS, start);
+			}
+
+			if (!keys.isEmpty())
+			{
+				publish(groupByPartition(keys));
+			}
+		}
+
+		/**
+		 * Hands a chunk to the iterating thread, waiting for room in the queue
+		 * unless the source is closed.
+		 * <p>
+		 * @param keys Chunk of keys.
+		 */
+		private void publish(final List<K> keys)
+		{
+			try
+			{
+				while (!closed)
+				{
+					if (queue.offer(keys, POLL_TIMEOUT, TimeUnit.MILLISECONDS))
+					{
+						return;
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+/**
+ * Consumer of the entries read by a scan of a {@link BerkeleyStoreMap}.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ * @param <V> Value of the map.
+ */
+public interface BerkeleyScanConsumer<K, V>
+{
+	/**
+	 * Accepts an entry.
+	 * <p>
+	 * @param key Key of the entry.
+	 * @param value Value of the entry.
+	 * @return {@code true} to continue the scan, {@code false} to stop it.
+	 */
+	boolean accept(K key, V value);
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.Properties;
+
+/**
+ * Storage backend of a {@link BerkeleyStorageStoreMap}, holding the binary
+ * keys and values of a map.
+ * <p>
+ * The map store encodes the keys and values, batches the operations,
+ * schedules the synchronizations and records the metrics; a backend only
+ * stores arrays of bytes. The backends provided are
+ * {@link BerkeleyDatabaseStorage} (a Berkeley DB database) and
+ * {@link BerkeleyLogStorage} (a memory-mapped append-only log). A backend is
+ * opened by a single map store and must be safe for concurrent use.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+public interface BerkeleyStorage
+{
+	/**
+	 * Opens the storage of a map.
+	 * <p>
+	 * @param mapName Name of the map.
+	 * @param properties Properties of the map store configuration.
+	 */
+	void open(String mapName, Properties properties);
+
+	/**
+	 * Returns the value of a key.
+	 * <p>
+	 * @param key Binary key.
+	 * @return Binary value or {@code null} if the key is not found.
+	 */
+	byte[] get(byte[] key);
+
+	/**
+	 * Writes the value of a key.
+	 * <p>
+	 * @param key Binary key.
+	 * @param value Array of bytes containing the binary value.
+	 * @param offset Offset of the value.
+	 * @param length Length of the value.
+	 */
+	void put(byte[] key, byte[] value, int offset, int length);
+
+	/**
+	 * Deletes a key.
+	 * <p>
+	 * @param key Binary key.
+	 * @return {@code true} if the key was found.
+	 */
+	boolean delete(byte[] key);
+
+	/**
+	 * Returns the values of several keys, in a single pass over the storage
+	 * when the backend supports it.
+	 * <p>
+	 * @param keys Binary keys, sorted in the unsigned lexicographic order.
+	 * @param values Receives the binary value of each key, {@code null} if
+	 * the key is not found.
+	 * @param failures Receives the cause of each key failed to be read, left
+	 * {@code null} for the other ones.
+	 */
+	void getAll(byte[][] keys, byte[][] values, Throwable[] failures);
+
+	/**
+	 * Writes the values of several keys, in a single pass over the storage
+	 * when the backend supports it.
+	 * <p>
+	 * @param keys Binary keys, sorted in the unsigned lexicographic order.
+	 * @param values Binary value of each key.
+	 * @param failures Receives the cause of each key failed to be written,
+	 * left {@code null} for the other ones.
+	 */
+	void putAll(byte[][] keys, byte[][] values, Throwable[] failures);
+
+	/**
+	 * Deletes several keys, in a single pass over the storage when the
+	 * backend supports it.
+	 * <p>
+	 * @param keys Binary keys, sorted in the unsigned lexicographic order.
+	 * @param failures Receives the cause of each key failed to be deleted,
+	 * left {@code null} for the other ones.
+	 */
+	void deleteAll(byte[][] keys, Throwable[] failures);
+
+	/**
+	 * Streams all the keys, in no particular order.
+	 * <p>
+	 * @param consumer Consumer of the binary keys, returning {@code false} to
+	 * stop.
+	 */
+	void keys(BerkeleyKeyConsumer<byte[]> consumer);
+
+	/**
+	 * Returns the number of keys.
+	 * <p>
+	 * @return Number of keys.
+	 */
+	long count();
+
+	/**
+	 * Makes the writes done so far durable.
+	 */
+	void sync();
+
+	/**
+	 * Closes the storage, making the writes durable.
+	 */
+	void close();
+}
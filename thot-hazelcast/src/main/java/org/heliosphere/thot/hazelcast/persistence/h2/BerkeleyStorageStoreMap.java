@@ -0,0 +1,642 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapMetrics.Operation;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * Implementation of the persistence of a {@link Map} over a pluggable
+ * {@link BerkeleyStorage} backend, so that the backend can be picked per map.
+ * <p>
+ * The map store encodes the keys and values as a {@link BerkeleyStoreMap}
+ * does, batches the operations, schedules the synchronizations and records
+ * the metrics, while the backend only stores arrays of bytes. The batch
+ * operations are handed to the backend sorted by binary key, so that a
+ * {@link BerkeleyDatabaseStorage} processes them in a single cursor pass. The
+ * backend is synchronized by the {@link BerkeleySyncScheduler} of its
+ * environment for a {@link BerkeleyDatabaseStorage}, or by a scheduler shared
+ * by all the other backends and shut down with the last of them, and its keys are loaded by a {@link BerkeleyParallelKeySource},
+ * as the ones of a {@link BerkeleyStoreMap}. It covers the
+ * {@link MapStore} contract only: the value cache, the write coalescing, the
+ * scans, the secondary indexes, the time to live and the backups rely on the
+ * Berkeley DB cursors and remain specific to {@link BerkeleyStoreMap}.
+ * <p>
+ * The map store is configured by the properties of the {@code Hazelcast} map
+ * store configuration:
+ * <ul>
+ * <li>{@code storage}: backend of the map, {@code berkeley} for a
+ * {@link BerkeleyDatabaseStorage}, {@code log} for a
+ * {@link BerkeleyLogStorage} or the class name of a {@link BerkeleyStorage}
+ * ({@code berkeley} by default),</li>
+ * <li>{@code syncinterval}: interval between two synchronizations of the
+ * backend in seconds, {@code 0} to synchronize after each write ({@code 3} by
+ * default),</li>
+ * <li>{@code keycodec}: codec of the keys, see
+ * {@link BerkeleyKeyCodecs#forName(String)} ({@code kryo} by default),</li>
+ * <li>{@code loadchunksize}: maximum number of keys read per chunk by
+ * {@link #loadAllKeys()} ({@code 10000} by default),</li>
+ * <li>{@code compression}, {@code compressionthreshold},
+ * {@code compressionlevel} and {@code compressiondictionary}: compression of
+ * the values, see {@link BerkeleyCompressor}.</li>
+ * </ul>
+ * The other properties configure the backend.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ * @param <V> Value of the map.
+ */
+@SuppressWarnings({ "unchecked", "nls" })
+public class BerkeleyStorageStoreMap<K, V> implements MapLoaderLifecycleSupport, MapStore<K, V>
+{
+	/**
+	 * Logger.
+	 */
+	private final ILogger LOG = Logger.getLogger(BerkeleyStorageStoreMap.class.getName());
+
+	/**
+	 * Storage backend.
+	 */
+	private BerkeleyStorage storage;
+
+	/**
+	 * The synchronization interval.
+	 */
+	private int interval;
+
+	/**
+	 * Codec of the keys.
+	 */
+	private BerkeleyKeyCodec<K> keyCodec;
+
+	/**
+	 * Compressor of the values, {@code null} if disabled.
+	 */
+	private BerkeleyCompressor compressor;
+
+	/**
+	 * Metrics of the map.
+	 */
+	private BerkeleyStoreMapMetrics metrics;
+
+	/**
+	 * Scheduler shared by the backends without an environment, created on
+	 * first use.
+	 */
+	private static BerkeleySyncScheduler sharedScheduler;
+
+	/**
+	 * Number of map stores using the shared scheduler.
+	 */
+	private static int sharedReferences;
+
+	/**
+	 * Scheduler synchronizing the backend, {@code null} if it is synchronized
+	 * after each write.
+	 */
+	private BerkeleySyncScheduler scheduler;
+
+	/**
+	 * Maximum number of keys read per chunk by {@link #loadAllKeys()}.
+	 */
+	private int chunkSize;
+
+	/**
+	 * {@code Hazelcast} instance of the map, used to group the loaded keys by
+	 * partition.
+	 */
+	private HazelcastInstance hazelcast;
+
+	/**
+	 * Name of the map.
+	 */
+	private String mapName;
+
+	@Override
+	public void init(final HazelcastInstance instance, final Properties properties, final String mapName)
+	{
+		this.mapName = mapName;
+		hazelcast = instance;
+
+		// Validates the properties before the backend is opened.
+		chunkSize = (int) BerkeleyStoreMap.property(properties, "loadchunksize", 10000, 1, Integer.MAX_VALUE);
+		interval = (int) BerkeleyStoreMap.property(properties, "syncinterval", 3, 0, Integer.MAX_VALUE);
+		keyCodec = (BerkeleyKeyCodec<K>) BerkeleyKeyCodecs.forName(properties.getProperty("keycodec", "kryo"));
+		try
+		{
+			compressor = BerkeleyCompressor.fromProperties(properties);
+		}
+		catch (IOException e)
+		{
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":" + e.getMessage(), e);
+		}
+
+		BerkeleyStorage backend = forName(properties.getProperty("storage", "berkeley"));
+		backend.open(mapName, properties);
+		storage = backend;
+
+		metrics = new BerkeleyStoreMapMetrics(mapName, null);
+		// Only a Berkeley DB backend belongs to an environment.
+		metrics.register("BerkeleyStorageStoreMap", instance == null ? null : instance.getName(), storage instanceof BerkeleyDatabaseStorage ? ((BerkeleyDatabaseStorage) storage).getEnvironment().getName() : null);
+
+		if (interval > 0)
+		{
+			scheduler = storage instanceof BerkeleyDatabaseStorage ? ((BerkeleyDatabaseStorage) storage).getEnvironment().getSyncScheduler() : acquireSharedScheduler();
+			scheduler.register(storage, interval);
+		}
+
+		LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":" + storage.getClass().getSimpleName() + ":count:" + storage.count());
+	}
+
+	/**
+	 * Acquires the scheduler shared by the backends without an environment,
+	 * creating it if it is not running. The scheduler must be released by
+	 * {@link #releaseSharedScheduler()}.
+	 * <p>
+	 * @return Scheduler.
+	 */
+	private static synchronized BerkeleySyncScheduler acquireSharedScheduler()
+	{
+		if (sharedScheduler == null)
+		{
+			sharedScheduler = new BerkeleySyncScheduler(BerkeleyStorageStoreMap.class.getSimpleName(), 1);
+		}
+		sharedReferences++;
+
+		return sharedScheduler;
+	}
+
+	/**
+	 * Releases the scheduler shared by the backends without an environment,
+	 * shutting it down once it is released by its last map store.
+	 */
+	private static synchronized void releaseSharedScheduler()
+	{
+		if (--sharedReferences == 0)
+		{
+			sharedScheduler.shutdown();
+			sharedScheduler = null;
+		}
+	}
+
+	/**
+	 * Creates a storage backend from its name.
+	 * <p>
+	 * @param name {@code berkeley}, {@code log} or the class name of a
+	 * {@link BerkeleyStorage}.
+	 * @return Storage backend, not open.
+	 * @throws IllegalArgumentException Thrown if the backend is unknown.
+	 */
+	public static BerkeleyStorage forName(final String name)
+	{
+		switch (name)
+		{
+			case "berkeley":
+				return new BerkeleyDatabaseStorage();
+
+			case "log":
+				return new BerkeleyLogStorage();
+
+			default:
+				try
+				{
+					return (BerkeleyStorage) Class.forName(name).getDeclaredConstructor().newInstance();
+				}
+				catch (ReflectiveOperationException | ClassCastException e)
+				{
+					throw new IllegalArgumentException("Invalid storage: " + name, e);
+				}
+		}
+	}
+
+	@Override
+	public void destroy()
+	{
+		if (storage != null)
+		{
+			if (scheduler != null)
+			{
+				// Waits for a running synchronization, the backend is synchronized when closed.
+				scheduler.unregister(storage);
+				if (!(storage instanceof BerkeleyDatabaseStorage))
+				{
+					releaseSharedScheduler();
+				}
+				scheduler = null;
+			}
+			if (metrics != null)
+			{
+				metrics.unregister();
+			}
+
+			LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":count:" + storage.count());
+
+			try
+			{
+				storage.close();
+			}
+			finally
+			{
+				storage = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the storage backend of the map.
+	 * <p>
+	 * @return Storage backend.
+	 */
+	public final BerkeleyStorage getStorage()
+	{
+		return storage;
+	}
+
+	/**
+	 * Returns the metrics of the map.
+	 * <p>
+	 * @return Metrics.
+	 */
+	public final BerkeleyStoreMapMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Synchronizes the backend right away if the synchronization interval is
+	 * zero or marks it dirty for the synchronization scheduler otherwise.
+	 */
+	private void written()
+	{
+		if (interval == 0)
+		{
+			BerkeleyBatch.sync(metrics, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					storage.sync();
+				}
+			});
+		}
+		else
+		{
+			scheduler.markDirty(storage);
+		}
+	}
+
+	/**
+	 * Deserializes a stored value.
+	 * <p>
+	 * @param data Stored value.
+	 * @return Value.
+	 */
+	private V value(final byte[] data)
+	{
+		metrics.read(data.length);
+
+		return (V) BerkeleyEntryBuffer.read(compressor, data, 0, data.length);
+	}
+
+	@Override
+	public V load(final K key)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		try
+		{
+			byte[] data = storage.get(BerkeleyEntryBuffer.get().keyBytes(keyCodec, key));
+
+			return data == null ? null : value(data);
+		}
+		catch (Exception e)
+		{
+			metrics.error(Operation.LOAD);
+			LOG.log(Level.SEVERE, e.getMessage(), e);
+			return null;
+		}
+		finally
+		{
+			metrics.record(Operation.LOAD, start);
+		}
+	}
+
+	/**
+	 * Load all the data.
+	 * <p>
+	 * Keys are serialized and sorted so that the backend reads them in a
+	 * single pass. Keys not found are not part of the returned map.
+	 * <p>
+	 * @param keys Collection containing the keys to load.
+	 * @return Map with pairs of key and value.
+	 */
+	@Override
+	public Map<K, V> loadAll(final Collection<K> keys)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		metrics.batch(keys.size());
+		try
+		{
+			Map<K, V> map = new HashMap<>(keys.size());
+			List<BerkeleyBatch.Record<K>> records = records(keys, null);
+			byte[][] binaryKeys = keys(records);
+			byte[][] values = new byte[records.size()][];
+			Throwable[] failures = new Throwable[records.size()];
+			try
+			{
+				storage.getAll(binaryKeys, values, failures);
+			}
+			catch (Exception e)
+			{
+				Arrays.fill(failures, e);
+			}
+
+			for (int i = 0; i < records.size(); i++)
+			{
+				try
+				{
+					if (failures[i] != null)
+					{
+						throw failures[i];
+					}
+					if (values[i] != null)
+					{
+						map.put(records.get(i).object, value(values[i]));
+					}
+				}
+				catch (Throwable e)
+				{
+					metrics.error(Operation.LOAD_ALL);
+					LOG.log(Level.SEVERE, e.getMessage(), e);
+				}
+			}
+
+			return map;
+		}
+		finally
+		{
+			metrics.record(Operation.LOAD_ALL, start);
+		}
+	}
+
+	/**
+	 * Serializes the given keys into records sorted by binary key. A key
+	 * failing to be serialized is reported to the batch or logged if there is
+	 * no batch.
+	 * <p>
+	 * @param keys Keys.
+	 * @param batch Batch operation, {@code null} for a load.
+	 * @return Sorted records.
+	 */
+	private List<BerkeleyBatch.Record<K>> records(final Collection<K> keys, final BerkeleyBatch<K> batch)
+	{
+		BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+		List<BerkeleyBatch.Record<K>> records = new ArrayList<>(keys.size());
+		for (K key : keys)
+		{
+			try
+			{
+				records.add(new BerkeleyBatch.Record<>(key, buffer.keyBytes(keyCodec, key), null));
+			}
+			catch (Exception e)
+			{
+				if (batch == null)
+				{
+					metrics.error(Operation.LOAD_ALL);
+					LOG.log(Level.SEVERE, e.getMessage(), e);
+				}
+				else
+				{
+					batch.failed(key, e);
+				}
+			}
+		}
+		Collections.sort(records);
+
+		return records;
+	}
+
+	/**
+	 * Returns the binary keys of records.
+	 * <p>
+	 * @param records Records.
+	 * @return Binary keys, in the order of the records.
+	 */
+	private static byte[][] keys(final List<? extends BerkeleyBatch.Record<?>> records)
+	{
+		byte[][] keys = new byte[records.size()][];
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = records.get(i).key;
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Load all the keys.
+	 * <p>
+	 * The binary keys are streamed by the backend on a reading thread and
+	 * decoded by chunks handed to the iterating thread through a bounded
+	 * queue, so that the keys are not materialized at once.
+	 * <p>
+	 * @return Key source iterating over all the keys.
+	 */
+	@Override
+	public Iterable<K> loadAllKeys()
+	{
+		LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":loadAllKeys:" + storage.count());
+
+		return new BerkeleyParallelKeySource<>(storage, keyCodec, chunkSize, hazelcast, metrics, this.getClass().getSimpleName() + "-" + mapName);
+	}
+
+	@Override
+	public void store(final K key, final V value)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		try
+		{
+			BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+			byte[] binaryKey = buffer.keyBytes(keyCodec, key);
+			DatabaseEntry valueEntry = buffer.value(compressor, value);
+			storage.put(binaryKey, valueEntry.getData(), valueEntry.getOffset(), valueEntry.getSize());
+			metrics.written(binaryKey.length + valueEntry.getSize());
+			written();
+		}
+		catch (Exception e)
+		{
+			metrics.error(Operation.STORE);
+			LOG.log(Level.SEVERE, e.getMessage(), e);
+		}
+		finally
+		{
+			metrics.record(Operation.STORE, start);
+		}
+	}
+
+	/**
+	 * Stores all the given entries, sorted by binary key so that the backend
+	 * writes them in a single pass. The backend is synchronized at most once.
+	 * Successfully stored entries are removed from the given map (when it is
+	 * modifiable) so that only the failed ones remain in case of a partial
+	 * failure.
+	 * <p>
+	 * @param map Map of entries to store.
+	 * @throws BerkeleyStoreMapException Thrown if at least one entry failed to
+	 * be stored.
+	 */
+	@Override
+	public void storeAll(final Map<K, V> map)
+	{
+		BerkeleyBatch<K> batch = new BerkeleyBatch<>(this.getClass().getCanonicalName() + ":" + mapName, metrics, Operation.STORE_ALL, map.size());
+		List<BerkeleyBatch.Record<K>> records = new ArrayList<>(map.size());
+		BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+		for (BerkeleyBatch.Record<K> record : records(map.keySet(), batch))
+		{
+			try
+			{
+				// The value buffer is reused, the backend receives a copy of each value.
+				DatabaseEntry valueEntry = buffer.value(compressor, map.get(record.object));
+				records.add(new BerkeleyBatch.Record<>(record.object, record.key, Arrays.copyOfRange(valueEntry.getData(), valueEntry.getOffset(), valueEntry.getOffset() + valueEntry.getSize())));
+			}
+			catch (Exception e)
+			{
+				batch.failed(record.object, e);
+			}
+		}
+
+		byte[][] values = new byte[records.size()][];
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = (byte[]) records.get(i).value;
+		}
+		Throwable[] failures = new Throwable[records.size()];
+		try
+		{
+			storage.putAll(keys(records), values, failures);
+		}
+		catch (Exception e)
+		{
+			// The batch cannot be processed by the backend, the whole batch failed.
+			Arrays.fill(failures, e);
+		}
+
+		for (int i = 0; i < failures.length; i++)
+		{
+			BerkeleyBatch.Record<K> record = records.get(i);
+			if (failures[i] == null)
+			{
+				metrics.written(record.key.length + values[i].length);
+				batch.processed(record.object);
+			}
+			else
+			{
+				batch.failed(record.object, failures[i]);
+			}
+		}
+
+		batch.complete(map.keySet(), new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				written();
+			}
+		});
+	}
+
+	@Override
+	public void delete(final K key)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		try
+		{
+			storage.delete(BerkeleyEntryBuffer.get().keyBytes(keyCodec, key));
+			written();
+		}
+		catch (Exception e)
+		{
+			metrics.error(Operation.DELETE);
+			LOG.log(Level.SEVERE, e.getMessage(), e);
+		}
+		finally
+		{
+			metrics.record(Operation.DELETE, start);
+		}
+	}
+
+	/**
+	 * Deletes all the given keys, sorted by binary key so that the backend
+	 * deletes them in a single pass. The backend is synchronized at most once.
+	 * Successfully deleted keys are removed from the given collection (when
+	 * it is modifiable) so that only the failed ones remain in case of a
+	 * partial failure.
+	 * <p>
+	 * @param keys Collection of keys to delete.
+	 * @throws BerkeleyStoreMapException Thrown if at least one key failed to
+	 * be deleted.
+	 */
+	@Override
+	public void deleteAll(final Collection<K> keys)
+	{
+		BerkeleyBatch<K> batch = new BerkeleyBatch<>(this.getClass().getCanonicalName() + ":" + mapName, metrics, Operation.DELETE_ALL, keys.size());
+		List<BerkeleyBatch.Record<K>> records = records(keys, batch);
+		Throwable[] failures = new Throwable[records.size()];
+		try
+		{
+			storage.deleteAll(keys(records), failures);
+		}
+		catch (Exception e)
+		{
+			// The batch cannot be processed by the backend, the whole batch failed.
+			Arrays.fill(failures, e);
+		}
+
+		for (int i = 0; i < failures.length; i++)
+		{
+			if (failures[i] == null)
+			{
+				batch.processed(records.get(i).object);
+			}
+			else
+			{
+				batch.failed(records.get(i).object, failures[i]);
+			}
+		}
+
+		batch.complete(keys, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				written();
+			}
+		});
+	}
+}
@@ -11,38 +11,115 @@
  */
 package org.heliosphere.thot.hazelcast.persistence.h2;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
-import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapMetrics.Operation;
 
+import com.esotericsoftware.kryo.io.Input;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.MapLoaderLifecycleSupport;
 import com.hazelcast.core.MapStore;
 import com.hazelcast.logging.ILogger;
 import com.hazelcast.logging.Logger;
-import com.sleepycat.je.CheckpointConfig;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseNotFoundException;
 import com.sleepycat.je.Environment;
-import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 
 /**
  * Implementation of the persistence of a {@link Map} for the Oracle's Berkeley
  * DB - h2 database.
+ * <p>
+ * The map store is configured by the properties of the {@code Hazelcast} map
+ * store configuration:
+ * <ul>
+ * <li>{@code syncinterval}: interval between two synchronizations of the
+ * database in seconds, {@code 0} to synchronize after each write ({@code 3} by
+ * default),</li>
+ * <li>{@code loadchunksize}: number of keys read at once by
+ * {@link #loadAllKeys()} ({@code 10000} by default),</li>
+ * <li>{@code loadthreads}: number of threads reading the keys in parallel
+ * during {@link #loadAllKeys()}, each one reading its own range of the key
+ * space ({@code 1} by default),</li>
+ * <li>{@code keycodec}: codec of the keys, see
+ * {@link BerkeleyKeyCodecs#forName(String)} ({@code kryo} by default). An
+ * order preserving codec enables {@link #scan(Object, Object, BerkeleyScanConsumer)}
+ * and {@link #scanPrefix(Object, BerkeleyScanConsumer)}. The codec of an
+ * existing database cannot be changed.</li>
+ * <li>{@code valuecachesize}: capacity in bytes of the off-heap
+ * {@link BerkeleyValueCache} of the serialized values populated by
+ * {@link #load(Object)} and the stores, {@code 0} to disable it
+ * ({@code 0} by default),</li>
+ * <li>{@code valuecacheblocksize}: size in bytes of a block of the value cache
+ * ({@code 64} by default),</li>
+ * <li>{@code compression}, {@code compressionthreshold},
+ * {@code compressionlevel} and {@code compressiondictionary}: compression of
+ * the values, see {@link BerkeleyCompressor},</li>
+ * <li>{@code writecoalescing}: coalescing window of the writes in
+ * milliseconds, {@code 0} to write through ({@code 0} by default). Within a
+ * window, the stores and deletes of a same key collapse to the last one in a
+ * {@link BerkeleyWriteBuffer} drained in the background,</li>
+ * <li>{@code writebuffersize}: maximum number of keys held by the write
+ * buffer before the writes of new keys wait for the drainer ({@code 10000} by
+ * default),</li>
+ * <li>{@code index.<name>}: class name of the {@link BerkeleyIndexExtractor}
+ * of a secondary index named {@code <name>}, see
+ * {@link #addIndex(String, BerkeleyIndexExtractor, BerkeleyKeyCodec)},</li>
+ * <li>{@code index.<name>.codec}: codec of the attributes of the index, see
+ * {@link BerkeleyKeyCodecs#forName(String)} ({@code kryo} by default),</li>
+ * <li>{@code ttl}: time to live of the values in seconds from their last
+ * write, {@code 0} if they never expire ({@code 0} by default). Expired
+ * entries are skipped by the loads, the scans and the queries and deleted in
+ * the background, see {@link #sweep()}. The values of a database written
+ * with a time to live start with their expiry timestamp, so it can only be
+ * enabled on a new database,</li>
+ * <li>{@code ttlsweepinterval}: interval between two deletions of the
+ * expired entries in seconds, {@code 0} to only delete them on demand
+ * ({@code 60} by default),</li>
+ * <li>{@code ttlsweepbatch}: maximum number of expired entries deleted per
+ * cursor pass of a sweep ({@code 10000} by default),</li>
+ * <li>{@code tiering}: {@code true} to move the rarely accessed entries to a
+ * cold database with its own cache and compression, see
+ * {@link BerkeleyTiering} for the {@code tier*} and {@code cold*} properties
+ * ({@code false} by default). Tiering cannot be combined with a time to live
+ * or secondary indexes, and the scans and backups are not supported on a
+ * tiered map.</li>
+ * </ul>
+ * The other properties configure the {@link BerkeleyEnvironment} of the map.
+ * An invalid property fails the initialization with an
+ * {@link IllegalArgumentException} before the environment is acquired, and
+ * a failure while opening the map releases the environment before it is
+ * thrown.
+ * <p>
+ * The latencies, errors, batch sizes and serialized bytes of the operations
+ * are recorded in the {@link BerkeleyStoreMapMetrics} of the map, published
+ * through JMX.
+ * <p>
+ * Keys and values are serialized into the reusable buffers of the calling
+ * thread (see {@link BerkeleyEntryBuffer}) and deserialized in place from the
+ * entries read, so that single operations do not allocate any intermediate
+ * array of bytes.
  * <hr>
  * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
  * @version 1.0.0
@@ -50,7 +127,7 @@ import com.sleepycat.je.OperationStatus;
  * @param <V> Value of the map.
  */
 @SuppressWarnings({ "unchecked", "nls" })
-public class BerkeleyStoreMap<K, V> implements MapLoaderLifecycleSupport, MapStore<K, V>, Runnable
+public class BerkeleyStoreMap<K, V> implements MapLoaderLifecycleSupport, MapStore<K, V>
 {
 	/**
 	 * Logger.
@@ -60,12 +137,7 @@ public class BerkeleyStoreMap<K, V> implements MapLoaderLifecycleSupport, MapSto
 	/**
 	 * Environment.
 	 */
-	private static Environment environment;
-
-	/**
-	 * Database map.
-	 */
-	private static Map<Object, Object> dbMap = new HashMap<>();
+	private BerkeleyEnvironment environment;
 
 	/**
 	 * H2 (Berkeley DB) database.
@@ -78,84 +150,84 @@ public class BerkeleyStoreMap<K, V> implements MapLoaderLifecycleSupport, MapSto
 	private int interval;
 
 	/**
-	 * The scheduled executor service.
+	 * The maximum number of keys read per chunk by {@link #loadAllKeys()}.
 	 */
-	private ScheduledExecutorService executor;
+	private int chunkSize;
 
 	/**
-	 * The {@code Hazelcast} instance.
+	 * The number of threads reading the keys in {@link #loadAllKeys()}.
 	 */
-	@SuppressWarnings("unused")
-	private HazelcastInstance hazelcast;
+	private int loadThreads;
 
 	/**
-	 * The properties file.
+	 * The codec of the keys.
 	 */
-	private Properties properties;
+	private BerkeleyKeyCodec<K> keyCodec;
 
 	/**
-	 * The map name.
+	 * The compressor of the values, {@code null} if disabled.
 	 */
-	private String mapName;
+	private BerkeleyCompressor compressor;
 
 	/**
-	 * Initializes the Berkeley map store persister.
+	 * The off-heap cache of the serialized values, {@code null} if disabled.
 	 */
-	protected static void initialize()
-	{
-		EnvironmentConfig envConfig = new EnvironmentConfig();
-		envConfig.setAllowCreate(true);
-		envConfig.setLocking(true);
-		envConfig.setSharedCache(true);
-		envConfig.setTransactional(false);
-		envConfig.setCachePercent(10);
-		envConfig.setConfigParam(EnvironmentConfig.LOG_FILE_MAX, "104857600");
+	private BerkeleyValueCache cache;
 
-		File file = new File(System.getProperty("user.dir", ".") + "/db/");
-		if (!file.exists() && !file.mkdirs())
-		{
-			throw new RuntimeException("Cannot create: " + System.getProperty("user.dir", ".") + "/db/");
-		}
+	/**
+	 * The coalescing buffer of the writes, {@code null} if disabled.
+	 */
+	private BerkeleyWriteBuffer<K, V> writeBuffer;
 
-		environment = new Environment(file, envConfig);
-	}
+	/**
+	 * The metrics of the map.
+	 */
+	private BerkeleyStoreMapMetrics metrics;
 
 	/**
-	 * Converts a database entry to an object.
-	 * <p>
-	 * @param entry {@link DatabaseEntry} to be converted.
-	 * @return Converted object.
-	 * @throws Exception Thrown if an error occured while converting the data.
+	 * The secondary indexes by name.
 	 */
-	@SuppressWarnings("static-method")
-	private Object entryToObject(final DatabaseEntry entry) throws Exception
-	{
-		int len = entry.getSize();
-		if (len == 0)
-		{
-			return null;
-		}
+	private final Map<String, BerkeleyIndex<K, V>> indexes = new LinkedHashMap<>();
 
-		return KryoSerializer.read(entry.getData());
-	}
+	/**
+	 * The expiration of the values, {@code null} if they do not expire.
+	 */
+	private BerkeleyExpiry expiry;
 
 	/**
-	 * Converts an object to a database entry.
-	 * <p>
-	 * @param object Object to convert.
-	 * @return The converted {@link DatabaseEntry}.
-	 * @throws Exception Thrown if an error occured while converting the data.
+	 * The number of expired entries deleted per cursor pass of a sweep.
 	 */
-	@SuppressWarnings("static-method")
-	private DatabaseEntry objectToEntry(final Object object) throws Exception
-	{
-		byte[] bb = KryoSerializer.write(object);
+	private int sweepBatch;
 
-		DatabaseEntry entry = new DatabaseEntry();
-		entry.setData(bb);
+	/**
+	 * The executor deleting the expired entries, {@code null} if disabled.
+	 */
+	private ScheduledThreadPoolExecutor sweeper;
 
-		return entry;
-	}
+	/**
+	 * Hot/cold tiering of the entries, {@code null} if disabled.
+	 */
+	private BerkeleyTiering tiering;
+
+	/**
+	 * Migrator of the entries between the tiers.
+	 */
+	private ScheduledThreadPoolExecutor migrator;
+
+	/**
+	 * The {@code Hazelcast} instance.
+	 */
+	private HazelcastInstance hazelcast;
+
+	/**
+	 * The properties file.
+	 */
+	private Properties properties;
+
+	/**
+	 * The map name.
+	 */
+	private String mapName;
 
 	@Override
 	public void init(final HazelcastInstance instance, final Properties properties, final String mapName)
@@ -164,284 +236,2182 @@ public class BerkeleyStoreMap<K, V> implements MapLoaderLifecycleSupport, MapSto
 		this.properties = properties;
 		this.mapName = mapName;
 
-		if (environment == null)
+		keyCodec = (BerkeleyKeyCodec<K>) BerkeleyKeyCodecs.forName(this.properties.getProperty("keycodec", "kryo"));
+		try
 		{
-			initialize();
+			compressor = BerkeleyCompressor.fromProperties(this.properties);
 		}
-
-		DatabaseConfig dbConfig = new DatabaseConfig();
-		dbConfig.setAllowCreate(true);
-		dbConfig.setDeferredWrite(true);
-		dbConfig.setSortedDuplicates(false);
-		dbConfig.setTransactional(false);
-		database = environment.openDatabase(null, mapName, dbConfig);
-		dbMap.put(mapName, database);
-
-		if (executor == null)
+		catch (IOException e)
 		{
-			try
-			{
-				interval = Integer.parseInt(this.properties.getProperty("syncinterval"));
-			}
-			catch (Exception e)
-			{
-				interval = 3;
-				LOG.log(Level.WARNING, e.getMessage(), e);
-			}
-			if (interval > 0)
-			{
-				executor = Executors.newSingleThreadScheduledExecutor();
-				executor.scheduleWithFixedDelay(this, 1, interval, TimeUnit.SECONDS);
-			}
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":" + e.getMessage(), e);
 		}
 
-		LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":count:" + database.count());
-	}
-
-	@Override
-	public void destroy()
-	{
-		if (executor != null)
+		long ttl = Long.parseLong(this.properties.getProperty("ttl", "0"));
+		if (ttl < 0)
 		{
-			try
-			{
-				executor.shutdown();
-			}
-			finally
-			{
-				executor = null;
-			}
+			throw new IllegalArgumentException("Invalid ttl: " + ttl);
 		}
+		expiry = ttl == 0 ? null : new BerkeleyExpiry(ttl * 1000);
 
-		if (database != null)
+		if (Boolean.parseBoolean(this.properties.getProperty("tiering", "false")))
 		{
-			try
+			if (expiry != null || !indexes.isEmpty() || hasIndexProperty())
 			{
-				database.sync();
-			}
-			catch (Throwable ex)
-			{
-				LOG.log(Level.WARNING, ex.getMessage(), ex);
+				throw new IllegalArgumentException(this.getClass().getCanonicalName() + ":" + mapName + ":tiering cannot be combined with a ttl or indexes");
 			}
-
-			LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":count:" + database.count());
-
 			try
 			{
-				database.close();
-			}
-			catch (Throwable ex)
-			{
-				LOG.log(Level.WARNING, ex.getMessage(), ex);
+				tiering = new BerkeleyTiering(this.properties);
 			}
-			finally
+			catch (IOException e)
 			{
-				database = null;
-				dbMap.remove(mapName);
+				throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":" + e.getMessage(), e);
 			}
 		}
 
-		if (dbMap.size() == 0)
+		// Every property is validated before the environment is acquired.
+		chunkSize = (int) property(this.properties, "loadchunksize", 10000, 1, Integer.MAX_VALUE);
+		loadThreads = (int) property(this.properties, "loadthreads", 1, 1, Integer.MAX_VALUE);
+		interval = (int) property(this.properties, "syncinterval", 3, 0, Integer.MAX_VALUE);
+		final long cacheSize = property(this.properties, "valuecachesize", 0, 0, Long.MAX_VALUE);
+		final int cacheBlockSize = (int) property(this.properties, "valuecacheblocksize", 64, 1, Integer.MAX_VALUE);
+		final long window = property(this.properties, "writecoalescing", 0, 0, Long.MAX_VALUE);
+		final int writeBufferSize = (int) property(this.properties, "writebuffersize", 10000, 1, Integer.MAX_VALUE);
+		sweepBatch = (int) property(this.properties, "ttlsweepbatch", 10000, 1, Integer.MAX_VALUE);
+		final long sweepInterval = property(this.properties, "ttlsweepinterval", 60, 0, Long.MAX_VALUE);
+		final long tierInterval = property(this.properties, "tierinterval", 60, 0, Long.MAX_VALUE);
+
+		environment = BerkeleyEnvironment.acquire(properties);
+		try
 		{
-			try
+			open(instance, cacheSize, cacheBlockSize, window, writeBufferSize, sweepInterval, tierInterval);
+		}
+		catch (RuntimeException | Error e)
+		{
+			// Hazelcast does not destroy a map store whose init failed.
+			if (database != null)
 			{
-				boolean anyCleaned = false;
-				while (environment.cleanLog() > 0)
+				try
 				{
-					anyCleaned = true;
+					destroy();
 				}
-				if (anyCleaned)
+				catch (Throwable ex)
 				{
-					CheckpointConfig force = new CheckpointConfig();
-					force.setForce(true);
-					environment.checkpoint(force);
+					LOG.log(Level.WARNING, ex.getMessage(), ex);
 				}
 			}
-			catch (Throwable ex)
-			{
-				LOG.log(Level.WARNING, ex.getMessage(), ex);
-			}
-
-			try
-			{
-				environment.close();
-			}
-			catch (Throwable ex)
-			{
-				LOG.log(Level.WARNING, ex.getMessage(), ex);
-			}
-			finally
+			else
 			{
+				environment.release();
 				environment = null;
 			}
-
-			LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":BerkeleyDB is empty!");
+			throw e;
 		}
 
+		LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":count:" + count());
 	}
 
-	@Override
-	public void run()
+	/**
+	 * Returns a numeric property of a map store.
+	 * <p>
+	 * @param properties Properties of the map store.
+	 * @param name Name of the property.
+	 * @param defaultValue Value of a missing property.
+	 * @param minimum Minimum value.
+	 * @param maximum Maximum value.
+	 * @return Value of the property.
+	 * @throws IllegalArgumentException Thrown if the property is not a number
+	 * or is out of range.
+	 */
+	static long property(final Properties properties, final String name, final long defaultValue, final long minimum, final long maximum)
 	{
-		try
-		{
-			database.sync();
-		}
-		catch (Throwable ex)
+		String value = properties.getProperty(name);
+		if (value == null)
 		{
-			LOG.log(Level.SEVERE, ex.getMessage(), ex);
+			return defaultValue;
 		}
-	}
 
-	@Override
-	public V load(final K key)
-	{
 		try
 		{
-			DatabaseEntry keyEntry = objectToEntry(key);
-			DatabaseEntry valueEntry = new DatabaseEntry();
-			OperationStatus status = database.get(null, keyEntry, valueEntry, LockMode.DEFAULT);
-			if (status == OperationStatus.SUCCESS)
+			long result = Long.parseLong(value.trim());
+			if (result >= minimum && result <= maximum)
 			{
-				return (V) entryToObject(valueEntry);
+				return result;
 			}
-
-			return null;
 		}
-		catch (Exception e)
+		catch (NumberFormatException e)
 		{
-			LOG.log(Level.SEVERE, e.getMessage(), e);
-			return null;
+			throw new IllegalArgumentException("Invalid " + name + ": " + value, e);
 		}
+
+		throw new IllegalArgumentException("Invalid " + name + ": " + value);
 	}
 
-	@Override
-	public void delete(final K key)
+	/**
+	 * Opens the databases of the map and starts its background tasks, once
+	 * its environment is acquired and its properties validated.
+	 * <p>
+	 * @param instance Hazelcast instance.
+	 * @param cacheSize Capacity in bytes of the value cache, {@code 0} to
+	 * disable it.
+	 * @param cacheBlockSize Size in bytes of a block of the value cache.
+	 * @param window Coalescing window of the writes in milliseconds, {@code 0}
+	 * to write through.
+	 * @param writeBufferSize Maximum number of keys of the write buffer.
+	 * @param sweepInterval Interval between two sweeps in seconds, {@code 0}
+	 * to only sweep on demand.
+	 * @param tierInterval Interval between two migrations in seconds, {@code 0}
+	 * to only migrate on demand.
+	 */
+	private void open(final HazelcastInstance instance, final long cacheSize, final int cacheBlockSize, final long window, final int writeBufferSize, final long sweepInterval, final long tierInterval)
 	{
-		try
+		DatabaseConfig dbConfig = new DatabaseConfig();
+		dbConfig.setAllowCreate(true);
+		dbConfig.setDeferredWrite(true);
+		dbConfig.setSortedDuplicates(false);
+		dbConfig.setTransactional(false);
+		database = environment.openDatabase(mapName, dbConfig);
+		if (expiry != null)
+		{
+			expiry.open(environment, database, mapName);
+		}
+		openIndexes();
+
+		metrics = new BerkeleyStoreMapMetrics(mapName, environment.getEnvironment());
+		metrics.register("BerkeleyStoreMap", instance == null ? null : instance.getName(), environment.getName());
+
+		if (interval > 0)
 		{
-			database.delete(null, objectToEntry(key));
-			if (interval == 0)
+			environment.getSyncScheduler().register(database, interval);
+			for (Database secondary : secondaries())
 			{
-				database.sync();
+				environment.getSyncScheduler().register(secondary, interval);
 			}
 		}
-		catch (Exception e)
+		if (tiering != null)
 		{
-			LOG.log(Level.SEVERE, e.getMessage(), e);
+			tiering.open(mapName, interval, metrics, database.count());
 		}
-	}
 
-	@Override
-	public void deleteAll(final Collection<K> keys)
-	{
-		for (K key : keys)
+		if (cacheSize > 0)
 		{
-			this.delete(key);
+			cache = new BerkeleyValueCache(cacheSize, cacheBlockSize);
 		}
-		if (interval == 0)
+		if (window > 0)
 		{
-			database.sync();
+			writeBuffer = new BerkeleyWriteBuffer<>(this, window, writeBufferSize, this.getClass().getSimpleName() + "-" + mapName + "-drain");
 		}
-	}
 
-	@Override
-	public void store(final K key, final V value)
-	{
-		try
+		if (expiry != null)
 		{
-			DatabaseEntry keyEntry = objectToEntry(key);
-			DatabaseEntry valueEntry = objectToEntry(value);
-			database.put(null, keyEntry, valueEntry);
-			if (interval == 0)
+			// Entries expired while the map was closed are not worth loading.
+			try
 			{
-				database.sync();
+				sweep();
+			}
+			catch (Exception e)
+			{
+				LOG.log(Level.SEVERE, e.getMessage(), e);
 			}
-		}
-		catch (Exception e)
-		{
-			LOG.log(Level.SEVERE, e.getMessage(), e);
-		}
-	}
 
-	@Override
-	public void storeAll(final Map<K, V> map)
-	{
-		for (K key : map.keySet())
-		{
-			this.store(key, map.get(key));
+			if (sweepInterval > 0)
+			{
+				sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(final Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, BerkeleyStoreMap.this.getClass().getSimpleName() + "-" + BerkeleyStoreMap.this.mapName + "-sweep");
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+				sweeper.scheduleWithFixedDelay(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							sweep();
+						}
+						catch (Throwable ex)
+						{
+							LOG.log(Level.SEVERE, ex.getMessage(), ex);
+						}
+					}
+				}, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+			}
 		}
-		if (interval == 0)
+
+		if (tiering != null && tierInterval > 0)
 		{
-			database.sync();
-		}
-	}
+			migrator = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, BerkeleyStoreMap.this.getClass().getSimpleName() + "-" + BerkeleyStoreMap.this.mapName + "-tier");
+					thread.setDaemon(true);
 
-	@Override
-	public Map<K, V> loadAll(final Collection<K> keys)
-	{
-		return privateLoadAll(keys);
+					return thread;
+				}
+			});
+			migrator.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						migrate();
+					}
+					catch (Throwable ex)
+					{
+						LOG.log(Level.SEVERE, ex.getMessage(), ex);
+					}
+				}
+			}, tierInterval, tierInterval, TimeUnit.SECONDS);
+		}
 	}
 
 	/**
-	 * Load all the data.
+	 * Tells if secondary indexes are declared by the properties.
 	 * <p>
-	 * @param keys Collection containing the keys to load.
-	 * @return Map with pairs of key and value.
+	 * @return {@code true} if an {@code index.<name>} property is defined.
 	 */
-	private Map<K, V> privateLoadAll(final Collection<K> keys)
+	private boolean hasIndexProperty()
 	{
-		Map<K, V> map = new HashMap<>(keys.size());
-		for (K key : keys)
+		for (String property : properties.stringPropertyNames())
 		{
-			map.put(key, this.load(key));
+			if (property.startsWith("index.") && property.indexOf('.', 6) < 0)
+			{
+				return true;
+			}
 		}
 
-		return map;
-	}
-
-	@Override
-	public Set<K> loadAllKeys()
-	{
-		return privateLoadAllKeys();
+		return false;
 	}
 
 	/**
-	 * Load all the keys.
+	 * Returns the number of entries of the map, in both tiers with the
+	 * tiering.
 	 * <p>
-	 * @param keys Collection containing the keys to load.
-	 * @return Set containing all the keys.
+	 * @return Number of entries.
 	 */
-	@SuppressWarnings("rawtypes")
-	private Set<K> privateLoadAllKeys()
+	private long count()
 	{
-		Set<K> keys = new HashSet((int) database.count());
-		Cursor cursor = null;
-		try
-		{
-			cursor = database.openCursor(null, null);
-			DatabaseEntry foundKey = new DatabaseEntry();
-			DatabaseEntry foundData = new DatabaseEntry();
+		return database.count() + (tiering == null ? 0 : tiering.getDatabase().count());
+	}
 
-			while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+	@Override
+	public void destroy()
+	{
+		if (database != null)
+		{
+			if (writeBuffer != null)
+			{
+				try
+				{
+					writeBuffer.close();
+				}
+				catch (Throwable ex)
+				{
+					LOG.log(Level.SEVERE, ex.getMessage(), ex);
+				}
+				writeBuffer = null;
+			}
+			if (sweeper != null)
 			{
-				keys.add((K) entryToObject(foundKey));
+				// Not interrupted, an interrupted Berkeley DB operation invalidates the environment.
+				sweeper.shutdown();
+				try
+				{
+					sweeper.awaitTermination(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				sweeper = null;
 			}
-		}
-		catch (Exception e)
-		{
-			LOG.log(Level.SEVERE, e.getMessage(), e);
-		}
-		finally
-		{
-			if (cursor != null)
+			if (migrator != null)
 			{
-				cursor.close();
+				// Not interrupted, an interrupted Berkeley DB operation invalidates the environment.
+				migrator.shutdown();
+				try
+				{
+					migrator.awaitTermination(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				migrator = null;
 			}
-		}
 
-		LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":loadAllKeys:" + keys.size());
+			environment.getSyncScheduler().unregister(database);
+			if (metrics != null)
+			{
+				metrics.unregister();
+			}
 
-		return keys;
+			try
+			{
+				database.sync();
+				for (Database secondary : secondaries())
+				{
+					secondary.sync();
+				}
+			}
+			catch (Throwable ex)
+			{
+				LOG.log(Level.WARNING, ex.getMessage(), ex);
+			}
+
+			LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":count:" + count());
+
+			if (tiering != null)
+			{
+				try
+				{
+					tiering.close();
+				}
+				catch (Throwable ex)
+				{
+					LOG.log(Level.WARNING, ex.getMessage(), ex);
+				}
+				tiering = null;
+			}
+
+			// Secondary databases are closed before their primary database.
+			for (BerkeleyIndex<K, V> index : indexes.values())
+			{
+				environment.closeDatabase(index.getDatabase());
+				index.closed();
+			}
+			if (expiry != null)
+			{
+				environment.closeDatabase(expiry.getDatabase());
+				expiry.closed();
+			}
+
+			try
+			{
+				environment.closeDatabase(database);
+			}
+			finally
+			{
+				environment.release();
+				if (cache != null)
+				{
+					cache.clear();
+				}
+				database = null;
+				environment = null;
+				cache = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the environment of the map.
+	 * <p>
+	 * @return Environment.
+	 */
+	public final BerkeleyEnvironment getEnvironment()
+	{
+		return environment;
+	}
+
+	/**
+	 * Adds a secondary index on an attribute of the values, to be called
+	 * before the map store is initialized. Indexes can also be declared by
+	 * the {@code index.<name>} properties.
+	 * <p>
+	 * The index is maintained by Berkeley DB on each write and delete, at the
+	 * cost of a deserialization of the written (and replaced) value. An index
+	 * created on an existing map is populated from its entries. An index must
+	 * be added each time the map is opened, otherwise it misses the writes
+	 * done meanwhile. The extractor and codec of an existing index cannot be
+	 * changed, the index must be removed from the environment first.
+	 * <p>
+	 * @param name Name of the index.
+	 * @param extractor Extractor of the indexed attribute.
+	 * @param codec Codec of the attributes, an order preserving codec enables
+	 * {@link #queryRange(String, Object, Object, BerkeleyScanConsumer)}.
+	 * @throws IllegalStateException Thrown if the map store is initialized.
+	 */
+	public final void addIndex(final String name, final BerkeleyIndexExtractor<V> extractor, final BerkeleyKeyCodec<?> codec)
+	{
+		if (database != null)
+		{
+			throw new IllegalStateException(this.getClass().getCanonicalName() + ":" + mapName + ":indexes must be added before init");
+		}
+
+		indexes.put(name, new BerkeleyIndex<K, V>(name, extractor, codec));
+	}
+
+	/**
+	 * Opens the secondary indexes added or declared by the properties.
+	 */
+	private void openIndexes()
+	{
+		for (String property : properties.stringPropertyNames())
+		{
+			if (property.startsWith("index.") && property.indexOf('.', 6) < 0)
+			{
+				String name = property.substring(6);
+				try
+				{
+					BerkeleyIndexExtractor<V> extractor = (BerkeleyIndexExtractor<V>) Class.forName(properties.getProperty(property)).getDeclaredConstructor().newInstance();
+					indexes.put(name, new BerkeleyIndex<K, V>(name, extractor, BerkeleyKeyCodecs.forName(properties.getProperty(property + ".codec", "kryo"))));
+				}
+				catch (ReflectiveOperationException e)
+				{
+					throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":" + property + ":" + e.getMessage(), e);
+				}
+			}
+		}
+
+		for (BerkeleyIndex<K, V> index : indexes.values())
+		{
+			index.open(environment, database, mapName, keyCodec, compressor, prefix());
+		}
+	}
+
+	/**
+	 * Returns the codec of the keys.
+	 * <p>
+	 * @return Key codec.
+	 */
+	public final BerkeleyKeyCodec<K> getKeyCodec()
+	{
+		return keyCodec;
+	}
+
+	/**
+	 * Returns the off-heap cache of the serialized values, giving access to
+	 * its metrics.
+	 * <p>
+	 * @return Value cache or {@code null} if it is disabled.
+	 */
+	public final BerkeleyValueCache getValueCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Returns the metrics of the map.
+	 * <p>
+	 * @return Metrics.
+	 */
+	public final BerkeleyStoreMapMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Returns the coalescing buffer of the writes, giving access to its
+	 * metrics.
+	 * <p>
+	 * @return Write buffer or {@code null} if it is disabled.
+	 */
+	public final BerkeleyWriteBuffer<K, V> getWriteBuffer()
+	{
+		return writeBuffer;
+	}
+
+	/**
+	 * Writes the entries held by the write buffer, if any, to the database.
+	 * <p>
+	 * @throws BerkeleyStoreMapException Thrown if entries failed to be
+	 * written, listing them.
+	 */
+	public final void flush()
+	{
+		if (writeBuffer != null)
+		{
+			writeBuffer.flush();
+		}
+	}
+
+	/**
+	 * Trains a compression dictionary from the values of the map, to be saved
+	 * in the file named by the {@code compressiondictionary} property of a new
+	 * map.
+	 * <p>
+	 * @param samples Maximum number of values sampled.
+	 * @param size Maximum size of the dictionary in bytes.
+	 * @return Dictionary.
+	 * @see BerkeleyCompressor#train(List, int)
+	 */
+	public final byte[] trainDictionary(final int samples, final int size)
+	{
+		flush();
+
+		List<byte[]> values = new ArrayList<>(samples);
+		Cursor cursor = null;
+		try
+		{
+			cursor = database.openCursor(null, null);
+			DatabaseEntry foundKey = new DatabaseEntry();
+			DatabaseEntry foundData = new DatabaseEntry();
+			while (values.size() < samples && cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+			{
+				int prefix = prefix();
+				values.add(compressor == null ? Arrays.copyOfRange(foundData.getData(), foundData.getOffset() + prefix, foundData.getOffset() + foundData.getSize()) : compressor.decompress(foundData.getData(), foundData.getOffset() + prefix, foundData.getSize() - prefix));
+			}
+		}
+		finally
+		{
+			if (cursor != null)
+			{
+				cursor.close();
+			}
+		}
+
+		return BerkeleyCompressor.train(values, size);
+	}
+
+	/**
+	 * Backs up the environment of the map while it is in use, incrementally
+	 * if the directory holds a previous backup.
+	 * <p>
+	 * @param directory Backup directory.
+	 * @param bandwidth Maximum bandwidth of the copy in bytes per second,
+	 * {@code 0} if unlimited.
+	 * @return Report of the backup.
+	 * @throws IOException Thrown in case an error occurs while copying the
+	 * log files.
+	 * @throws UnsupportedOperationException Thrown if the map is tiered.
+	 * @see BerkeleyBackup
+	 */
+	public final BerkeleyBackup.Report backup(final File directory, final long bandwidth) throws IOException
+	{
+		checkUntiered("backup");
+		flush();
+
+		return new BerkeleyBackup(environment, directory, bandwidth).backup();
+	}
+
+	/**
+	 * Rebuilds the database of the map from a backup directory while the map
+	 * is in use.
+	 * <p>
+	 * The entries missing from the backup are deleted first, then the entries
+	 * of the backup are written in the order of the binary keys, so that an
+	 * entry present in both is never missing while the map is rebuilt.
+	 * The secondary indexes follow the writes and the value cache is cleared.
+	 * The {@code Hazelcast} map is not updated, hence the restore is meant to
+	 * be done before the map is loaded or followed by a reload of the map.
+	 * <p>
+	 * @param backup Backup directory.
+	 * @return Number of entries restored.
+	 * @throws IOException Thrown if the directory does not hold a backup.
+	 * @throws UnsupportedOperationException Thrown if the map is tiered.
+	 */
+	public final long restore(final File backup) throws IOException
+	{
+		checkUntiered("restore");
+		flush();
+
+		Environment source = BerkeleyBackup.open(backup);
+		try
+		{
+			DatabaseConfig config = new DatabaseConfig();
+			config.setReadOnly(true);
+			config.setTransactional(false);
+			Database from = source.openDatabase(null, mapName, config);
+			try
+			{
+				DatabaseEntry foundKey = new DatabaseEntry();
+				DatabaseEntry foundData = new DatabaseEntry();
+				foundData.setPartial(0, 0, true);
+				Cursor cursor = database.openCursor(null, null);
+				try
+				{
+					while (cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+					{
+						if (from.get(null, foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.NOTFOUND)
+						{
+							cursor.delete();
+						}
+					}
+				}
+				finally
+				{
+					cursor.close();
+				}
+
+				long count = 0;
+				foundData = new DatabaseEntry();
+				Cursor reader = from.openCursor(null, null);
+				try
+				{
+					while (reader.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+					{
+						database.put(null, foundKey, foundData);
+						metrics.written(foundKey.getSize() + foundData.getSize());
+						count++;
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+
+				if (cache != null)
+				{
+					cache.clear();
+				}
+				written();
+				LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":restored:" + count);
+
+				return count;
+			}
+			finally
+			{
+				from.close();
+			}
+		}
+		catch (DatabaseNotFoundException e)
+		{
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":Not in backup: " + backup, e);
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	/**
+	 * Returns the synchronization scheduler shared by the maps of the
+	 * environment, giving access to its metrics.
+	 * <p>
+	 * @return Synchronization scheduler.
+	 */
+	public final BerkeleySyncScheduler getSyncScheduler()
+	{
+		return environment.getSyncScheduler();
+	}
+
+	/**
+	 * Copies the data of an entry.
+	 * <p>
+	 * @param entry Entry.
+	 * @return Data.
+	 */
+	private static byte[] toBytes(final DatabaseEntry entry)
+	{
+		return Arrays.copyOfRange(entry.getData(), entry.getOffset(), entry.getOffset() + entry.getSize());
+	}
+
+	/**
+	 * Returns the secondary databases of the map: the databases of the
+	 * indexes and of the expiry timestamps.
+	 * <p>
+	 * @return Secondary databases.
+	 */
+	private List<Database> secondaries()
+	{
+		List<Database> secondaries = new ArrayList<>(indexes.size() + 1);
+		for (BerkeleyIndex<K, V> index : indexes.values())
+		{
+			secondaries.add(index.getDatabase());
+		}
+		if (expiry != null)
+		{
+			secondaries.add(expiry.getDatabase());
+		}
+
+		return secondaries;
+	}
+
+	/**
+	 * Returns the length of the expiry timestamp preceding the stored values.
+	 * <p>
+	 * @return Length of the timestamp, {@code 0} if the values do not expire.
+	 */
+	private int prefix()
+	{
+		return expiry == null ? 0 : BerkeleyExpiry.SIZE;
+	}
+
+	/**
+	 * Returns the expiry timestamp of a value written now.
+	 * <p>
+	 * @return Expiry timestamp in milliseconds, {@code -1} if the values do
+	 * not expire.
+	 */
+	private long nextExpiry()
+	{
+		return expiry == null ? -1 : expiry.next();
+	}
+
+	/**
+	 * Tells if a stored value is expired, counting it in the metrics if so.
+	 * <p>
+	 * @param data Array of bytes containing the stored value, or at least its
+	 * expiry timestamp.
+	 * @param offset Offset of the stored value.
+	 * @param now Current time in milliseconds.
+	 * @return {@code true} if the value is expired.
+	 */
+	private boolean expired(final byte[] data, final int offset, final long now)
+	{
+		if (expiry != null && BerkeleyExpiry.read(data, offset) <= now)
+		{
+			metrics.skipped(1);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Tells if the stored value of an entry is expired, counting it in the
+	 * metrics if so.
+	 * <p>
+	 * @param entry Entry containing the stored value, or at least its expiry
+	 * timestamp.
+	 * @param now Current time in milliseconds.
+	 * @return {@code true} if the value is expired.
+	 */
+	private boolean expired(final DatabaseEntry entry, final long now)
+	{
+		return expired(entry.getData(), entry.getOffset(), now);
+	}
+
+	/**
+	 * Deserializes a stored value, skipping its expiry timestamp.
+	 * <p>
+	 * @param data Array of bytes containing the stored value.
+	 * @param offset Offset of the stored value.
+	 * @param length Length of the stored value.
+	 * @return Value.
+	 */
+	private V value(final byte[] data, final int offset, final int length)
+	{
+		int prefix = prefix();
+
+		return (V) BerkeleyEntryBuffer.read(compressor, data, offset + prefix, length - prefix);
+	}
+
+	/**
+	 * Deserializes the stored value of an entry, skipping its expiry
+	 * timestamp.
+	 * <p>
+	 * @param entry Entry containing the stored value.
+	 * @return Value.
+	 */
+	private V value(final DatabaseEntry entry)
+	{
+		return value(entry.getData(), entry.getOffset(), entry.getSize());
+	}
+
+	/**
+	 * Deletes the expired entries of the map, by passes of at most
+	 * {@code ttlsweepbatch} entries in the order of their expiry timestamps.
+	 * It is called when the map is opened, so that the initial load only
+	 * reads the live entries, then in the background every
+	 * {@code ttlsweepinterval} seconds.
+	 * <p>
+	 * @return Number of entries deleted, {@code 0} if the values do not
+	 * expire.
+	 * @throws BerkeleyStoreMapException Thrown if the sweep fails.
+	 */
+	public final long sweep()
+	{
+		if (expiry == null)
+		{
+			return 0;
+		}
+
+		long start = BerkeleyStoreMapMetrics.start();
+		long now = System.currentTimeMillis();
+		long count = 0;
+		try
+		{
+			int swept;
+			do
+			{
+				swept = expiry.sweep(now, sweepBatch, cache);
+				count += swept;
+				metrics.swept(swept);
+			}
+			while (swept == sweepBatch);
+
+			if (count > 0)
+			{
+				written();
+			}
+		}
+		catch (RuntimeException e)
+		{
+			metrics.error(Operation.SWEEP);
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":sweep:" + e.getMessage(), e);
+		}
+		finally
+		{
+			metrics.record(Operation.SWEEP, start);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Runs a migration pass of the entries between the hot and cold tiers,
+	 * see {@link BerkeleyTiering}. It is called in the background every
+	 * {@code tierinterval} seconds and skipped while the keys are loaded.
+	 * <p>
+	 * @return Number of entries moved, {@code 0} if the map is not tiered or
+	 * the keys are being loaded.
+	 * @throws BerkeleyStoreMapException Thrown if the migration fails.
+	 */
+	public final int migrate()
+	{
+		if (tiering == null)
+		{
+			return 0;
+		}
+
+		long start = BerkeleyStoreMapMetrics.start();
+		try
+		{
+			int count = tiering.migrate(database, compressor, cache);
+			if (count > 0)
+			{
+				written();
+			}
+
+			return Math.max(count, 0);
+		}
+		catch (RuntimeException e)
+		{
+			metrics.error(Operation.MIGRATE);
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":migrate:" + e.getMessage(), e);
+		}
+		finally
+		{
+			metrics.record(Operation.MIGRATE, start);
+		}
+	}
+
+	/**
+	 * Synchronizes the database right away if the synchronization interval is
+	 * zero or marks it dirty for the synchronization scheduler otherwise.
+	 */
+	private void written()
+	{
+		if (interval == 0)
+		{
+			BerkeleyBatch.sync(metrics, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					database.sync();
+					for (Database secondary : secondaries())
+					{
+						secondary.sync();
+					}
+				}
+			});
+		}
+		else
+		{
+			environment.getSyncScheduler().markDirty(database);
+			for (Database secondary : secondaries())
+			{
+				environment.getSyncScheduler().markDirty(secondary);
+			}
+		}
+		if (tiering != null)
+		{
+			tiering.written();
+		}
+	}
+
+	@Override
+	public V load(final K key)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		try
+		{
+			return privateLoad(key);
+		}
+		catch (Exception e)
+		{
+			metrics.error(Operation.LOAD);
+			LOG.log(Level.SEVERE, e.getMessage(), e);
+			return null;
+		}
+		finally
+		{
+			metrics.record(Operation.LOAD, start);
+		}
+	}
+
+	/**
+	 * Loads the value of a key from the write buffer, the value cache or the
+	 * database, then from the cold database if the map is tiered.
+	 * <p>
+	 * @param key Key.
+	 * @return Value or {@code null} if not found.
+	 */
+	private V privateLoad(final K key)
+	{
+		if (writeBuffer != null)
+		{
+			Object buffered = writeBuffer.lookup(key);
+			if (buffered != BerkeleyWriteBuffer.ABSENT)
+			{
+				return (V) buffered;
+			}
+		}
+
+		BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+		DatabaseEntry keyEntry = buffer.key(keyCodec, key);
+		if (tiering != null)
+		{
+			tiering.access(keyEntry);
+		}
+		if (cache == null)
+		{
+			DatabaseEntry valueEntry = buffer.value();
+			OperationStatus status = database.get(null, keyEntry, valueEntry, LockMode.DEFAULT);
+			if (status == OperationStatus.SUCCESS)
+			{
+				metrics.read(valueEntry.getSize());
+				return expired(valueEntry, System.currentTimeMillis()) ? null : value(valueEntry);
+			}
+
+			return tiering == null ? null : loadCold(keyEntry, valueEntry);
+		}
+
+		byte[] cacheKey = toBytes(keyEntry);
+		byte[] cached = cache.get(cacheKey);
+		if (cached != null)
+		{
+			return expired(cached, 0, System.currentTimeMillis()) ? null : value(cached, 0, cached.length);
+		}
+
+		long stamp = cache.stamp(cacheKey);
+		DatabaseEntry valueEntry = buffer.value();
+		OperationStatus status = database.get(null, keyEntry, valueEntry, LockMode.DEFAULT);
+		if (status == OperationStatus.SUCCESS)
+		{
+			metrics.read(valueEntry.getSize());
+			if (expired(valueEntry, System.currentTimeMillis()))
+			{
+				return null;
+			}
+			cache.putLoaded(cacheKey, valueEntry.getData(), valueEntry.getOffset(), valueEntry.getSize(), stamp);
+			return value(valueEntry);
+		}
+
+		return tiering == null ? null : loadCold(keyEntry, valueEntry);
+	}
+
+	/**
+	 * Loads the value of a key missing from the database of a tiered map,
+	 * from the cold database or from the database again if the entry was
+	 * promoted between the two reads. Cold values are not cached.
+	 * <p>
+	 * @param keyEntry Key.
+	 * @param valueEntry Entry receiving the stored value.
+	 * @return Value or {@code null} if not found.
+	 */
+	private V loadCold(final DatabaseEntry keyEntry, final DatabaseEntry valueEntry)
+	{
+		DatabaseEntry coldEntry = new DatabaseEntry();
+		if (tiering.get(keyEntry, coldEntry))
+		{
+			metrics.read(coldEntry.getSize());
+			return (V) tiering.read(coldEntry);
+		}
+
+		if (database.get(null, keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+		{
+			metrics.read(valueEntry.getSize());
+			return value(valueEntry);
+		}
+
+		return null;
+	}
+
+	@Override
+	public void delete(final K key)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		if (writeBuffer != null)
+		{
+			writeBuffer.delete(key);
+			metrics.record(Operation.DELETE, start);
+			return;
+		}
+
+		try
+		{
+			DatabaseEntry keyEntry = BerkeleyEntryBuffer.get().key(keyCodec, key);
+			try
+			{
+				if (tiering == null)
+				{
+					database.delete(null, keyEntry);
+				}
+				else
+				{
+					tiering.delete(database, keyEntry);
+				}
+			}
+			finally
+			{
+				if (cache != null)
+				{
+					cache.invalidate(toBytes(keyEntry));
+				}
+			}
+			written();
+		}
+		catch (Exception e)
+		{
+			metrics.error(Operation.DELETE);
+			LOG.log(Level.SEVERE, e.getMessage(), e);
+		}
+		finally
+		{
+			metrics.record(Operation.DELETE, start);
+		}
+	}
+
+	/**
+	 * Deletes all the given keys in a single cursor pass.
+	 * <p>
+	 * Keys are serialized up front and deleted in their natural B-tree order.
+	 * The database is synchronized at most once. Successfully deleted keys
+	 * are removed from the given collection (when it is modifiable) so that
+	 * only the failed ones remain in case of a partial failure.
+	 * <p>
+	 * With a write buffer, the deletes are only buffered, see
+	 * {@link BerkeleyWriteBuffer}.
+	 * <p>
+	 * @param keys Collection of keys to delete.
+	 * @throws BerkeleyStoreMapException Thrown if at least one key failed to
+	 * be deleted.
+	 */
+	@Override
+	public void deleteAll(final Collection<K> keys)
+	{
+		if (writeBuffer != null)
+		{
+			for (K key : keys)
+			{
+				writeBuffer.delete(key);
+			}
+			return;
+		}
+
+		privateDeleteAll(keys);
+	}
+
+	/**
+	 * Deletes all the given keys in a single cursor pass, bypassing the write
+	 * buffer.
+	 * <p>
+	 * @param keys Collection of keys to delete.
+	 * @throws BerkeleyStoreMapException Thrown if at least one key failed to
+	 * be deleted.
+	 * @see #deleteAll(Collection)
+	 */
+	void privateDeleteAll(final Collection<K> keys)
+	{
+		BerkeleyBatch<K> batch = new BerkeleyBatch<>(this.getClass().getCanonicalName() + ":" + mapName, metrics, Operation.DELETE_ALL, keys.size());
+		BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+		List<BerkeleyBatch.Record<K>> records = new ArrayList<>(keys.size());
+		for (K key : keys)
+		{
+			try
+			{
+				records.add(new BerkeleyBatch.Record<>(key, buffer.keyBytes(keyCodec, key), null));
+			}
+			catch (Exception e)
+			{
+				batch.failed(key, e);
+			}
+		}
+		Collections.sort(records);
+
+		Cursor cursor = null;
+		try
+		{
+			// A tiered map deletes key by key, the cursor would hold the lock of a record while the key lock of the next one is taken.
+			cursor = tiering == null ? database.openCursor(null, null) : null;
+			DatabaseEntry keyEntry = new DatabaseEntry();
+			DatabaseEntry valueEntry = new DatabaseEntry();
+			valueEntry.setPartial(0, 0, true);
+
+			for (BerkeleyBatch.Record<K> record : records)
+			{
+				try
+				{
+					keyEntry.setData(record.key);
+					try
+					{
+						if (tiering != null)
+						{
+							tiering.delete(database, keyEntry);
+						}
+						else if (cursor.getSearchKey(keyEntry, valueEntry, LockMode.RMW) == OperationStatus.SUCCESS)
+						{
+							cursor.delete();
+						}
+					}
+					finally
+					{
+						if (cache != null)
+						{
+							cache.invalidate(record.key);
+						}
+					}
+					batch.processed(record.object);
+				}
+				catch (Exception e)
+				{
+					batch.failed(record.object, e);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			// The cursor cannot be opened, the whole batch failed.
+			for (BerkeleyBatch.Record<K> record : records)
+			{
+				batch.failed(record.object, e);
+			}
+		}
+		finally
+		{
+			if (cursor != null)
+			{
+				cursor.close();
+			}
+		}
+
+		batch.complete(keys, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				written();
+			}
+		});
+	}
+
+	@Override
+	public void store(final K key, final V value)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		if (writeBuffer != null)
+		{
+			writeBuffer.store(key, value);
+			metrics.record(Operation.STORE, start);
+			return;
+		}
+
+		try
+		{
+			BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+			DatabaseEntry keyEntry = buffer.key(keyCodec, key);
+			DatabaseEntry valueEntry = buffer.value(compressor, value, nextExpiry());
+			try
+			{
+				if (tiering == null)
+				{
+					database.put(null, keyEntry, valueEntry);
+				}
+				else
+				{
+					tiering.put(database, keyEntry, valueEntry);
+				}
+				metrics.written(keyEntry.getSize() + valueEntry.getSize());
+				if (cache != null)
+				{
+					cache.put(toBytes(keyEntry), valueEntry.getData(), valueEntry.getOffset(), valueEntry.getSize());
+				}
+			}
+			catch (Exception e)
+			{
+				if (cache != null)
+				{
+					cache.invalidate(toBytes(keyEntry));
+				}
+				throw e;
+			}
+			written();
+		}
+		catch (Exception e)
+		{
+			metrics.error(Operation.STORE);
+			LOG.log(Level.SEVERE, e.getMessage(), e);
+		}
+		finally
+		{
+			metrics.record(Operation.STORE, start);
+		}
+	}
+
+	/**
+	 * Stores all the given entries in a single cursor pass.
+	 * <p>
+	 * Keys are serialized up front and entries are written in their natural
+	 * B-tree order, each value being serialized into the reusable value buffer
+	 * right before it is written. The database is synchronized at most once. Successfully stored
+	 * entries are removed from the given map (when it is modifiable) so that
+	 * only the failed ones remain in case of a partial failure.
+	 * <p>
+	 * With a write buffer, the entries are only buffered, see
+	 * {@link BerkeleyWriteBuffer}.
+	 * <p>
+	 * @param map Map of entries to store.
+	 * @throws BerkeleyStoreMapException Thrown if at least one entry failed to
+	 * be stored.
+	 */
+	@Override
+	public void storeAll(final Map<K, V> map)
+	{
+		if (writeBuffer != null)
+		{
+			for (Map.Entry<K, V> entry : map.entrySet())
+			{
+				writeBuffer.store(entry.getKey(), entry.getValue());
+			}
+			return;
+		}
+
+		privateStoreAll(map);
+	}
+
+	/**
+	 * Stores all the given entries in a single cursor pass, bypassing the
+	 * write buffer.
+	 * <p>
+	 * @param map Map of entries to store.
+	 * @throws BerkeleyStoreMapException Thrown if at least one entry failed to
+	 * be stored.
+	 * @see #storeAll(Map)
+	 */
+	void privateStoreAll(final Map<K, V> map)
+	{
+		BerkeleyBatch<K> batch = new BerkeleyBatch<>(this.getClass().getCanonicalName() + ":" + mapName, metrics, Operation.STORE_ALL, map.size());
+		BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+		List<BerkeleyBatch.Record<K>> records = new ArrayList<>(map.size());
+		for (Map.Entry<K, V> entry : map.entrySet())
+		{
+			try
+			{
+				records.add(new BerkeleyBatch.Record<>(entry.getKey(), buffer.keyBytes(keyCodec, entry.getKey()), entry.getValue()));
+			}
+			catch (Exception e)
+			{
+				batch.failed(entry.getKey(), e);
+			}
+		}
+		Collections.sort(records);
+
+		Cursor cursor = null;
+		try
+		{
+			// A tiered map writes key by key, the cursor would hold the lock of a record while the key lock of the next one is taken.
+			cursor = tiering == null ? database.openCursor(null, null) : null;
+			DatabaseEntry keyEntry = new DatabaseEntry();
+
+			for (BerkeleyBatch.Record<K> record : records)
+			{
+				try
+				{
+					keyEntry.setData(record.key);
+					DatabaseEntry valueEntry = buffer.value(compressor, record.value, nextExpiry());
+					if (tiering == null)
+					{
+						cursor.put(keyEntry, valueEntry);
+					}
+					else
+					{
+						tiering.put(database, keyEntry, valueEntry);
+					}
+					metrics.written(record.key.length + valueEntry.getSize());
+					if (cache != null)
+					{
+						cache.put(record.key, valueEntry.getData(), valueEntry.getOffset(), valueEntry.getSize());
+					}
+					batch.processed(record.object);
+				}
+				catch (Exception e)
+				{
+					if (cache != null)
+					{
+						cache.invalidate(record.key);
+					}
+					batch.failed(record.object, e);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			// The cursor cannot be opened, the whole batch failed.
+			for (BerkeleyBatch.Record<K> record : records)
+			{
+				batch.failed(record.object, e);
+			}
+		}
+		finally
+		{
+			if (cursor != null)
+			{
+				cursor.close();
+			}
+		}
+
+		batch.complete(map.keySet(), new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				written();
+			}
+		});
+	}
+
+	@Override
+	public Map<K, V> loadAll(final Collection<K> keys)
+	{
+		long start = BerkeleyStoreMapMetrics.start();
+		metrics.batch(keys.size());
+		try
+		{
+			return privateLoadAll(keys);
+		}
+		finally
+		{
+			metrics.record(Operation.LOAD_ALL, start);
+		}
+	}
+
+	/**
+	 * Load all the data.
+	 * <p>
+	 * Keys are serialized and sorted in their natural B-tree order so that a
+	 * single cursor walks the database forward instead of issuing one random
+	 * lookup per key. Keys not found in the database are not part of the
+	 * returned map, unless the map is tiered and they are found in the cold
+	 * database, read once the cursor is closed.
+	 * <p>
+	 * @param keys Collection containing the keys to load.
+	 * @return Map with pairs of key and value.
+	 */
+	private Map<K, V> privateLoadAll(final Collection<K> keys)
+	{
+		Map<K, V> map = new HashMap<>(keys.size());
+		BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+		List<BerkeleyBatch.Record<K>> records = new ArrayList<>(keys.size());
+		for (K key : keys)
+		{
+			if (writeBuffer != null)
+			{
+				Object buffered = writeBuffer.lookup(key);
+				if (buffered != BerkeleyWriteBuffer.ABSENT)
+				{
+					if (buffered != null)
+					{
+						map.put(key, (V) buffered);
+					}
+					continue;
+				}
+			}
+
+			try
+			{
+				records.add(new BerkeleyBatch.Record<>(key, buffer.keyBytes(keyCodec, key), null));
+			}
+			catch (Exception e)
+			{
+				metrics.error(Operation.LOAD_ALL);
+				LOG.log(Level.SEVERE, e.getMessage(), e);
+			}
+		}
+		Collections.sort(records);
+
+		List<BerkeleyBatch.Record<K>> misses = new ArrayList<>();
+		Cursor cursor = null;
+		try
+		{
+			cursor = database.openCursor(null, null);
+			DatabaseEntry keyEntry = new DatabaseEntry();
+			DatabaseEntry valueEntry = new DatabaseEntry();
+			long now = System.currentTimeMillis();
+
+			for (BerkeleyBatch.Record<K> record : records)
+			{
+				keyEntry.setData(record.key);
+				if (tiering != null)
+				{
+					tiering.access(keyEntry);
+				}
+				if (cursor.getSearchKey(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS)
+				{
+					if (tiering != null)
+					{
+						misses.add(record);
+					}
+				}
+				else
+				{
+					metrics.read(valueEntry.getSize());
+					if (expired(valueEntry, now))
+					{
+						continue;
+					}
+					try
+					{
+						map.put(record.object, value(valueEntry));
+					}
+					catch (Exception e)
+					{
+						metrics.error(Operation.LOAD_ALL);
+						LOG.log(Level.SEVERE, e.getMessage(), e);
+					}
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			metrics.error(Operation.LOAD_ALL);
+			LOG.log(Level.SEVERE, e.getMessage(), e);
+		}
+		finally
+		{
+			if (cursor != null)
+			{
+				cursor.close();
+			}
+		}
+
+		// The keys missing from a tiered map are looked up in the cold database once the cursor is closed.
+		DatabaseEntry keyEntry = new DatabaseEntry();
+		DatabaseEntry valueEntry = new DatabaseEntry();
+		for (BerkeleyBatch.Record<K> record : misses)
+		{
+			keyEntry.setData(record.key);
+			try
+			{
+				V value = loadCold(keyEntry, valueEntry);
+				if (value != null)
+				{
+					map.put(record.object, value);
+				}
+			}
+			catch (Exception e)
+			{
+				metrics.error(Operation.LOAD_ALL);
+				LOG.log(Level.SEVERE, e.getMessage(), e);
+			}
+		}
+
+		return map;
+	}
+
+	@Override
+	public Iterable<K> loadAllKeys()
+	{
+		return privateLoadAllKeys();
+	}
+
+	/**
+	 * Load all the keys.
+	 * <p>
+	 * Keys are not materialized at once, they are lazily read by chunks when
+	 * the returned key source is iterated so that the memory used by the
+	 * initial load of a map stays bounded whatever the number of records.
+	 * With several load threads, ranges of the key space are read in parallel
+	 * by a {@link BerkeleyParallelKeySource}.
+	 * <p>
+	 * Only the keys are read: the cursors use a zero length partial read of
+	 * the data (the expiry timestamp only with a time to live), so that the
+	 * values are not fetched from disk, which keeps the cold start I/O
+	 * independent of the size of the values.
+	 * <p>
+	 * The keys of a tiered map are read from the hot database, then from the
+	 * cold one, the migrations being suspended until the key source is
+	 * exhausted or closed.
+	 * <p>
+	 * @return Key source iterating over all the keys.
+	 */
+	private Iterable<K> privateLoadAllKeys()
+	{
+		flush();
+
+		LOG.log(Level.INFO, this.getClass().getCanonicalName() + ":" + mapName + ":loadAllKeys:" + count());
+
+		if (tiering != null)
+		{
+			return new TieredKeySource(keySource(database), keySource(tiering.getDatabase()));
+		}
+
+		return keySource(database);
+	}
+
+	/**
+	 * Creates the key source of a database.
+	 * <p>
+	 * @param source Database of the keys.
+	 * @return Key source.
+	 */
+	private Iterable<K> keySource(final Database source)
+	{
+		if (loadThreads > 1)
+		{
+			return new BerkeleyParallelKeySource<>(source, keyCodec, expiry != null, chunkSize, loadThreads, hazelcast, metrics, this.getClass().getSimpleName() + "-" + mapName);
+		}
+
+		return new KeySource(source, chunkSize);
+	}
+
+	/**
+	 * Scans the entries whose key is in a range, in the order of the keys.
+	 * <p>
+	 * The entries are read sequentially from the database by a single cursor,
+	 * without going through the {@code Hazelcast} map. The consumer is called
+	 * while the cursor is open.
+	 * <p>
+	 * @param fromKey Lowest key of the range (inclusive), {@code null} to
+	 * start from the first key.
+	 * @param toKey Highest key of the range (exclusive), {@code null} to end
+	 * with the last key.
+	 * @param consumer Consumer of the entries.
+	 * @throws UnsupportedOperationException Thrown if the key codec is not
+	 * order preserving or if the map is tiered.
+	 * @throws BerkeleyStoreMapException Thrown if the scan fails.
+	 */
+	public final void scan(final K fromKey, final K toKey, final BerkeleyScanConsumer<K, V> consumer)
+	{
+		BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+		byte[] from = fromKey == null ? null : buffer.keyBytes(checkOrdered(), fromKey);
+		byte[] to = toKey == null ? null : buffer.keyBytes(checkOrdered(), toKey);
+
+		privateScan(from, to, false, consumer);
+	}
+
+	/**
+	 * Scans the entries whose encoded key starts with the encoded prefix, in
+	 * the order of the keys, e.g. all the {@link BerkeleyCompositeKey} starting
+	 * with the components of a shorter composite key. A string, alone or as
+	 * the last component of a composite key, matches the strings starting
+	 * with it: {@code "ab"} matches {@code "ab"} and {@code "abc"}.
+	 * <p>
+	 * @param prefix Prefix of the keys.
+	 * @param consumer Consumer of the entries.
+	 * @throws UnsupportedOperationException Thrown if the key codec is not
+	 * order preserving or if the map is tiered.
+	 * @throws BerkeleyStoreMapException Thrown if the scan fails.
+	 */
+	public final void scanPrefix(final K prefix, final BerkeleyScanConsumer<K, V> consumer)
+	{
+		BerkeleyKeyCodec<K> codec = checkOrdered();
+
+		privateScan(BerkeleyKeyCodecs.prefix(codec, prefix, BerkeleyEntryBuffer.get().keyBytes(codec, prefix)), null, true, consumer);
+	}
+
+	/**
+	 * Streams the entries whose indexed attribute equals a value, in the
+	 * order of their binary keys.
+	 * <p>
+	 * @param index Name of the index.
+	 * @param attribute Value of the attribute.
+	 * @param consumer Consumer of the entries.
+	 * @throws IllegalArgumentException Thrown if the index does not exist.
+	 * @throws BerkeleyStoreMapException Thrown if the query fails.
+	 */
+	public final void query(final String index, final Object attribute, final BerkeleyScanConsumer<K, V> consumer)
+	{
+		BerkeleyIndex<K, V> target = index(index);
+		privateQuery(target, target.encode(attribute), null, true, true, consumer);
+	}
+
+	/**
+	 * Streams the keys of the entries whose indexed attribute equals a value,
+	 * in the order of their binary keys, without reading the values.
+	 * <p>
+	 * @param index Name of the index.
+	 * @param attribute Value of the attribute.
+	 * @param consumer Consumer of the keys.
+	 * @throws IllegalArgumentException Thrown if the index does not exist.
+	 * @throws BerkeleyStoreMapException Thrown if the query fails.
+	 */
+	public final void queryKeys(final String index, final Object attribute, final BerkeleyKeyConsumer<K> consumer)
+	{
+		BerkeleyIndex<K, V> target = index(index);
+		privateQuery(target, target.encode(attribute), null, true, false, keys(consumer));
+	}
+
+	/**
+	 * Streams the entries whose indexed attribute is in a range, in the order
+	 * of the attributes.
+	 * <p>
+	 * @param index Name of the index.
+	 * @param from Lowest attribute (inclusive), {@code null} to start from the
+	 * lowest one.
+	 * @param to Highest attribute (exclusive), {@code null} to end with the
+	 * highest one.
+	 * @param consumer Consumer of the entries.
+	 * @throws IllegalArgumentException Thrown if the index does not exist.
+	 * @throws UnsupportedOperationException Thrown if the codec of the index
+	 * is not order preserving.
+	 * @throws BerkeleyStoreMapException Thrown if the query fails.
+	 */
+	public final void queryRange(final String index, final Object from, final Object to, final BerkeleyScanConsumer<K, V> consumer)
+	{
+		privateQueryRange(index, from, to, true, consumer);
+	}
+
+	/**
+	 * Streams the keys of the entries whose indexed attribute is in a range,
+	 * in the order of the attributes, without reading the values.
+	 * <p>
+	 * @param index Name of the index.
+	 * @param from Lowest attribute (inclusive), {@code null} to start from the
+	 * lowest one.
+	 * @param to Highest attribute (exclusive), {@code null} to end with the
+	 * highest one.
+	 * @param consumer Consumer of the keys.
+	 * @throws IllegalArgumentException Thrown if the index does not exist.
+	 * @throws UnsupportedOperationException Thrown if the codec of the index
+	 * is not order preserving.
+	 * @throws BerkeleyStoreMapException Thrown if the query fails.
+	 */
+	public final void queryKeysRange(final String index, final Object from, final Object to, final BerkeleyKeyConsumer<K> consumer)
+	{
+		privateQueryRange(index, from, to, false, keys(consumer));
+	}
+
+	/**
+	 * Returns an index.
+	 * <p>
+	 * @param name Name of the index.
+	 * @return Index.
+	 * @throws IllegalArgumentException Thrown if the index does not exist.
+	 */
+	private BerkeleyIndex<K, V> index(final String name)
+	{
+		BerkeleyIndex<K, V> index = indexes.get(name);
+		if (index == null || index.getDatabase() == null)
+		{
+			throw new IllegalArgumentException(this.getClass().getCanonicalName() + ":" + mapName + ":unknown index:" + name);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Adapts a consumer of keys to a consumer of entries.
+	 * <p>
+	 * @param consumer Consumer of keys.
+	 * @return Consumer of entries.
+	 */
+	private BerkeleyScanConsumer<K, V> keys(final BerkeleyKeyConsumer<K> consumer)
+	{
+		return new BerkeleyScanConsumer<K, V>()
+		{
+			@Override
+			public boolean accept(final K key, final V value)
+			{
+				return consumer.accept(key);
+			}
+		};
+	}
+
+	/**
+	 * Streams the entries whose indexed attribute is in a range.
+	 * <p>
+	 * @param index Name of the index.
+	 * @param from Lowest attribute (inclusive), may be {@code null}.
+	 * @param to Highest attribute (exclusive), may be {@code null}.
+	 * @param values Are the values read?
+	 * @param consumer Consumer of the entries.
+	 */
+	private void privateQueryRange(final String index, final Object from, final Object to, final boolean values, final BerkeleyScanConsumer<K, V> consumer)
+	{
+		BerkeleyIndex<K, V> target = index(index);
+		if (!target.getCodec().isOrdered())
+		{
+			throw new UnsupportedOperationException(this.getClass().getCanonicalName() + ":" + mapName + ":range query requires an order preserving codec:" + index);
+		}
+
+		privateQuery(target, from == null ? new byte[0] : target.encode(from), to == null ? null : target.encode(to), false, values, consumer);
+	}
+
+	/**
+	 * Streams the entries of an index after the buffered writes are flushed.
+	 * <p>
+	 * @param index Index.
+	 * @param from Lowest binary attribute (inclusive).
+	 * @param to Highest binary attribute (exclusive), {@code null} for no
+	 * bound.
+	 * @param exact Are only the entries whose attribute equals {@code from}
+	 * read?
+	 * @param values Are the values read?
+	 * @param consumer Consumer of the entries.
+	 */
+	private void privateQuery(final BerkeleyIndex<K, V> index, final byte[] from, final byte[] to, final boolean exact, final boolean values, final BerkeleyScanConsumer<K, V> consumer)
+	{
+		flush();
+
+		try
+		{
+			index.query(from, to, exact, values, consumer);
+		}
+		catch (RuntimeException e)
+		{
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":query:" + index.getName() + ":" + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Checks the key codec is order preserving.
+	 * <p>
+	 * @return Key codec.
+	 * @throws UnsupportedOperationException Thrown if the key codec is not
+	 * order preserving.
+	 */
+	private BerkeleyKeyCodec<K> checkOrdered()
+	{
+		if (!keyCodec.isOrdered())
+		{
+			throw new UnsupportedOperationException(this.getClass().getCanonicalName() + ":" + mapName + ":scan requires an order preserving key codec");
+		}
+
+		return keyCodec;
+	}
+
+	/**
+	 * Checks the map is not tiered, an operation reading the database of the
+	 * map only missing the cold entries.
+	 * <p>
+	 * @param operation Name of the operation.
+	 * @throws UnsupportedOperationException Thrown if the map is tiered.
+	 */
+	private void checkUntiered(final String operation)
+	{
+		if (tiering != null)
+		{
+			throw new UnsupportedOperationException(this.getClass().getCanonicalName() + ":" + mapName + ":" + operation + " is not supported on a tiered map");
+		}
+	}
+
+	/**
+	 * Scans the entries from a binary key.
+	 * <p>
+	 * @param from Lowest binary key (inclusive) or prefix, {@code null} to
+	 * start from the first key.
+	 * @param to Highest binary key (exclusive), {@code null} for no bound.
+	 * @param prefix Is {@code from} a prefix the binary keys must start with?
+	 * @param consumer Consumer of the entries.
+	 */
+	private void privateScan(final byte[] from, final byte[] to, final boolean prefix, final BerkeleyScanConsumer<K, V> consumer)
+	{
+		checkOrdered();
+		checkUntiered("scan");
+		flush();
+
+		Cursor cursor = null;
+		try
+		{
+			cursor = database.openCursor(null, null);
+			DatabaseEntry foundKey = new DatabaseEntry();
+			DatabaseEntry foundData = new DatabaseEntry();
+			long now = System.currentTimeMillis();
+
+			OperationStatus status;
+			if (from == null)
+			{
+				status = cursor.getFirst(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+			}
+			else
+			{
+				foundKey.setData(from);
+				status = cursor.getSearchKeyRange(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+			}
+
+			while (status == OperationStatus.SUCCESS)
+			{
+				if (to != null && compare(foundKey.getData(), foundKey.getOffset(), foundKey.getSize(), to, 0, to.length) >= 0)
+				{
+					break;
+				}
+				if (prefix && (foundKey.getSize() < from.length || compare(foundKey.getData(), foundKey.getOffset(), from.length, from, 0, from.length) != 0))
+				{
+					break;
+				}
+				if (!expired(foundData, now) && !consumer.accept(BerkeleyEntryBuffer.read(keyCodec, foundKey), value(foundData)))
+				{
+					break;
+				}
+				status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":" + mapName + ":scan:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (cursor != null)
+			{
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Compares two binary keys in the unsigned lexicographic order, i.e. the
+	 * default B-tree order of a {@link Database}.
+	 * <p>
+	 * @param a Array of bytes of the first key.
+	 * @param aOffset Offset of the first key.
+	 * @param aLength Length of the first key.
+	 * @param b Array of bytes of the second key.
+	 * @param bOffset Offset of the second key.
+	 * @param bLength Length of the second key.
+	 * @return Negative, zero or positive if the first key is lower, equal or
+	 * greater than the second one.
+	 */
+	static int compare(final byte[] a, final int aOffset, final int aLength, final byte[] b, final int bOffset, final int bLength)
+	{
+		int length = Math.min(aLength, bLength);
+		for (int i = 0; i < length; i++)
+		{
+			int result = (a[aOffset + i] & 0xff) - (b[bOffset + i] & 0xff);
+			if (result != 0)
+			{
+				return result;
+			}
+		}
+
+		return aLength - bLength;
+	}
+
+	/**
+	 * Source of keys lazily reading the keys of the database by chunks.
+	 * A chunk failing to be read is thrown by the iterator.
+	 * <p>
+	 * A cursor is opened only while a chunk is read and it is closed right
+	 * after, the next chunk being positioned on the last key read. Hence no
+	 * cursor is held between two chunks while {@code Hazelcast} dispatches the
+	 * keys to the partitions.
+	 */
+	private final class KeySource implements Iterable<K>, Closeable
+	{
+		/**
+		 * Database of the keys.
+		 */
+		private final Database source;
+
+		/**
+		 * Maximum number of keys read per chunk.
+		 */
+		private final int size;
+
+		/**
+		 * Is the source closed?
+		 */
+		private volatile boolean closed;
+
+		/**
+		 * Creates a new key source.
+		 * <p>
+		 * @param source Database of the keys.
+		 * @param size Maximum number of keys read per chunk.
+		 */
+		KeySource(final Database source, final int size)
+		{
+			this.source = source;
+			this.size = size;
+		}
+
+		@Override
+		public Iterator<K> iterator()
+		{
+			return new Iterator<K>()
+			{
+				/**
+				 * Keys of the current chunk.
+				 */
+				private final List<K> chunk = new ArrayList<>(size);
+
+				/**
+				 * Position in the current chunk.
+				 */
+				private int position = 0;
+
+				/**
+				 * Serialized last key read, {@code null} before the first chunk.
+				 */
+				private byte[] last = null;
+
+				/**
+				 * Has the end of the database been reached?
+				 */
+				private boolean exhausted = false;
+
+				@Override
+				public boolean hasNext()
+				{
+					if (position < chunk.size())
+					{
+						return true;
+					}
+					if (exhausted || closed)
+					{
+						return false;
+					}
+
+					readChunk();
+
+					return position < chunk.size();
+				}
+
+				@Override
+				public K next()
+				{
+					if (!hasNext())
+					{
+						throw new NoSuchElementException();
+					}
+
+					return chunk.get(position++);
+				}
+
+				@Override
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+
+				/**
+				 * Reads the next chunk of keys.
+				 */
+				private void readChunk()
+				{
+					chunk.clear();
+					position = 0;
+
+					long start = BerkeleyStoreMapMetrics.start();
+					List<byte[]> binaryKeys = new ArrayList<>(size);
+					Cursor cursor = null;
+					try
+					{
+						cursor = source.openCursor(null, null);
+						DatabaseEntry foundKey = new DatabaseEntry();
+						DatabaseEntry foundData = new DatabaseEntry();
+						// A zero length partial read does not fetch the values, only the expiry timestamps are read.
+						foundData.setPartial(0, prefix(), true);
+						long now = System.currentTimeMillis();
+
+						OperationStatus status;
+						if (last == null)
+						{
+							status = cursor.getFirst(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+						}
+						else
+						{
+							foundKey.setData(last);
+							status = cursor.getSearchKeyRange(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+							if (status == OperationStatus.SUCCESS && Arrays.equals(last, foundKey.getData()))
+							{
+								status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+							}
+						}
+
+						while (status == OperationStatus.SUCCESS)
+						{
+							if (!expired(foundData, now))
+							{
+								binaryKeys.add(toBytes(foundKey));
+							}
+							if (binaryKeys.size() == size)
+							{
+								break;
+							}
+							status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+						}
+
+						if (status == OperationStatus.SUCCESS)
+						{
+							last = toBytes(foundKey);
+						}
+						else
+						{
+							exhausted = true;
+						}
+					}
+					catch (Exception e)
+					{
+						exhausted = true;
+						metrics.error(Operation.LOAD_ALL_KEYS);
+						throw new BerkeleyStoreMapException(BerkeleyStoreMap.this.getClass().getCanonicalName() + ":" + mapName + ":loadAllKeys:" + e.getMessage(), e);
+					}
+					finally
+					{
+						if (cursor != null)
+						{
+							cursor.close();
+						}
+					}
+
+					// Decoded once the cursor is closed, so that it is held for the reads only.
+					try
+					{
+						for (byte[] binaryKey : binaryKeys)
+						{
+							chunk.add(keyCodec.read(new Input(binaryKey)));
+						}
+					}
+					catch (Exception e)
+					{
+						exhausted = true;
+						metrics.error(Operation.LOAD_ALL_KEYS);
+						throw new BerkeleyStoreMapException(BerkeleyStoreMap.this.getClass().getCanonicalName() + ":" + mapName + ":loadAllKeys:" + e.getMessage(), e);
+					}
+					finally
+					{
+						metrics.record(Operation.LOAD_ALL_KEYS, start);
+					}
+				}
+			};
+		}
+
+		@Override
+		public void close()
+		{
+			closed = true;
+		}
+	}
+
+	/**
+	 * Key source of a tiered map, reading the keys of the hot database, then
+	 * the keys of the cold database. The migrations are suspended until the
+	 * source is exhausted or closed, so that no entry moves from a database
+	 * not read yet to a database already read.
+	 */
+	private final class TieredKeySource implements Iterable<K>, Closeable
+	{
+		/**
+		 * Key source of the hot database.
+		 */
+		private final Iterable<K> hot;
+
+		/**
+		 * Key source of the cold database.
+		 */
+		private final Iterable<K> cold;
+
+		/**
+		 * Is the source closed?
+		 */
+		private boolean closed;
+
+		/**
+		 * Creates a new key source, suspending the migrations.
+		 * <p>
+		 * @param hot Key source of the hot database.
+		 * @param cold Key source of the cold database.
+		 */
+		TieredKeySource(final Iterable<K> hot, final Iterable<K> cold)
+		{
+			this.hot = hot;
+			this.cold = cold;
+			tiering.suspend();
+		}
+
+		@Override
+		public Iterator<K> iterator()
+		{
+			return new Iterator<K>()
+			{
+				/**
+				 * Iterator of the database being read.
+				 */
+				private Iterator<K> current = hot.iterator();
+
+				/**
+				 * Is the cold database being read?
+				 */
+				private boolean reading = false;
+
+				@Override
+				public boolean hasNext()
+				{
+					while (!current.hasNext())
+					{
+						if (reading)
+						{
+							close();
+							return false;
+						}
+						current = cold.iterator();
+						reading = true;
+					}
+
+					return true;
+				}
+
+				@Override
+				public K next()
+				{
+					if (!hasNext())
+					{
+						throw new NoSuchElementException();
+					}
+
+					return current.next();
+				}
+
+				@Override
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public synchronized void close()
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+
+			try
+			{
+				((Closeable) hot).close();
+				((Closeable) cold).close();
+			}
+			catch (IOException e)
+			{
+				LOG.log(Level.WARNING, e.getMessage(), e);
+			}
+			finally
+			{
+				BerkeleyTiering tiers = tiering;
+				if (tiers != null)
+				{
+					tiers.resume();
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unchecked exception thrown to indicate an error occurred while processing a
+ * {@link BerkeleyStoreMap}.
+ * <p>
+ * When raised by a batch operation, the exception carries the keys that could
+ * not be processed together with their respective cause.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+public class BerkeleyStoreMapException extends RuntimeException
+{
+	/**
+	 * Serialization identifier.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Keys that failed to be processed with their cause.
+	 */
+	private final Map<Object, Throwable> failures;
+
+	/**
+	 * Unchecked exception thrown to indicate an error occurred while processing a {@link BerkeleyStoreMap}.
+	 * <p>
+	 * @param message Message describing the error being the cause of the raised
+	 * exception.
+	 */
+	public BerkeleyStoreMapException(final String message)
+	{
+		super(message);
+		this.failures = Collections.emptyMap();
+	}
+
+	/**
+	 * Unchecked exception thrown to indicate an error occurred while processing a {@link BerkeleyStoreMap}.
+	 * <p>
+	 * @param message Message describing the error being the cause of the raised
+	 * exception.
+	 * @param exception Parent exception.
+	 */
+	public BerkeleyStoreMapException(final String message, final Throwable exception)
+	{
+		super(message, exception);
+		this.failures = Collections.emptyMap();
+	}
+
+	/**
+	 * Unchecked exception thrown to indicate some keys of a batch operation
+	 * failed to be processed by a {@link BerkeleyStoreMap}.
+	 * <p>
+	 * @param message Message describing the error being the cause of the raised
+	 * exception.
+	 * @param failures Keys that failed to be processed with their cause. The
+	 * first cause is used as the cause of this exception.
+	 */
+	public BerkeleyStoreMapException(final String message, final Map<?, ? extends Throwable> failures)
+	{
+		super(message, failures.isEmpty() ? null : failures.values().iterator().next());
+		this.failures = Collections.unmodifiableMap(new LinkedHashMap<Object, Throwable>(failures));
+	}
+
+	/**
+	 * Returns the keys that failed to be processed with their cause.
+	 * <p>
+	 * @return Unmodifiable map of failed keys, empty if the exception is not
+	 * related to a batch operation.
+	 */
+	public final Map<Object, Throwable> getFailures()
+	{
+		return failures;
+	}
+}
@@ -0,0 +1,777 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
+
+/**
+ * Metrics of a {@link BerkeleyStoreMap}: latency histograms and error counts
+ * per operation, batch sizes, serialized bytes, expired entries, tier sizes
+ * and migrations, and the statistics of the Berkeley DB environment of the
+ * map.
+ * <p>
+ * Recording is lock-free and allocation free (see {@link BerkeleyHistogram}),
+ * so that the metrics are always on. They can be pulled with
+ * {@link #snapshot()} or read through JMX, the metrics being published as a
+ * read only MBean named
+ * {@code org.heliosphere.thot.hazelcast:type=<store>,instance=<instance>,environment=<environment>,name=<map>}
+ * whose attributes are the entries of the snapshot, {@code <store>} being the
+ * map store class and {@code <instance>} the {@code Hazelcast} instance, left
+ * out without one. Should the name be taken, an {@code id} key is added. A
+ * JMX read only computes the metrics of the attributes read: the environment
+ * statistics are not fetched to read a latency.
+ * <p>
+ * Latencies are reported in microseconds: for each operation, the snapshot
+ * holds {@code <operation>.count}, {@code .errors}, {@code .mean},
+ * {@code .p50}, {@code .p99}, {@code .p999} and {@code .max}. The environment
+ * statistics are prefixed by {@code je.}; they are shared by all the maps of
+ * the environment and only computed when a snapshot is taken. With the
+ * tiering (see {@link BerkeleyTiering}), {@code tier.hot.count} and
+ * {@code tier.cold.count} are the sizes of the tiers as of the last
+ * migration pass, {@code tier.demoted} and {@code tier.promoted} the number
+ * of entries moved since the map was opened.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyStoreMapMetrics implements DynamicMBean
+{
+	/**
+	 * Logger.
+	 */
+	private final ILogger LOG = Logger.getLogger(BerkeleyStoreMapMetrics.class.getName());
+
+	/**
+	 * Domain of the MBeans.
+	 */
+	public static final String DOMAIN = "org.heliosphere.thot.hazelcast";
+
+	/**
+	 * Operations of a map store.
+	 */
+	public enum Operation
+	{
+		/**
+		 * Load of a key, whether it is found or not.
+		 */
+		LOAD("load"),
+
+		/**
+		 * Load of a batch of keys.
+		 */
+		LOAD_ALL("loadAll"),
+
+		/**
+		 * Read of a chunk of keys while iterating over all the keys.
+		 */
+		LOAD_ALL_KEYS("loadAllKeys"),
+
+		/**
+		 * Store of an entry.
+		 */
+		STORE("store"),
+
+		/**
+		 * Store of a batch of entries.
+		 */
+		STORE_ALL("storeAll"),
+
+		/**
+		 * Delete of a key.
+		 */
+		DELETE("delete"),
+
+		/**
+		 * Delete of a batch of keys.
+		 */
+		DELETE_ALL("deleteAll"),
+
+		/**
+		 * Synchronization of the database done by a write.
+		 */
+		SYNC("sync"),
+
+		/**
+		 * Deletion of the expired entries by the sweeper.
+		 */
+		SWEEP("sweep"),
+
+		/**
+		 * Migration pass of the entries between the hot and cold tiers.
+		 */
+		MIGRATE("migrate");
+
+		/**
+		 * Name of the operation in the snapshot.
+		 */
+		private final String label;
+
+		/**
+		 * Creates an operation.
+		 * <p>
+		 * @param label Name of the operation in the snapshot.
+		 */
+		private Operation(final String label)
+		{
+			this.label = label;
+		}
+
+		/**
+		 * Returns the name of the operation in the snapshot.
+		 * <p>
+		 * @return Name.
+		 */
+		public final String getLabel()
+		{
+			return label;
+		}
+	}
+
+	/**
+	 * Name of the map.
+	 */
+	private final String mapName;
+
+	/**
+	 * Environment of the map.
+	 */
+	private final Environment environment;
+
+	/**
+	 * Latency histograms (in nanoseconds) per operation.
+	 */
+	private final Map<Operation, BerkeleyHistogram> latencies = new EnumMap<>(Operation.class);
+
+	/**
+	 * Error counts per operation.
+	 */
+	private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+
+	/**
+	 * Histogram of the sizes of the batches.
+	 */
+	private final BerkeleyHistogram batchSizes = new BerkeleyHistogram();
+
+	/**
+	 * Number of serialized bytes read.
+	 */
+	private final LongAdder bytesRead = new LongAdder();
+
+	/**
+	 * Number of serialized bytes written.
+	 */
+	private final LongAdder bytesWritten = new LongAdder();
+
+	/**
+	 * Number of expired entries skipped by the loads.
+	 */
+	private final LongAdder expiredSkipped = new LongAdder();
+
+	/**
+	 * Number of expired entries deleted by the sweeper.
+	 */
+	private final LongAdder expiredSwept = new LongAdder();
+
+	/**
+	 * Number of entries moved from the hot tier to the cold tier.
+	 */
+	private final LongAdder demoted = new LongAdder();
+
+	/**
+	 * Number of entries moved from the cold tier to the hot tier.
+	 */
+	private final LongAdder promoted = new LongAdder();
+
+	/**
+	 * Number of entries of the hot tier.
+	 */
+	private volatile long hotCount;
+
+	/**
+	 * Number of entries of the cold tier.
+	 */
+	private volatile long coldCount;
+
+	/**
+	 * Number of checkpoints seen by the last snapshot.
+	 */
+	private long checkpoints = -1;
+
+	/**
+	 * Time the number of checkpoints last changed (in milliseconds).
+	 */
+	private long checkpointTime = System.currentTimeMillis();
+
+	/**
+	 * Name of the registered MBean, {@code null} if not registered.
+	 */
+	private ObjectName objectName;
+
+	/**
+	 * Creates the metrics of a map.
+	 * <p>
+	 * @param mapName Name of the map.
+	 * @param environment Environment of the map, {@code null} to leave out
+	 * the environment statistics.
+	 */
+	public BerkeleyStoreMapMetrics(final String mapName, final Environment environment)
+	{
+		this.mapName = mapName;
+		this.environment = environment;
+		for (Operation operation : Operation.values())
+		{
+			latencies.put(operation, new BerkeleyHistogram());
+			errors.put(operation, new LongAdder());
+		}
+	}
+
+	/**
+	 * Returns the start time of an operation, to be passed to
+	 * {@link #record(Operation, long)}.
+	 * <p>
+	 * @return Start time in nanoseconds.
+	 */
+	public static long start()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the latency of an operation.
+	 * <p>
+	 * @param operation Operation.
+	 * @param start Start time returned by {@link #start()}.
+	 */
+	public final void record(final Operation operation, final long start)
+	{
+		latencies.get(operation).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records a failed operation.
+	 * <p>
+	 * @param operation Operation.
+	 */
+	public final void error(final Operation operation)
+	{
+		errors.get(operation).increment();
+	}
+
+	/**
+	 * Records the failed entries of a batch operation.
+	 * <p>
+	 * @param operation Operation.
+	 * @param count Number of failed entries.
+	 */
+	public final void error(final Operation operation, final long count)
+	{
+		errors.get(operation).add(count);
+	}
+
+	/**
+	 * Records the size of a batch.
+	 * <p>
+	 * @param size Number of entries of the batch.
+	 */
+	public final void batch(final int size)
+	{
+		batchSizes.record(size);
+	}
+
+	/**
+	 * Records serialized bytes read.
+	 * <p>
+	 * @param bytes Number of bytes.
+	 */
+	public final void read(final long bytes)
+	{
+		bytesRead.add(bytes);
+	}
+
+	/**
+	 * Records serialized bytes written.
+	 * <p>
+	 * @param bytes Number of bytes.
+	 */
+	public final void written(final long bytes)
+	{
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * Records expired entries skipped by a load.
+	 * <p>
+	 * @param count Number of entries.
+	 */
+	public final void skipped(final long count)
+	{
+		expiredSkipped.add(count);
+	}
+
+	/**
+	 * Records expired entries deleted by the sweeper.
+	 * <p>
+	 * @param count Number of entries.
+	 */
+	public final void swept(final long count)
+	{
+		expiredSwept.add(count);
+	}
+
+	/**
+	 * Records entries moved from the hot tier to the cold tier.
+	 * <p>
+	 * @param count Number of entries.
+	 */
+	public final void demoted(final long count)
+	{
+		demoted.add(count);
+	}
+
+	/**
+	 * Records entries moved from the cold tier to the hot tier.
+	 * <p>
+	 * @param count Number of entries.
+	 */
+	public final void promoted(final long count)
+	{
+		promoted.add(count);
+	}
+
+	/**
+	 * Records the sizes of the tiers.
+	 * <p>
+	 * @param hot Number of entries of the hot tier.
+	 * @param cold Number of entries of the cold tier.
+	 */
+	public final void tiers(final long hot, final long cold)
+	{
+		hotCount = hot;
+		coldCount = cold;
+	}
+
+	/**
+	 * Returns the latency histogram (in nanoseconds) of an operation.
+	 * <p>
+	 * @param operation Operation.
+	 * @return Histogram.
+	 */
+	public final BerkeleyHistogram getLatency(final Operation operation)
+	{
+		return latencies.get(operation);
+	}
+
+	/**
+	 * Returns the number of failures of an operation.
+	 * <p>
+	 * @param operation Operation.
+	 * @return Number of failures.
+	 */
+	public final long getErrorCount(final Operation operation)
+	{
+		return errors.get(operation).sum();
+	}
+
+	/**
+	 * Returns the histogram of the sizes of the batches.
+	 * <p>
+	 * @return Histogram.
+	 */
+	public final BerkeleyHistogram getBatchSizes()
+	{
+		return batchSizes;
+	}
+
+	/**
+	 * Returns the number of serialized bytes read.
+	 * <p>
+	 * @return Number of bytes.
+	 */
+	public final long getBytesRead()
+	{
+		return bytesRead.sum();
+	}
+
+	/**
+	 * Returns the number of serialized bytes written.
+	 * <p>
+	 * @return Number of bytes.
+	 */
+	public final long getBytesWritten()
+	{
+		return bytesWritten.sum();
+	}
+
+	/**
+	 * Returns the number of expired entries skipped by the loads.
+	 * <p>
+	 * @return Number of entries.
+	 */
+	public final long getExpiredSkippedCount()
+	{
+		return expiredSkipped.sum();
+	}
+
+	/**
+	 * Returns the number of expired entries deleted by the sweeper.
+	 * <p>
+	 * @return Number of entries.
+	 */
+	public final long getExpiredSweptCount()
+	{
+		return expiredSwept.sum();
+	}
+
+	/**
+	 * Returns the number of entries moved from the hot tier to the cold tier.
+	 * <p>
+	 * @return Number of entries.
+	 */
+	public final long getDemotedCount()
+	{
+		return demoted.sum();
+	}
+
+	/**
+	 * Returns the number of entries moved from the cold tier to the hot tier.
+	 * <p>
+	 * @return Number of entries.
+	 */
+	public final long getPromotedCount()
+	{
+		return promoted.sum();
+	}
+
+	/**
+	 * Returns the number of entries of the hot tier as of the last migration
+	 * pass.
+	 * <p>
+	 * @return Number of entries.
+	 */
+	public final long getHotCount()
+	{
+		return hotCount;
+	}
+
+	/**
+	 * Returns the number of entries of the cold tier as of the last migration
+	 * pass.
+	 * <p>
+	 * @return Number of entries.
+	 */
+	public final long getColdCount()
+	{
+		return coldCount;
+	}
+
+	/**
+	 * Takes a snapshot of the metrics.
+	 * <p>
+	 * @return Metrics sorted by name.
+	 */
+	public final Map<String, Number> snapshot()
+	{
+		Map<String, Number> snapshot = new TreeMap<>();
+		for (Operation operation : Operation.values())
+		{
+			operationSnapshot(operation, snapshot);
+		}
+		counterSnapshot(snapshot);
+		if (environment != null)
+		{
+			try
+			{
+				environmentSnapshot(snapshot);
+			}
+			catch (Exception e)
+			{
+				// The environment may be closed.
+				LOG.log(Level.FINE, e.getMessage(), e);
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Adds the metrics of an attribute to a snapshot, along with the other
+	 * metrics computed with it: the ones of the same operation, the counters
+	 * or the statistics of the environment. Nothing is added if they are
+	 * already in the snapshot.
+	 * <p>
+	 * @param attribute Name of the attribute.
+	 * @param snapshot Snapshot.
+	 */
+	private void snapshot(final String attribute, final Map<String, Number> snapshot)
+	{
+		if (snapshot.containsKey(attribute))
+		{
+			return;
+		}
+
+		if (attribute.startsWith("je."))
+		{
+			if (environment != null && !snapshot.containsKey("je.fsyncs"))
+			{
+				try
+				{
+					environmentSnapshot(snapshot);
+				}
+				catch (Exception e)
+				{
+					// The environment may be closed.
+					LOG.log(Level.FINE, e.getMessage(), e);
+				}
+			}
+			return;
+		}
+
+		for (Operation operation : Operation.values())
+		{
+			if (attribute.startsWith(operation.label + "."))
+			{
+				operationSnapshot(operation, snapshot);
+				return;
+			}
+		}
+
+		if (!snapshot.containsKey("batch.count"))
+		{
+			counterSnapshot(snapshot);
+		}
+	}
+
+	/**
+	 * Adds the latencies and the errors of an operation to a snapshot.
+	 * <p>
+	 * @param operation Operation.
+	 * @param snapshot Snapshot.
+	 */
+	private void operationSnapshot(final Operation operation, final Map<String, Number> snapshot)
+	{
+		BerkeleyHistogram histogram = latencies.get(operation);
+		snapshot.put(operation.label + ".count", Long.valueOf(histogram.getCount()));
+		snapshot.put(operation.label + ".errors", Long.valueOf(errors.get(operation).sum()));
+		snapshot.put(operation.label + ".mean", Double.valueOf(histogram.getMean() / 1000));
+		snapshot.put(operation.label + ".p50", Double.valueOf(histogram.getPercentile(50) / 1000d));
+		snapshot.put(operation.label + ".p99", Double.valueOf(histogram.getPercentile(99) / 1000d));
+		snapshot.put(operation.label + ".p999", Double.valueOf(histogram.getPercentile(99.9) / 1000d));
+		snapshot.put(operation.label + ".max", Double.valueOf(histogram.getMax() / 1000d));
+	}
+
+	/**
+	 * Adds the batch sizes and the counters to a snapshot.
+	 * <p>
+	 * @param snapshot Snapshot.
+	 */
+	private void counterSnapshot(final Map<String, Number> snapshot)
+	{
+		snapshot.put("batch.count", Long.valueOf(batchSizes.getCount()));
+		snapshot.put("batch.mean", Double.valueOf(batchSizes.getMean()));
+		snapshot.put("batch.p99", Long.valueOf(batchSizes.getPercentile(99)));
+		snapshot.put("batch.max", Long.valueOf(batchSizes.getMax()));
+		snapshot.put("bytes.read", Long.valueOf(bytesRead.sum()));
+		snapshot.put("bytes.written", Long.valueOf(bytesWritten.sum()));
+		snapshot.put("expired.skipped", Long.valueOf(expiredSkipped.sum()));
+		snapshot.put("expired.swept", Long.valueOf(expiredSwept.sum()));
+		snapshot.put("tier.hot.count", Long.valueOf(hotCount));
+		snapshot.put("tier.cold.count", Long.valueOf(coldCount));
+		snapshot.put("tier.demoted", Long.valueOf(demoted.sum()));
+		snapshot.put("tier.promoted", Long.valueOf(promoted.sum()));
+	}
+
+	/**
+	 * Adds the statistics of the environment to a snapshot.
+	 * <p>
+	 * @param snapshot Snapshot.
+	 */
+	private void environmentSnapshot(final Map<String, Number> snapshot)
+	{
+		StatsConfig config = new StatsConfig();
+		config.setFast(true);
+		EnvironmentStats stats = environment.getStats(config);
+
+		long fetches = stats.getNLNsFetch() + stats.getNBINsFetch() + stats.getNUpperINsFetch();
+		long misses = stats.getNLNsFetchMiss() + stats.getNBINsFetchMiss() + stats.getNUpperINsFetchMiss();
+		snapshot.put("je.cacheHitRatio", Double.valueOf(fetches == 0 ? 1 : 1 - (double) misses / fetches));
+		snapshot.put("je.cacheBytes", Long.valueOf(stats.getCacheTotalBytes()));
+		snapshot.put("je.cacheMisses", Long.valueOf(stats.getNCacheMiss()));
+		snapshot.put("je.cleanerBacklog", Long.valueOf(stats.getCleanerBacklog()));
+		snapshot.put("je.cleanerRuns", Long.valueOf(stats.getNCleanerRuns()));
+		snapshot.put("je.fileDeletionBacklog", Long.valueOf(stats.getFileDeletionBacklog()));
+		snapshot.put("je.fsyncs", Long.valueOf(stats.getNFSyncs()));
+
+		long now = System.currentTimeMillis();
+		synchronized (this)
+		{
+			if (stats.getNCheckpoints() != checkpoints)
+			{
+				checkpoints = stats.getNCheckpoints();
+				checkpointTime = now;
+			}
+			snapshot.put("je.checkpoints", Long.valueOf(checkpoints));
+			snapshot.put("je.checkpointAge", Long.valueOf(now - checkpointTime));
+		}
+	}
+
+	/**
+	 * Registers the metrics as an MBean of the platform MBean server.
+	 * <p>
+	 * An MBean registered under the same name by another map store is left
+	 * untouched, the metrics being registered under a name with an
+	 * additional {@code id} key.
+	 * <p>
+	 * @param type Type of the MBean, the simple name of the map store class,
+	 * so that the map stores of a same map do not share an MBean.
+	 * @param instance Name of the {@code Hazelcast} instance, may be
+	 * {@code null}.
+	 * @param environmentName Name of the environment of the map, {@code null}
+	 * for a map not stored in a Berkeley DB environment.
+	 */
+	final synchronized void register(final String type, final String instance, final String environmentName)
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			String base = DOMAIN + ":type=" + type + (instance == null ? "" : ",instance=" + ObjectName.quote(instance)) + (environmentName == null ? "" : ",environment=" + ObjectName.quote(environmentName)) + ",name=" + ObjectName.quote(mapName);
+			ObjectName name = new ObjectName(base);
+			for (int id = 2; server.isRegistered(name); id++)
+			{
+				name = new ObjectName(base + ",id=" + id);
+			}
+			server.registerMBean(this, name);
+			objectName = name;
+		}
+		catch (Exception e)
+		{
+			LOG.log(Level.WARNING, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Unregisters the MBean registered by
+	 * {@link #register(String, String, String)}.
+	 */
+	final synchronized void unregister()
+	{
+		if (objectName == null)
+		{
+			return;
+		}
+
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (Exception e)
+		{
+			LOG.log(Level.WARNING, e.getMessage(), e);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Returns the name of the registered MBean.
+	 * <p>
+	 * @return Name or {@code null} if the MBean is not registered.
+	 */
+	public final synchronized ObjectName getObjectName()
+	{
+		return objectName;
+	}
+
+	@Override
+	public Object getAttribute(final String attribute) throws AttributeNotFoundException
+	{
+		Map<String, Number> snapshot = new TreeMap<>();
+		snapshot(attribute, snapshot);
+		Number value = snapshot.get(attribute);
+		if (value == null)
+		{
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(final String[] attributes)
+	{
+		Map<String, Number> snapshot = new TreeMap<>();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+		{
+			snapshot(attribute, snapshot);
+			Number value = snapshot.get(attribute);
+			if (value != null)
+			{
+				list.add(new Attribute(attribute, value));
+			}
+		}
+
+		return list;
+	}
+
+	@Override
+	public void setAttribute(final Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Read only attribute: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(final AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(final String actionName, final Object[] params, final String[] signature)
+	{
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo()
+	{
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (Map.Entry<String, Number> entry : snapshot().entrySet())
+		{
+			attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+		}
+
+		return new MBeanInfo(getClass().getName(), "Metrics of the map store of " + mapName, attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DbInternal;
+import com.sleepycat.je.Environment;
+
+/**
+ * Synchronization scheduler shared by all the {@link BerkeleyStoreMap} of a
+ * same Berkeley DB {@link Environment}, also synchronizing the
+ * {@link BerkeleyStorage} backends of the {@link BerkeleyStorageStoreMap}.
+ * <p>
+ * Instead of one timer thread per map, a single pool of a few threads
+ * periodically scans the registered databases and only synchronizes the ones
+ * that have been written since their last synchronization and whose
+ * synchronization interval has elapsed. A database marked dirty several
+ * times between two passes is synchronized only once.
+ * <p>
+ * The due databases of a same environment are synchronized together: each
+ * deferred write database is flushed to the log without forcing it to the
+ * disk, then the log is forced to the disk once for the whole group, so that
+ * a pass costs a single fsync per environment whatever the number of dirty
+ * databases. A storage without an environment is synchronized on its own.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleySyncScheduler implements Runnable
+{
+	/**
+	 * Logger.
+	 */
+	private final ILogger LOG = Logger.getLogger(BerkeleySyncScheduler.class.getName());
+
+	/**
+	 * Period of a synchronization pass (in milliseconds).
+	 */
+	private static final long PASS_PERIOD = 1000;
+
+	/**
+	 * State of a registration neither synchronized nor unregistered.
+	 */
+	private static final int IDLE = 0;
+
+	/**
+	 * State of a registration being synchronized.
+	 */
+	private static final int SYNCING = 1;
+
+	/**
+	 * State of an unregistered registration.
+	 */
+	private static final int CLOSED = 2;
+
+	/**
+	 * The executor running the synchronization passes and the synchronizations.
+	 */
+	private final ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * Registered databases.
+	 */
+	private final Map<Object, Registration> registrations = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of registered databases currently dirty.
+	 */
+	private final AtomicInteger dirtyCount = new AtomicInteger();
+
+	/**
+	 * Number of synchronizations done (one per group of databases of a same
+	 * environment).
+	 */
+	private final AtomicLong syncCount = new AtomicLong();
+
+	/**
+	 * Number of synchronizations failed.
+	 */
+	private final AtomicLong syncFailureCount = new AtomicLong();
+
+	/**
+	 * Cumulated synchronization latency (in nanoseconds).
+	 */
+	private final AtomicLong syncTotalLatency = new AtomicLong();
+
+	/**
+	 * Maximum synchronization latency (in nanoseconds).
+	 */
+	private final AtomicLong syncMaxLatency = new AtomicLong();
+
+	/**
+	 * Last synchronization latency (in nanoseconds).
+	 */
+	private volatile long syncLastLatency;
+
+	/**
+	 * Creates a new synchronization scheduler.
+	 * <p>
+	 * @param name Name of the scheduler used to name its threads.
+	 * @param threads Number of threads used to synchronize the databases.
+	 */
+	public BerkeleySyncScheduler(final String name, final int threads)
+	{
+		this(name, threads, PASS_PERIOD);
+	}
+
+	/**
+	 * Creates a new synchronization scheduler.
+	 * <p>
+	 * @param name Name of the scheduler used to name its threads.
+	 * @param threads Number of threads used to synchronize the databases.
+	 * @param period Period of the synchronization passes (in milliseconds).
+	 */
+	public BerkeleySyncScheduler(final String name, final int threads, final long period)
+	{
+		final AtomicInteger counter = new AtomicInteger();
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, name + "-sync-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Registers a database to be periodically synchronized.
+	 * <p>
+	 * @param database Database to synchronize.
+	 * @param interval Minimum interval between two synchronizations (in
+	 * seconds).
+	 */
+	public final void register(final Database database, final int interval)
+	{
+		registrations.put(database, new Registration(database.getEnvironment(), flush(database), TimeUnit.SECONDS.toNanos(interval)));
+	}
+
+	/**
+	 * Registers a storage backend to be periodically synchronized.
+	 * <p>
+	 * @param storage Storage to synchronize.
+	 * @param interval Minimum interval between two synchronizations (in
+	 * seconds).
+	 */
+	public final void register(final BerkeleyStorage storage, final int interval)
+	{
+		if (storage instanceof BerkeleyDatabaseStorage)
+		{
+			Database database = ((BerkeleyDatabaseStorage) storage).getDatabase();
+			registrations.put(storage, new Registration(database.getEnvironment(), flush(database), TimeUnit.SECONDS.toNanos(interval)));
+		}
+		else
+		{
+			registrations.put(storage, new Registration(null, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					storage.sync();
+				}
+			}, TimeUnit.SECONDS.toNanos(interval)));
+		}
+	}
+
+	/**
+	 * Returns the flush of a deferred write database: its entries held in
+	 * the cache are written to the log, without forcing the log to the disk.
+	 * <p>
+	 * @param database Database to flush.
+	 * @return Flush of the database.
+	 */
+	private static Runnable flush(final Database database)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Database.sync() would force the log to the disk for each database.
+				DbInternal.getDatabaseImpl(database).sync(false);
+			}
+		};
+	}
+
+	/**
+	 * Unregisters a database. The database is not synchronized, the caller
+	 * is in charge of its final synchronization. If the database is being
+	 * synchronized, waits for the end of its synchronization.
+	 * <p>
+	 * @param database Database to unregister.
+	 */
+	public final void unregister(final Database database)
+	{
+		unregister(registrations.remove(database));
+	}
+
+	/**
+	 * Unregisters a storage backend. The storage is not synchronized, the
+	 * caller is in charge of its final synchronization. If the storage is
+	 * being synchronized, waits for the end of its synchronization.
+	 * <p>
+	 * @param storage Storage to unregister.
+	 */
+	public final void unregister(final BerkeleyStorage storage)
+	{
+		unregister(registrations.remove(storage));
+	}
+
+	/**
+	 * Closes a removed registration, waiting for the end of its
+	 * synchronization if any. Once closed, a registration can no more be
+	 * claimed by a synchronization pass.
+	 * <p>
+	 * @param registration Registration, may be {@code null}.
+	 */
+	private void unregister(final Registration registration)
+	{
+		if (registration != null)
+		{
+			while (!registration.state.compareAndSet(IDLE, CLOSED))
+			{
+				try
+				{
+					Thread.sleep(1);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (registration.dirty.getAndSet(false))
+			{
+				dirtyCount.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Marks a database as written so that it is synchronized by the next due
+	 * synchronization pass.
+	 * <p>
+	 * @param database Database written.
+	 */
+	public final void markDirty(final Database database)
+	{
+		markDirty(registrations.get(database));
+	}
+
+	/**
+	 * Marks a storage backend as written so that it is synchronized by the
+	 * next due synchronization pass.
+	 * <p>
+	 * @param storage Storage written.
+	 */
+	public final void markDirty(final BerkeleyStorage storage)
+	{
+		markDirty(registrations.get(storage));
+	}
+
+	/**
+	 * Marks a registration as written.
+	 * <p>
+	 * @param registration Registration, may be {@code null}.
+	 */
+	private void markDirty(final Registration registration)
+	{
+		if (registration != null && registration.state.get() != CLOSED && !registration.dirty.get() && !registration.dirty.getAndSet(true))
+		{
+			dirtyCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Shutdowns the scheduler. Databases still registered are not
+	 * synchronized.
+	 */
+	public final void shutdown()
+	{
+		executor.shutdown();
+		registrations.clear();
+		dirtyCount.set(0);
+	}
+
+	/**
+	 * Synchronization pass: claims every dirty database whose interval has
+	 * elapsed and submits one synchronization per environment.
+	 */
+	@Override
+	public void run()
+	{
+		long now = System.nanoTime();
+		Map<Object, List<Registration>> groups = new HashMap<>();
+		for (Registration registration : registrations.values())
+		{
+			if (registration.dirty.get() && now - registration.lastSync >= registration.interval && registration.state.compareAndSet(IDLE, SYNCING))
+			{
+				Object key = registration.environment != null ? registration.environment : registration;
+				List<Registration> group = groups.get(key);
+				if (group == null)
+				{
+					group = new ArrayList<>();
+					groups.put(key, group);
+				}
+				group.add(registration);
+			}
+		}
+
+		for (final List<Registration> group : groups.values())
+		{
+			try
+			{
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						sync(group);
+					}
+				});
+			}
+			catch (Exception e)
+			{
+				for (Registration registration : group)
+				{
+					registration.state.set(IDLE);
+				}
+				LOG.log(Level.WARNING, e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Synchronizes a group of claimed registrations of a same environment:
+	 * flushes each database then forces the log of the environment to the
+	 * disk once.
+	 * <p>
+	 * @param group Registrations to synchronize.
+	 */
+	private void sync(final List<Registration> group)
+	{
+		Environment environment = group.get(0).environment;
+		List<Registration> flushed = new ArrayList<>(group.size());
+		try
+		{
+			long start = System.nanoTime();
+			for (Registration registration : group)
+			{
+				// Clear the flag before the flush so that writes done meanwhile are synchronized by a next pass.
+				if (registration.dirty.getAndSet(false))
+				{
+					dirtyCount.decrementAndGet();
+				}
+				try
+				{
+					registration.sync.run();
+					flushed.add(registration);
+				}
+				catch (Throwable ex)
+				{
+					syncFailureCount.incrementAndGet();
+					markDirty(registration);
+					LOG.log(Level.SEVERE, ex.getMessage(), ex);
+				}
+			}
+
+			if (!flushed.isEmpty())
+			{
+				if (environment != null)
+				{
+					environment.flushLog(true);
+				}
+				long end = System.nanoTime();
+				long latency = end - start;
+
+				for (Registration registration : flushed)
+				{
+					registration.lastSync = end;
+				}
+				syncCount.incrementAndGet();
+				syncTotalLatency.addAndGet(latency);
+				syncLastLatency = latency;
+				long max;
+				while (latency > (max = syncMaxLatency.get()) && !syncMaxLatency.compareAndSet(max, latency))
+				{
+					// Retry until the maximum is updated.
+				}
+			}
+		}
+		catch (Throwable ex)
+		{
+			syncFailureCount.incrementAndGet();
+			for (Registration registration : flushed)
+			{
+				markDirty(registration);
+			}
+			LOG.log(Level.SEVERE, ex.getMessage(), ex);
+		}
+		finally
+		{
+			for (Registration registration : group)
+			{
+				registration.state.set(IDLE);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of registered databases.
+	 * <p>
+	 * @return Number of registered databases.
+	 */
+	public final int getDatabaseCount()
+	{
+		return registrations.size();
+	}
+
+	/**
+	 * Returns the number of databases written and waiting for their
+	 * synchronization.
+	 * <p>
+	 * @return Number of dirty databases.
+	 */
+	public final int getDirtyCount()
+	{
+		return dirtyCount.get();
+	}
+
+	/**
+	 * Returns the number of synchronizations done, a synchronization covering
+	 * all the due databases of an environment.
+	 * <p>
+	 * @return Number of synchronizations.
+	 */
+	public final long getSyncCount()
+	{
+		return syncCount.get();
+	}
+
+	/**
+	 * Returns the number of synchronizations failed.
+	 * <p>
+	 * @return Number of failed synchronizations.
+	 */
+	public final long getSyncFailureCount()
+	{
+		return syncFailureCount.get();
+	}
+
+	/**
+	 * Returns the latency of the last synchronization.
+	 * <p>
+	 * @return Latency in milliseconds.
+	 */
+	public final double getLastSyncLatency()
+	{
+		return syncLastLatency / 1000000d;
+	}
+
+	/**
+	 * Returns the maximum latency of a synchronization.
+	 * <p>
+	 * @return Latency in milliseconds.
+	 */
+	public final double getMaxSyncLatency()
+	{
+		return syncMaxLatency.get() / 1000000d;
+	}
+
+	/**
+	 * Returns the average latency of a synchronization.
+	 * <p>
+	 * @return Latency in milliseconds.
+	 */
+	public final double getAverageSyncLatency()
+	{
+		long count = syncCount.get();
+
+		return count == 0 ? 0 : syncTotalLatency.get() / 1000000d / count;
+	}
+
+	/**
+	 * Registration of a database or a storage to synchronize.
+	 */
+	private static final class Registration
+	{
+		/**
+		 * Environment of the database, {@code null} for a storage synchronized
+		 * on its own.
+		 */
+		private final Environment environment;
+
+		/**
+		 * Flush of the database or synchronization of the storage.
+		 */
+		private final Runnable sync;
+
+		/**
+		 * Minimum interval between two synchronizations (in nanoseconds).
+		 */
+		private final long interval;
+
+		/**
+		 * Has the database been written since its last synchronization?
+		 */
+		private final AtomicBoolean dirty = new AtomicBoolean();
+
+		/**
+		 * State of the registration: {@link #IDLE}, {@link #SYNCING} or
+		 * {@link #CLOSED}.
+		 */
+		private final AtomicInteger state = new AtomicInteger(IDLE);
+
+		/**
+		 * Time of the last synchronization (in nanoseconds).
+		 */
+		private volatile long lastSync = System.nanoTime();
+
+		/**
+		 * Creates a new registration.
+		 * <p>
+		 * @param environment Environment of the database, {@code null} for a
+		 * storage synchronized on its own.
+		 * @param sync Flush of the database or synchronization of the storage.
+		 * @param interval Minimum interval between two synchronizations (in
+		 * nanoseconds).
+		 */
+		Registration(final Environment environment, final Runnable sync, final long interval)
+		{
+			this.environment = environment;
+			this.sync = sync;
+			this.interval = interval;
+		}
+	}
+}
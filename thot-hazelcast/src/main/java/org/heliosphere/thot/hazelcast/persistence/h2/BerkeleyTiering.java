@@ -0,0 +1,732 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esotericsoftware.kryo.io.Output;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * Hot/cold tiering of the entries of a {@link BerkeleyStoreMap}.
+ * <p>
+ * The database of the map holds the hot entries while the entries that are
+ * rarely accessed are moved to a cold database. Berkeley DB sizes its cache
+ * per environment, hence the cold database is opened in an environment of
+ * its own, with a private cache limited to {@code coldcachesize} bytes, so
+ * that the cold entries neither evict the hot ones from the cache of the map
+ * nor add to the cleaner work of its log. The cold values are compressed
+ * with their own settings, usually stronger than the ones of the hot values.
+ * <p>
+ * The accesses (loads and writes) are counted by a
+ * {@link BerkeleyFrequencySketch}. Each migration pass walks the next keys
+ * of the hot database and demotes the ones whose estimated frequency is
+ * below {@code tiercoldthreshold}, then promotes back the cold entries read
+ * at least {@code tierhotthreshold} times since they were demoted. An entry
+ * is moved in two steps: it is copied and the target database is
+ * synchronized, then it is deleted from the source database, so that a
+ * crash never loses it. After a crash, an entry may be held by both tiers;
+ * the hot entry is then the newer one and overwrites the cold one when it is
+ * demoted. Writes and deletes go to the hot database and
+ * delete any cold copy, under a lock striped by key also held by the
+ * migration of the key, so that an entry is held by a single tier once its
+ * move is complete. The keys of the cold database are kept in a
+ * {@link BerkeleyKeyFilter}, filled when the cold database is opened and
+ * when an entry is demoted, so that the writes, deletes and loads of the
+ * keys never demoted do not look up the cold database. The filter is
+ * cleared by a pass finding the cold database empty.
+ * <p>
+ * The map store properties are:
+ * <ul>
+ * <li>{@code tiering}: {@code true} to enable the tiering ({@code false} by
+ * default),</li>
+ * <li>{@code tierinterval}: interval between two migration passes in
+ * seconds, {@code 0} to only migrate on demand ({@code 60} by default),</li>
+ * <li>{@code tiermigrationbatch}: maximum number of hot keys examined and of
+ * cold entries promoted per pass, which bounds the migration rate
+ * ({@code 10000} by default),</li>
+ * <li>{@code tiercoldthreshold}: estimated frequency below which a hot entry
+ * is demoted ({@code 1} by default),</li>
+ * <li>{@code tierhotthreshold}: estimated frequency from which a cold entry
+ * read is promoted ({@code 2} by default),</li>
+ * <li>{@code tiersketchsize}: number of counters of the frequency sketch
+ * ({@code 1048576} by default),</li>
+ * <li>{@code tierfiltersize}: number of bits of the filter of the cold keys
+ * ({@code 8388608} by default),</li>
+ * <li>{@code coldenvironment}: name of the environment of the cold database
+ * ({@code <environment>-cold} by default),</li>
+ * <li>{@code colddirectory}: directory of the cold environment
+ * ({@code <directory>-cold} by default),</li>
+ * <li>{@code coldcachesize}: cache size in bytes of the cold environment
+ * ({@code 4194304} by default),</li>
+ * <li>{@code coldcompression}, {@code coldcompressionthreshold},
+ * {@code coldcompressionlevel} and {@code coldcompressiondictionary}:
+ * compression of the cold values, see {@link BerkeleyCompressor}
+ * ({@code deflate}, {@code 128}, {@code 9} and none by default).</li>
+ * </ul>
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+final class BerkeleyTiering
+{
+	/**
+	 * Name of the cold database, appended to the name of the map.
+	 */
+	private static final String SUFFIX = "#cold";
+
+	/**
+	 * Number of locks striping the keys.
+	 */
+	private static final int STRIPES = 64;
+
+	/**
+	 * Properties of the cold environment.
+	 */
+	private final Properties coldProperties;
+
+	/**
+	 * Compressor of the cold values, may be {@code null}.
+	 */
+	private final BerkeleyCompressor compressor;
+
+	/**
+	 * Access frequencies of the keys.
+	 */
+	private final BerkeleyFrequencySketch sketch;
+
+	/**
+	 * Keys possibly held by the cold database.
+	 */
+	private final BerkeleyKeyFilter coldKeys;
+
+	/**
+	 * Frequency below which a hot entry is demoted.
+	 */
+	private final int coldThreshold;
+
+	/**
+	 * Frequency from which a cold entry is promoted.
+	 */
+	private final int hotThreshold;
+
+	/**
+	 * Maximum number of keys examined or promoted per pass.
+	 */
+	private final int batch;
+
+	/**
+	 * Locks striping the keys.
+	 */
+	private final Object[] stripes = new Object[STRIPES];
+
+	/**
+	 * Binary keys of the cold entries to promote.
+	 */
+	private final ConcurrentHashMap<ByteBuffer, Boolean> promotions = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of open key sources suspending the migrations.
+	 */
+	private final AtomicInteger suspended = new AtomicInteger();
+
+	/**
+	 * Number of entries of the cold database.
+	 */
+	private final AtomicLong coldCount = new AtomicLong();
+
+	/**
+	 * Number of entries of the hot database, counted by the passes.
+	 */
+	private volatile long hotCount;
+
+	/**
+	 * Hot keys seen since the passes started from the first key.
+	 */
+	private long seen;
+
+	/**
+	 * Last hot key examined, {@code null} to start from the first key.
+	 */
+	private byte[] position;
+
+	/**
+	 * Environment of the cold database.
+	 */
+	private BerkeleyEnvironment environment;
+
+	/**
+	 * Cold database.
+	 */
+	private Database database;
+
+	/**
+	 * Synchronization interval of the cold database in seconds.
+	 */
+	private int interval;
+
+	/**
+	 * Metrics of the map.
+	 */
+	private BerkeleyStoreMapMetrics metrics;
+
+	/**
+	 * Creates the tiering configured by the map store properties.
+	 * <p>
+	 * @param properties Properties of the map store.
+	 * @throws IOException Thrown if the dictionary of the cold values cannot
+	 * be read.
+	 */
+	BerkeleyTiering(final Properties properties) throws IOException
+	{
+		coldThreshold = Integer.parseInt(properties.getProperty("tiercoldthreshold", "1"));
+		hotThreshold = Integer.parseInt(properties.getProperty("tierhotthreshold", "2"));
+		if (coldThreshold < 0 || hotThreshold <= coldThreshold)
+		{
+			throw new IllegalArgumentException("Invalid tier thresholds: " + coldThreshold + "/" + hotThreshold);
+		}
+		batch = Integer.parseInt(properties.getProperty("tiermigrationbatch", "10000"));
+		if (batch <= 0)
+		{
+			throw new IllegalArgumentException("Invalid tiermigrationbatch: " + batch);
+		}
+		sketch = new BerkeleyFrequencySketch(Integer.parseInt(properties.getProperty("tiersketchsize", "1048576")));
+		coldKeys = new BerkeleyKeyFilter(Integer.parseInt(properties.getProperty("tierfiltersize", "8388608")));
+		for (int i = 0; i < STRIPES; i++)
+		{
+			stripes[i] = new Object();
+		}
+
+		Properties compression = new Properties();
+		compression.setProperty("compression", properties.getProperty("coldcompression", "deflate"));
+		compression.setProperty("compressionthreshold", properties.getProperty("coldcompressionthreshold", "128"));
+		compression.setProperty("compressionlevel", properties.getProperty("coldcompressionlevel", "9"));
+		if (properties.getProperty("coldcompressiondictionary") != null)
+		{
+			compression.setProperty("compressiondictionary", properties.getProperty("coldcompressiondictionary"));
+		}
+		compressor = BerkeleyCompressor.fromProperties(compression);
+
+		coldProperties = new Properties();
+		coldProperties.putAll(properties);
+		coldProperties.setProperty("environment", properties.getProperty("coldenvironment", properties.getProperty("environment", BerkeleyEnvironment.DEFAULT) + "-cold"));
+		coldProperties.remove("directory");
+		if (properties.getProperty("colddirectory") != null)
+		{
+			coldProperties.setProperty("directory", properties.getProperty("colddirectory"));
+		}
+		else if (properties.getProperty("directory") != null)
+		{
+			coldProperties.setProperty("directory", properties.getProperty("directory") + "-cold");
+		}
+		coldProperties.setProperty("sharedcache", "false");
+		coldProperties.remove("cachepercent");
+		coldProperties.setProperty("cachesize", properties.getProperty("coldcachesize", "4194304"));
+	}
+
+	/**
+	 * Opens the cold database.
+	 * <p>
+	 * @param mapName Name of the map.
+	 * @param interval Synchronization interval in seconds, {@code 0} to
+	 * synchronize after each write.
+	 * @param metrics Metrics of the map.
+	 * @param hot Number of entries of the hot database.
+	 */
+	final void open(final String mapName, final int interval, final BerkeleyStoreMapMetrics metrics, final long hot)
+	{
+		this.interval = interval;
+		this.metrics = metrics;
+
+		environment = BerkeleyEnvironment.acquire(coldProperties);
+		DatabaseConfig config = new DatabaseConfig();
+		config.setAllowCreate(true);
+		config.setDeferredWrite(true);
+		config.setSortedDuplicates(false);
+		config.setTransactional(false);
+		database = environment.openDatabase(mapName + SUFFIX, config);
+		if (interval > 0)
+		{
+			environment.getSyncScheduler().register(database, interval);
+		}
+
+		DatabaseEntry foundKey = new DatabaseEntry();
+		DatabaseEntry foundData = new DatabaseEntry();
+		foundData.setPartial(0, 0, true);
+		Cursor cursor = database.openCursor(null, null);
+		try
+		{
+			while (cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+			{
+				coldKeys.add(foundKey.getData(), foundKey.getOffset(), foundKey.getSize());
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		hotCount = hot;
+		coldCount.set(database.count());
+		metrics.tiers(hotCount, coldCount.get());
+	}
+
+	/**
+	 * Synchronizes and closes the cold database.
+	 */
+	final void close()
+	{
+		try
+		{
+			database.sync();
+		}
+		finally
+		{
+			environment.closeDatabase(database);
+			environment.release();
+			database = null;
+			environment = null;
+		}
+	}
+
+	/**
+	 * Returns the lock of a key.
+	 * <p>
+	 * @param key Binary key.
+	 * @return Lock.
+	 */
+	private Object stripe(final DatabaseEntry key)
+	{
+		int hash = 1;
+		for (int i = key.getOffset(); i < key.getOffset() + key.getSize(); i++)
+		{
+			hash = 31 * hash + key.getData()[i];
+		}
+
+		return stripes[(hash ^ hash >>> 16) & STRIPES - 1];
+	}
+
+	/**
+	 * Records an access to a key.
+	 * <p>
+	 * @param key Binary key.
+	 */
+	final void access(final DatabaseEntry key)
+	{
+		sketch.increment(key.getData(), key.getOffset(), key.getSize());
+	}
+
+	/**
+	 * Writes an entry to the hot database and deletes its cold copy.
+	 * <p>
+	 * @param hot Hot database.
+	 * @param key Binary key.
+	 * @param value Stored value.
+	 */
+	final void put(final Database hot, final DatabaseEntry key, final DatabaseEntry value)
+	{
+		access(key);
+		synchronized (stripe(key))
+		{
+			hot.put(null, key, value);
+			deleteCold(key);
+		}
+	}
+
+	/**
+	 * Deletes an entry from both databases.
+	 * <p>
+	 * @param hot Hot database.
+	 * @param key Binary key.
+	 */
+	final void delete(final Database hot, final DatabaseEntry key)
+	{
+		synchronized (stripe(key))
+		{
+			hot.delete(null, key);
+			deleteCold(key);
+		}
+	}
+
+	/**
+	 * Deletes the cold copy of an entry, if any.
+	 * <p>
+	 * @param key Binary key.
+	 * @return {@code true} if the cold database held the entry.
+	 */
+	private boolean deleteCold(final DatabaseEntry key)
+	{
+		if (coldKeys.mightContain(key.getData(), key.getOffset(), key.getSize()) && database.delete(null, key) == OperationStatus.SUCCESS)
+		{
+			coldCount.decrementAndGet();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reads a cold entry, queuing its promotion when it is read often enough.
+	 * <p>
+	 * @param key Binary key.
+	 * @param value Entry receiving the cold stored value.
+	 * @return {@code true} if the entry is found.
+	 */
+	final boolean get(final DatabaseEntry key, final DatabaseEntry value)
+	{
+		if (!coldKeys.mightContain(key.getData(), key.getOffset(), key.getSize()) || database.get(null, key, value, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+		{
+			return false;
+		}
+
+		if (sketch.estimate(key.getData(), key.getOffset(), key.getSize()) >= hotThreshold && promotions.size() < batch)
+		{
+			promotions.put(ByteBuffer.wrap(Arrays.copyOfRange(key.getData(), key.getOffset(), key.getOffset() + key.getSize())), Boolean.TRUE);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Deserializes a cold stored value.
+	 * <p>
+	 * @param value Entry containing the cold stored value.
+	 * @return Value.
+	 */
+	final Object read(final DatabaseEntry value)
+	{
+		return BerkeleyEntryBuffer.read(compressor, value);
+	}
+
+	/**
+	 * Converts a stored value from the compression of a tier to another one.
+	 * <p>
+	 * @param value Entry containing the stored value.
+	 * @param from Compressor of the value, may be {@code null}.
+	 * @param to Compressor of the converted value, may be {@code null}.
+	 * @return Entry containing the converted value.
+	 */
+	private static DatabaseEntry convert(final DatabaseEntry value, final BerkeleyCompressor from, final BerkeleyCompressor to)
+	{
+		if (value.getSize() == 0)
+		{
+			return new DatabaseEntry(new byte[0]);
+		}
+
+		byte[] serialized = from == null ? Arrays.copyOfRange(value.getData(), value.getOffset(), value.getOffset() + value.getSize()) : from.decompress(value.getData(), value.getOffset(), value.getSize());
+		if (to == null)
+		{
+			return new DatabaseEntry(serialized);
+		}
+		Output output = to.compress(serialized, serialized.length);
+
+		return new DatabaseEntry(output.toBytes());
+	}
+
+	/**
+	 * Suspends the migrations while the keys are read, so that no key moves
+	 * behind the cursors of the key sources.
+	 */
+	final void suspend()
+	{
+		suspended.incrementAndGet();
+	}
+
+	/**
+	 * Resumes the migrations suspended by {@link #suspend()}.
+	 */
+	final void resume()
+	{
+		suspended.decrementAndGet();
+	}
+
+	/**
+	 * Runs a migration pass: promotes the queued cold entries, then demotes
+	 * the cold entries among the next hot keys.
+	 * <p>
+	 * @param hot Hot database.
+	 * @param hotCompressor Compressor of the hot values, may be {@code null}.
+	 * @param cache Value cache of the map, may be {@code null}.
+	 * @return Number of entries moved, {@code -1} if the migrations are
+	 * suspended.
+	 */
+	final synchronized int migrate(final Database hot, final BerkeleyCompressor hotCompressor, final BerkeleyValueCache cache)
+	{
+		if (suspended.get() > 0)
+		{
+			return -1;
+		}
+
+		// Only the passes demote, so an empty cold database stays empty until the next demotion.
+		if (coldCount.get() == 0)
+		{
+			coldKeys.clear();
+		}
+
+		int promoted = promote(hot, hotCompressor);
+		int demoted = demote(hot, hotCompressor, cache);
+		metrics.tiers(hotCount, coldCount.get());
+
+		return promoted + demoted;
+	}
+
+	/**
+	 * Promotes the queued cold entries.
+	 * <p>
+	 * @param hot Hot database.
+	 * @param hotCompressor Compressor of the hot values, may be {@code null}.
+	 * @return Number of entries promoted.
+	 */
+	private int promote(final Database hot, final BerkeleyCompressor hotCompressor)
+	{
+		List<DatabaseEntry> copied = new ArrayList<>();
+		DatabaseEntry value = new DatabaseEntry();
+		Iterator<ByteBuffer> iterator = promotions.keySet().iterator();
+		while (iterator.hasNext())
+		{
+			DatabaseEntry key = new DatabaseEntry(iterator.next().array());
+			iterator.remove();
+			synchronized (stripe(key))
+			{
+				if (database.get(null, key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+				{
+					// A hot entry left by a crash before the cold copy was deleted is the newer one.
+					hot.putNoOverwrite(null, key, convert(value, compressor, hotCompressor));
+					copied.add(key);
+				}
+			}
+		}
+		if (copied.isEmpty())
+		{
+			return 0;
+		}
+
+		// The copies are durable before the cold entries are deleted.
+		hot.sync();
+		int count = 0;
+		for (DatabaseEntry key : copied)
+		{
+			synchronized (stripe(key))
+			{
+				// A write or a delete since the copy already deleted the cold entry.
+				if (deleteCold(key))
+				{
+					count++;
+				}
+			}
+		}
+		hotCount += count;
+		metrics.promoted(count);
+		written();
+
+		return count;
+	}
+
+	/**
+	 * Demotes the cold entries among the next hot keys.
+	 * <p>
+	 * @param hot Hot database.
+	 * @param hotCompressor Compressor of the hot values, may be {@code null}.
+	 * @param cache Value cache of the map, may be {@code null}.
+	 * @return Number of entries demoted.
+	 */
+	private int demote(final Database hot, final BerkeleyCompressor hotCompressor, final BerkeleyValueCache cache)
+	{
+		List<byte[]> candidates = new ArrayList<>();
+		Cursor cursor = hot.openCursor(null, null);
+		try
+		{
+			DatabaseEntry foundKey = new DatabaseEntry();
+			DatabaseEntry foundData = new DatabaseEntry();
+			foundData.setPartial(0, 0, true);
+
+			OperationStatus status;
+			if (position == null)
+			{
+				status = cursor.getFirst(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+			}
+			else
+			{
+				foundKey.setData(position);
+				status = cursor.getSearchKeyRange(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+				if (status == OperationStatus.SUCCESS && Arrays.equals(position, Arrays.copyOfRange(foundKey.getData(), foundKey.getOffset(), foundKey.getOffset() + foundKey.getSize())))
+				{
+					status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+				}
+			}
+
+			int examined = 0;
+			while (status == OperationStatus.SUCCESS)
+			{
+				seen++;
+				if (sketch.estimate(foundKey.getData(), foundKey.getOffset(), foundKey.getSize()) < coldThreshold)
+				{
+					candidates.add(Arrays.copyOfRange(foundKey.getData(), foundKey.getOffset(), foundKey.getOffset() + foundKey.getSize()));
+				}
+				if (++examined == batch)
+				{
+					break;
+				}
+				status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+			}
+
+			if (status == OperationStatus.SUCCESS)
+			{
+				position = Arrays.copyOfRange(foundKey.getData(), foundKey.getOffset(), foundKey.getOffset() + foundKey.getSize());
+			}
+			else
+			{
+				// The end of the hot database is reached, the next pass starts over.
+				hotCount = seen;
+				seen = 0;
+				position = null;
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		List<DatabaseEntry> copied = new ArrayList<>(candidates.size());
+		DatabaseEntry value = new DatabaseEntry();
+		for (byte[] candidate : candidates)
+		{
+			DatabaseEntry key = new DatabaseEntry(candidate);
+			synchronized (stripe(key))
+			{
+				// Accessed since the keys were examined.
+				if (sketch.estimate(candidate, 0, candidate.length) >= coldThreshold)
+				{
+					continue;
+				}
+				if (hot.get(null, key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+				{
+					// The hot entry is the newer one: a cold copy left by a crash before its deletion was synchronized is overwritten.
+					DatabaseEntry converted = convert(value, hotCompressor, compressor);
+					coldKeys.add(candidate, 0, candidate.length);
+					if (database.putNoOverwrite(null, key, converted) == OperationStatus.SUCCESS)
+					{
+						coldCount.incrementAndGet();
+					}
+					else
+					{
+						database.put(null, key, converted);
+					}
+					copied.add(key);
+				}
+			}
+		}
+		if (copied.isEmpty())
+		{
+			return 0;
+		}
+
+		// The copies are durable before the hot entries are deleted.
+		database.sync();
+		int count = 0;
+		DatabaseEntry present = new DatabaseEntry();
+		present.setPartial(0, 0, true);
+		for (DatabaseEntry key : copied)
+		{
+			synchronized (stripe(key))
+			{
+				// A write or a delete since the copy deleted the cold entry, the hot one is kept.
+				if (database.get(null, key, present, LockMode.DEFAULT) == OperationStatus.SUCCESS && hot.delete(null, key) == OperationStatus.SUCCESS)
+				{
+					if (cache != null)
+					{
+						cache.invalidate(key.getData());
+					}
+					count++;
+				}
+			}
+		}
+		hotCount -= count;
+		metrics.demoted(count);
+
+		return count;
+	}
+
+	/**
+	 * Synchronizes the cold database right away if the synchronization
+	 * interval is zero or marks it dirty for the synchronization scheduler
+	 * otherwise.
+	 */
+	final void written()
+	{
+		if (interval == 0)
+		{
+			database.sync();
+		}
+		else
+		{
+			environment.getSyncScheduler().markDirty(database);
+		}
+	}
+
+	/**
+	 * Returns the cold database.
+	 * <p>
+	 * @return Database.
+	 */
+	final Database getDatabase()
+	{
+		return database;
+	}
+
+	/**
+	 * Returns the environment of the cold database.
+	 * <p>
+	 * @return Environment.
+	 */
+	final BerkeleyEnvironment getEnvironment()
+	{
+		return environment;
+	}
+
+	/**
+	 * Returns the number of entries of the hot database, as counted by the
+	 * last complete walk of the migration passes and maintained by the
+	 * migrations since.
+	 * <p>
+	 * @return Number of entries.
+	 */
+	final long getHotCount()
+	{
+		return hotCount;
+	}
+
+	/**
+	 * Returns the number of entries of the cold database.
+	 * <p>
+	 * @return Number of entries.
+	 */
+	final long getColdCount()
+	{
+		return coldCount.get();
+	}
+}
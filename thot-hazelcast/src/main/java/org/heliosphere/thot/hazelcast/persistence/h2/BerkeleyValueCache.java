@@ -0,0 +1,656 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Off-heap cache of the serialized values of a {@link BerkeleyStoreMap},
+ * keyed by their binary key.
+ * <p>
+ * Values are copied into direct memory split into fixed size blocks, only
+ * the index (binary keys and block numbers) lives on the Java heap. The cache
+ * is bounded in bytes: when a value does not fit, the least recently used
+ * values are evicted, provided the new value is admitted by a TinyLFU policy,
+ * i.e. its estimated access frequency is higher than the one of every value
+ * it would evict. Frequencies are estimated by a
+ * {@link BerkeleyFrequencySketch} periodically halved so that past popularity
+ * fades away.
+ * <p>
+ * The cache is split into up to {@value #SEGMENTS} segments of at least
+ * {@value #SEGMENT_BLOCKS} blocks, a key always going to the same segment.
+ * Each segment has its own share of the blocks, its own recency order and
+ * its own lock, so that concurrent loads of keys of different segments do
+ * not wait for each other. The eviction and the admission are thus decided
+ * per segment, and a value larger than a segment is not cached.
+ * <p>
+ * Direct memory is limited by {@code -XX:MaxDirectMemorySize} (the maximum
+ * heap size by default).
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyValueCache
+{
+	/**
+	 * Maximum size of a direct memory region.
+	 */
+	private static final int REGION_SIZE = 1 << 30;
+
+	/**
+	 * Maximum number of segments.
+	 */
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * Minimum number of blocks of a segment.
+	 */
+	private static final int SEGMENT_BLOCKS = 1024;
+
+	/**
+	 * Size of a block in bytes.
+	 */
+	private final int blockSize;
+
+	/**
+	 * Number of blocks per region.
+	 */
+	private final int blocksPerRegion;
+
+	/**
+	 * Total number of blocks.
+	 */
+	private final int blockCount;
+
+	/**
+	 * Segments, their number being a power of two.
+	 */
+	private final Segment[] segments;
+
+	/**
+	 * Access frequency sketch, shared by the segments.
+	 */
+	private final BerkeleyFrequencySketch sketch;
+
+	/**
+	 * Creates a new cache.
+	 * <p>
+	 * @param capacity Capacity of the cache in bytes.
+	 * @param blockSize Size of a block in bytes.
+	 */
+	public BerkeleyValueCache(final long capacity, final int blockSize)
+	{
+		if (capacity <= 0 || blockSize <= 0 || blockSize > REGION_SIZE)
+		{
+			throw new IllegalArgumentException("Invalid cache capacity: " + capacity + " or block size: " + blockSize);
+		}
+
+		this.blockSize = blockSize;
+		blocksPerRegion = REGION_SIZE / blockSize;
+		long blocks = Math.min(capacity / blockSize, Integer.MAX_VALUE - 8);
+		if (blocks == 0)
+		{
+			throw new IllegalArgumentException("Cache capacity lower than the block size: " + capacity);
+		}
+		blockCount = (int) blocks;
+
+		ByteBuffer[] regions = new ByteBuffer[(int) ((blocks + blocksPerRegion - 1) / blocksPerRegion)];
+		for (int i = 0; i < regions.length; i++)
+		{
+			long count = Math.min(blocksPerRegion, blocks - (long) i * blocksPerRegion);
+			regions[i] = ByteBuffer.allocateDirect((int) (count * blockSize));
+		}
+
+		segments = new Segment[Math.min(SEGMENTS, Integer.highestOneBit(Math.max(1, blockCount / SEGMENT_BLOCKS)))];
+		int first = 0;
+		for (int i = 0; i < segments.length; i++)
+		{
+			int count = blockCount / segments.length + (i < blockCount % segments.length ? 1 : 0);
+			segments[i] = new Segment(regions, first, count);
+			first += count;
+		}
+
+		sketch = new BerkeleyFrequencySketch(Math.min(blockCount, 1 << 26) * 4);
+	}
+
+	/**
+	 * Returns the segment of a key.
+	 * <p>
+	 * @param key Key.
+	 * @return Segment.
+	 */
+	private Segment segment(final Key key)
+	{
+		// The high bits, the low ones spread the keys of a segment in its index.
+		return segments[(int) (key.hash >>> 40) & segments.length - 1];
+	}
+
+	/**
+	 * Returns a cached value.
+	 * <p>
+	 * @param key Binary key.
+	 * @return Copy of the serialized value or {@code null} if the value is not
+	 * cached.
+	 */
+	public final byte[] get(final byte[] key)
+	{
+		Key wrapper = new Key(key);
+		sketch.increment(wrapper.hash);
+
+		return segment(wrapper).get(wrapper);
+	}
+
+	/**
+	 * Returns the current write stamp of a key, to be passed to
+	 * {@link #putLoaded(byte[], byte[], int, int, long)} for a value read from
+	 * the database after a miss.
+	 * <p>
+	 * @param key Binary key.
+	 * @return Write stamp.
+	 */
+	public final long stamp(final byte[] key)
+	{
+		return segment(new Key(key)).stamp();
+	}
+
+	/**
+	 * Caches a value written to the database.
+	 * <p>
+	 * @param key Binary key.
+	 * @param value Array of bytes containing the serialized value.
+	 * @param offset Offset of the value.
+	 * @param length Length of the value.
+	 */
+	public final void put(final byte[] key, final byte[] value, final int offset, final int length)
+	{
+		Key wrapper = new Key(key);
+		sketch.increment(wrapper.hash);
+		segment(wrapper).put(wrapper, value, offset, length, -1);
+	}
+
+	/**
+	 * Caches a value read from the database, unless a write occurred since
+	 * the given stamp.
+	 * <p>
+	 * @param key Binary key.
+	 * @param value Array of bytes containing the serialized value.
+	 * @param offset Offset of the value.
+	 * @param length Length of the value.
+	 * @param loadStamp Write stamp of the key read before the value was read
+	 * from the database.
+	 */
+	public final void putLoaded(final byte[] key, final byte[] value, final int offset, final int length, final long loadStamp)
+	{
+		Key wrapper = new Key(key);
+		segment(wrapper).put(wrapper, value, offset, length, loadStamp);
+	}
+
+	/**
+	 * Removes a value, deleted or overwritten in the database.
+	 * <p>
+	 * @param key Binary key.
+	 */
+	public final void invalidate(final byte[] key)
+	{
+		Key wrapper = new Key(key);
+		segment(wrapper).invalidate(wrapper);
+	}
+
+	/**
+	 * Removes all the values.
+	 */
+	public final void clear()
+	{
+		for (Segment segment : segments)
+		{
+			segment.clear();
+		}
+	}
+
+	/**
+	 * Returns the capacity of the cache.
+	 * <p>
+	 * @return Capacity in bytes.
+	 */
+	public final long getCapacity()
+	{
+		return (long) blockCount * blockSize;
+	}
+
+	/**
+	 * Returns the memory used by the cached values, rounded to the blocks.
+	 * <p>
+	 * @return Used memory in bytes.
+	 */
+	public final long getSize()
+	{
+		long size = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				size += (long) (segment.freeBlocks.length - segment.freeCount) * blockSize;
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * Returns the number of cached values.
+	 * <p>
+	 * @return Number of values.
+	 */
+	public final int getCount()
+	{
+		int count = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				count += segment.slots.size();
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the number of hits.
+	 * <p>
+	 * @return Number of hits.
+	 */
+	public final long getHitCount()
+	{
+		long count = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				count += segment.hitCount;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the number of misses.
+	 * <p>
+	 * @return Number of misses.
+	 */
+	public final long getMissCount()
+	{
+		long count = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				count += segment.missCount;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the number of values evicted to make room for new ones.
+	 * <p>
+	 * @return Number of evictions.
+	 */
+	public final long getEvictionCount()
+	{
+		long count = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				count += segment.evictionCount;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the number of values not admitted in the cache.
+	 * <p>
+	 * @return Number of rejections.
+	 */
+	public final long getRejectionCount()
+	{
+		long count = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				count += segment.rejectionCount;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Segment of the cache, guarded by its own monitor.
+	 */
+	private final class Segment
+	{
+		/**
+		 * Views of the direct memory regions, owning their own position.
+		 */
+		private final ByteBuffer[] regions;
+
+		/**
+		 * Stack of the free blocks.
+		 */
+		private final int[] freeBlocks;
+
+		/**
+		 * Number of free blocks.
+		 */
+		private int freeCount;
+
+		/**
+		 * Cached values in least to most recently used order.
+		 */
+		private final LinkedHashMap<Key, Slot> slots = new LinkedHashMap<>(1024, 0.75f, true);
+
+		/**
+		 * Write stamp, incremented by each write so that a value loaded before
+		 * a write is not cached after it.
+		 */
+		private long stamp;
+
+		/**
+		 * Number of hits.
+		 */
+		private long hitCount;
+
+		/**
+		 * Number of misses.
+		 */
+		private long missCount;
+
+		/**
+		 * Number of evictions.
+		 */
+		private long evictionCount;
+
+		/**
+		 * Number of values rejected by the admission policy.
+		 */
+		private long rejectionCount;
+
+		/**
+		 * Creates a new segment.
+		 * <p>
+		 * @param regions Direct memory regions of the cache.
+		 * @param first First block of the segment.
+		 * @param count Number of blocks of the segment.
+		 */
+		Segment(final ByteBuffer[] regions, final int first, final int count)
+		{
+			this.regions = new ByteBuffer[regions.length];
+			for (int i = 0; i < regions.length; i++)
+			{
+				this.regions[i] = regions[i].duplicate();
+			}
+
+			freeBlocks = new int[count];
+			for (int i = 0; i < count; i++)
+			{
+				freeBlocks[i] = first + count - 1 - i;
+			}
+			freeCount = count;
+		}
+
+		/**
+		 * Returns a cached value.
+		 * <p>
+		 * @param key Key.
+		 * @return Copy of the serialized value or {@code null} if the value is
+		 * not cached.
+		 */
+		synchronized byte[] get(final Key key)
+		{
+			Slot slot = slots.get(key);
+			if (slot == null)
+			{
+				missCount++;
+				return null;
+			}
+
+			hitCount++;
+			byte[] value = new byte[slot.length];
+			int offset = 0;
+			for (int block : slot.blocks)
+			{
+				int length = Math.min(blockSize, slot.length - offset);
+				ByteBuffer region = regions[block / blocksPerRegion];
+				region.position((block % blocksPerRegion) * blockSize);
+				region.get(value, offset, length);
+				offset += length;
+			}
+
+			return value;
+		}
+
+		/**
+		 * Returns the current write stamp.
+		 * <p>
+		 * @return Write stamp.
+		 */
+		synchronized long stamp()
+		{
+			return stamp;
+		}
+
+		/**
+		 * Caches a value written to the database, or read from it unless a
+		 * write occurred since a stamp.
+		 * <p>
+		 * @param key Key.
+		 * @param value Array of bytes containing the serialized value.
+		 * @param offset Offset of the value.
+		 * @param length Length of the value.
+		 * @param loadStamp Write stamp read before the value was read from the
+		 * database, {@code -1} for a written value.
+		 */
+		synchronized void put(final Key key, final byte[] value, final int offset, final int length, final long loadStamp)
+		{
+			if (loadStamp == -1)
+			{
+				stamp++;
+			}
+			else if (loadStamp != stamp)
+			{
+				return;
+			}
+			admit(key, value, offset, length);
+		}
+
+		/**
+		 * Removes a value.
+		 * <p>
+		 * @param key Key.
+		 */
+		synchronized void invalidate(final Key key)
+		{
+			stamp++;
+			release(slots.remove(key));
+		}
+
+		/**
+		 * Removes all the values.
+		 */
+		synchronized void clear()
+		{
+			stamp++;
+			for (Slot slot : slots.values())
+			{
+				release(slot);
+			}
+			slots.clear();
+		}
+
+		/**
+		 * Caches a value if it is admitted, evicting the least recently used
+		 * values to make room for it.
+		 * <p>
+		 * @param key Key.
+		 * @param value Array of bytes containing the serialized value.
+		 * @param offset Offset of the value.
+		 * @param length Length of the value.
+		 */
+		private void admit(final Key key, final byte[] value, final int offset, final int length)
+		{
+			release(slots.remove(key));
+
+			int needed = (length + blockSize - 1) / blockSize;
+			if (needed > freeBlocks.length)
+			{
+				rejectionCount++;
+				return;
+			}
+
+			if (needed > freeCount)
+			{
+				// Admission: the candidate must be more popular than every victim.
+				int frequency = sketch.estimate(key.hash);
+				int available = freeCount;
+				Iterator<Map.Entry<Key, Slot>> iterator = slots.entrySet().iterator();
+				while (available < needed)
+				{
+					Map.Entry<Key, Slot> victim = iterator.next();
+					if (sketch.estimate(victim.getKey().hash) >= frequency)
+					{
+						rejectionCount++;
+						return;
+					}
+					available += victim.getValue().blocks.length;
+				}
+
+				iterator = slots.entrySet().iterator();
+				while (freeCount < needed)
+				{
+					Slot slot = iterator.next().getValue();
+					iterator.remove();
+					release(slot);
+					evictionCount++;
+				}
+			}
+
+			int[] blocks = new int[needed];
+			int position = offset;
+			for (int i = 0; i < needed; i++)
+			{
+				int block = freeBlocks[--freeCount];
+				blocks[i] = block;
+				int size = Math.min(blockSize, offset + length - position);
+				ByteBuffer region = regions[block / blocksPerRegion];
+				region.position((block % blocksPerRegion) * blockSize);
+				region.put(value, position, size);
+				position += size;
+			}
+			slots.put(key, new Slot(blocks, length));
+		}
+
+		/**
+		 * Releases the blocks of a slot.
+		 * <p>
+		 * @param slot Slot to release, may be {@code null}.
+		 */
+		private void release(final Slot slot)
+		{
+			if (slot != null)
+			{
+				for (int block : slot.blocks)
+				{
+					freeBlocks[freeCount++] = block;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Binary key of a cached value.
+	 */
+	private static final class Key
+	{
+		/**
+		 * Binary key.
+		 */
+		private final byte[] bytes;
+
+		/**
+		 * Hash of the binary key, also used by the frequency sketch.
+		 */
+		private final long hash;
+
+		/**
+		 * Creates a new key.
+		 * <p>
+		 * @param bytes Binary key.
+		 */
+		Key(final byte[] bytes)
+		{
+			this.bytes = bytes;
+			hash = BerkeleyFrequencySketch.hash(bytes, 0, bytes.length);
+		}
+
+		@Override
+		public boolean equals(final Object other)
+		{
+			return other instanceof Key && Arrays.equals(bytes, ((Key) other).bytes);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int) (hash ^ hash >>> 32);
+		}
+	}
+
+	/**
+	 * Blocks holding a cached value.
+	 */
+	private static final class Slot
+	{
+		/**
+		 * Blocks in order.
+		 */
+		private final int[] blocks;
+
+		/**
+		 * Length of the value in bytes.
+		 */
+		private final int length;
+
+		/**
+		 * Creates a new slot.
+		 * <p>
+		 * @param blocks Blocks in order.
+		 * @param length Length of the value in bytes.
+		 */
+		Slot(final int[] blocks, final int length)
+		{
+			this.blocks = blocks;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.persistence.h2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+
+/**
+ * Write-ahead coalescing buffer of a {@link BerkeleyStoreMap}.
+ * <p>
+ * Stores and deletes are recorded in memory and written to the database by a
+ * background drainer once per window. Repeated stores and deletes of a same
+ * key within a window collapse to the last one, so that a key updated many
+ * times per window costs a single write, and each drain writes its entries in
+ * a single sorted cursor pass synchronized at most once.
+ * <p>
+ * The buffer is bounded: once it holds its maximum number of keys (buffered
+ * or being drained), a write of a new key waits for the drainer to make room
+ * while writes of keys already buffered are still coalesced. Loads see the
+ * buffered writes before they reach the database. The buffer is flushed when
+ * it is closed, so that a clean shutdown does not lose any write.
+ * <p>
+ * As with the write-behind of {@code Hazelcast}, the writes are acknowledged
+ * before they reach the database and the entries failing to be written are
+ * retried: they are put back in the buffer, unless a newer write of their key
+ * is already buffered, and written again by the next drain. They still count
+ * against the capacity of the buffer and are seen by the loads. An entry is
+ * dropped after failing {@value #ATTEMPTS} drains, so that a value which can
+ * never be written does not hold its room forever. A failed drain is logged
+ * by the drainer, and thrown by {@link #flush()} and {@link #close()} which
+ * therefore do not return while entries fail to be written.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ * @param <K> Key of the map.
+ * @param <V> Value of the map.
+ */
+@SuppressWarnings({ "unchecked", "nls" })
+public final class BerkeleyWriteBuffer<K, V>
+{
+	/**
+	 * Logger.
+	 */
+	private final ILogger LOG = Logger.getLogger(BerkeleyWriteBuffer.class.getName());
+
+	/**
+	 * Number of drains an entry may fail before being dropped.
+	 */
+	static final int ATTEMPTS = 3;
+
+	/**
+	 * Marker of a buffered delete.
+	 */
+	private static final Object DELETED = new Object();
+
+	/**
+	 * Marker of a key not buffered, returned by {@link #lookup(Object)}.
+	 */
+	static final Object ABSENT = new Object();
+
+	/**
+	 * Map store writing the drained entries.
+	 */
+	private final BerkeleyStoreMap<K, V> store;
+
+	/**
+	 * Maximum number of keys buffered or being drained.
+	 */
+	private final int capacity;
+
+	/**
+	 * Lock guarding the buffered and draining entries.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Condition signaled when room is made in the buffer.
+	 */
+	private final Condition notFull = lock.newCondition();
+
+	/**
+	 * Lock serializing the drains.
+	 */
+	private final Object drainLock = new Object();
+
+	/**
+	 * Executor running the drainer.
+	 */
+	private final ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * Entries buffered, the value being {@link #DELETED} for a delete.
+	 */
+	private Map<K, Object> pending = new HashMap<>();
+
+	/**
+	 * Entries being written by the current drain.
+	 */
+	private Map<K, Object> draining = Collections.emptyMap();
+
+	/**
+	 * Number of failed drains of the entries put back in the buffer.
+	 */
+	private final Map<K, Integer> attempts = new HashMap<>();
+
+	/**
+	 * Task draining the buffer, logging the failures.
+	 */
+	private final Runnable drainer = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				drain();
+			}
+			catch (Throwable e)
+			{
+				LOG.log(Level.SEVERE, e.getMessage(), e);
+			}
+		}
+	};
+
+	/**
+	 * Number of writes collapsed into a buffered write of the same key.
+	 */
+	private long coalescedCount = 0;
+
+	/**
+	 * Number of writes that waited for room in the buffer.
+	 */
+	private long blockedCount = 0;
+
+	/**
+	 * Number of entries written to the database.
+	 */
+	private long writtenCount = 0;
+
+	/**
+	 * Number of entries having failed to be written.
+	 */
+	private long failedCount = 0;
+
+	/**
+	 * Number of entries dropped after failing {@link #ATTEMPTS} drains.
+	 */
+	private long droppedCount = 0;
+
+	/**
+	 * Number of drains having written entries.
+	 */
+	private long drainCount = 0;
+
+	/**
+	 * Creates a new write buffer and starts its drainer.
+	 * <p>
+	 * @param store Map store writing the drained entries.
+	 * @param window Coalescing window, i.e. period of the drainer (in
+	 * milliseconds).
+	 * @param capacity Maximum number of keys buffered or being drained.
+	 * @param name Name of the drainer thread.
+	 */
+	BerkeleyWriteBuffer(final BerkeleyStoreMap<K, V> store, final long window, final int capacity, final String name)
+	{
+		if (window <= 0)
+		{
+			throw new IllegalArgumentException("Invalid window: " + window);
+		}
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		this.store = store;
+		this.capacity = capacity;
+
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(drainer, window, window, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Buffers the store of an entry, waiting for room in the buffer if needed.
+	 * <p>
+	 * @param key Key.
+	 * @param value Value.
+	 */
+	void store(final K key, final V value)
+	{
+		put(key, value);
+	}
+
+	/**
+	 * Buffers the delete of a key, waiting for room in the buffer if needed.
+	 * <p>
+	 * @param key Key.
+	 */
+	void delete(final K key)
+	{
+		put(key, DELETED);
+	}
+
+	/**
+	 * Buffers a write.
+	 * <p>
+	 * @param key Key.
+	 * @param value Value or {@link #DELETED}.
+	 * @throws IllegalStateException Thrown if the buffer is full and closed.
+	 */
+	private void put(final K key, final Object value)
+	{
+		lock.lock();
+		try
+		{
+			if (pending.containsKey(key))
+			{
+				coalescedCount++;
+				attempts.remove(key);
+			}
+			else if (pending.size() + draining.size() >= capacity)
+			{
+				blockedCount++;
+				while (pending.size() + draining.size() >= capacity && !pending.containsKey(key))
+				{
+					// Drains right away instead of waiting for the window.
+					try
+					{
+						executor.execute(drainer);
+					}
+					catch (RejectedExecutionException e)
+					{
+						throw new IllegalStateException("Write buffer closed", e);
+					}
+					notFull.awaitUninterruptibly();
+				}
+			}
+			pending.put(key, value);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the buffered write of a key.
+	 * <p>
+	 * @param key Key.
+	 * @return Buffered value, {@code null} for a buffered delete or
+	 * {@link #ABSENT} if the key has no buffered write.
+	 */
+	Object lookup(final K key)
+	{
+		lock.lock();
+		try
+		{
+			Object value = pending.get(key);
+			if (value == null && !pending.containsKey(key))
+			{
+				value = draining.get(key);
+				if (value == null && !draining.containsKey(key))
+				{
+					return ABSENT;
+				}
+			}
+
+			return value == DELETED ? null : value;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the buffered entries to the database until the buffer is empty.
+	 * <p>
+	 * @throws BerkeleyStoreMapException Thrown if entries failed to be
+	 * written, listing them. They are left in the buffer unless they failed
+	 * {@link #ATTEMPTS} drains.
+	 */
+	void flush()
+	{
+		while (drain())
+		{
+			// Drains the entries buffered during the previous drain.
+		}
+	}
+
+	/**
+	 * Stops the drainer and flushes the buffer.
+	 * <p>
+	 * @throws BerkeleyStoreMapException Thrown if entries failed to be
+	 * written, listing them. The entries left in the buffer are lost.
+	 */
+	void close()
+	{
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * Writes the buffered entries to the database in a single batch, putting
+	 * the failed ones back in the buffer.
+	 * <p>
+	 * @return {@code true} if entries have been drained.
+	 * @throws BerkeleyStoreMapException Thrown if entries failed to be
+	 * written, listing them.
+	 */
+	private boolean drain()
+	{
+		synchronized (drainLock)
+		{
+			Map<K, Object> batch;
+			lock.lock();
+			try
+			{
+				if (pending.isEmpty())
+				{
+					return false;
+				}
+				batch = pending;
+				pending = new HashMap<>();
+				draining = batch;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			Map<K, V> stores = new HashMap<>();
+			List<K> deletes = new ArrayList<>();
+			for (Map.Entry<K, Object> entry : batch.entrySet())
+			{
+				if (entry.getValue() == DELETED)
+				{
+					deletes.add(entry.getKey());
+				}
+				else
+				{
+					stores.put(entry.getKey(), (V) entry.getValue());
+				}
+			}
+
+			Map<Object, Throwable> failures = new HashMap<>();
+			write(stores.keySet(), failures, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					store.privateStoreAll(stores);
+				}
+			});
+			write(deletes, failures, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					store.privateDeleteAll(deletes);
+				}
+			});
+
+			int requeued = 0;
+			lock.lock();
+			try
+			{
+				for (Object failed : failures.keySet())
+				{
+					K key = (K) failed;
+					if (pending.containsKey(key))
+					{
+						// Superseded by a newer write.
+						continue;
+					}
+					Integer count = attempts.get(key);
+					int attempt = count == null ? 1 : count.intValue() + 1;
+					if (attempt < ATTEMPTS)
+					{
+						pending.put(key, batch.get(key));
+						attempts.put(key, Integer.valueOf(attempt));
+						requeued++;
+					}
+					else
+					{
+						droppedCount++;
+					}
+				}
+				if (!attempts.isEmpty())
+				{
+					attempts.keySet().retainAll(pending.keySet());
+				}
+				draining = Collections.emptyMap();
+				writtenCount += batch.size() - failures.size();
+				failedCount += failures.size();
+				drainCount++;
+				notFull.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			if (!failures.isEmpty())
+			{
+				throw new BerkeleyStoreMapException(this.getClass().getCanonicalName() + ":drain:" + failures.size() + " failure(s), " + requeued + " put back in the buffer", failures);
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Runs a batch write of a part of a drained batch.
+	 * <p>
+	 * @param keys Keys written.
+	 * @param failures Failed keys with their cause, filled by this method.
+	 * @param write Batch write.
+	 */
+	private void write(final Collection<K> keys, final Map<Object, Throwable> failures, final Runnable write)
+	{
+		if (keys.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			write.run();
+		}
+		catch (BerkeleyStoreMapException e)
+		{
+			if (e.getFailures().isEmpty())
+			{
+				for (K key : keys)
+				{
+					failures.put(key, e);
+				}
+			}
+			else
+			{
+				failures.putAll(e.getFailures());
+			}
+		}
+		catch (RuntimeException e)
+		{
+			for (K key : keys)
+			{
+				failures.put(key, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the maximum number of keys buffered or being drained.
+	 * <p>
+	 * @return Capacity.
+	 */
+	public final int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of keys currently buffered or being drained.
+	 * <p>
+	 * @return Number of keys.
+	 */
+	public final int getSize()
+	{
+		lock.lock();
+		try
+		{
+			return pending.size() + draining.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of writes collapsed into a buffered write of the same
+	 * key.
+	 * <p>
+	 * @return Number of coalesced writes.
+	 */
+	public final long getCoalescedCount()
+	{
+		lock.lock();
+		try
+		{
+			return coalescedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of writes that waited for room in the buffer.
+	 * <p>
+	 * @return Number of blocked writes.
+	 */
+	public final long getBlockedCount()
+	{
+		lock.lock();
+		try
+		{
+			return blockedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries written to the database.
+	 * <p>
+	 * @return Number of written entries.
+	 */
+	public final long getWrittenCount()
+	{
+		lock.lock();
+		try
+		{
+			return writtenCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries having failed to be written, each failed
+	 * drain of an entry being counted.
+	 * <p>
+	 * @return Number of failed entries.
+	 */
+	public final long getFailedCount()
+	{
+		lock.lock();
+		try
+		{
+			return failedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries dropped after failing {@link #ATTEMPTS}
+	 * drains.
+	 * <p>
+	 * @return Number of dropped entries.
+	 */
+	public final long getDroppedCount()
+	{
+		lock.lock();
+		try
+		{
+			return droppedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of drains having written entries.
+	 * <p>
+	 * @return Number of drains.
+	 */
+	public final long getDrainCount()
+	{
+		lock.lock();
+		try
+		{
+			return drainCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer;
+
+import java.nio.ByteBuffer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Serializers of the arrays of primitives copying the elements in bulk
+ * through the views of a {@link ByteBuffer} rather than element by element.
+ * <p>
+ * The elements are written in big-endian byte order, the order of Kryo, after
+ * the length of the array plus one as a positive variable length integer (0
+ * for {@code null}). The arrays of {@code double}, {@code float},
+ * {@code short} and {@code char} are therefore written exactly as by the
+ * default Kryo serializers, so their serializers are always used. Kryo writes
+ * the {@code int} and {@code long} elements as variable length integers, so
+ * their fixed width serializers change the stored format and are only used
+ * when enabled (see {@link KryoSerializer#setFixedWidthArrays(boolean)}).
+ * <p>
+ * The elements are copied directly into or from the buffer of the output or
+ * input when it has room for all of them, otherwise through a small chunk.
+ * A serializer is used by one Kryo instance, hence by one thread at a time.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+final class KryoArraySerializers
+{
+	/**
+	 * Size of the chunk of a serializer in bytes.
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * Serializer of an array of primitives of a fixed width.
+	 * <p>
+	 * @param <T> Type of the array.
+	 */
+	private abstract static class BulkSerializer<T> extends Serializer<T>
+	{
+		/**
+		 * Width of an element in bytes.
+		 */
+		private final int width;
+
+		/**
+		 * Chunk of the arrays not fitting in the buffer of the output or input.
+		 */
+		private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+		/**
+		 * Creates a new serializer.
+		 * <p>
+		 * @param width Width of an element in bytes.
+		 */
+		BulkSerializer(final int width)
+		{
+			this.width = width;
+			setAcceptsNull(true);
+		}
+
+		/**
+		 * Returns the length of an array.
+		 * <p>
+		 * @param array Array.
+		 * @return Length.
+		 */
+		abstract int length(T array);
+
+		/**
+		 * Creates an array.
+		 * <p>
+		 * @param length Length.
+		 * @return Array.
+		 */
+		abstract T create(int length);
+
+		/**
+		 * Copies elements of an array into a byte buffer.
+		 * <p>
+		 * @param buffer Byte buffer positioned on the first byte written.
+		 * @param array Array.
+		 * @param offset Offset of the first element.
+		 * @param count Number of elements.
+		 */
+		abstract void put(ByteBuffer buffer, T array, int offset, int count);
+
+		/**
+		 * Copies elements of a byte buffer into an array.
+		 * <p>
+		 * @param buffer Byte buffer positioned on the first byte read.
+		 * @param array Array.
+		 * @param offset Offset of the first element.
+		 * @param count Number of elements.
+		 */
+		abstract void get(ByteBuffer buffer, T array, int offset, int count);
+
+		@Override
+		public final void write(final Kryo kryo, final Output output, final T array)
+		{
+			if (array == null)
+			{
+				output.writeByte(Kryo.NULL);
+				return;
+			}
+
+			int length = length(array);
+			output.writeInt(length + 1, true);
+
+			int position = output.position();
+			if (output.getBuffer().length - position >= (long) length * width)
+			{
+				put(ByteBuffer.wrap(output.getBuffer(), position, length * width), array, 0, length);
+				output.setPosition(position + length * width);
+				return;
+			}
+
+			for (int offset = 0; offset < length;)
+			{
+				int count = Math.min(length - offset, CHUNK_SIZE / width);
+				chunk.clear();
+				put(chunk, array, offset, count);
+				output.writeBytes(chunk.array(), 0, count * width);
+				offset += count;
+			}
+		}
+
+		@Override
+		public final T read(final Kryo kryo, final Input input, final Class<T> type)
+		{
+			int length = input.readInt(true);
+			if (length == Kryo.NULL)
+			{
+				return null;
+			}
+
+			T array = create(--length);
+			int position = input.position();
+			if (input.limit() - position >= (long) length * width)
+			{
+				get(ByteBuffer.wrap(input.getBuffer(), position, length * width), array, 0, length);
+				input.setPosition(position + length * width);
+				return array;
+			}
+
+			for (int offset = 0; offset < length;)
+			{
+				int count = Math.min(length - offset, CHUNK_SIZE / width);
+				chunk.clear();
+				input.readBytes(chunk.array(), 0, count * width);
+				get(chunk, array, offset, count);
+				offset += count;
+			}
+
+			return array;
+		}
+	}
+
+	/**
+	 * Serializer of the arrays of {@code double}.
+	 */
+	private static final class DoubleArraySerializer extends BulkSerializer<double[]>
+	{
+		/**
+		 * Creates a new serializer.
+		 */
+		DoubleArraySerializer()
+		{
+			super(8);
+		}
+
+		@Override
+		int length(final double[] array)
+		{
+			return array.length;
+		}
+
+		@Override
+		double[] create(final int length)
+		{
+			return new double[length];
+		}
+
+		@Override
+		void put(final ByteBuffer buffer, final double[] array, final int offset, final int count)
+		{
+			buffer.asDoubleBuffer().put(array, offset, count);
+		}
+
+		@Override
+		void get(final ByteBuffer buffer, final double[] array, final int offset, final int count)
+		{
+			buffer.asDoubleBuffer().get(array, offset, count);
+		}
+	}
+
+	/**
+	 * Serializer of the arrays of {@code float}.
+	 */
+	private static final class FloatArraySerializer extends BulkSerializer<float[]>
+	{
+		/**
+		 * Creates a new serializer.
+		 */
+		FloatArraySerializer()
+		{
+			super(4);
+		}
+
+		@Override
+		int length(final float[] array)
+		{
+			return array.length;
+		}
+
+		@Override
+		float[] create(final int length)
+		{
+			return new float[length];
+		}
+
+		@Override
+		void put(final ByteBuffer buffer, final float[] array, final int offset, final int count)
+		{
+			buffer.asFloatBuffer().put(array, offset, count);
+		}
+
+		@Override
+		void get(final ByteBuffer buffer, final float[] array, final int offset, final int count)
+		{
+			buffer.asFloatBuffer().get(array, offset, count);
+		}
+	}
+
+	/**
+	 * Serializer of the arrays of {@code short}.
+	 */
+	private static final class ShortArraySerializer extends BulkSerializer<short[]>
+	{
+		/**
+		 * Creates a new serializer.
+		 */
+		ShortArraySerializer()
+		{
+			super(2);
+		}
+
+		@Override
+		int length(final short[] array)
+		{
+			return array.length;
+		}
+
+		@Override
+		short[] create(final int length)
+		{
+			return new short[length];
+		}
+
+		@Override
+		void put(final ByteBuffer buffer, final short[] array, final int offset, final int count)
+		{
+			buffer.asShortBuffer().put(array, offset, count);
+		}
+
+		@Override
+		void get(final ByteBuffer buffer, final short[] array, final int offset, final int count)
+		{
+			buffer.asShortBuffer().get(array, offset, count);
+		}
+	}
+
+	/**
+	 * Serializer of the arrays of {@code char}.
+	 */
+	private static final class CharArraySerializer extends BulkSerializer<char[]>
+	{
+		/**
+		 * Creates a new serializer.
+		 */
+		CharArraySerializer()
+		{
+			super(2);
+		}
+
+		@Override
+		int length(final char[] array)
+		{
+			return array.length;
+		}
+
+		@Override
+		char[] create(final int length)
+		{
+			return new char[length];
+		}
+
+		@Override
+		void put(final ByteBuffer buffer, final char[] array, final int offset, final int count)
+		{
+			buffer.asCharBuffer().put(array, offset, count);
+		}
+
+		@Override
+		void get(final ByteBuffer buffer, final char[] array, final int offset, final int count)
+		{
+			buffer.asCharBuffer().get(array, offset, count);
+		}
+	}
+
+	/**
+	 * Fixed width serializer of the arrays of {@code int}.
+	 */
+	private static final class IntArraySerializer extends BulkSerializer<int[]>
+	{
+		/**
+		 * Creates a new serializer.
+		 */
+		IntArraySerializer()
+		{
+			super(4);
+		}
+
+		@Override
+		int length(final int[] array)
+		{
+			return array.length;
+		}
+
+		@Override
+		int[] create(final int length)
+		{
+			return new int[length];
+		}
+
+		@Override
+		void put(final ByteBuffer buffer, final int[] array, final int offset, final int count)
+		{
+			buffer.asIntBuffer().put(array, offset, count);
+		}
+
+		@Override
+		void get(final ByteBuffer buffer, final int[] array, final int offset, final int count)
+		{
+			buffer.asIntBuffer().get(array, offset, count);
+		}
+	}
+
+	/**
+	 * Fixed width serializer of the arrays of {@code long}.
+	 */
+	private static final class LongArraySerializer extends BulkSerializer<long[]>
+	{
+		/**
+		 * Creates a new serializer.
+		 */
+		LongArraySerializer()
+		{
+			super(8);
+		}
+
+		@Override
+		int length(final long[] array)
+		{
+			return array.length;
+		}
+
+		@Override
+		long[] create(final int length)
+		{
+			return new long[length];
+		}
+
+		@Override
+		void put(final ByteBuffer buffer, final long[] array, final int offset, final int count)
+		{
+			buffer.asLongBuffer().put(array, offset, count);
+		}
+
+		@Override
+		void get(final ByteBuffer buffer, final long[] array, final int offset, final int count)
+		{
+			buffer.asLongBuffer().get(array, offset, count);
+		}
+	}
+
+	/**
+	 * Creates a new array serializers holder.
+	 */
+	private KryoArraySerializers()
+	{
+	}
+
+	/**
+	 * Adds the bulk serializers as the default serializers of the arrays of a
+	 * Kryo instance. The arrays are not registered, so their classes are
+	 * written as by Kryo: by name, or by identifier if a registry registers
+	 * them.
+	 * <p>
+	 * @param kryo Kryo instance.
+	 * @param fixedWidth Are the arrays of {@code int} and {@code long} written
+	 * with a fixed width?
+	 */
+	static void addDefaultSerializers(final Kryo kryo, final boolean fixedWidth)
+	{
+		kryo.addDefaultSerializer(double[].class, new DoubleArraySerializer());
+		kryo.addDefaultSerializer(float[].class, new FloatArraySerializer());
+		kryo.addDefaultSerializer(short[].class, new ShortArraySerializer());
+		kryo.addDefaultSerializer(char[].class, new CharArraySerializer());
+		if (fixedWidth)
+		{
+			kryo.addDefaultSerializer(int[].class, new IntArraySerializer());
+			kryo.addDefaultSerializer(long[].class, new LongArraySerializer());
+		}
+	}
+}
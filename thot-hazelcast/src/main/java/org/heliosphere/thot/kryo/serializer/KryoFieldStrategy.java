@@ -0,0 +1,156 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer;
+
+import java.lang.reflect.Field;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+import com.esotericsoftware.kryo.serializers.TaggedFieldSerializer;
+
+/**
+ * Strategy of the {@link KryoSerializer} serializing the fields of the
+ * classes without a dedicated serializer, set per class or package by
+ * {@link KryoSerializer#setFieldStrategy(String, KryoFieldStrategy)}.
+ * <p>
+ * The strategy of a class is part of the format of its stored values: values
+ * written with one strategy cannot be read with another.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+public enum KryoFieldStrategy
+{
+	/**
+	 * Fields written in order without any metadata, the most compact and the
+	 * fastest, but adding, removing or renaming a field breaks the stored
+	 * values.
+	 */
+	FIELD("field"),
+
+	/**
+	 * Fields annotated with {@code @Tag} written with their tag, so that
+	 * fields can be added: a value read as a newer version of its class
+	 * leaves the added fields to their default value. A tag unknown to the
+	 * class is not skipped but fails the read, so removing a tagged field or
+	 * rolling back to a version with fewer tags breaks the stored values. The
+	 * fields without a tag are not written, and a class without any tagged
+	 * field is serialized as by {@link #FIELD}.
+	 */
+	TAGGED("tagged"),
+
+	/**
+	 * Fields written with their names and lengths, so that fields can be
+	 * added and removed without annotating them, at the cost of the names in
+	 * each value.
+	 */
+	COMPATIBLE("compatible");
+
+	/**
+	 * Name of the strategy in the configuration.
+	 */
+	private final String label;
+
+	/**
+	 * Creates a strategy.
+	 * <p>
+	 * @param label Name of the strategy in the configuration.
+	 */
+	private KryoFieldStrategy(final String label)
+	{
+		this.label = label;
+	}
+
+	/**
+	 * Returns the name of the strategy in the configuration.
+	 * <p>
+	 * @return Name.
+	 */
+	public final String getLabel()
+	{
+		return label;
+	}
+
+	/**
+	 * Returns the strategy of a name.
+	 * <p>
+	 * @param label Name of the strategy in the configuration.
+	 * @return Strategy.
+	 * @throws IllegalArgumentException Thrown if the name is unknown.
+	 */
+	@SuppressWarnings("nls")
+	public static KryoFieldStrategy fromLabel(final String label)
+	{
+		for (KryoFieldStrategy strategy : values())
+		{
+			if (strategy.label.equalsIgnoreCase(label.trim()))
+			{
+				return strategy;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown field strategy: " + label);
+	}
+
+	/**
+	 * Tells whether the strategy applies to a class, {@link #TAGGED} applying
+	 * to the classes with at least one field annotated with {@code @Tag},
+	 * including the inherited ones.
+	 * <p>
+	 * @param type Class.
+	 * @return {@code true} if the strategy applies, otherwise the class is
+	 * serialized as by {@link #FIELD}.
+	 */
+	final boolean appliesTo(final Class<?> type)
+	{
+		if (this != TAGGED)
+		{
+			return true;
+		}
+
+		for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass())
+		{
+			for (Field field : current.getDeclaredFields())
+			{
+				if (field.isAnnotationPresent(TaggedFieldSerializer.Tag.class))
+				{
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Creates the serializer of a class.
+	 * <p>
+	 * @param kryo Kryo instance.
+	 * @param type Class.
+	 * @return Serializer.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	final Serializer<?> create(final Kryo kryo, final Class type)
+	{
+		switch (this)
+		{
+			case TAGGED:
+				return new TaggedFieldSerializer(kryo, type);
+			case COMPATIBLE:
+				return new CompatibleFieldSerializer(kryo, type);
+			default:
+				return new FieldSerializer(kryo, type);
+		}
+	}
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInputStream;
+import com.esotericsoftware.kryo.io.ByteBufferOutputStream;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Bounded pool of Kryo instances used by the {@link KryoSerializer}.
+ * <p>
+ * An instance is borrowed for one operation and returned afterwards. When the
+ * pool is empty, a new instance is created, and when it is full, the returned
+ * instance is dropped, so the pool never holds more than its capacity however
+ * many threads serialize. An instance failing an operation is not returned
+ * since Kryo does not reset its state in that case.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+final class KryoPool
+{
+	/**
+	 * Initial size of an output buffer.
+	 */
+	private static final int INITIAL_SIZE = 1024;
+
+	/**
+	 * Maximum size of an output buffer kept in the pool. A buffer grown
+	 * beyond this size by a large object is replaced by a new one.
+	 */
+	private static final int RETAINED_SIZE = 1024 * 1024;
+
+	/**
+	 * Empty buffer of the idle inputs, so that the pool does not retain the
+	 * arrays of the callers.
+	 */
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Kryo instances of one operation and their reusable buffers.
+	 */
+	static final class Entry
+	{
+		/**
+		 * Registry of the instances, {@code null} if the registration is not
+		 * required.
+		 */
+		private final KryoRegistry registry;
+
+		/**
+		 * Do the instances read the values of unregistered classes?
+		 */
+		private final boolean migration;
+
+		/**
+		 * Field strategies of the instances.
+		 */
+		private final Map<String, KryoFieldStrategy> strategies;
+
+		/**
+		 * Are the arrays of {@code int} and {@code long} written with a fixed
+		 * width?
+		 */
+		private final boolean fixedWidth;
+
+		/**
+		 * Kryo instance writing the values.
+		 */
+		final Kryo writer;
+
+		/**
+		 * Kryo instance reading the values.
+		 */
+		final Kryo reader;
+
+		/**
+		 * Reusable output.
+		 */
+		private Output output = new Output(INITIAL_SIZE, -1);
+
+		/**
+		 * Reusable output writing in place into the array of a caller.
+		 */
+		private final Output wrapper = new Output(EMPTY, -1);
+
+		/**
+		 * Reusable input.
+		 */
+		private final Input input = new Input(EMPTY);
+
+		/**
+		 * Reusable input staging the bytes read from a stream.
+		 */
+		private final Input streamInput = new Input(INITIAL_SIZE);
+
+		/**
+		 * Reusable stream writing into a byte buffer.
+		 */
+		private final ByteBufferOutputStream bufferOutput = new ByteBufferOutputStream(null);
+
+		/**
+		 * Reusable stream reading from a byte buffer.
+		 */
+		private final ByteBufferInputStream bufferInput = new ByteBufferInputStream(null);
+
+		/**
+		 * Creates the Kryo instances.
+		 * <p>
+		 * In registration mode, the reader does not require the registration
+		 * since Kryo keeps the class names read from one value to the next
+		 * when it does, which would resolve the names of a value written
+		 * without registry to the classes of a previous value. The reader
+		 * resolves the names of the registered classes only, or of any class
+		 * for the migration reader.
+		 * <p>
+		 * @param registry Registry of the classes, may be {@code null}.
+		 * @param migration Are the values of unregistered classes read?
+		 * @param strategies Field strategies per class or package name.
+		 * @param fixedWidth Are the arrays of {@code int} and {@code long}
+		 * written with a fixed width?
+		 */
+		Entry(final KryoRegistry registry, final boolean migration, final Map<String, KryoFieldStrategy> strategies, final boolean fixedWidth)
+		{
+			this.registry = registry;
+			this.migration = migration;
+			this.strategies = strategies;
+			this.fixedWidth = fixedWidth;
+			writer = KryoSerializer.create(registry, registry != null, strategies, fixedWidth);
+			if (registry == null)
+			{
+				reader = writer;
+			}
+			else
+			{
+				reader = KryoSerializer.create(registry, false, strategies, fixedWidth);
+				if (!migration)
+				{
+					reader.setClassLoader(registry.classLoader(reader.getClassLoader()));
+				}
+			}
+		}
+
+		/**
+		 * Returns the cleared reusable output.
+		 * <p>
+		 * @param size Maximum buffer size or -1 for no maximum.
+		 * @return Output, a new one if the reusable buffer exceeds the
+		 * maximum size.
+		 */
+		final Output output(final int size)
+		{
+			if (size != -1 && output.getBuffer().length > size)
+			{
+				return new Output(Math.min(INITIAL_SIZE, size), size);
+			}
+			output.setBuffer(output.getBuffer(), size);
+
+			return output;
+		}
+
+		/**
+		 * Returns the reusable output staging the bytes written to a stream.
+		 * <p>
+		 * @param stream Stream receiving the bytes once the output is flushed.
+		 * @return Output.
+		 */
+		final Output output(final OutputStream stream)
+		{
+			output.setBuffer(output.getBuffer(), -1);
+			output.setOutputStream(stream);
+
+			return output;
+		}
+
+		/**
+		 * Returns the reusable output staging the bytes written to a byte
+		 * buffer from its position.
+		 * <p>
+		 * @param buffer Byte buffer receiving the bytes once the output is
+		 * flushed.
+		 * @return Output.
+		 */
+		final Output output(final ByteBuffer buffer)
+		{
+			bufferOutput.setByteBuffer(buffer);
+
+			return output(bufferOutput);
+		}
+
+		/**
+		 * Returns the reusable output writing in place into an array of bytes
+		 * up to its end.
+		 * <p>
+		 * @param bytes Array of bytes.
+		 * @param offset Offset of the first byte written.
+		 * @return Output.
+		 */
+		final Output wrap(final byte[] bytes, final int offset)
+		{
+			wrapper.setBuffer(bytes, bytes.length);
+			wrapper.setPosition(offset);
+
+			return wrapper;
+		}
+
+		/**
+		 * Returns the reusable input staging the bytes read from a stream.
+		 * <p>
+		 * @param stream Stream.
+		 * @return Input, its {@code total()} being the number of bytes
+		 * consumed.
+		 */
+		final Input input(final InputStream stream)
+		{
+			streamInput.setBuffer(streamInput.getBuffer());
+			streamInput.setInputStream(stream);
+
+			return streamInput;
+		}
+
+		/**
+		 * Returns the reusable input staging the bytes read from a byte buffer
+		 * from its position.
+		 * <p>
+		 * @param buffer Byte buffer, read ahead of the consumed bytes.
+		 * @return Input, its {@code total()} being the number of bytes
+		 * consumed.
+		 */
+		final Input input(final ByteBuffer buffer)
+		{
+			bufferInput.setByteBuffer(buffer);
+
+			return input(bufferInput);
+		}
+
+		/**
+		 * Returns the reusable input set on a region of an array of bytes.
+		 * <p>
+		 * @param bytes Array of bytes.
+		 * @param offset Offset of the region.
+		 * @param length Length of the region.
+		 * @return Input.
+		 */
+		final Input input(final byte[] bytes, final int offset, final int length)
+		{
+			// The limit of a Kryo input is an absolute position, not a length.
+			input.setBuffer(bytes, offset, offset + length);
+
+			return input;
+		}
+
+		/**
+		 * Releases the buffers after an operation.
+		 */
+		private void clear()
+		{
+			input.setBuffer(EMPTY);
+			wrapper.setBuffer(EMPTY, -1);
+			output.setOutputStream(null);
+			streamInput.setInputStream(null);
+			bufferOutput.setByteBuffer(null);
+			bufferInput.setByteBuffer(null);
+			if (output.getBuffer().length > RETAINED_SIZE)
+			{
+				output = new Output(INITIAL_SIZE, -1);
+			}
+		}
+	}
+
+	/**
+	 * Idle instances.
+	 */
+	private final BlockingQueue<Entry> idle;
+
+	/**
+	 * Creates a new pool.
+	 * <p>
+	 * @param capacity Maximum number of idle instances.
+	 */
+	KryoPool(final int capacity)
+	{
+		idle = new ArrayBlockingQueue<>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Borrows an instance, dropping the idle instances created for another
+	 * configuration.
+	 * <p>
+	 * @param registry Registry of the classes, may be {@code null}.
+	 * @param migration Are the values of unregistered classes read?
+	 * @param strategies Field strategies per class or package name.
+	 * @param fixedWidth Are the arrays of {@code int} and {@code long} written
+	 * with a fixed width?
+	 * @return Instance.
+	 */
+	final Entry borrow(final KryoRegistry registry, final boolean migration, final Map<String, KryoFieldStrategy> strategies, final boolean fixedWidth)
+	{
+		Entry entry = idle.poll();
+		while (entry != null && (entry.registry != registry || entry.migration != migration || entry.strategies != strategies || entry.fixedWidth != fixedWidth))
+		{
+			entry = idle.poll();
+		}
+
+		return entry == null ? new Entry(registry, migration, strategies, fixedWidth) : entry;
+	}
+
+	/**
+	 * Returns an instance to the pool, shrinking its buffers. The instance is
+	 * dropped if the pool is full.
+	 * <p>
+	 * @param entry Instance.
+	 */
+	final void release(final Entry entry)
+	{
+		entry.clear();
+		idle.offer(entry);
+	}
+
+	/**
+	 * Drops the idle instances.
+	 */
+	final void clear()
+	{
+		idle.clear();
+	}
+
+	/**
+	 * Returns the number of idle instances.
+	 * <p>
+	 * @return Number of idle instances.
+	 */
+	final int size()
+	{
+		return idle.size();
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+
+/**
+ * Versioned registry of the class identifiers written by the
+ * {@link KryoSerializer} in registration mode (see
+ * {@link KryoSerializer#setRegistry(KryoRegistry, boolean)}).
+ * <p>
+ * Without a registry, each value of a class unknown to Kryo is preceded by
+ * the fully qualified name of its class. With a registry, the class is
+ * written as a variable length identifier of one or two bytes. Since the
+ * identifiers are persisted with the values, they must never change: a new
+ * version of a registry may only add identifiers (see
+ * {@link #checkCompatible(KryoRegistry)}). The identifiers start at
+ * {@value #FIRST_ID}, the lower ones being taken by the classes registered by
+ * Kryo and the serializer itself.
+ * <p>
+ * A registry is built by {@link #register(int, Class)} or loaded from a
+ * properties file holding its {@code version} and one
+ * {@code <identifier>=<class name>} line per class, e.g.:
+ *
+ * <pre>
+ * version=2
+ * 100=java.util.ArrayList
+ * 101=java.util.HashMap
+ * 102=com.acme.Customer
+ * </pre>
+ *
+ * A registry is frozen once installed in the serializer.
+ * <hr>
+ * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class KryoRegistry
+{
+	/**
+	 * First identifier of a registered class.
+	 */
+	public static final int FIRST_ID = 100;
+
+	/**
+	 * Version of the registry.
+	 */
+	private final int version;
+
+	/**
+	 * Registered classes per identifier.
+	 */
+	private final Map<Integer, Class<?>> classes = new TreeMap<>();
+
+	/**
+	 * Is the registry installed in the serializer?
+	 */
+	private volatile boolean frozen;
+
+	/**
+	 * Creates a new empty registry.
+	 * <p>
+	 * @param version Version of the registry.
+	 */
+	public KryoRegistry(final int version)
+	{
+		if (version < 0)
+		{
+			throw new IllegalArgumentException("Invalid registry version: " + version);
+		}
+
+		this.version = version;
+	}
+
+	/**
+	 * Loads a registry from a properties file.
+	 * <p>
+	 * @param path Path of the file.
+	 * @return Registry.
+	 * @throws IOException Thrown if the file cannot be read.
+	 * @throws IllegalArgumentException Thrown if the file is invalid or a
+	 * class cannot be found.
+	 */
+	public static KryoRegistry load(final Path path) throws IOException
+	{
+		Properties properties = new Properties();
+		try (InputStream input = Files.newInputStream(path))
+		{
+			properties.load(input);
+		}
+
+		return fromProperties(properties);
+	}
+
+	/**
+	 * Creates a registry from properties.
+	 * <p>
+	 * @param properties Version and identifiers of the registry.
+	 * @return Registry.
+	 * @throws IllegalArgumentException Thrown if a property is invalid or a
+	 * class cannot be found.
+	 */
+	public static KryoRegistry fromProperties(final Properties properties)
+	{
+		String version = properties.getProperty("version");
+		if (version == null)
+		{
+			throw new IllegalArgumentException("Missing registry version");
+		}
+
+		KryoRegistry registry = new KryoRegistry(Integer.parseInt(version.trim()));
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		for (String key : properties.stringPropertyNames())
+		{
+			if ("version".equals(key))
+			{
+				continue;
+			}
+
+			String name = properties.getProperty(key).trim();
+			try
+			{
+				registry.register(Integer.parseInt(key.trim()), Class.forName(name, false, loader == null ? KryoRegistry.class.getClassLoader() : loader));
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Invalid registry identifier: " + key, e);
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new IllegalArgumentException("Unknown registry class: " + key + "=" + name, e);
+			}
+		}
+
+		return registry;
+	}
+
+	/**
+	 * Registers a class.
+	 * <p>
+	 * @param id Identifier of the class.
+	 * @param type Class.
+	 * @return This registry.
+	 * @throws IllegalArgumentException Thrown if the identifier is below
+	 * {@value #FIRST_ID} or if the identifier or the class is already
+	 * registered.
+	 * @throws IllegalStateException Thrown if the registry is installed.
+	 */
+	public final synchronized KryoRegistry register(final int id, final Class<?> type)
+	{
+		if (frozen)
+		{
+			throw new IllegalStateException("Registry version " + version + " is installed");
+		}
+		if (id < FIRST_ID)
+		{
+			throw new IllegalArgumentException("Invalid registry identifier: " + id + " < " + FIRST_ID);
+		}
+		if (classes.containsKey(Integer.valueOf(id)))
+		{
+			throw new IllegalArgumentException("Identifier " + id + " already registered: " + classes.get(Integer.valueOf(id)).getName());
+		}
+		if (classes.containsValue(type))
+		{
+			throw new IllegalArgumentException("Class already registered: " + type.getName());
+		}
+
+		classes.put(Integer.valueOf(id), type);
+
+		return this;
+	}
+
+	/**
+	 * Checks this registry can read the values written with a previous
+	 * version, i.e. its version is not older and it maps each identifier of
+	 * the previous version to the same class.
+	 * <p>
+	 * @param previous Previous version of the registry.
+	 * @throws IllegalStateException Thrown if the registries are not
+	 * compatible.
+	 */
+	public final void checkCompatible(final KryoRegistry previous)
+	{
+		if (previous.version > version)
+		{
+			throw new IllegalStateException("Registry version " + version + " is older than version " + previous.version);
+		}
+
+		Map<Integer, Class<?>> current = getClasses();
+		for (Map.Entry<Integer, Class<?>> entry : previous.getClasses().entrySet())
+		{
+			Class<?> type = current.get(entry.getKey());
+			if (type == null || !type.getName().equals(entry.getValue().getName()))
+			{
+				throw new IllegalStateException("Registry version " + version + " maps identifier " + entry.getKey() + " to " + (type == null ? "nothing" : type.getName()) + " instead of " + entry.getValue().getName());
+			}
+		}
+	}
+
+	/**
+	 * Registers the classes into a Kryo instance.
+	 * <p>
+	 * @param kryo Kryo instance.
+	 * @throws IllegalStateException Thrown if an identifier is taken by
+	 * another class or a class is already registered by the serializer.
+	 */
+	final void install(final Kryo kryo)
+	{
+		for (Map.Entry<Integer, Class<?>> entry : getClasses().entrySet())
+		{
+			int id = entry.getKey().intValue();
+			Registration taken = kryo.getClassResolver().getRegistration(id);
+			if (taken != null)
+			{
+				throw new IllegalStateException("Identifier " + id + " is taken by " + taken.getType().getName());
+			}
+			Registration existing = kryo.getClassResolver().getRegistration(entry.getValue());
+			if (existing != null)
+			{
+				throw new IllegalStateException("Class " + entry.getValue().getName() + " is already registered with identifier " + existing.getId());
+			}
+			kryo.register(entry.getValue(), id);
+		}
+	}
+
+	/**
+	 * Returns a class loader resolving the names of the registered classes
+	 * only, so that reading a value of an unregistered class written without
+	 * registry fails.
+	 * <p>
+	 * @param parent Class loader of the registered classes.
+	 * @return Class loader.
+	 */
+	final ClassLoader classLoader(final ClassLoader parent)
+	{
+		final Set<String> names = new HashSet<>();
+		for (Class<?> type : getClasses().values())
+		{
+			names.add(type.getName());
+		}
+
+		return new ClassLoader(parent)
+		{
+			@Override
+			protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+			{
+				if (!names.contains(name))
+				{
+					throw new ClassNotFoundException("Class is not registered: " + name);
+				}
+
+				return super.loadClass(name, resolve);
+			}
+		};
+	}
+
+	/**
+	 * Freezes the registry when it is installed.
+	 */
+	final void freeze()
+	{
+		frozen = true;
+	}
+
+	/**
+	 * Returns the version of the registry.
+	 * <p>
+	 * @return Version.
+	 */
+	public final int getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Returns the registered classes.
+	 * <p>
+	 * @return Classes per identifier.
+	 */
+	public final synchronized Map<Integer, Class<?>> getClasses()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(classes));
+	}
+}
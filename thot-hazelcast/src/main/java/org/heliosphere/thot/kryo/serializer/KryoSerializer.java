@@ -11,9 +11,14 @@
  */
 package org.heliosphere.thot.kryo.serializer;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationHandler;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -21,9 +26,11 @@ import java.util.Date;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.Map;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
@@ -49,97 +56,100 @@ import de.javakaffee.kryoserializers.UnmodifiableCollectionsSerializer;
 
 /**
  * Kryo serializer.
+ * <p>
+ * By default, the registration of the classes is not required: a value of a
+ * class unknown to Kryo is preceded by the fully qualified name of its class.
+ * In registration mode, enabled by {@link #setRegistry(KryoRegistry, boolean)}
+ * or by the {@code thot.kryo.registry} system property naming a registry file
+ * (see {@link KryoRegistry}), the classes are written as their identifier in
+ * the registry and writing a value of an unregistered class fails fast.
+ * Values written before the registry was enabled remain readable as long as
+ * their classes are registered; with the migration reader, enabled by the
+ * {@code thot.kryo.registry.migration} system property, they are read even
+ * if their classes are not registered.
+ * <p>
+ * The classes without a dedicated serializer are serialized field by field
+ * with the strategy set for their class or package (see
+ * {@link #setFieldStrategy(String, KryoFieldStrategy)}), so that the values
+ * of a class whose fields change between releases remain readable.
+ * <p>
+ * The arrays of primitives are copied in bulk in big-endian byte order (see
+ * {@link #setFixedWidthArrays(boolean)}).
+ * <p>
+ * Each operation borrows its Kryo instances and their reusable buffers from a
+ * bounded pool rather than keeping them per thread, so that a value grown
+ * large does not pin its buffer and the instances are not multiplied by the
+ * number of threads.
  * <hr>
  * @author <a href="mailto:christophe.resse@hotmail.com">Resse Christophe</a>
  * @version 1.0.0
  */
+@SuppressWarnings("nls")
 public final class KryoSerializer
 {
 	/**
-	 * Dedicated thread for Kryo.
+	 * Registry of the classes, {@code null} if the registration is not
+	 * required.
 	 */
-	private static final ThreadLocal<Kryo> thread = new ThreadLocal<Kryo>()
+	private static volatile KryoRegistry registry;
+
+	/**
+	 * Are the values of unregistered classes read in registration mode?
+	 */
+	private static volatile boolean migration;
+
+	/**
+	 * Field strategies per class or package name, the empty name holding the
+	 * default strategy. The map is replaced on each change.
+	 */
+	private static volatile Map<String, KryoFieldStrategy> strategies = Collections.emptyMap();
+
+	/**
+	 * Are the arrays of {@code int} and {@code long} written with a fixed
+	 * width?
+	 */
+	private static volatile boolean fixedWidthArrays = Boolean.getBoolean("thot.kryo.fixedwidtharrays");
+
+	/**
+	 * Pool of the Kryo instances, holding at most {@code thot.kryo.pool.size}
+	 * idle instances (twice the number of processors by default).
+	 */
+	private static final KryoPool pool = new KryoPool(Integer.getInteger("thot.kryo.pool.size", 2 * Runtime.getRuntime().availableProcessors()).intValue());
+
+	static
 	{
-		@SuppressWarnings("nls")
-		@Override
-		protected Kryo initialValue()
+		String strategy = System.getProperty("thot.kryo.strategy");
+		if (strategy != null)
+		{
+			setFieldStrategy("", KryoFieldStrategy.fromLabel(strategy));
+		}
+		String names = System.getProperty("thot.kryo.strategies");
+		if (names != null)
 		{
-			Kryo kryo = new KryoReflectionFactorySupport()
+			for (String name : names.split(","))
 			{
-
-				@Override
-				@SuppressWarnings({ "rawtypes", "unchecked" })
-				public Serializer<?> getDefaultSerializer(final Class type)
+				int separator = name.indexOf('=');
+				if (separator < 0)
 				{
-					if (EnumSet.class.isAssignableFrom(type))
-					{
-						return new EnumSetSerializer();
-					}
-					if (EnumMap.class.isAssignableFrom(type))
-					{
-						return new EnumMapSerializer();
-					}
-					if (Collection.class.isAssignableFrom(type))
-					{
-						return new CopyForIterateCollectionSerializer();
-					}
-					if (Map.class.isAssignableFrom(type))
-					{
-						return new CopyForIterateMapSerializer();
-					}
-					if (Date.class.isAssignableFrom(type))
-					{
-						return new DateSerializer(type);
-					}
-
-					return super.getDefaultSerializer(type);
+					throw new IllegalArgumentException("Invalid field strategy: " + name);
 				}
-			};
-
-			kryo.setRegistrationRequired(false);
-
-			kryo.register(Arrays.asList("").getClass(), new ArraysAsListSerializer());
-			kryo.register(Collections.EMPTY_LIST.getClass(), new CollectionsEmptyListSerializer());
-			kryo.register(Collections.EMPTY_MAP.getClass(), new CollectionsEmptyMapSerializer());
-			kryo.register(Collections.EMPTY_SET.getClass(), new CollectionsEmptySetSerializer());
-			kryo.register(Collections.singletonList("").getClass(), new CollectionsSingletonListSerializer());
-			kryo.register(Collections.singleton("").getClass(), new CollectionsSingletonSetSerializer());
-			kryo.register(Collections.singletonMap("", "").getClass(), new CollectionsSingletonMapSerializer());
-			kryo.register(BigDecimal.class, new DefaultSerializers.BigDecimalSerializer());
-			kryo.register(BigInteger.class, new DefaultSerializers.BigIntegerSerializer());
-			kryo.register(GregorianCalendar.class, new GregorianCalendarSerializer());
-			kryo.register(InvocationHandler.class, new JdkProxySerializer());
-			//			kryo.register(Pattern.class, new RegexSerializer());
-			//			kryo.register(BitSet.class, new BitSetSerializer());
-			//			kryo.register(URI.class, new URISerializer());
-			//			kryo.register(UUID.class, new UUIDSerializer());
-
-			UnmodifiableCollectionsSerializer.registerSerializers(kryo);
-			SynchronizedCollectionsSerializer.registerSerializers(kryo);
-
-			//			try
-			//			{
-			//				Class<?> clazz = Class.forName("org.joda.time.DateTime");
-			//				Serializer<?> serializer = (Serializer<?>) Class.forName("de.javakaffee.kryoserializers.jodatime.JodaDateTimeSerializer").newInstance();
-			//				kryo.register(clazz, serializer);
-			//			}
-			//			catch (Throwable thex)
-			//			{
-			//			}
-			//
-			//			try
-			//			{
-			//				Class<?> clazz = Class.forName("de.javakaffee.kryoserializers.cglib.CGLibProxySerializer$CGLibProxyMarker");
-			//				Serializer<?> serializer = (Serializer<?>) Class.forName("de.javakaffee.kryoserializers.cglib.CGLibProxySerializer").newInstance();
-			//				kryo.register(clazz, serializer);
-			//			}
-			//			catch (Throwable thex)
-			//			{
-			//			}
-
-			return kryo;
+				setFieldStrategy(name.substring(0, separator).trim(), KryoFieldStrategy.fromLabel(name.substring(separator + 1)));
+			}
 		}
-	};
+
+		String path = System.getProperty("thot.kryo.registry");
+		if (path != null)
+		{
+			try
+			{
+				setRegistry(KryoRegistry.load(Paths.get(path)), Boolean.getBoolean("thot.kryo.registry.migration"));
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Cannot load the Kryo registry: " + path, e);
+			}
+		}
+	}
 
 	/**
 	 * Creates a new kryo serializer.
@@ -148,6 +158,278 @@ public final class KryoSerializer
 	{
 	}
 
+	/**
+	 * Creates a Kryo instance.
+	 * <p>
+	 * @param registry Registry of the classes, may be {@code null}.
+	 * @param required Is the registration of the classes required?
+	 * @param strategies Field strategies per class or package name.
+	 * @param fixedWidth Are the arrays of {@code int} and {@code long} written
+	 * with a fixed width?
+	 * @return Kryo instance.
+	 */
+	static Kryo create(final KryoRegistry registry, final boolean required, final Map<String, KryoFieldStrategy> strategies, final boolean fixedWidth)
+	{
+		Kryo kryo = new KryoReflectionFactorySupport()
+		{
+			@Override
+			@SuppressWarnings("rawtypes")
+			protected Serializer<?> newDefaultSerializer(final Class type)
+			{
+				KryoFieldStrategy strategy = getFieldStrategy(strategies, type);
+
+				return strategy == KryoFieldStrategy.FIELD || !strategy.appliesTo(type) ? super.newDefaultSerializer(type) : strategy.create(this, type);
+			}
+
+			@Override
+			@SuppressWarnings({ "rawtypes", "unchecked" })
+			public Serializer<?> getDefaultSerializer(final Class type)
+			{
+				if (EnumSet.class.isAssignableFrom(type))
+				{
+					return new EnumSetSerializer();
+				}
+				if (EnumMap.class.isAssignableFrom(type))
+				{
+					return new EnumMapSerializer();
+				}
+				if (Collection.class.isAssignableFrom(type))
+				{
+					return new CopyForIterateCollectionSerializer();
+				}
+				if (Map.class.isAssignableFrom(type))
+				{
+					return new CopyForIterateMapSerializer();
+				}
+				if (Date.class.isAssignableFrom(type))
+				{
+					return new DateSerializer(type);
+				}
+
+				return super.getDefaultSerializer(type);
+			}
+		};
+
+		// Registration is required once the serializer and the registry classes are registered.
+		kryo.setRegistrationRequired(false);
+
+		kryo.register(Arrays.asList("").getClass(), new ArraysAsListSerializer());
+		kryo.register(Collections.EMPTY_LIST.getClass(), new CollectionsEmptyListSerializer());
+		kryo.register(Collections.EMPTY_MAP.getClass(), new CollectionsEmptyMapSerializer());
+		kryo.register(Collections.EMPTY_SET.getClass(), new CollectionsEmptySetSerializer());
+		kryo.register(Collections.singletonList("").getClass(), new CollectionsSingletonListSerializer());
+		kryo.register(Collections.singleton("").getClass(), new CollectionsSingletonSetSerializer());
+		kryo.register(Collections.singletonMap("", "").getClass(), new CollectionsSingletonMapSerializer());
+		kryo.register(BigDecimal.class, new DefaultSerializers.BigDecimalSerializer());
+		kryo.register(BigInteger.class, new DefaultSerializers.BigIntegerSerializer());
+		kryo.register(GregorianCalendar.class, new GregorianCalendarSerializer());
+		kryo.register(InvocationHandler.class, new JdkProxySerializer());
+		//			kryo.register(Pattern.class, new RegexSerializer());
+		//			kryo.register(BitSet.class, new BitSetSerializer());
+		//			kryo.register(URI.class, new URISerializer());
+		//			kryo.register(UUID.class, new UUIDSerializer());
+
+		UnmodifiableCollectionsSerializer.registerSerializers(kryo);
+		SynchronizedCollectionsSerializer.registerSerializers(kryo);
+		KryoArraySerializers.addDefaultSerializers(kryo, fixedWidth);
+
+		//			try
+		//			{
+		//				Class<?> clazz = Class.forName("org.joda.time.DateTime");
+		//				Serializer<?> serializer = (Serializer<?>) Class.forName("de.javakaffee.kryoserializers.jodatime.JodaDateTimeSerializer").newInstance();
+		//				kryo.register(clazz, serializer);
+		//			}
+		//			catch (Throwable thex)
+		//			{
+		//			}
+		//
+		//			try
+		//			{
+		//				Class<?> clazz = Class.forName("de.javakaffee.kryoserializers.cglib.CGLibProxySerializer$CGLibProxyMarker");
+		//				Serializer<?> serializer = (Serializer<?>) Class.forName("de.javakaffee.kryoserializers.cglib.CGLibProxySerializer").newInstance();
+		//				kryo.register(clazz, serializer);
+		//			}
+		//			catch (Throwable thex)
+		//			{
+		//			}
+
+		if (registry != null)
+		{
+			registry.install(kryo);
+		}
+		kryo.setRegistrationRequired(required);
+
+		return kryo;
+	}
+
+	/**
+	 * Enables or disables the registration mode.
+	 * <p>
+	 * The idle Kryo instances of the pool are dropped. A registry replacing
+	 * another one must be compatible with it, see
+	 * {@link KryoRegistry#checkCompatible(KryoRegistry)}.
+	 * <p>
+	 * @param registry Registry of the classes, {@code null} to disable the
+	 * registration mode.
+	 * @param migration Are the values of classes missing from the registry
+	 * still read, e.g. values written before the registry was enabled?
+	 * @throws IllegalStateException Thrown if the registry is not compatible
+	 * with the current one or conflicts with the classes registered by the
+	 * serializer.
+	 */
+	public static synchronized void setRegistry(final KryoRegistry registry, final boolean migration)
+	{
+		if (registry != null)
+		{
+			KryoRegistry current = KryoSerializer.registry;
+			if (current != null && current != registry)
+			{
+				registry.checkCompatible(current);
+			}
+
+			// Conflicts are reported here rather than by the first use of each pooled instance.
+			create(registry, true, strategies, fixedWidthArrays);
+			registry.freeze();
+		}
+
+		KryoSerializer.migration = migration;
+		KryoSerializer.registry = registry;
+		pool.clear();
+	}
+
+	/**
+	 * Returns the registry of the classes.
+	 * <p>
+	 * @return Registry or {@code null} if the registration mode is disabled.
+	 */
+	public static KryoRegistry getRegistry()
+	{
+		return registry;
+	}
+
+	/**
+	 * Sets the field strategy of a class, of the classes of a package and its
+	 * sub-packages, or the default strategy. The most specific name applies.
+	 * <p>
+	 * The strategy applies to the classes serialized field by field, i.e.
+	 * without a dedicated serializer. The idle Kryo instances of the pool are
+	 * dropped. The strategies can also be set by the {@code thot.kryo.strategy}
+	 * system property holding the default strategy and by the
+	 * {@code thot.kryo.strategies} system property holding a comma separated
+	 * list of {@code <name>=<strategy>} pairs, e.g.
+	 * {@code com.acme=compatible,com.acme.Order=tagged}.
+	 * <p>
+	 * @param name Fully qualified name of the class or the package, empty for
+	 * the default strategy.
+	 * @param strategy Strategy, {@code null} to remove the strategy of the
+	 * name.
+	 */
+	public static synchronized void setFieldStrategy(final String name, final KryoFieldStrategy strategy)
+	{
+		Map<String, KryoFieldStrategy> copy = new HashMap<>(strategies);
+		if (strategy == null)
+		{
+			copy.remove(name);
+		}
+		else
+		{
+			copy.put(name, strategy);
+		}
+
+		strategies = Collections.unmodifiableMap(copy);
+		pool.clear();
+	}
+
+	/**
+	 * Returns the field strategy of a class.
+	 * <p>
+	 * @param type Class.
+	 * @return Strategy of the most specific name, {@link KryoFieldStrategy#FIELD}
+	 * if none is set.
+	 */
+	public static KryoFieldStrategy getFieldStrategy(final Class<?> type)
+	{
+		return getFieldStrategy(strategies, type);
+	}
+
+	/**
+	 * Returns the field strategy of a class.
+	 * <p>
+	 * @param strategies Field strategies per class or package name.
+	 * @param type Class.
+	 * @return Strategy.
+	 */
+	private static KryoFieldStrategy getFieldStrategy(final Map<String, KryoFieldStrategy> strategies, final Class<?> type)
+	{
+		String name = type.getName();
+		while (true)
+		{
+			KryoFieldStrategy strategy = strategies.get(name);
+			if (strategy != null)
+			{
+				return strategy;
+			}
+			if (name.isEmpty())
+			{
+				return KryoFieldStrategy.FIELD;
+			}
+			name = name.substring(0, Math.max(0, name.lastIndexOf('.')));
+		}
+	}
+
+	/**
+	 * Enables or disables the fixed width arrays of {@code int} and
+	 * {@code long}, also enabled by the {@code thot.kryo.fixedwidtharrays}
+	 * system property.
+	 * <p>
+	 * Kryo writes their elements as variable length integers, one by one.
+	 * With a fixed width, the elements are copied in bulk in big-endian byte
+	 * order, faster but larger for small values. The arrays of
+	 * {@code double}, {@code float}, {@code short} and {@code char} are
+	 * always copied in bulk, their format being the same as Kryo's. The
+	 * setting is part of the format of the stored values and the idle Kryo
+	 * instances of the pool are dropped.
+	 * <p>
+	 * @param fixedWidth Are the arrays of {@code int} and {@code long} written
+	 * with a fixed width?
+	 */
+	public static synchronized void setFixedWidthArrays(final boolean fixedWidth)
+	{
+		fixedWidthArrays = fixedWidth;
+		pool.clear();
+	}
+
+	/**
+	 * Returns whether the arrays of {@code int} and {@code long} are written
+	 * with a fixed width.
+	 * <p>
+	 * @return {@code true} if they are written with a fixed width.
+	 */
+	public static boolean isFixedWidthArrays()
+	{
+		return fixedWidthArrays;
+	}
+
+	/**
+	 * Borrows Kryo instances of the current configuration from the pool.
+	 * <p>
+	 * @return Pooled instances.
+	 */
+	private static KryoPool.Entry borrow()
+	{
+		return pool.borrow(registry, migration, strategies, fixedWidthArrays);
+	}
+
+	/**
+	 * Returns the number of idle Kryo instances in the pool.
+	 * <p>
+	 * @return Number of idle instances.
+	 */
+	public static int getPooledCount()
+	{
+		return pool.size();
+	}
+
 	/**
 	 * Writes the given object.
 	 * <p>
@@ -168,11 +450,78 @@ public final class KryoSerializer
 	 */
 	public static byte[] write(final Object object, final int size)
 	{
-		Kryo kryo = thread.get();
-		Output output = new Output(1024, size);
-		kryo.writeClassAndObject(output, object);
+		KryoPool.Entry entry = borrow();
+		Output output = entry.output(size);
+		entry.writer.writeClassAndObject(output, object);
+		byte[] bytes = output.toBytes();
+		pool.release(entry);
 
-		return output.toBytes();
+		return bytes;
+	}
+
+	/**
+	 * Writes the given object into the given output.
+	 * <p>
+	 * The output is not cleared before writing, hence a caller reusing the
+	 * same output for several objects must clear it first.
+	 * <p>
+	 * @param object Object to write.
+	 * @param output Output receiving the serialized object.
+	 */
+	public static void write(final Object object, final Output output)
+	{
+		KryoPool.Entry entry = borrow();
+		entry.writer.writeClassAndObject(output, object);
+		pool.release(entry);
+	}
+
+	/**
+	 * Writes the given object into a byte buffer, heap or direct, from its
+	 * position which is moved after the serialized object.
+	 * <p>
+	 * The object is written in place into the array of a heap buffer ending
+	 * at the end of its array, otherwise it is staged through a small pooled
+	 * buffer, never through an array of the size of the object.
+	 * <p>
+	 * @param object Object to write.
+	 * @param buffer Byte buffer receiving the serialized object.
+	 * @throws KryoException Thrown if the buffer is too small, its content
+	 * and position are then undefined. A {@code BufferOverflowException} may
+	 * be thrown instead for a direct buffer.
+	 */
+	public static void write(final Object object, final ByteBuffer buffer)
+	{
+		KryoPool.Entry entry = borrow();
+		if (buffer.hasArray() && buffer.arrayOffset() + buffer.limit() == buffer.array().length)
+		{
+			Output output = entry.wrap(buffer.array(), buffer.arrayOffset() + buffer.position());
+			entry.writer.writeClassAndObject(output, object);
+			buffer.position(output.position() - buffer.arrayOffset());
+		}
+		else
+		{
+			Output output = entry.output(buffer);
+			entry.writer.writeClassAndObject(output, object);
+			output.flush();
+		}
+		pool.release(entry);
+	}
+
+	/**
+	 * Writes the given object into a stream, staged through a small pooled
+	 * buffer. The stream is neither flushed nor closed.
+	 * <p>
+	 * @param object Object to write.
+	 * @param stream Stream receiving the serialized object.
+	 * @throws KryoException Thrown if the stream fails.
+	 */
+	public static void write(final Object object, final OutputStream stream)
+	{
+		KryoPool.Entry entry = borrow();
+		Output output = entry.output(stream);
+		entry.writer.writeClassAndObject(output, object);
+		output.flush();
+		pool.release(entry);
 	}
 
 	/**
@@ -183,9 +532,91 @@ public final class KryoSerializer
 	 */
 	public static Object read(final byte[] bytes)
 	{
-		Kryo kryo = thread.get();
-		Input input = new Input(bytes);
+		return read(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Reads an object from a region of an array of bytes without copying it.
+	 * <p>
+	 * @param bytes Array of bytes containing the serialized object.
+	 * @param offset Offset of the serialized object in the array.
+	 * @param length Length of the serialized object.
+	 * @return Deserialized object.
+	 */
+	public static Object read(final byte[] bytes, final int offset, final int length)
+	{
+		KryoPool.Entry entry = borrow();
+		Object object = entry.reader.readClassAndObject(entry.input(bytes, offset, length));
+		pool.release(entry);
+
+		return object;
+	}
+
+	/**
+	 * Reads an object from the given input.
+	 * <p>
+	 * @param input Input positioned on the serialized object.
+	 * @return Deserialized object.
+	 */
+	public static Object read(final Input input)
+	{
+		KryoPool.Entry entry = borrow();
+		Object object = entry.reader.readClassAndObject(input);
+		pool.release(entry);
+
+		return object;
+	}
+
+	/**
+	 * Reads an object from a byte buffer, heap or direct, from its position
+	 * which is moved after the serialized object.
+	 * <p>
+	 * The array of a heap buffer is read in place, a direct buffer is staged
+	 * through a small pooled buffer.
+	 * <p>
+	 * @param buffer Byte buffer positioned on the serialized object.
+	 * @return Deserialized object.
+	 */
+	public static Object read(final ByteBuffer buffer)
+	{
+		KryoPool.Entry entry = borrow();
+		Object object;
+		if (buffer.hasArray())
+		{
+			Input input = entry.input(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			object = entry.reader.readClassAndObject(input);
+			buffer.position(input.position() - buffer.arrayOffset());
+		}
+		else
+		{
+			// The staging input reads ahead of the object.
+			int start = buffer.position();
+			Input input = entry.input(buffer);
+			object = entry.reader.readClassAndObject(input);
+			buffer.position(start + input.total());
+		}
+		pool.release(entry);
+
+		return object;
+	}
+
+	/**
+	 * Reads an object from a stream, staged through a small pooled buffer.
+	 * <p>
+	 * The stream is read ahead of the object, hence it must not be read
+	 * afterwards. A caller reading several objects from the same stream must
+	 * use {@link #read(Input)} with an input kept across the objects.
+	 * <p>
+	 * @param stream Stream positioned on the serialized object.
+	 * @return Deserialized object.
+	 * @throws KryoException Thrown if the stream fails.
+	 */
+	public static Object read(final InputStream stream)
+	{
+		KryoPool.Entry entry = borrow();
+		Object object = entry.reader.readClassAndObject(entry.input(stream));
+		pool.release(entry);
 
-		return kryo.readClassAndObject(input);
+		return object;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,246 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyAsyncStoreMap;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hazelcast.core.MapStore;
+
+/**
+ * A test unit case for the {@link BerkeleyAsyncStoreMap}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyAsyncStoreMapTest
+{
+	/**
+	 * In-memory map store whose writes wait for a gate to open.
+	 */
+	private static final class GatedStore implements MapStore<Integer, String>
+	{
+		/**
+		 * Entries.
+		 */
+		private final Map<Integer, String> entries = new ConcurrentHashMap<>();
+
+		/**
+		 * Gate of the writes.
+		 */
+		private final CountDownLatch gate = new CountDownLatch(1);
+
+		/**
+		 * Waits for the gate to open.
+		 */
+		private void await()
+		{
+			try
+			{
+				gate.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public String load(final Integer key)
+		{
+			return entries.get(key);
+		}
+
+		@Override
+		public Map<Integer, String> loadAll(final Collection<Integer> keys)
+		{
+			Map<Integer, String> map = new HashMap<>();
+			for (Integer key : keys)
+			{
+				map.put(key, entries.get(key));
+			}
+
+			return map;
+		}
+
+		@Override
+		public Iterable<Integer> loadAllKeys()
+		{
+			return entries.keySet();
+		}
+
+		@Override
+		public void store(final Integer key, final String value)
+		{
+			await();
+			entries.put(key, value);
+		}
+
+		@Override
+		public void storeAll(final Map<Integer, String> map)
+		{
+			await();
+			entries.putAll(map);
+		}
+
+		@Override
+		public void delete(final Integer key)
+		{
+			await();
+			entries.remove(key);
+		}
+
+		@Override
+		public void deleteAll(final Collection<Integer> keys)
+		{
+			await();
+			entries.keySet().removeAll(keys);
+		}
+	}
+
+	/**
+	 * Tests the operations are delegated to a {@link BerkeleyStoreMap}.
+	 * <p>
+	 * @throws Exception In case an error occurs while waiting.
+	 */
+	@Test
+	public final void delegation() throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("keycodec", "integer");
+		properties.setProperty("asyncthreads", "3");
+
+		BerkeleyAsyncStoreMap<Integer, String> store = new BerkeleyAsyncStoreMap<>();
+		store.init(null, properties, "BerkeleyAsyncStoreMapTest-delegation");
+		try
+		{
+			Assert.assertTrue(store.getDelegate() instanceof BerkeleyStoreMap);
+
+			Map<Integer, String> entries = new HashMap<>();
+			for (int i = 0; i < 100; i++)
+			{
+				entries.put(Integer.valueOf(i), "value-" + i);
+			}
+			store.storeAll(entries);
+			store.store(Integer.valueOf(100), "value-100");
+
+			Assert.assertEquals("value-100", store.load(Integer.valueOf(100)));
+			Assert.assertEquals("value-7", store.loadAsync(Integer.valueOf(7)).get());
+			List<Integer> keys = new ArrayList<>();
+			for (Integer key : store.loadAllKeys())
+			{
+				keys.add(key);
+			}
+			Assert.assertEquals(101, keys.size());
+			Assert.assertEquals(101, store.loadAllAsync(keys).get().size());
+
+			store.deleteAllAsync(keys).get();
+			Assert.assertTrue(store.loadAll(keys).isEmpty());
+			Assert.assertEquals(0, store.getTimeoutCount());
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests a slow write times out, a write still queued at its timeout is
+	 * cancelled, a full lane rejects the next ones and the writes of a key
+	 * keep their order.
+	 * <p>
+	 * @throws Exception In case an error occurs while waiting.
+	 */
+	@Test
+	public final void timeoutAndBackPressure() throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty("asyncthreads", "1");
+		properties.setProperty("asyncqueuesize", "1");
+		properties.setProperty("asynctimeout", "200");
+
+		GatedStore delegate = new GatedStore();
+		BerkeleyAsyncStoreMap<Integer, String> store = new BerkeleyAsyncStoreMap<>(delegate);
+		store.init(null, properties, "BerkeleyAsyncStoreMapTest-timeout");
+		try
+		{
+			long start = System.nanoTime();
+			try
+			{
+				store.store(Integer.valueOf(1), "first");
+				Assert.fail();
+			}
+			catch (BerkeleyStoreMapException e)
+			{
+				Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+				Assert.assertTrue(e.getMessage().endsWith("0 of 1 task(s) cancelled"));
+			}
+			Assert.assertEquals(1, store.getTimeoutCount());
+
+			try
+			{
+				store.store(Integer.valueOf(2), "cancelled");
+				Assert.fail();
+			}
+			catch (BerkeleyStoreMapException e)
+			{
+				Assert.assertTrue(e.getMessage().endsWith("1 of 1 task(s) cancelled"));
+			}
+			Assert.assertEquals(2, store.getTimeoutCount());
+			Assert.assertEquals(1, store.getPendingCount());
+
+			CompletableFuture<Void> second = store.storeAsync(Integer.valueOf(1), "second");
+			CompletableFuture<Void> rejected = store.storeAsync(Integer.valueOf(2), "rejected");
+			try
+			{
+				rejected.get();
+				Assert.fail();
+			}
+			catch (ExecutionException e)
+			{
+				Assert.assertTrue(e.getCause() instanceof BerkeleyStoreMapException);
+			}
+			Assert.assertEquals(1, store.getRejectedCount());
+			Assert.assertEquals(2, store.getPendingCount());
+
+			delegate.gate.countDown();
+			second.get(10, TimeUnit.SECONDS);
+			Assert.assertEquals("second", store.load(Integer.valueOf(1)));
+			Assert.assertNull(store.load(Integer.valueOf(2)));
+		}
+		finally
+		{
+			delegate.gate.countDown();
+			store.destroy();
+		}
+		Assert.assertEquals(0, store.getPendingCount());
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyBackup;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test unit case for the {@link BerkeleyBackup}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyBackupTest
+{
+	/**
+	 * Returns the properties of a map store.
+	 * <p>
+	 * @param name Name of the environment.
+	 * @return Properties.
+	 */
+	private static Properties properties(final String name)
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", name);
+		properties.setProperty("directory", "target/db/" + name);
+		properties.setProperty("syncinterval", "3");
+		properties.setProperty("logfilemax", "1000000");
+		properties.setProperty("cleanonclose", "false");
+
+		return properties;
+	}
+
+	/**
+	 * Deletes a directory and its files.
+	 * <p>
+	 * @param directory Directory.
+	 */
+	private static void delete(final File directory)
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				Assert.assertTrue(file.delete());
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Counts the keys of a map store.
+	 * <p>
+	 * @param keys Keys returned by {@link BerkeleyStoreMap#loadAllKeys()}.
+	 * @return Number of keys.
+	 * @throws IOException In case an error occurs while closing the keys.
+	 */
+	private static int count(final Iterable<Integer> keys) throws IOException
+	{
+		int count = 0;
+		for (@SuppressWarnings("unused") Integer key : keys)
+		{
+			count++;
+		}
+		((Closeable) keys).close();
+
+		return count;
+	}
+
+	/**
+	 * Stores entries.
+	 * <p>
+	 * @param store Map store.
+	 * @param from First key (inclusive).
+	 * @param to Last key (exclusive).
+	 * @param value Prefix of the values.
+	 */
+	private static void fill(final BerkeleyStoreMap<Integer, String> store, final int from, final int to, final String value)
+	{
+		Map<Integer, String> batch = new HashMap<>();
+		for (int i = from; i < to; i++)
+		{
+			batch.put(Integer.valueOf(i), value + i + "-" + new String(new char[200]).replace('\0', 'x'));
+		}
+		store.storeAll(batch);
+	}
+
+	/**
+	 * Tests an incremental backup only copies the new log files and the
+	 * database of a map is rebuilt from it while the map is in use.
+	 * <p>
+	 * @throws Exception In case an error occurs while backing up.
+	 */
+	@Test
+	public final void backupAndRestoreMap() throws Exception
+	{
+		File backup = new File("target/backup/BerkeleyBackupTest-map");
+		delete(backup);
+		Properties properties = properties("BerkeleyBackupTest-map");
+		delete(new File(properties.getProperty("directory")));
+
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyBackupTest");
+		try
+		{
+			fill(store, 0, 10000, "first-");
+			BerkeleyBackup.Report full = store.backup(backup, 0);
+			Assert.assertFalse(full.isIncremental());
+			Assert.assertTrue(full.getFiles() > 1);
+			Assert.assertTrue(new File(backup, BerkeleyBackup.MANIFEST).exists());
+
+			fill(store, 10000, 12000, "second-");
+			BerkeleyBackup.Report incremental = store.backup(backup, 0);
+			Assert.assertTrue(incremental.isIncremental());
+			Assert.assertTrue(incremental.getBytes() < full.getBytes());
+
+			// Diverges from the backup, then rebuilds the map.
+			fill(store, 0, 100, "third-");
+			store.delete(Integer.valueOf(500));
+			fill(store, 20000, 20100, "fourth-");
+			Assert.assertEquals(12000, store.restore(backup));
+
+			Assert.assertTrue(store.load(Integer.valueOf(0)).startsWith("first-0-"));
+			Assert.assertTrue(store.load(Integer.valueOf(500)).startsWith("first-500-"));
+			Assert.assertTrue(store.load(Integer.valueOf(11999)).startsWith("second-11999-"));
+			Assert.assertNull(store.load(Integer.valueOf(20000)));
+			Assert.assertEquals(12000, count(store.loadAllKeys()));
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests a throttled backup is restored into the directory of a new
+	 * environment.
+	 * <p>
+	 * @throws Exception In case an error occurs while backing up.
+	 */
+	@Test
+	public final void restoreEnvironment() throws Exception
+	{
+		File backup = new File("target/backup/BerkeleyBackupTest-environment");
+		delete(backup);
+		Properties restored = properties("BerkeleyBackupTest-restored");
+		delete(new File(restored.getProperty("directory")));
+		Properties properties = properties("BerkeleyBackupTest-environment");
+		delete(new File(properties.getProperty("directory")));
+
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyBackupTest");
+		try
+		{
+			fill(store, 0, 2000, "value-");
+			BerkeleyBackup.Report report = store.backup(backup, 2 * 1024 * 1024);
+			// At 2 MB/s, the copy cannot be much faster than the bandwidth.
+			Assert.assertTrue(report.toString(), report.getDuration() >= report.getBytes() * 1000 / (2 * 1024 * 1024) - 50);
+		}
+		finally
+		{
+			store.destroy();
+		}
+
+		BerkeleyBackup.Report report = BerkeleyBackup.restore(backup, new File(restored.getProperty("directory")), 0);
+		Assert.assertTrue(report.getFiles() > 0);
+		try
+		{
+			BerkeleyBackup.restore(backup, new File(restored.getProperty("directory")), 0);
+			Assert.fail("Expected an IOException");
+		}
+		catch (IOException e)
+		{
+			// Expected, the directory is not empty.
+		}
+
+		store = new BerkeleyStoreMap<>();
+		store.init(null, restored, "BerkeleyBackupTest");
+		try
+		{
+			Assert.assertEquals(2000, count(store.loadAllKeys()));
+			Assert.assertTrue(store.load(Integer.valueOf(1999)).startsWith("value-1999-"));
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyCompressor;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A test unit case for the {@link BerkeleyCompressor}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+public final class BerkeleyCompressorTest
+{
+	/**
+	 * Returns a value made of repetitive strings.
+	 * <p>
+	 * @param i Value number.
+	 * @param size Number of entries of the value.
+	 * @return Value.
+	 */
+	@SuppressWarnings("nls")
+	private static HashMap<String, String> value(final int i, final int size)
+	{
+		HashMap<String, String> value = new HashMap<>();
+		for (int j = 0; j < size; j++)
+		{
+			value.put("attribute-" + j, "customer-" + i + "-region-europe-currency-euro-" + j);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Stores a value and reads it back.
+	 * <p>
+	 * @param compressor Compressor.
+	 * @param value Value.
+	 * @return Stored size.
+	 */
+	private static int roundTrip(final BerkeleyCompressor compressor, final Object value)
+	{
+		byte[] serialized = KryoSerializer.write(value);
+		Output output = compressor.compress(serialized, serialized.length);
+		byte[] stored = output.toBytes();
+
+		Assert.assertEquals(value, compressor.read(stored, 0, stored.length));
+		Assert.assertArrayEquals(serialized, compressor.decompress(stored, 0, stored.length));
+
+		return stored.length;
+	}
+
+	/**
+	 * Tests small values are stored as is and large ones are compressed.
+	 */
+	@Test
+	public final void threshold()
+	{
+		BerkeleyCompressor compressor = new BerkeleyCompressor(6, 512, null);
+
+		HashMap<String, String> small = value(1, 2);
+		Assert.assertEquals(KryoSerializer.write(small).length + 1, roundTrip(compressor, small));
+
+		HashMap<String, String> large = value(1, 100);
+		Assert.assertTrue(roundTrip(compressor, large) < KryoSerializer.write(large).length / 3);
+	}
+
+	/**
+	 * Tests a trained dictionary improves the compression of small values and
+	 * is required to read them.
+	 */
+	@Test
+	public final void dictionary()
+	{
+		List<byte[]> samples = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+		{
+			samples.add(KryoSerializer.write(value(i, 3)));
+		}
+		byte[] dictionary = BerkeleyCompressor.train(samples, 4096);
+		Assert.assertTrue(dictionary.length > 0);
+
+		BerkeleyCompressor plain = new BerkeleyCompressor(6, 64, null);
+		BerkeleyCompressor primed = new BerkeleyCompressor(6, 64, dictionary);
+		HashMap<String, String> value = value(1000, 3);
+		Assert.assertTrue(roundTrip(primed, value) < roundTrip(plain, value));
+
+		byte[] serialized = KryoSerializer.write(value);
+		byte[] stored = primed.compress(serialized, serialized.length).toBytes();
+		Assert.assertEquals(BerkeleyCompressor.DEFLATE_DICTIONARY, stored[0]);
+		try
+		{
+			plain.read(stored, 0, stored.length);
+			Assert.fail("Expected an IllegalStateException");
+		}
+		catch (IllegalStateException e)
+		{
+			// Expected, the dictionary is missing.
+		}
+	}
+
+	/**
+	 * Tests a map store compressing its values with a dictionary file.
+	 * <p>
+	 * @throws Exception In case an error occurs while writing the dictionary.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void mapStoreCompression() throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("compression", "deflate");
+		properties.setProperty("compressionthreshold", "64");
+
+		BerkeleyStoreMap<Integer, HashMap<String, String>> store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyCompressorTest");
+		byte[] dictionary;
+		try
+		{
+			Map<Integer, HashMap<String, String>> entries = new HashMap<>();
+			for (int i = 0; i < 100; i++)
+			{
+				entries.put(Integer.valueOf(i), value(i, 10));
+			}
+			store.storeAll(entries);
+			Assert.assertEquals(value(7, 10), store.load(Integer.valueOf(7)));
+
+			dictionary = store.trainDictionary(50, 4096);
+			store.deleteAll(new ArrayList<>(entries.keySet()));
+		}
+		finally
+		{
+			store.destroy();
+		}
+
+		File file = new File("target/db/BerkeleyCompressorTest.dictionary");
+		Files.write(file.toPath(), dictionary);
+		properties.setProperty("compressiondictionary", file.getPath());
+
+		store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyCompressorTest-dictionary");
+		try
+		{
+			store.store(Integer.valueOf(1), value(1000, 10));
+			Assert.assertEquals(value(1000, 10), store.load(Integer.valueOf(1)));
+			store.delete(Integer.valueOf(1));
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+}
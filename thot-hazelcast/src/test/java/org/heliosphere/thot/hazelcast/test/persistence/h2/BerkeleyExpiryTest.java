@@ -0,0 +1,214 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyCodecs;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyConsumer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyScanConsumer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test unit case for the expiration of the entries of a
+ * {@link BerkeleyStoreMap}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyExpiryTest
+{
+	/**
+	 * Returns the properties of a map store whose values live one second.
+	 * <p>
+	 * @param sweepInterval Interval between two sweeps in seconds.
+	 * @return Properties.
+	 */
+	private static Properties properties(final int sweepInterval)
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("keycodec", "integer");
+		properties.setProperty("valuecachesize", "1048576");
+		properties.setProperty("compression", "deflate");
+		properties.setProperty("compressionthreshold", "16");
+		properties.setProperty("ttl", "1");
+		properties.setProperty("ttlsweepinterval", String.valueOf(sweepInterval));
+
+		return properties;
+	}
+
+	/**
+	 * Stores customers.
+	 * <p>
+	 * @param store Map store.
+	 * @param from First key (inclusive).
+	 * @param to Last key (exclusive).
+	 */
+	private static void fill(final BerkeleyStoreMap<Integer, HashMap<String, String>> store, final int from, final int to)
+	{
+		Map<Integer, HashMap<String, String>> entries = new HashMap<>();
+		for (int i = from; i < to; i++)
+		{
+			HashMap<String, String> customer = new HashMap<>();
+			customer.put("name", "customer-" + i);
+			customer.put("age", String.valueOf(i % 100));
+			entries.put(Integer.valueOf(i), customer);
+		}
+		store.storeAll(entries);
+	}
+
+	/**
+	 * Tests the expired entries are skipped by the loads, the scans and the
+	 * queries, then deleted by a sweep.
+	 * <p>
+	 * @throws Exception In case an error occurs while waiting.
+	 */
+	@Test
+	public final void expiration() throws Exception
+	{
+		BerkeleyStoreMap<Integer, HashMap<String, String>> store = new BerkeleyStoreMap<>();
+		store.addIndex("age", new BerkeleyIndexTest.AgeExtractor(), BerkeleyKeyCodecs.INTEGER);
+		store.init(null, properties(0), "BerkeleyExpiryTest-expiration");
+		try
+		{
+			fill(store, 0, 100);
+			Assert.assertEquals("customer-5", store.load(Integer.valueOf(5)).get("name"));
+			Thread.sleep(1100);
+			fill(store, 100, 150);
+
+			Assert.assertNull(store.load(Integer.valueOf(5)));
+			Assert.assertEquals("customer-120", store.load(Integer.valueOf(120)).get("name"));
+			Assert.assertEquals(1, store.loadAll(new ArrayList<>(Arrays.asList(Integer.valueOf(6), Integer.valueOf(130)))).size());
+
+			int keys = 0;
+			Iterable<Integer> source = store.loadAllKeys();
+			for (Integer key : source)
+			{
+				Assert.assertTrue(key.intValue() >= 100);
+				keys++;
+			}
+			((Closeable) source).close();
+			Assert.assertEquals(50, keys);
+
+			final List<Integer> scanned = new ArrayList<>();
+			store.scan(null, null, new BerkeleyScanConsumer<Integer, HashMap<String, String>>()
+			{
+				@Override
+				public boolean accept(final Integer key, final HashMap<String, String> value)
+				{
+					return scanned.add(key);
+				}
+			});
+			Assert.assertEquals(50, scanned.size());
+
+			final List<Integer> queried = new ArrayList<>();
+			store.queryKeysRange("age", Integer.valueOf(0), Integer.valueOf(100), new BerkeleyKeyConsumer<Integer>()
+			{
+				@Override
+				public boolean accept(final Integer key)
+				{
+					return queried.add(key);
+				}
+			});
+			Assert.assertEquals(50, queried.size());
+			Assert.assertTrue(store.getMetrics().getExpiredSkippedCount() >= 2 + 2 * 100);
+
+			Assert.assertEquals(100, store.sweep());
+			Assert.assertEquals(0, store.sweep());
+			Assert.assertEquals(100, store.getMetrics().getExpiredSweptCount());
+
+			List<Integer> remaining = new ArrayList<>();
+			for (int i = 100; i < 150; i++)
+			{
+				remaining.add(Integer.valueOf(i));
+			}
+			store.deleteAll(remaining);
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests the expired entries are deleted in the background.
+	 * <p>
+	 * @throws Exception In case an error occurs while waiting.
+	 */
+	@Test
+	public final void backgroundSweep() throws Exception
+	{
+		BerkeleyStoreMap<Integer, HashMap<String, String>> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(1), "BerkeleyExpiryTest-backgroundSweep");
+		try
+		{
+			fill(store, 0, 10);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (store.getMetrics().getExpiredSweptCount() < 10 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(100);
+			}
+			Assert.assertEquals(10, store.getMetrics().getExpiredSweptCount());
+			Assert.assertEquals(0, store.sweep());
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests the entries expired while the map was closed are deleted when it
+	 * is opened, before the initial load.
+	 * <p>
+	 * @throws Exception In case an error occurs while waiting.
+	 */
+	@Test
+	public final void sweepOnOpen() throws Exception
+	{
+		BerkeleyStoreMap<Integer, HashMap<String, String>> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(0), "BerkeleyExpiryTest-sweepOnOpen");
+		try
+		{
+			fill(store, 0, 10);
+		}
+		finally
+		{
+			store.destroy();
+		}
+		Thread.sleep(1100);
+
+		store = new BerkeleyStoreMap<>();
+		store.init(null, properties(0), "BerkeleyExpiryTest-sweepOnOpen");
+		try
+		{
+			Assert.assertEquals(10, store.getMetrics().getExpiredSweptCount());
+			Assert.assertFalse(store.loadAllKeys().iterator().hasNext());
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyIndexExtractor;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyCodecs;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyConsumer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyScanConsumer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test unit case for the secondary indexes of a {@link BerkeleyStoreMap}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyIndexTest
+{
+	/**
+	 * Extractor of the city of a customer.
+	 */
+	public static final class CityExtractor implements BerkeleyIndexExtractor<HashMap<String, String>>
+	{
+		@Override
+		public Object extract(final HashMap<String, String> value)
+		{
+			return value.get("city");
+		}
+	}
+
+	/**
+	 * Extractor of the age of a customer.
+	 */
+	public static final class AgeExtractor implements BerkeleyIndexExtractor<HashMap<String, String>>
+	{
+		@Override
+		public Object extract(final HashMap<String, String> value)
+		{
+			String age = value.get("age");
+			return age == null ? null : Integer.valueOf(age);
+		}
+	}
+
+	/**
+	 * Returns the properties of a map store.
+	 * <p>
+	 * @return Properties.
+	 */
+	private static Properties properties()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+		properties.setProperty("syncinterval", "0");
+
+		return properties;
+	}
+
+	/**
+	 * Returns a customer.
+	 * <p>
+	 * @param i Customer number.
+	 * @return Customer.
+	 */
+	private static HashMap<String, String> customer(final int i)
+	{
+		HashMap<String, String> customer = new HashMap<>();
+		customer.put("name", "customer-" + i);
+		customer.put("city", "city-" + i % 10);
+		customer.put("age", String.valueOf(i % 100));
+
+		return customer;
+	}
+
+	/**
+	 * Collects the keys of a query.
+	 */
+	private static final class Keys implements BerkeleyKeyConsumer<Integer>, BerkeleyScanConsumer<Integer, HashMap<String, String>>
+	{
+		final TreeSet<Integer> keys = new TreeSet<>();
+		final List<HashMap<String, String>> values = new ArrayList<>();
+
+		@Override
+		public boolean accept(final Integer key)
+		{
+			return keys.add(key);
+		}
+
+		@Override
+		public boolean accept(final Integer key, final HashMap<String, String> value)
+		{
+			values.add(value);
+			return keys.add(key);
+		}
+	}
+
+	/**
+	 * Tests the equality and range queries follow the writes of the map.
+	 */
+	@Test
+	public final void query()
+	{
+		BerkeleyStoreMap<Integer, HashMap<String, String>> store = new BerkeleyStoreMap<>();
+		store.addIndex("city", new CityExtractor(), BerkeleyKeyCodecs.KRYO);
+		store.addIndex("age", new AgeExtractor(), BerkeleyKeyCodecs.INTEGER);
+		store.init(null, properties(), "BerkeleyIndexTest-query");
+		try
+		{
+			Map<Integer, HashMap<String, String>> entries = new HashMap<>();
+			for (int i = 0; i < 1000; i++)
+			{
+				entries.put(Integer.valueOf(i), customer(i));
+			}
+			store.storeAll(entries);
+
+			Keys city = new Keys();
+			store.query("city", "city-3", city);
+			Assert.assertEquals(100, city.keys.size());
+			for (HashMap<String, String> value : city.values)
+			{
+				Assert.assertEquals("city-3", value.get("city"));
+			}
+
+			Keys keys = new Keys();
+			store.queryKeys("city", "city-3", keys);
+			Assert.assertEquals(city.keys, keys.keys);
+			Assert.assertTrue(keys.values.isEmpty());
+
+			Keys young = new Keys();
+			store.queryKeysRange("age", Integer.valueOf(-5), Integer.valueOf(2), young);
+			Assert.assertEquals(20, young.keys.size());
+			for (Integer key : young.keys)
+			{
+				Assert.assertTrue(key.intValue() % 100 < 2);
+			}
+
+			// Updates and deletes are reflected by the indexes.
+			HashMap<String, String> moved = customer(3);
+			moved.put("city", "city-moved");
+			store.store(Integer.valueOf(3), moved);
+			store.delete(Integer.valueOf(13));
+			Keys after = new Keys();
+			store.queryKeys("city", "city-3", after);
+			Assert.assertEquals(98, after.keys.size());
+			Keys movedKeys = new Keys();
+			store.queryKeys("city", "city-moved", movedKeys);
+			Assert.assertEquals(1, movedKeys.keys.size());
+
+			// Stop after the first entry.
+			final int[] count = { 0 };
+			store.queryRange("age", null, null, new BerkeleyScanConsumer<Integer, HashMap<String, String>>()
+			{
+				@Override
+				public boolean accept(final Integer key, final HashMap<String, String> value)
+				{
+					count[0]++;
+					return false;
+				}
+			});
+			Assert.assertEquals(1, count[0]);
+
+			try
+			{
+				store.queryRange("city", "a", "b", city);
+				Assert.fail("Expected an UnsupportedOperationException");
+			}
+			catch (UnsupportedOperationException e)
+			{
+				// Expected, the kryo codec is not ordered.
+			}
+			try
+			{
+				store.queryKeys("unknown", "a", keys);
+				Assert.fail("Expected an IllegalArgumentException");
+			}
+			catch (IllegalArgumentException e)
+			{
+				// Expected.
+			}
+
+			store.deleteAll(new ArrayList<>(entries.keySet()));
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests an index declared by the properties of an existing map is
+	 * populated from its entries.
+	 */
+	@Test
+	public final void populate()
+	{
+		BerkeleyStoreMap<Integer, HashMap<String, String>> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(), "BerkeleyIndexTest-populate");
+		try
+		{
+			for (int i = 0; i < 100; i++)
+			{
+				store.store(Integer.valueOf(i), customer(i));
+			}
+		}
+		finally
+		{
+			store.destroy();
+		}
+
+		Properties properties = properties();
+		properties.setProperty("index.age", AgeExtractor.class.getName());
+		properties.setProperty("index.age.codec", "integer");
+		store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyIndexTest-populate");
+		try
+		{
+			Keys keys = new Keys();
+			store.queryKeysRange("age", Integer.valueOf(90), null, keys);
+			Assert.assertEquals(10, keys.keys.size());
+			Assert.assertEquals(Integer.valueOf(90), keys.keys.first());
+
+			for (int i = 0; i < 100; i++)
+			{
+				store.delete(Integer.valueOf(i));
+			}
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+}
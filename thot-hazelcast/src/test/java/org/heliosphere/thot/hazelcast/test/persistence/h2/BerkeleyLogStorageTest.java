@@ -0,0 +1,377 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyConsumer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyLogStorage;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStorageStoreMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test unit case for the {@link BerkeleyLogStorage} and the
+ * {@link BerkeleyStorageStoreMap}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyLogStorageTest
+{
+	/**
+	 * Directory of the logs.
+	 */
+	private static final String DIRECTORY = "target/db/BerkeleyLogStorageTest";
+
+	/**
+	 * Returns the properties of a log of small segments, compacted on demand.
+	 * <p>
+	 * @return Properties.
+	 */
+	private static Properties properties()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("directory", DIRECTORY);
+		properties.setProperty("logsegmentsize", "4096");
+		properties.setProperty("logcompactioninterval", "0");
+
+		return properties;
+	}
+
+	/**
+	 * Opens the log of a map, deleting its previous segments if asked to.
+	 * <p>
+	 * @param mapName Name of the map.
+	 * @param clean Are the previous segments deleted?
+	 * @return Log.
+	 */
+	private static BerkeleyLogStorage open(final String mapName, final boolean clean)
+	{
+		if (clean)
+		{
+			File[] files = new File(DIRECTORY, mapName + ".log").listFiles();
+			if (files != null)
+			{
+				for (File file : files)
+				{
+					Assert.assertTrue(file.delete());
+				}
+			}
+		}
+
+		BerkeleyLogStorage log = new BerkeleyLogStorage();
+		log.open(mapName, properties());
+
+		return log;
+	}
+
+	/**
+	 * Returns the binary form of a string.
+	 * <p>
+	 * @param value String.
+	 * @return Array of bytes.
+	 */
+	private static byte[] bytes(final String value)
+	{
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the string of a binary form.
+	 * <p>
+	 * @param value Array of bytes, may be {@code null}.
+	 * @return String or {@code null}.
+	 */
+	private static String string(final byte[] value)
+	{
+		return value == null ? null : new String(value, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a value.
+	 * <p>
+	 * @param log Log.
+	 * @param key Key.
+	 * @param value Value.
+	 */
+	private static void put(final BerkeleyLogStorage log, final String key, final String value)
+	{
+		byte[] data = bytes(value);
+		log.put(bytes(key), data, 0, data.length);
+	}
+
+	/**
+	 * Tests the writes, the deletes and their replay when the log is opened
+	 * again, including after a torn write.
+	 * <p>
+	 * @throws Exception In case an error occurs while corrupting the log.
+	 */
+	@Test
+	public final void recovery() throws Exception
+	{
+		BerkeleyLogStorage log = open("recovery", true);
+		try
+		{
+			for (int i = 0; i < 300; i++)
+			{
+				put(log, "key-" + i, "value-" + i);
+			}
+			put(log, "key-1", "updated");
+			Assert.assertTrue(log.delete(bytes("key-2")));
+			Assert.assertFalse(log.delete(bytes("key-2")));
+			Assert.assertEquals("updated", string(log.get(bytes("key-1"))));
+			Assert.assertNull(log.get(bytes("key-2")));
+			Assert.assertEquals(299, log.count());
+			Assert.assertTrue(log.getSegmentCount() > 1);
+		}
+		finally
+		{
+			log.close();
+		}
+
+		log = open("recovery", false);
+		try
+		{
+			Assert.assertEquals(299, log.count());
+			Assert.assertEquals("updated", string(log.get(bytes("key-1"))));
+			Assert.assertEquals("value-99", string(log.get(bytes("key-99"))));
+			Assert.assertNull(log.get(bytes("key-2")));
+			put(log, "key-300", "value-300");
+		}
+		finally
+		{
+			log.close();
+		}
+
+		// A torn write leaves a record whose CRC does not match.
+		File[] segments = new File(DIRECTORY, "recovery.log").listFiles();
+		File last = segments[0];
+		for (File segment : segments)
+		{
+			last = segment.getName().compareTo(last.getName()) > 0 ? segment : last;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(last, "rw"))
+		{
+			byte[] content = new byte[(int) file.length()];
+			file.readFully(content);
+			String text = new String(content, StandardCharsets.ISO_8859_1);
+			file.seek(text.indexOf("value-300"));
+			file.write('X');
+		}
+
+		log = open("recovery", false);
+		try
+		{
+			Assert.assertNull(log.get(bytes("key-300")));
+			Assert.assertEquals(299, log.count());
+			put(log, "key-101", "value-101");
+			Assert.assertEquals("value-101", string(log.get(bytes("key-101"))));
+		}
+		finally
+		{
+			log.close();
+		}
+	}
+
+	/**
+	 * Tests the compaction reclaims the overwritten and deleted records
+	 * without resurrecting the deleted keys.
+	 */
+	@Test
+	public final void compaction()
+	{
+		BerkeleyLogStorage log = open("compaction", true);
+		try
+		{
+			for (int round = 0; round < 10; round++)
+			{
+				for (int i = 0; i < 50; i++)
+				{
+					put(log, "key-" + i, "value-" + i + "-" + round);
+				}
+			}
+			for (int i = 0; i < 25; i++)
+			{
+				Assert.assertTrue(log.delete(bytes("key-" + i)));
+			}
+
+			long size = log.getSize();
+			int segments = log.getSegmentCount();
+			Assert.assertTrue(log.compact() > 0);
+			Assert.assertTrue(log.getSize() < size);
+			Assert.assertTrue(log.getSegmentCount() < segments);
+			Assert.assertEquals(25, log.count());
+			Assert.assertEquals("value-30-9", string(log.get(bytes("key-30"))));
+		}
+		finally
+		{
+			log.close();
+		}
+
+		log = open("compaction", false);
+		try
+		{
+			Assert.assertEquals(25, log.count());
+			Assert.assertNull(log.get(bytes("key-0")));
+			Assert.assertEquals("value-49-9", string(log.get(bytes("key-49"))));
+
+			final Set<String> keys = new HashSet<>();
+			log.keys(new BerkeleyKeyConsumer<byte[]>()
+			{
+				@Override
+				public boolean accept(final byte[] key)
+				{
+					return keys.add(string(key));
+				}
+			});
+			Assert.assertEquals(25, keys.size());
+			Assert.assertTrue(keys.contains("key-25"));
+		}
+		finally
+		{
+			log.close();
+		}
+	}
+
+	/**
+	 * Tests the same map store operations against both backends.
+	 */
+	@Test
+	public final void storeMap()
+	{
+		for (String storage : new String[] { "berkeley", "log" })
+		{
+			Properties properties = properties();
+			properties.setProperty("environment", "BerkeleyLogStorageTest");
+			properties.setProperty("syncinterval", "0");
+			properties.setProperty("keycodec", "integer");
+			properties.setProperty("storage", storage);
+			properties.setProperty("loadchunksize", "7");
+
+			String mapName = "BerkeleyLogStorageTest-" + storage;
+			BerkeleyStorageStoreMap<Integer, String> store = new BerkeleyStorageStoreMap<>();
+			store.init(null, properties, mapName);
+			try
+			{
+				Map<Integer, String> entries = new HashMap<>();
+				for (int i = 0; i < 100; i++)
+				{
+					entries.put(Integer.valueOf(i), "value-" + i);
+				}
+				store.storeAll(entries);
+				store.store(Integer.valueOf(100), "value-100");
+				store.delete(Integer.valueOf(0));
+				List<Integer> deleted = new ArrayList<>();
+				deleted.add(Integer.valueOf(1));
+				deleted.add(Integer.valueOf(2));
+				store.deleteAll(deleted);
+
+				Assert.assertEquals("value-50", store.load(Integer.valueOf(50)));
+				Assert.assertNull(store.load(Integer.valueOf(0)));
+				Assert.assertEquals(2, store.loadAll(Arrays.asList(Integer.valueOf(2), Integer.valueOf(3), Integer.valueOf(4))).size());
+
+				Set<Integer> keys = new HashSet<>();
+				for (Integer key : store.loadAllKeys())
+				{
+					keys.add(key);
+				}
+				Assert.assertEquals(98, keys.size());
+				Assert.assertTrue(keys.contains(Integer.valueOf(100)));
+
+				List<Integer> all = new ArrayList<>(keys);
+				store.deleteAll(all);
+				Assert.assertEquals(0, store.getStorage().count());
+			}
+			finally
+			{
+				store.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Tests the map stores of the log backend share a scheduler shut down
+	 * with the last of them, and register their metrics without an
+	 * environment.
+	 * <p>
+	 * @throws Exception In case an error occurs.
+	 */
+	@Test
+	public final void sharedScheduler() throws Exception
+	{
+		List<BerkeleyStorageStoreMap<Integer, String>> stores = new ArrayList<>();
+		try
+		{
+			for (int i = 0; i < 2; i++)
+			{
+				Properties properties = properties();
+				properties.setProperty("syncinterval", "1");
+				properties.setProperty("keycodec", "integer");
+				properties.setProperty("storage", "log");
+
+				BerkeleyStorageStoreMap<Integer, String> store = new BerkeleyStorageStoreMap<>();
+				store.init(null, properties, "BerkeleyLogStorageTest-shared-" + i);
+				stores.add(store);
+				store.store(Integer.valueOf(i), "value-" + i);
+				Assert.assertNull(store.getMetrics().getObjectName().getKeyProperty("environment"));
+			}
+			Assert.assertTrue(schedulerRunning());
+
+			stores.remove(0).destroy();
+			Assert.assertTrue(schedulerRunning());
+		}
+		finally
+		{
+			for (BerkeleyStorageStoreMap<Integer, String> store : stores)
+			{
+				store.destroy();
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (schedulerRunning() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		Assert.assertFalse(schedulerRunning());
+	}
+
+	/**
+	 * Is a thread of the scheduler shared by the log backends alive?
+	 * <p>
+	 * @return {@code true} if a thread of the scheduler is alive.
+	 */
+	private static boolean schedulerRunning()
+	{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if (thread.isAlive() && thread.getName().startsWith(BerkeleyStorageStoreMap.class.getSimpleName() + "-sync-"))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyHistogram;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapMetrics;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapMetrics.Operation;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test unit case for the {@link BerkeleyStoreMapMetrics}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyStoreMapMetricsTest
+{
+	/**
+	 * Tests the percentiles of a histogram are within its precision.
+	 */
+	@Test
+	public final void histogram()
+	{
+		BerkeleyHistogram histogram = new BerkeleyHistogram();
+		Assert.assertEquals(0, histogram.getPercentile(99));
+
+		for (long i = 1; i <= 100000; i++)
+		{
+			histogram.record(i);
+		}
+		Assert.assertEquals(100000, histogram.getCount());
+		Assert.assertEquals(100000, histogram.getMax());
+		Assert.assertEquals(50000.5, histogram.getMean(), 0.001);
+		for (double percentile : new double[] { 1, 50, 90, 99, 99.9 })
+		{
+			double expected = percentile * 1000;
+			long actual = histogram.getPercentile(percentile);
+			Assert.assertTrue(percentile + ":" + actual, actual >= expected && actual <= expected * 1.125);
+		}
+		Assert.assertEquals(100000, histogram.getPercentile(100));
+
+		histogram.record(7);
+		histogram.clear();
+		Assert.assertEquals(0, histogram.getCount());
+	}
+
+	/**
+	 * Tests the operations of a map store are recorded and published through
+	 * JMX.
+	 * <p>
+	 * @throws Exception In case an error occurs while reading the MBean.
+	 */
+	@Test
+	public final void mapStoreMetrics() throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("keycodec", "integer");
+
+		BerkeleyStoreMap<Object, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyStoreMapMetricsTest");
+		ObjectName name = store.getMetrics().getObjectName();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			BerkeleyStoreMapMetrics metrics = store.getMetrics();
+			Assert.assertNotNull(name);
+
+			store.store(Integer.valueOf(1), "value-1");
+			Map<Object, String> batch = new HashMap<>();
+			for (int i = 2; i < 12; i++)
+			{
+				batch.put(Integer.valueOf(i), "value-" + i);
+			}
+			store.storeAll(batch);
+			Assert.assertEquals("value-1", store.load(Integer.valueOf(1)));
+			Assert.assertEquals(2, store.loadAll(Arrays.<Object> asList(Integer.valueOf(1), Integer.valueOf(5), Integer.valueOf(99))).size());
+
+			// Rejected by the integer key codec.
+			store.store("one", "value");
+
+			Assert.assertEquals(2, metrics.getLatency(Operation.STORE).getCount());
+			Assert.assertEquals(1, metrics.getErrorCount(Operation.STORE));
+			Assert.assertEquals(1, metrics.getLatency(Operation.STORE_ALL).getCount());
+			Assert.assertEquals(1, metrics.getLatency(Operation.LOAD).getCount());
+			Assert.assertEquals(1, metrics.getLatency(Operation.LOAD_ALL).getCount());
+			Assert.assertEquals(2, metrics.getLatency(Operation.SYNC).getCount());
+			Assert.assertEquals(10, metrics.getBatchSizes().getMax());
+			Assert.assertTrue(metrics.getBytesWritten() > 11 * 4);
+			Assert.assertTrue(metrics.getBytesRead() > 3 * 7);
+
+			Map<String, Number> snapshot = metrics.snapshot();
+			Assert.assertEquals(Long.valueOf(2), snapshot.get("store.count"));
+			Assert.assertEquals(Long.valueOf(1), snapshot.get("store.errors"));
+			Assert.assertTrue(snapshot.get("store.p99").doubleValue() > 0);
+			Assert.assertTrue(snapshot.containsKey("je.cacheHitRatio"));
+			Assert.assertTrue(snapshot.containsKey("je.cleanerBacklog"));
+			Assert.assertTrue(snapshot.containsKey("je.checkpointAge"));
+
+			Assert.assertEquals(Long.valueOf(2), server.getAttribute(name, "store.count"));
+			Assert.assertNotNull(server.getAttribute(name, "je.cacheHitRatio"));
+			Assert.assertEquals(2, server.getAttributes(name, new String[] { "store.count", "batch.max", "unknown" }).size());
+			Assert.assertTrue(server.getMBeanInfo(name).getAttributes().length == snapshot.size());
+
+			store.deleteAll(Arrays.<Object> asList(Integer.valueOf(1), Integer.valueOf(2)));
+			store.deleteAll(batch.keySet());
+			Assert.assertEquals(2, metrics.getLatency(Operation.DELETE_ALL).getCount());
+		}
+		finally
+		{
+			store.destroy();
+		}
+		Assert.assertFalse(server.isRegistered(name));
+	}
+
+	/**
+	 * Tests the maps of a same name in two environments have their own MBean.
+	 */
+	@Test
+	public final void mbeanNames()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+		properties.setProperty("syncinterval", "0");
+		BerkeleyStoreMap<Object, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyStoreMapMetricsTest-names");
+
+		Properties otherProperties = new Properties();
+		otherProperties.setProperty("environment", "BerkeleyStoreMapMetricsTest");
+		otherProperties.setProperty("directory", "target/db/BerkeleyStoreMapMetricsTest");
+		otherProperties.setProperty("syncinterval", "0");
+		BerkeleyStoreMap<Object, String> other = new BerkeleyStoreMap<>();
+		other.init(null, otherProperties, "BerkeleyStoreMapMetricsTest-names");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = store.getMetrics().getObjectName();
+		ObjectName otherName = other.getMetrics().getObjectName();
+		try
+		{
+			Assert.assertNotNull(name);
+			Assert.assertNotNull(otherName);
+			Assert.assertFalse(name.equals(otherName));
+			Assert.assertEquals("BerkeleyStoreMapTest", ObjectName.unquote(name.getKeyProperty("environment")));
+		}
+		finally
+		{
+			other.destroy();
+		}
+		Assert.assertFalse(server.isRegistered(otherName));
+		Assert.assertTrue(server.isRegistered(name));
+		store.destroy();
+		Assert.assertFalse(server.isRegistered(name));
+	}
+}
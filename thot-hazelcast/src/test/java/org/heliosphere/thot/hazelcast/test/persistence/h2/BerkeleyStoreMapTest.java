@@ -0,0 +1,662 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyCompositeKey;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyEntryBuffer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyEnvironment;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyCodec;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyCodecs;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyScanConsumer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapException;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleySyncScheduler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.sleepycat.je.DatabaseConfig;
+
+/**
+ * A test unit case for the {@link BerkeleyStoreMap} used directly, i.e.
+ * without any {@code Hazelcast} cluster.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+public final class BerkeleyStoreMapTest
+{
+	private final static int iterations = 1000;
+	private BerkeleyStoreMap<Integer, String> store = null;
+
+	/**
+	 * Sets up the fixture.
+	 * <p>
+	 * @throws Exception In case an error occurs during the setup phase.
+	 */
+	@SuppressWarnings("nls")
+	@Before
+	public final void setUp() throws Exception
+	{
+		Properties properties = properties();
+		properties.setProperty("syncinterval", "0");
+
+		store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyStoreMapTest");
+	}
+
+	/**
+	 * Returns the properties of a map of the test environment.
+	 * <p>
+	 * @return Properties.
+	 */
+	@SuppressWarnings("nls")
+	private static Properties properties()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+
+		return properties;
+	}
+
+	/**
+	 * Tears down the fixture.
+	 * <p>
+	 * @throws Exception In case an error occurs during the tear down phase.
+	 */
+	@After
+	public final void tearDown() throws Exception
+	{
+		store.destroy();
+	}
+
+	/**
+	 * Tests storing and deleting records in batches.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void storeAllAndDeleteAll()
+	{
+		Map<Integer, String> entries = new HashMap<>();
+		List<Integer> keys = new ArrayList<>();
+		for (int i = 0; i < iterations; i++)
+		{
+			entries.put(Integer.valueOf(i), "value-" + i);
+			keys.add(Integer.valueOf(i));
+		}
+
+		store.storeAll(entries);
+		for (int i = 0; i < iterations; i++)
+		{
+			Assert.assertEquals("value-" + i, store.load(Integer.valueOf(i)));
+		}
+
+		store.deleteAll(keys);
+		for (int i = 0; i < iterations; i++)
+		{
+			Assert.assertNull(store.load(Integer.valueOf(i)));
+		}
+	}
+
+	/**
+	 * Tests a batch with an entry failing to be serialized reports the failed
+	 * key and still stores the other entries.
+	 */
+	@SuppressWarnings({ "nls", "rawtypes", "unchecked" })
+	@Test
+	public final void storeAllReportsFailures()
+	{
+		Map entries = new HashMap<>();
+		entries.put(Integer.valueOf(1), "value-1");
+		entries.put(Integer.valueOf(2), new Unserializable());
+
+		try
+		{
+			((BerkeleyStoreMap) store).storeAll(entries);
+			Assert.fail("Expected a BerkeleyStoreMapException");
+		}
+		catch (BerkeleyStoreMapException e)
+		{
+			Assert.assertEquals(1, e.getFailures().size());
+			Assert.assertTrue(e.getFailures().containsKey(Integer.valueOf(2)));
+		}
+
+		// Only the failed entry is left in the batch so that a retry only stores it.
+		Assert.assertEquals(1, entries.size());
+		Assert.assertTrue(entries.containsKey(Integer.valueOf(2)));
+		Assert.assertEquals("value-1", store.load(Integer.valueOf(1)));
+		Assert.assertNull(store.load(Integer.valueOf(2)));
+
+		store.delete(Integer.valueOf(1));
+	}
+
+	/**
+	 * Tests maps with a synchronization interval share the same scheduler
+	 * which synchronizes dirty databases only.
+	 * <p>
+	 * @throws Exception In case an error occurs while waiting for the
+	 * synchronization.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void sharedSyncScheduler() throws Exception
+	{
+		Properties properties = properties();
+		properties.setProperty("syncinterval", "1");
+
+		BerkeleyStoreMap<Integer, String> other = new BerkeleyStoreMap<>();
+		other.init(null, properties, "BerkeleyStoreMapTest-sync");
+		try
+		{
+			BerkeleySyncScheduler scheduler = other.getSyncScheduler();
+			Assert.assertSame(store.getSyncScheduler(), scheduler);
+
+			long syncs = scheduler.getSyncCount();
+			other.store(Integer.valueOf(1), "value-1");
+			other.store(Integer.valueOf(2), "value-2");
+			Assert.assertEquals(1, scheduler.getDirtyCount());
+
+			long timeout = System.currentTimeMillis() + 10000;
+			while (scheduler.getSyncCount() == syncs && System.currentTimeMillis() < timeout)
+			{
+				Thread.sleep(100);
+			}
+			Assert.assertEquals(0, scheduler.getDirtyCount());
+			Assert.assertEquals(syncs + 1, scheduler.getSyncCount());
+
+			other.deleteAll(new ArrayList<>(Arrays.asList(Integer.valueOf(1), Integer.valueOf(2))));
+		}
+		finally
+		{
+			other.destroy();
+		}
+	}
+
+	/**
+	 * Tests maps of different named environments use distinct and configured
+	 * environments.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void namedEnvironments()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest-other");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest-other");
+		properties.setProperty("sharedcache", "false");
+		properties.setProperty("cachesize", "8388608");
+		properties.setProperty("logfilemax", "1048576");
+		properties.setProperty("durability", "write_no_sync");
+
+		BerkeleyStoreMap<Integer, String> other = new BerkeleyStoreMap<>();
+		other.init(null, properties, "BerkeleyStoreMapTest");
+		try
+		{
+			BerkeleyEnvironment environment = other.getEnvironment();
+			Assert.assertNotSame(store.getEnvironment(), environment);
+			Assert.assertNotSame(store.getSyncScheduler(), other.getSyncScheduler());
+			Assert.assertSame(environment, BerkeleyEnvironment.get("BerkeleyStoreMapTest-other"));
+			Assert.assertEquals(new File("target/db/BerkeleyStoreMapTest-other"), environment.getDirectory());
+			Assert.assertEquals(8388608, environment.getEnvironment().getConfig().getCacheSize());
+			Assert.assertEquals("1048576", environment.getEnvironment().getConfig().getConfigParam("je.log.fileMax"));
+
+			// Same map name, distinct environments.
+			other.store(Integer.valueOf(1), "other-1");
+			Assert.assertNull(store.load(Integer.valueOf(1)));
+			Assert.assertEquals("other-1", other.load(Integer.valueOf(1)));
+			other.delete(Integer.valueOf(1));
+		}
+		finally
+		{
+			other.destroy();
+		}
+
+		// The environment is closed with its last map.
+		Assert.assertNull(BerkeleyEnvironment.get("BerkeleyStoreMapTest-other"));
+	}
+
+	/**
+	 * Tests an environment is validated before it is opened and stays open
+	 * until it is released, even without any open database.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void environmentLifecycle()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest-lifecycle");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest-lifecycle");
+		properties.setProperty("syncthreads", "0");
+		try
+		{
+			BerkeleyEnvironment.acquire(properties);
+			Assert.fail("Expected an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			Assert.assertNull(BerkeleyEnvironment.get("BerkeleyStoreMapTest-lifecycle"));
+		}
+
+		properties.setProperty("syncthreads", "1");
+		BerkeleyEnvironment environment = BerkeleyEnvironment.acquire(properties);
+		DatabaseConfig config = new DatabaseConfig();
+		config.setAllowCreate(true);
+		config.setDeferredWrite(true);
+		environment.closeDatabase(environment.openDatabase("BerkeleyStoreMapTest-lifecycle", config));
+		Assert.assertSame(environment, BerkeleyEnvironment.get("BerkeleyStoreMapTest-lifecycle"));
+
+		environment.release();
+		Assert.assertNull(BerkeleyEnvironment.get("BerkeleyStoreMapTest-lifecycle"));
+	}
+
+	/**
+	 * Tests an invalid property fails the initialization before the
+	 * environment is acquired, and a failure while opening the map releases
+	 * the environment.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void failedInit()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest-failedInit");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest-failedInit");
+		properties.setProperty("loadchunksize", "0");
+		try
+		{
+			new BerkeleyStoreMap<Integer, String>().init(null, properties, "BerkeleyStoreMapTest-failedInit");
+			Assert.fail("Expected an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			Assert.assertNull(BerkeleyEnvironment.get("BerkeleyStoreMapTest-failedInit"));
+		}
+
+		properties.remove("loadchunksize");
+		properties.setProperty("index.missing", "org.heliosphere.thot.MissingExtractor");
+		try
+		{
+			new BerkeleyStoreMap<Integer, String>().init(null, properties, "BerkeleyStoreMapTest-failedInit");
+			Assert.fail("Expected a BerkeleyStoreMapException");
+		}
+		catch (BerkeleyStoreMapException e)
+		{
+			Assert.assertNull(BerkeleyEnvironment.get("BerkeleyStoreMapTest-failedInit"));
+		}
+	}
+
+	/**
+	 * Tests the keys read in parallel by ranges are all read once.
+	 * <p>
+	 * @throws Exception In case an error occurs while closing the key source.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void parallelLoadAllKeys() throws Exception
+	{
+		Properties properties = properties();
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("loadthreads", "4");
+		properties.setProperty("loadchunksize", "100");
+
+		BerkeleyStoreMap<Integer, String> parallel = new BerkeleyStoreMap<>();
+		parallel.init(null, properties, "BerkeleyStoreMapTest-parallel");
+		try
+		{
+			Map<Integer, String> entries = new HashMap<>();
+			for (int i = 0; i < 10 * iterations; i++)
+			{
+				entries.put(Integer.valueOf(i), "value-" + i);
+			}
+			parallel.storeAll(entries);
+
+			Set<Integer> keys = new HashSet<>();
+			Iterable<Integer> source = parallel.loadAllKeys();
+			for (Integer key : source)
+			{
+				Assert.assertTrue(key.toString(), keys.add(key));
+			}
+			((Closeable) source).close();
+			Assert.assertEquals(entries.keySet(), keys);
+
+			parallel.deleteAll(new ArrayList<>(keys));
+		}
+		finally
+		{
+			parallel.destroy();
+		}
+	}
+
+	/**
+	 * Tests a key failing to be read fails the iteration of the keys, read
+	 * sequentially or in parallel.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void failedLoadAllKeys()
+	{
+		for (String threads : new String[] { "1", "4" })
+		{
+			Properties properties = properties();
+			properties.setProperty("syncinterval", "0");
+			properties.setProperty("keycodec", "integer");
+			properties.setProperty("loadthreads", threads);
+			properties.setProperty("loadchunksize", "100");
+
+			String mapName = "BerkeleyStoreMapTest-failed-" + threads;
+			BerkeleyStoreMap<Object, String> failing = new BerkeleyStoreMap<>();
+			failing.init(null, properties, mapName);
+			try
+			{
+				Map<Object, String> entries = new HashMap<>();
+				for (int i = 0; i < 1000; i++)
+				{
+					entries.put(Integer.valueOf(i), "value-" + i);
+				}
+				failing.storeAll(entries);
+			}
+			finally
+			{
+				failing.destroy();
+			}
+
+			// The 4 byte integer keys cannot be read as 8 byte long keys.
+			properties.setProperty("keycodec", "long");
+			failing = new BerkeleyStoreMap<>();
+			failing.init(null, properties, mapName);
+			try
+			{
+				int count = 0;
+				for (@SuppressWarnings("unused") Object key : failing.loadAllKeys())
+				{
+					count++;
+				}
+				Assert.fail(threads + " thread(s) read " + count + " keys without failure");
+			}
+			catch (BerkeleyStoreMapException e)
+			{
+				// Expected.
+			}
+			finally
+			{
+				failing.destroy();
+			}
+
+			properties.setProperty("keycodec", "integer");
+			failing = new BerkeleyStoreMap<>();
+			failing.init(null, properties, mapName);
+			try
+			{
+				List<Object> keys = new ArrayList<>();
+				for (Object key : failing.loadAllKeys())
+				{
+					keys.add(key);
+				}
+				failing.deleteAll(keys);
+			}
+			finally
+			{
+				failing.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Tests the built-in codecs preserve the order of the keys.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void orderedKeyCodecs()
+	{
+		assertOrdered(BerkeleyKeyCodecs.INTEGER, Integer.valueOf(Integer.MIN_VALUE), Integer.valueOf(-1), Integer.valueOf(0), Integer.valueOf(1), Integer.valueOf(Integer.MAX_VALUE));
+		assertOrdered(BerkeleyKeyCodecs.LONG, Long.valueOf(Long.MIN_VALUE), Long.valueOf(-1), Long.valueOf(0), Long.valueOf(1), Long.valueOf(Long.MAX_VALUE));
+		assertOrdered(BerkeleyKeyCodecs.STRING, "", "\u0000", "\u0001", "\u0001a", "a", "a\u0000", "ab", "b", "\u00e9", "\u4e2d", "\ud83d\ude00");
+		assertOrdered(BerkeleyKeyCodecs.UUID, new UUID(Long.MIN_VALUE, 0), new UUID(-1, -1), new UUID(0, Long.MIN_VALUE), new UUID(0, 0), new UUID(0, 1), new UUID(Long.MAX_VALUE, 0));
+		assertOrdered(BerkeleyKeyCodecs.COMPOSITE, BerkeleyCompositeKey.of("a"), BerkeleyCompositeKey.of("a", Long.valueOf(-1)), BerkeleyCompositeKey.of("a", Long.valueOf(2)), BerkeleyCompositeKey.of("a", Long.valueOf(10)), BerkeleyCompositeKey.of("ab"), BerkeleyCompositeKey.of("b", Integer.valueOf(0)));
+	}
+
+	/**
+	 * Asserts keys are encoded in their order and decoded unchanged.
+	 * <p>
+	 * @param codec Codec to check.
+	 * @param keys Keys in ascending order.
+	 */
+	@SafeVarargs
+	private static <K> void assertOrdered(final BerkeleyKeyCodec<K> codec, final K... keys)
+	{
+		byte[] previous = null;
+		for (K key : keys)
+		{
+			byte[] bytes = BerkeleyEntryBuffer.get().keyBytes(codec, key);
+			Assert.assertEquals(key, codec.read(new Input(bytes)));
+			if (previous != null)
+			{
+				Assert.assertTrue(key.toString(), compare(previous, bytes) < 0);
+			}
+			previous = bytes;
+		}
+	}
+
+	/**
+	 * Compares two binary keys in the unsigned lexicographic order.
+	 * <p>
+	 * @param a First key.
+	 * @param b Second key.
+	 * @return Comparison result.
+	 */
+	private static int compare(final byte[] a, final byte[] b)
+	{
+		for (int i = 0; i < Math.min(a.length, b.length); i++)
+		{
+			int result = (a[i] & 0xff) - (b[i] & 0xff);
+			if (result != 0)
+			{
+				return result;
+			}
+		}
+
+		return a.length - b.length;
+	}
+
+	/**
+	 * Tests range and prefix scans over ordered keys.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void scan()
+	{
+		Properties properties = properties();
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("keycodec", "composite");
+
+		BerkeleyStoreMap<BerkeleyCompositeKey, String> series = new BerkeleyStoreMap<>();
+		series.init(null, properties, "BerkeleyStoreMapTest-scan");
+		try
+		{
+			Map<BerkeleyCompositeKey, String> entries = new HashMap<>();
+			for (String tenant : new String[] { "tenant-a", "tenant-b", "tenant-c" })
+			{
+				for (long time = -50; time < 50; time++)
+				{
+					entries.put(BerkeleyCompositeKey.of(tenant, Long.valueOf(time)), tenant + ":" + time);
+				}
+			}
+			series.storeAll(entries);
+
+			// All the entries of a tenant, in time order.
+			final List<String> values = new ArrayList<>();
+			BerkeleyScanConsumer<BerkeleyCompositeKey, String> collector = new BerkeleyScanConsumer<BerkeleyCompositeKey, String>()
+			{
+				@Override
+				public boolean accept(final BerkeleyCompositeKey key, final String value)
+				{
+					Assert.assertEquals(value, key.get(0) + ":" + key.get(1));
+					values.add(value);
+					return true;
+				}
+			};
+			series.scanPrefix(BerkeleyCompositeKey.of("tenant-b"), collector);
+			Assert.assertEquals(100, values.size());
+			for (int i = 0; i < 100; i++)
+			{
+				Assert.assertEquals("tenant-b:" + (i - 50), values.get(i));
+			}
+
+			// A time range of a tenant.
+			values.clear();
+			series.scan(BerkeleyCompositeKey.of("tenant-c", Long.valueOf(-5)), BerkeleyCompositeKey.of("tenant-c", Long.valueOf(5)), collector);
+			Assert.assertEquals(10, values.size());
+			Assert.assertEquals("tenant-c:-5", values.get(0));
+			Assert.assertEquals("tenant-c:4", values.get(9));
+
+			// The consumer stops the scan.
+			values.clear();
+			series.scan(null, null, new BerkeleyScanConsumer<BerkeleyCompositeKey, String>()
+			{
+				@Override
+				public boolean accept(final BerkeleyCompositeKey key, final String value)
+				{
+					values.add(value);
+					return values.size() < 3;
+				}
+			});
+			Assert.assertEquals(Arrays.asList("tenant-a:-50", "tenant-a:-49", "tenant-a:-48"), values);
+
+			series.deleteAll(new ArrayList<>(entries.keySet()));
+		}
+		finally
+		{
+			series.destroy();
+		}
+	}
+
+	/**
+	 * Tests a prefix scan over string keys, alone or as the last component of
+	 * a composite key, matches the strings starting with the prefix.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void scanStringPrefix()
+	{
+		Properties properties = properties();
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("keycodec", "string");
+
+		final List<String> keys = new ArrayList<>();
+		BerkeleyStoreMap<String, String> strings = new BerkeleyStoreMap<>();
+		strings.init(null, properties, "BerkeleyStoreMapTest-scanStringPrefix");
+		try
+		{
+			List<String> entries = Arrays.asList("a", "aa", "ab", "ab\u0000", "abc", "abd", "ac", "b");
+			for (String key : entries)
+			{
+				strings.store(key, key);
+			}
+			strings.scanPrefix("ab", new BerkeleyScanConsumer<String, String>()
+			{
+				@Override
+				public boolean accept(final String key, final String value)
+				{
+					keys.add(key);
+					return true;
+				}
+			});
+			Assert.assertEquals(Arrays.asList("ab", "ab\u0000", "abc", "abd"), keys);
+			strings.deleteAll(new ArrayList<>(entries));
+		}
+		finally
+		{
+			strings.destroy();
+		}
+
+		properties.setProperty("keycodec", "composite");
+		BerkeleyStoreMap<BerkeleyCompositeKey, String> composites = new BerkeleyStoreMap<>();
+		composites.init(null, properties, "BerkeleyStoreMapTest-scanCompositePrefix");
+		try
+		{
+			List<BerkeleyCompositeKey> entries = Arrays.asList(BerkeleyCompositeKey.of(Integer.valueOf(1), "ab"), BerkeleyCompositeKey.of(Integer.valueOf(1), "abc", Long.valueOf(2)), BerkeleyCompositeKey.of(Integer.valueOf(1), "b"), BerkeleyCompositeKey.of(Integer.valueOf(2), "ab"));
+			for (BerkeleyCompositeKey key : entries)
+			{
+				composites.store(key, key.get(1).toString());
+			}
+			keys.clear();
+			composites.scanPrefix(BerkeleyCompositeKey.of(Integer.valueOf(1), "ab"), new BerkeleyScanConsumer<BerkeleyCompositeKey, String>()
+			{
+				@Override
+				public boolean accept(final BerkeleyCompositeKey key, final String value)
+				{
+					keys.add(value);
+					return true;
+				}
+			});
+			Assert.assertEquals(Arrays.asList("ab", "abc"), keys);
+			composites.deleteAll(new ArrayList<>(entries));
+		}
+		finally
+		{
+			composites.destroy();
+		}
+	}
+
+	/**
+	 * Tests a map using the default key codec cannot be scanned.
+	 */
+	@Test(expected = UnsupportedOperationException.class)
+	public final void scanRequiresOrderedCodec()
+	{
+		store.scan(null, null, new BerkeleyScanConsumer<Integer, String>()
+		{
+			@Override
+			public boolean accept(final Integer key, final String value)
+			{
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Value failing to be serialized.
+	 */
+	private static final class Unserializable implements KryoSerializable
+	{
+		@SuppressWarnings("nls")
+		@Override
+		public void write(final Kryo kryo, final Output output)
+		{
+			throw new IllegalStateException("Cannot be serialized!");
+		}
+
+		@Override
+		public void read(final Kryo kryo, final Input input)
+		{
+			// Never read.
+		}
+	}
+}
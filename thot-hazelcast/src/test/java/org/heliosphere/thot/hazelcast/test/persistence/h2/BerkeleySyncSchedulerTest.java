@@ -0,0 +1,347 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyEnvironment;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyConsumer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStorage;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleySyncScheduler;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * A test unit case for the {@link BerkeleySyncScheduler}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleySyncSchedulerTest
+{
+	/**
+	 * Period of the automatic passes, long enough for the tests to run the
+	 * passes by themselves.
+	 */
+	private static final long PERIOD = TimeUnit.HOURS.toMillis(1);
+
+	/**
+	 * Acquires the environment of the tests.
+	 * <p>
+	 * @return Environment.
+	 */
+	private static BerkeleyEnvironment acquire()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleySyncSchedulerTest");
+		properties.setProperty("directory", "target/db/BerkeleySyncSchedulerTest");
+
+		return BerkeleyEnvironment.acquire(properties);
+	}
+
+	/**
+	 * Opens a deferred write database and writes an entry in it.
+	 * <p>
+	 * @param environment Environment.
+	 * @param name Name of the database.
+	 * @return Database.
+	 */
+	private static Database open(final BerkeleyEnvironment environment, final String name)
+	{
+		DatabaseConfig config = new DatabaseConfig();
+		config.setAllowCreate(true);
+		config.setDeferredWrite(true);
+		config.setTransactional(false);
+		Database database = environment.openDatabase(name, config);
+		database.put(null, new DatabaseEntry(name.getBytes()), new DatabaseEntry(name.getBytes()));
+
+		return database;
+	}
+
+	/**
+	 * Waits for the synchronizations of the dirty databases.
+	 * <p>
+	 * @param scheduler Scheduler.
+	 * @param count Expected number of synchronizations.
+	 * @throws InterruptedException If the thread is interrupted.
+	 */
+	private static void await(final BerkeleySyncScheduler scheduler, final long count) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((scheduler.getSyncCount() < count || scheduler.getDirtyCount() > 0) && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * Tests a database marked dirty several times is counted once, and is no
+	 * more counted once unregistered or synchronized.
+	 * <p>
+	 * @throws Exception In case an error occurs.
+	 */
+	@Test
+	public final void dirtyCount() throws Exception
+	{
+		BerkeleyEnvironment environment = acquire();
+		BerkeleySyncScheduler scheduler = new BerkeleySyncScheduler("dirtyCount", 1, PERIOD);
+		Database first = open(environment, "dirtyCount-1");
+		Database second = open(environment, "dirtyCount-2");
+		try
+		{
+			scheduler.register(first, 0);
+			scheduler.register(second, 0);
+			Assert.assertEquals(2, scheduler.getDatabaseCount());
+			Assert.assertEquals(0, scheduler.getDirtyCount());
+
+			scheduler.markDirty(first);
+			scheduler.markDirty(first);
+			scheduler.markDirty(first);
+			Assert.assertEquals(1, scheduler.getDirtyCount());
+
+			scheduler.markDirty(second);
+			Assert.assertEquals(2, scheduler.getDirtyCount());
+
+			scheduler.unregister(second);
+			Assert.assertEquals(1, scheduler.getDatabaseCount());
+			Assert.assertEquals(1, scheduler.getDirtyCount());
+
+			// An unregistered database is no more counted.
+			scheduler.markDirty(second);
+			Assert.assertEquals(1, scheduler.getDirtyCount());
+
+			scheduler.run();
+			await(scheduler, 1);
+			Assert.assertEquals(0, scheduler.getDirtyCount());
+			Assert.assertEquals(1, scheduler.getSyncCount());
+			Assert.assertEquals(0, scheduler.getSyncFailureCount());
+		}
+		finally
+		{
+			scheduler.shutdown();
+			environment.closeDatabase(first);
+			environment.closeDatabase(second);
+			environment.release();
+		}
+	}
+
+	/**
+	 * Tests the dirty databases of a same environment are synchronized
+	 * together, once per pass, and the clean ones are not synchronized.
+	 * <p>
+	 * @throws Exception In case an error occurs.
+	 */
+	@Test
+	public final void oneSyncPerPass() throws Exception
+	{
+		BerkeleyEnvironment environment = acquire();
+		BerkeleySyncScheduler scheduler = new BerkeleySyncScheduler("oneSyncPerPass", 2, PERIOD);
+		Database[] databases = new Database[4];
+		try
+		{
+			for (int i = 0; i < databases.length; i++)
+			{
+				databases[i] = open(environment, "oneSyncPerPass-" + i);
+				scheduler.register(databases[i], 0);
+				scheduler.markDirty(databases[i]);
+			}
+			Assert.assertEquals(4, scheduler.getDirtyCount());
+
+			scheduler.run();
+			await(scheduler, 1);
+			Assert.assertEquals(0, scheduler.getDirtyCount());
+			Assert.assertEquals(1, scheduler.getSyncCount());
+
+			// Nothing dirty: the pass synchronizes nothing.
+			scheduler.run();
+			Thread.sleep(50);
+			Assert.assertEquals(1, scheduler.getSyncCount());
+
+			scheduler.markDirty(databases[1]);
+			scheduler.markDirty(databases[3]);
+			scheduler.run();
+			await(scheduler, 2);
+			Assert.assertEquals(2, scheduler.getSyncCount());
+			Assert.assertEquals(0, scheduler.getSyncFailureCount());
+		}
+		finally
+		{
+			scheduler.shutdown();
+			for (Database database : databases)
+			{
+				if (database != null)
+				{
+					environment.closeDatabase(database);
+				}
+			}
+			environment.release();
+		}
+	}
+
+	/**
+	 * Tests unregistering a storage being synchronized waits for the end of
+	 * its synchronization, and an unregistered storage is no more
+	 * synchronized by a pass.
+	 * <p>
+	 * @throws Exception In case an error occurs.
+	 */
+	@Test
+	public final void unregisterWhileSyncing() throws Exception
+	{
+		final BerkeleySyncScheduler scheduler = new BerkeleySyncScheduler("unregisterWhileSyncing", 1, PERIOD);
+		final BlockingStorage storage = new BlockingStorage();
+		try
+		{
+			scheduler.register(storage, 0);
+			scheduler.markDirty(storage);
+			scheduler.run();
+			Assert.assertTrue(storage.started.await(10, TimeUnit.SECONDS));
+
+			final CountDownLatch unregistered = new CountDownLatch(1);
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					scheduler.unregister(storage);
+					unregistered.countDown();
+				}
+			});
+			thread.start();
+
+			// The storage is still being synchronized.
+			Assert.assertFalse(unregistered.await(100, TimeUnit.MILLISECONDS));
+
+			storage.release.countDown();
+			Assert.assertTrue(unregistered.await(10, TimeUnit.SECONDS));
+			thread.join();
+			Assert.assertEquals(0, scheduler.getDatabaseCount());
+			Assert.assertEquals(1, storage.syncs.get());
+
+			// Marked dirty once unregistered, it is no more synchronized.
+			scheduler.markDirty(storage);
+			scheduler.run();
+			Thread.sleep(50);
+			Assert.assertEquals(1, storage.syncs.get());
+			Assert.assertEquals(0, scheduler.getDirtyCount());
+		}
+		finally
+		{
+			storage.release.countDown();
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Storage whose synchronization blocks until it is released.
+	 */
+	private static final class BlockingStorage implements BerkeleyStorage
+	{
+		/**
+		 * Counted down when a synchronization starts.
+		 */
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		/**
+		 * Counted down to let the synchronizations end.
+		 */
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		/**
+		 * Number of synchronizations.
+		 */
+		private final AtomicInteger syncs = new AtomicInteger();
+
+		@Override
+		public void open(final String mapName, final Properties properties)
+		{
+			// Nothing to open.
+		}
+
+		@Override
+		public byte[] get(final byte[] key)
+		{
+			return null;
+		}
+
+		@Override
+		public void put(final byte[] key, final byte[] value, final int offset, final int length)
+		{
+			// Nothing stored.
+		}
+
+		@Override
+		public boolean delete(final byte[] key)
+		{
+			return false;
+		}
+
+		@Override
+		public void getAll(final byte[][] keys, final byte[][] values, final Throwable[] failures)
+		{
+			// No value.
+		}
+
+		@Override
+		public void putAll(final byte[][] keys, final byte[][] values, final Throwable[] failures)
+		{
+			// Nothing stored.
+		}
+
+		@Override
+		public void deleteAll(final byte[][] keys, final Throwable[] failures)
+		{
+			// Nothing stored.
+		}
+
+		@Override
+		public void keys(final BerkeleyKeyConsumer<byte[]> consumer)
+		{
+			// No key.
+		}
+
+		@Override
+		public long count()
+		{
+			return 0;
+		}
+
+		@Override
+		public void sync()
+		{
+			syncs.incrementAndGet();
+			started.countDown();
+			try
+			{
+				release.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			// Nothing to close.
+		}
+	}
+}
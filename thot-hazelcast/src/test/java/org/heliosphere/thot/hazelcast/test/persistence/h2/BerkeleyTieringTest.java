@@ -0,0 +1,238 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyScanConsumer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test unit case for the hot/cold tiering of the {@link BerkeleyStoreMap}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyTieringTest
+{
+	/**
+	 * Creates and initializes a tiered map store.
+	 * <p>
+	 * @return Map store.
+	 */
+	private static BerkeleyStoreMap<Integer, String> open()
+	{
+		return open("BerkeleyTieringTest", true);
+	}
+
+	/**
+	 * Creates and initializes a map store.
+	 * <p>
+	 * @param name Name of the environment and the map.
+	 * @param tiering Is the tiering enabled?
+	 * @return Map store.
+	 */
+	private static BerkeleyStoreMap<Integer, String> open(final String name, final boolean tiering)
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", name);
+		properties.setProperty("directory", "target/db/" + name);
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("keycodec", "integer");
+		properties.setProperty("valuecachesize", "1048576");
+		properties.setProperty("tiering", Boolean.toString(tiering));
+		properties.setProperty("tierinterval", "0");
+		properties.setProperty("tiercoldthreshold", "2");
+		properties.setProperty("tierhotthreshold", "3");
+		properties.setProperty("coldcompressionthreshold", "16");
+
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties, name);
+
+		return store;
+	}
+
+	/**
+	 * Returns all the keys of a map store.
+	 * <p>
+	 * @param store Map store.
+	 * @return Keys.
+	 */
+	private static List<Integer> keys(final BerkeleyStoreMap<Integer, String> store)
+	{
+		List<Integer> keys = new ArrayList<>();
+		for (Integer key : store.loadAllKeys())
+		{
+			keys.add(key);
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Tests the rarely accessed entries are demoted to the cold tier, stay
+	 * readable and writable there, and are promoted back once read again.
+	 * <p>
+	 * @throws Exception In case an error occurs while closing the keys.
+	 */
+	@Test
+	public final void tiering() throws Exception
+	{
+		BerkeleyStoreMap<Integer, String> store = open();
+		try
+		{
+			store.deleteAll(keys(store));
+
+			Map<Integer, String> entries = new HashMap<>();
+			for (int i = 0; i < 200; i++)
+			{
+				entries.put(Integer.valueOf(i), "value-" + i + "-value-" + i);
+			}
+			store.storeAll(entries);
+
+			// Keys 0 to 19 are hot: written once and read twice.
+			for (int i = 0; i < 20; i++)
+			{
+				store.load(Integer.valueOf(i));
+				store.load(Integer.valueOf(i));
+			}
+
+			BerkeleyStoreMapMetrics metrics = store.getMetrics();
+			Assert.assertEquals(180, store.migrate());
+			Assert.assertEquals(180, metrics.getDemotedCount());
+			Assert.assertEquals(20, metrics.getHotCount());
+			Assert.assertEquals(180, metrics.getColdCount());
+
+			Assert.assertEquals("value-5-value-5", store.load(Integer.valueOf(5)));
+			Assert.assertEquals("value-150-value-150", store.load(Integer.valueOf(150)));
+			Map<Integer, String> loaded = store.loadAll(Arrays.asList(Integer.valueOf(1), Integer.valueOf(100), Integer.valueOf(101), Integer.valueOf(1000)));
+			Assert.assertEquals(3, loaded.size());
+			Assert.assertEquals("value-100-value-100", loaded.get(Integer.valueOf(100)));
+			Assert.assertEquals(200, new HashSet<>(keys(store)).size());
+
+			// The third access of key 150 queues its promotion.
+			store.load(Integer.valueOf(150));
+			Assert.assertEquals(1, store.migrate());
+			Assert.assertEquals(1, metrics.getPromotedCount());
+			Assert.assertEquals(179, metrics.getColdCount());
+			Assert.assertEquals("value-150-value-150", store.load(Integer.valueOf(150)));
+
+			// Writes and deletes of cold entries remove the cold copies.
+			store.store(Integer.valueOf(170), "rewritten");
+			store.delete(Integer.valueOf(160));
+			Assert.assertEquals("rewritten", store.load(Integer.valueOf(170)));
+			Assert.assertNull(store.load(Integer.valueOf(160)));
+			store.deleteAll(new ArrayList<>(Arrays.asList(Integer.valueOf(161), Integer.valueOf(3))));
+			Assert.assertNull(store.load(Integer.valueOf(161)));
+			Assert.assertNull(store.load(Integer.valueOf(3)));
+
+			// No migration while the keys are read.
+			Iterable<Integer> source = store.loadAllKeys();
+			Assert.assertEquals(0, store.migrate());
+			((Closeable) source).close();
+
+			try
+			{
+				store.scan(null, null, new BerkeleyScanConsumer<Integer, String>()
+				{
+					@Override
+					public boolean accept(final Integer key, final String value)
+					{
+						return true;
+					}
+				});
+				Assert.fail();
+			}
+			catch (UnsupportedOperationException e)
+			{
+				// Expected.
+			}
+		}
+		finally
+		{
+			store.destroy();
+		}
+
+		store = open();
+		try
+		{
+			Set<Integer> keys = new HashSet<>(keys(store));
+			Assert.assertEquals(197, keys.size());
+			Assert.assertFalse(keys.contains(Integer.valueOf(160)));
+			Assert.assertEquals("value-120-value-120", store.load(Integer.valueOf(120)));
+			Assert.assertEquals("rewritten", store.load(Integer.valueOf(170)));
+			Assert.assertEquals(176, store.getMetrics().getColdCount());
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests a stale cold entry left by a crash, i.e. an entry written to the
+	 * hot database while its cold copy was not deleted, is overwritten by the
+	 * newer hot entry when it is demoted.
+	 */
+	@Test
+	public final void staleColdEntry()
+	{
+		String name = "BerkeleyTieringStaleTest";
+		BerkeleyStoreMap<Integer, String> store = open(name, true);
+		try
+		{
+			store.deleteAll(keys(store));
+			store.store(Integer.valueOf(1), "old-value-old-value");
+			Assert.assertEquals(1, store.migrate());
+			Assert.assertEquals(1, store.getMetrics().getColdCount());
+		}
+		finally
+		{
+			store.destroy();
+		}
+
+		// Without the tiering, the cold copy is not deleted, as after a crash.
+		store = open(name, false);
+		try
+		{
+			store.store(Integer.valueOf(1), "new-value-new-value");
+		}
+		finally
+		{
+			store.destroy();
+		}
+
+		store = open(name, true);
+		try
+		{
+			Assert.assertEquals(1, store.migrate());
+			Assert.assertEquals(1, store.getMetrics().getColdCount());
+			Assert.assertEquals("new-value-new-value", store.load(Integer.valueOf(1)));
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+}
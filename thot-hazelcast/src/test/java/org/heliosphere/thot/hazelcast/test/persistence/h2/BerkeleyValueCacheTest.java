@@ -0,0 +1,223 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyValueCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test unit case for the {@link BerkeleyValueCache}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+public final class BerkeleyValueCacheTest
+{
+	/**
+	 * Returns a binary key.
+	 * <p>
+	 * @param i Key number.
+	 * @return Binary key.
+	 */
+	private static byte[] key(final int i)
+	{
+		return new byte[] { (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+	}
+
+	/**
+	 * Returns a value spanning several blocks.
+	 * <p>
+	 * @param i Value number.
+	 * @return Value.
+	 */
+	private static byte[] value(final int i)
+	{
+		byte[] value = new byte[100];
+		for (int j = 0; j < value.length; j++)
+		{
+			value[j] = (byte) (i + j);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Tests values are read back, invalidated and counted.
+	 */
+	@Test
+	public final void getPutInvalidate()
+	{
+		BerkeleyValueCache cache = new BerkeleyValueCache(64 * 1024, 64);
+
+		Assert.assertNull(cache.get(key(1)));
+		cache.put(key(1), value(1), 0, 100);
+		Assert.assertArrayEquals(value(1), cache.get(key(1)));
+		Assert.assertEquals(128, cache.getSize());
+
+		cache.put(key(1), value(2), 10, 20);
+		byte[] expected = new byte[20];
+		System.arraycopy(value(2), 10, expected, 0, 20);
+		Assert.assertArrayEquals(expected, cache.get(key(1)));
+		Assert.assertEquals(64, cache.getSize());
+
+		cache.invalidate(key(1));
+		Assert.assertNull(cache.get(key(1)));
+		Assert.assertEquals(0, cache.getSize());
+		Assert.assertEquals(2, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+
+	/**
+	 * Tests the cache stays bounded and keeps the popular values when a flow
+	 * of values written once goes through it.
+	 */
+	@Test
+	public final void boundedWithFrequencyAdmission()
+	{
+		BerkeleyValueCache cache = new BerkeleyValueCache(64 * 200, 64);
+
+		// Hot values.
+		for (int i = 0; i < 50; i++)
+		{
+			cache.put(key(i), value(i), 0, 100);
+		}
+
+		// Values written once, while the hot values keep being read.
+		for (int i = 1000; i < 11000; i++)
+		{
+			if (i % 100 == 0)
+			{
+				for (int j = 0; j < 50; j++)
+				{
+					Assert.assertNotNull(cache.get(key(j)));
+				}
+			}
+			cache.put(key(i), value(i), 0, 100);
+			Assert.assertTrue(cache.getSize() <= cache.getCapacity());
+		}
+
+		Assert.assertTrue(cache.getEvictionCount() > 0);
+		Assert.assertTrue(cache.getRejectionCount() > 0);
+		for (int i = 0; i < 50; i++)
+		{
+			Assert.assertArrayEquals(value(i), cache.get(key(i)));
+		}
+	}
+
+	/**
+	 * Tests a value loaded before a write is not cached after the write.
+	 */
+	@Test
+	public final void staleLoadNotCached()
+	{
+		BerkeleyValueCache cache = new BerkeleyValueCache(64 * 1024, 64);
+
+		long stamp = cache.stamp(key(1));
+		cache.invalidate(key(1));
+		cache.putLoaded(key(1), value(1), 0, 100, stamp);
+		Assert.assertNull(cache.get(key(1)));
+
+		cache.putLoaded(key(1), value(1), 0, 100, cache.stamp(key(1)));
+		Assert.assertArrayEquals(value(1), cache.get(key(1)));
+	}
+
+	/**
+	 * Tests concurrent threads caching and reading their own values in a
+	 * cache split into segments.
+	 * <p>
+	 * @throws Exception In case an error occurs while waiting for the threads.
+	 */
+	@Test
+	public final void concurrentSegments() throws Exception
+	{
+		final BerkeleyValueCache cache = new BerkeleyValueCache(64 * 65536, 64);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; t++)
+			{
+				final int first = t * 1000;
+				futures.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call()
+					{
+						for (int i = first; i < first + 1000; i++)
+						{
+							cache.put(key(i), value(i), 0, 100);
+						}
+						for (int i = first; i < first + 1000; i++)
+						{
+							Assert.assertArrayEquals(value(i), cache.get(key(i)));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures)
+			{
+				future.get();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(4000, cache.getCount());
+		Assert.assertEquals(4000, cache.getHitCount());
+		Assert.assertEquals(4000 * 128, cache.getSize());
+	}
+
+	/**
+	 * Tests a map store serves the loads of stored values from its cache.
+	 */
+	@SuppressWarnings("nls")
+	@Test
+	public final void mapStoreCache()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("valuecachesize", "1048576");
+
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyValueCacheTest");
+		try
+		{
+			BerkeleyValueCache cache = store.getValueCache();
+			store.store(Integer.valueOf(1), "value-1");
+			Assert.assertEquals("value-1", store.load(Integer.valueOf(1)));
+			Assert.assertEquals(1, cache.getHitCount());
+
+			store.delete(Integer.valueOf(1));
+			Assert.assertNull(store.load(Integer.valueOf(1)));
+			Assert.assertEquals(1, cache.getMissCount());
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+}
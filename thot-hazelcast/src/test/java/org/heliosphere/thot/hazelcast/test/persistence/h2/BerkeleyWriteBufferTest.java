@@ -0,0 +1,263 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMapException;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyWriteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A test unit case for the {@link BerkeleyWriteBuffer}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyWriteBufferTest
+{
+	/**
+	 * Value failing to be written while its flag is set.
+	 */
+	public static final class Failing implements KryoSerializable
+	{
+		/**
+		 * Does the value fail to be written?
+		 */
+		private boolean failing;
+
+		/**
+		 * Creates a value read by Kryo.
+		 */
+		public Failing()
+		{
+			this(false);
+		}
+
+		/**
+		 * Creates a value.
+		 * <p>
+		 * @param failing Does the value fail to be written?
+		 */
+		public Failing(final boolean failing)
+		{
+			this.failing = failing;
+		}
+
+		@Override
+		public void write(final Kryo kryo, final Output output)
+		{
+			if (failing)
+			{
+				throw new IllegalStateException("Failing value");
+			}
+			output.writeBoolean(failing);
+		}
+
+		@Override
+		public void read(final Kryo kryo, final Input input)
+		{
+			failing = input.readBoolean();
+		}
+	}
+
+	/**
+	 * Returns the properties of a map store.
+	 * <p>
+	 * @param window Coalescing window in milliseconds, {@code 0} to write
+	 * through.
+	 * @param size Maximum number of keys held by the write buffer.
+	 * @return Properties.
+	 */
+	private static Properties properties(final long window, final int size)
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapTest");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapTest");
+		properties.setProperty("syncinterval", "0");
+		properties.setProperty("writecoalescing", String.valueOf(window));
+		properties.setProperty("writebuffersize", String.valueOf(size));
+
+		return properties;
+	}
+
+	/**
+	 * Tests the writes of a hot key collapse to the last one, seen by the loads
+	 * before and after being drained.
+	 */
+	@Test
+	public final void coalescing()
+	{
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(60000, 100), "BerkeleyWriteBufferTest-coalescing");
+		try
+		{
+			BerkeleyWriteBuffer<Integer, String> buffer = store.getWriteBuffer();
+			for (int i = 0; i < 1000; i++)
+			{
+				store.store(Integer.valueOf(1), "value-" + i);
+			}
+			store.store(Integer.valueOf(2), "value-2");
+			store.delete(Integer.valueOf(2));
+			Assert.assertEquals("value-999", store.load(Integer.valueOf(1)));
+			Assert.assertNull(store.load(Integer.valueOf(2)));
+			Assert.assertEquals(1000, buffer.getCoalescedCount());
+			Assert.assertEquals(2, buffer.getSize());
+
+			store.flush();
+			Assert.assertEquals(0, buffer.getSize());
+			Assert.assertEquals(2, buffer.getWrittenCount());
+			Assert.assertEquals(1, buffer.getDrainCount());
+			Assert.assertEquals("value-999", store.load(Integer.valueOf(1)));
+			Assert.assertNull(store.load(Integer.valueOf(2)));
+
+			Map<Integer, String> loaded = store.loadAll(Arrays.asList(Integer.valueOf(1), Integer.valueOf(2)));
+			Assert.assertEquals(1, loaded.size());
+			store.delete(Integer.valueOf(1));
+			Assert.assertTrue(store.loadAll(Arrays.asList(Integer.valueOf(1))).isEmpty());
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests the writes of new keys wait for the drainer once the buffer is
+	 * full.
+	 */
+	@Test
+	public final void backPressure()
+	{
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(60000, 10), "BerkeleyWriteBufferTest-backPressure");
+		try
+		{
+			BerkeleyWriteBuffer<Integer, String> buffer = store.getWriteBuffer();
+			for (int i = 0; i < 100; i++)
+			{
+				store.store(Integer.valueOf(i), "value-" + i);
+				Assert.assertTrue(buffer.getSize() <= buffer.getCapacity());
+			}
+			Assert.assertTrue(buffer.getBlockedCount() > 0);
+			Assert.assertTrue(buffer.getDrainCount() > 0);
+
+			for (int i = 0; i < 100; i++)
+			{
+				Assert.assertEquals("value-" + i, store.load(Integer.valueOf(i)));
+			}
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests the buffered writes are flushed by the destruction of the map
+	 * store.
+	 */
+	@Test
+	public final void flushOnDestroy()
+	{
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(60000, 1000), "BerkeleyWriteBufferTest-destroy");
+		for (int i = 0; i < 100; i++)
+		{
+			store.store(Integer.valueOf(i), "value-" + i);
+		}
+		store.destroy();
+
+		store = new BerkeleyStoreMap<>();
+		store.init(null, properties(0, 1000), "BerkeleyWriteBufferTest-destroy");
+		try
+		{
+			Assert.assertNull(store.getWriteBuffer());
+			for (int i = 0; i < 100; i++)
+			{
+				Assert.assertEquals("value-" + i, store.load(Integer.valueOf(i)));
+				store.delete(Integer.valueOf(i));
+			}
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Tests the entries failing to be written stay buffered and are retried,
+	 * until they are dropped after failing too many drains.
+	 */
+	@Test
+	public final void failedDrain()
+	{
+		BerkeleyStoreMap<Integer, Object> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(60000, 100), "BerkeleyWriteBufferTest-failedDrain");
+		try
+		{
+			BerkeleyWriteBuffer<Integer, Object> buffer = store.getWriteBuffer();
+			Failing failing = new Failing(true);
+			store.store(Integer.valueOf(1), failing);
+			store.store(Integer.valueOf(2), failing);
+			store.store(Integer.valueOf(3), "value-3");
+			try
+			{
+				store.flush();
+				Assert.fail();
+			}
+			catch (BerkeleyStoreMapException e)
+			{
+				Assert.assertEquals(2, e.getFailures().size());
+			}
+			Assert.assertEquals(2, buffer.getSize());
+			Assert.assertEquals(1, buffer.getWrittenCount());
+			Assert.assertEquals(2, buffer.getFailedCount());
+			Assert.assertSame(failing, store.load(Integer.valueOf(1)));
+
+			// A newer write of a failed key replaces it.
+			store.store(Integer.valueOf(1), "value-1");
+			for (int i = 0; i < 2; i++)
+			{
+				try
+				{
+					store.flush();
+					Assert.fail();
+				}
+				catch (BerkeleyStoreMapException e)
+				{
+					Assert.assertEquals(1, e.getFailures().size());
+				}
+			}
+			Assert.assertEquals(0, buffer.getSize());
+			Assert.assertEquals(1, buffer.getDroppedCount());
+			Assert.assertEquals("value-1", store.load(Integer.valueOf(1)));
+			Assert.assertNull(store.load(Integer.valueOf(2)));
+			store.delete(Integer.valueOf(1));
+			store.delete(Integer.valueOf(3));
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+}
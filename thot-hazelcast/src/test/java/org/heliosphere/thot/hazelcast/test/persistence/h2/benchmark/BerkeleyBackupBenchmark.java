@@ -0,0 +1,164 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyBackup;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+
+/**
+ * A benchmark of the {@link BerkeleyBackup} of a map persisted by a
+ * {@link BerkeleyStoreMap}, reporting the backup and restore times against
+ * the size of the data.
+ * <p>
+ * For each number of records of {@code thot.benchmark.entries}
+ * ({@code 10000,100000,500000} by default) of {@code thot.benchmark.valuesize}
+ * bytes ({@code 1024} by default), it measures the time of a full backup, of
+ * an incremental backup after {@code 10%} of the records are updated, of the
+ * rebuild of the database of the map from the backup while it is open and of
+ * the restore of the whole environment into a new directory. The copies are
+ * throttled to {@code thot.benchmark.bandwidth} bytes per second ({@code 0},
+ * i.e. unlimited, by default).
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class BerkeleyBackupBenchmark
+{
+	private final static String entries = System.getProperty("thot.benchmark.entries", "10000,100000,500000");
+	private final static int valueSize = Integer.getInteger("thot.benchmark.valuesize", 1024).intValue();
+	private final static long bandwidth = Long.getLong("thot.benchmark.bandwidth", 0).longValue();
+	private final static String mapName = "BerkeleyBackupBenchmark";
+
+	/**
+	 * Returns the properties of the map store.
+	 * <p>
+	 * @param environment Name of the environment.
+	 * @return Properties.
+	 */
+	private static Properties properties(final String environment)
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", environment);
+		properties.setProperty("directory", directory(environment).getPath());
+		properties.setProperty("cleanonclose", "false");
+
+		return properties;
+	}
+
+	/**
+	 * Returns the directory of an environment.
+	 * <p>
+	 * @param environment Name of the environment.
+	 * @return Directory.
+	 */
+	private static File directory(final String environment)
+	{
+		return new File("target/db/" + environment);
+	}
+
+	/**
+	 * Deletes a directory and its files.
+	 * <p>
+	 * @param directory Directory.
+	 */
+	private static void delete(final File directory)
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Stores records.
+	 * <p>
+	 * @param store Map store.
+	 * @param count Number of records.
+	 * @param step Step between two keys.
+	 */
+	private static void fill(final BerkeleyStoreMap<Integer, byte[]> store, final int count, final int step)
+	{
+		Map<Integer, byte[]> batch = new HashMap<>();
+		for (int i = 0; i < count; i += step)
+		{
+			batch.put(Integer.valueOf(i), new byte[valueSize]);
+			if (batch.size() == 10000)
+			{
+				store.storeAll(batch);
+				batch.clear();
+			}
+		}
+		store.storeAll(batch);
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%n%-10s %10s %12s %12s %12s %12s%n", "entries", "MB", "full (ms)", "incr. (ms)", "map (ms)", "env (ms)"));
+		for (String value : entries.split(","))
+		{
+			int count = Integer.parseInt(value.trim());
+			File backup = new File("target/backup/" + mapName);
+			delete(backup);
+			delete(directory(mapName));
+			delete(directory(mapName + "-restored"));
+
+			BerkeleyStoreMap<Integer, byte[]> store = new BerkeleyStoreMap<>();
+			store.init(null, properties(mapName), mapName);
+			BerkeleyBackup.Report full;
+			BerkeleyBackup.Report incremental;
+			long map;
+			try
+			{
+				fill(store, count, 1);
+				full = store.backup(backup, bandwidth);
+				fill(store, count, 10);
+				incremental = store.backup(backup, bandwidth);
+
+				long start = System.nanoTime();
+				store.restore(backup);
+				map = (System.nanoTime() - start) / 1000000;
+			}
+			finally
+			{
+				store.destroy();
+			}
+
+			long start = System.nanoTime();
+			BerkeleyBackup.restore(backup, directory(mapName + "-restored"), bandwidth);
+			store = new BerkeleyStoreMap<>();
+			store.init(null, properties(mapName + "-restored"), mapName);
+			store.destroy();
+			long environment = (System.nanoTime() - start) / 1000000;
+
+			report.append(String.format("%-10d %10d %12d %12d %12d %12d%n", Integer.valueOf(count), Long.valueOf((full.getBytes() + incremental.getBytes()) >> 20), Long.valueOf(full.getDuration()), Long.valueOf(incremental.getDuration()), Long.valueOf(map), Long.valueOf(environment)));
+		}
+		System.out.println(report);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyEntryBuffer;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyKeyCodecs;
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * A JMH benchmark comparing the allocation rate of the encoding of the
+ * entries of a {@code BerkeleyStoreMap}: a new Kryo output, array of bytes
+ * and {@link DatabaseEntry} per key and value (before) against the reusable
+ * buffers of a {@link BerkeleyEntryBuffer} (after).
+ * <p>
+ * Run it with the {@code main} method, the GC profiler reports the allocation
+ * rate per operation ({@code gc.alloc.rate.norm}).
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BerkeleyEntryBufferBenchmark
+{
+	/**
+	 * Size of the values in characters.
+	 */
+	@Param({ "16", "1024" })
+	public int size;
+
+	private Integer key;
+	private String value;
+
+	/**
+	 * Sets up the key and value to encode.
+	 */
+	@Setup
+	public void setUp()
+	{
+		StringBuilder builder = new StringBuilder(size);
+		for (int i = 0; i < size; i++)
+		{
+			builder.append((char) ('a' + i % 26));
+		}
+		key = Integer.valueOf(123456789);
+		value = builder.toString();
+	}
+
+	/**
+	 * Encodes the entry the way the map store did before the reusable
+	 * buffers.
+	 * <p>
+	 * @param blackhole Blackhole consuming the entries.
+	 */
+	@Benchmark
+	public void allocating(final Blackhole blackhole)
+	{
+		DatabaseEntry keyEntry = new DatabaseEntry();
+		keyEntry.setData(KryoSerializer.write(key));
+		DatabaseEntry valueEntry = new DatabaseEntry();
+		valueEntry.setData(KryoSerializer.write(value));
+
+		blackhole.consume(keyEntry);
+		blackhole.consume(valueEntry);
+	}
+
+	/**
+	 * Encodes the entry into the reusable buffers of the thread.
+	 * <p>
+	 * @param blackhole Blackhole consuming the entries.
+	 */
+	@Benchmark
+	public void reusing(final Blackhole blackhole)
+	{
+		BerkeleyEntryBuffer buffer = BerkeleyEntryBuffer.get();
+
+		blackhole.consume(buffer.key(BerkeleyKeyCodecs.KRYO, key));
+		blackhole.consume(buffer.value(value));
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.include(BerkeleyEntryBufferBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
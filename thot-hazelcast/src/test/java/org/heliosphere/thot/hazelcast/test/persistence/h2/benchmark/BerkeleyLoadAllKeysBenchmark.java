@@ -0,0 +1,199 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * A JMH benchmark of {@link BerkeleyStoreMap#loadAllKeys()}, which only reads
+ * the keys, against a cursor reading the whole records as the key sources
+ * did before, over a datastore of {@value #ENTRIES} entries whose values do
+ * not fit in the Berkeley DB cache.
+ * <p>
+ * The benchmark is parameterized by the size of the values and the number of
+ * load threads of the map store.
+ * <p>
+ * Run it with the {@code main} method, or with the whole suite (see
+ * {@link PersistenceBenchmarkSuite}).
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BerkeleyLoadAllKeysBenchmark
+{
+	/**
+	 * Number of entries of the datastore.
+	 */
+	public static final int ENTRIES = 4000;
+
+	/**
+	 * Size of the values in bytes.
+	 */
+	@Param({ "1024", "65536" })
+	public int valueSize;
+
+	/**
+	 * Number of load threads of the map store.
+	 */
+	@Param({ "1", "4" })
+	public int loadThreads;
+
+	private BerkeleyStoreMap<Integer, byte[]> store;
+	private Database database;
+
+	/**
+	 * Creates the map store and fills its datastore.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyLoadAllKeysBenchmark");
+		properties.setProperty("directory", "target/db/BerkeleyLoadAllKeysBenchmark");
+		properties.setProperty("cachesize", "8388608");
+		properties.setProperty("keycodec", "integer");
+		properties.setProperty("loadchunksize", "500");
+		properties.setProperty("loadthreads", String.valueOf(loadThreads));
+
+		String mapName = "BerkeleyLoadAllKeysBenchmark-" + valueSize;
+		store = new BerkeleyStoreMap<>();
+		store.init(null, properties, mapName);
+
+		byte[] value = new byte[valueSize];
+		for (int i = 0; i < value.length; i++)
+		{
+			value[i] = (byte) (i * 31);
+		}
+		Map<Integer, byte[]> batch = new HashMap<>();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			batch.put(Integer.valueOf(i), value);
+			if (batch.size() == 100)
+			{
+				store.storeAll(batch);
+				batch.clear();
+			}
+		}
+		store.flush();
+
+		DatabaseConfig config = new DatabaseConfig();
+		config.setDeferredWrite(true);
+		database = store.getEnvironment().openDatabase(mapName, config);
+	}
+
+	/**
+	 * Destroys the map store.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		store.getEnvironment().closeDatabase(database);
+		store.destroy();
+	}
+
+	/**
+	 * Iterates over all the keys of the map store.
+	 * <p>
+	 * @param blackhole Blackhole consuming the keys.
+	 * @throws IOException In case an error occurs while closing the keys.
+	 */
+	@Benchmark
+	public void loadAllKeys(final Blackhole blackhole) throws IOException
+	{
+		Iterable<Integer> keys = store.loadAllKeys();
+		for (Integer key : keys)
+		{
+			blackhole.consume(key);
+		}
+		((Closeable) keys).close();
+	}
+
+	/**
+	 * Iterates over all the records, values included.
+	 * <p>
+	 * @param blackhole Blackhole consuming the records.
+	 */
+	@Benchmark
+	public void fullScan(final Blackhole blackhole)
+	{
+		Cursor cursor = database.openCursor(null, null);
+		try
+		{
+			DatabaseEntry foundKey = new DatabaseEntry();
+			DatabaseEntry foundData = new DatabaseEntry();
+			while (cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+			{
+				blackhole.consume(foundKey.getData());
+				blackhole.consume(foundData.getSize());
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.include(BerkeleyLoadAllKeysBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * A JMH benchmark of the operations of a {@link BerkeleyStoreMap} called
+ * directly, without any {@code Hazelcast} member, against a datastore holding
+ * {@value #ENTRIES} entries.
+ * <p>
+ * The benchmark is parameterized by the size of the values (arrays of bytes),
+ * the type of the keys ({@code integer}, {@code string} or {@code uuid}) and
+ * the synchronization interval of the map store ({@code 0} synchronizes after
+ * each write). Batch operations work on {@value #BATCH} entries, while
+ * {@code loadAllKeys} iterates over all the keys.
+ * <p>
+ * Run it with the {@code main} method, or with the whole suite (see
+ * {@link PersistenceBenchmarkSuite}).
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BerkeleyStoreMapBenchmark
+{
+	/**
+	 * Number of entries of the datastore.
+	 */
+	public static final int ENTRIES = 10000;
+
+	/**
+	 * Number of entries of a batch operation.
+	 */
+	public static final int BATCH = 100;
+
+	/**
+	 * Size of the values in bytes.
+	 */
+	@Param({ "128", "4096" })
+	public int valueSize;
+
+	/**
+	 * Type of the keys.
+	 */
+	@Param({ "integer", "string", "uuid" })
+	public String keyType;
+
+	/**
+	 * Synchronization interval of the map store in seconds.
+	 */
+	@Param({ "0", "3" })
+	public int syncInterval;
+
+	private BerkeleyStoreMap<Object, byte[]> store;
+	private Object[] keys;
+	private byte[] value;
+	private List<Map<Object, byte[]>> batches;
+	private List<List<Object>> batchKeys;
+
+	/**
+	 * Position of the calling thread in the keys.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		private int position = 0;
+
+		/**
+		 * Returns the next position, wrapping around the given bound.
+		 * <p>
+		 * @param bound Bound of the positions.
+		 * @return Position.
+		 */
+		final int next(final int bound)
+		{
+			position = (position + 1) % bound;
+			return position;
+		}
+	}
+
+	/**
+	 * Returns a key of the benchmarked type.
+	 * <p>
+	 * @param i Key number.
+	 * @return Key.
+	 */
+	private Object key(final int i)
+	{
+		switch (keyType)
+		{
+			case "string":
+				return "customer-" + i;
+			case "uuid":
+				return new UUID(0x5EED5EED5EED5EEDL, i);
+			default:
+				return Integer.valueOf(i);
+		}
+	}
+
+	/**
+	 * Creates the map store and fills its datastore.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		value = new byte[valueSize];
+		for (int i = 0; i < value.length; i++)
+		{
+			value[i] = (byte) (i * 31);
+		}
+
+		keys = new Object[ENTRIES];
+		batches = new ArrayList<>(ENTRIES / BATCH);
+		batchKeys = new ArrayList<>(ENTRIES / BATCH);
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			keys[i] = key(i);
+			if (i % BATCH == 0)
+			{
+				batches.add(new HashMap<Object, byte[]>(BATCH * 2));
+				batchKeys.add(new ArrayList<>(BATCH));
+			}
+			batches.get(i / BATCH).put(keys[i], value);
+			batchKeys.get(i / BATCH).add(keys[i]);
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("environment", "BerkeleyStoreMapBenchmark");
+		properties.setProperty("directory", "target/db/BerkeleyStoreMapBenchmark");
+		properties.setProperty("syncinterval", String.valueOf(syncInterval));
+
+		store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "BerkeleyStoreMapBenchmark-" + keyType + "-" + valueSize);
+		for (Map<Object, byte[]> batch : batches)
+		{
+			store.storeAll(new HashMap<>(batch));
+		}
+	}
+
+	/**
+	 * Destroys the map store.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		store.destroy();
+	}
+
+	/**
+	 * Overwrites an entry.
+	 * <p>
+	 * @param cursor Position of the thread.
+	 */
+	@Benchmark
+	public void store(final Cursor cursor)
+	{
+		store.store(keys[cursor.next(ENTRIES)], value);
+	}
+
+	/**
+	 * Overwrites a batch of entries.
+	 * <p>
+	 * @param cursor Position of the thread.
+	 */
+	@Benchmark
+	public void storeAll(final Cursor cursor)
+	{
+		store.storeAll(batches.get(cursor.next(batches.size())));
+	}
+
+	/**
+	 * Loads an entry.
+	 * <p>
+	 * @param cursor Position of the thread.
+	 * @return Value.
+	 */
+	@Benchmark
+	public byte[] load(final Cursor cursor)
+	{
+		return store.load(keys[cursor.next(ENTRIES)]);
+	}
+
+	/**
+	 * Loads a batch of entries.
+	 * <p>
+	 * @param cursor Position of the thread.
+	 * @return Values.
+	 */
+	@Benchmark
+	public Map<Object, byte[]> loadAll(final Cursor cursor)
+	{
+		return store.loadAll(batchKeys.get(cursor.next(batchKeys.size())));
+	}
+
+	/**
+	 * Iterates over all the keys.
+	 * <p>
+	 * @param blackhole Blackhole consuming the keys.
+	 */
+	@Benchmark
+	public void loadAllKeys(final Blackhole blackhole)
+	{
+		for (Object key : store.loadAllKeys())
+		{
+			blackhole.consume(key);
+		}
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.include(BerkeleyStoreMapBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.heliosphere.thot.kryo.serializer.KryoFieldStrategy;
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.esotericsoftware.kryo.serializers.TaggedFieldSerializer.Tag;
+
+/**
+ * A JMH benchmark of the {@link KryoSerializer} writing and reading a value
+ * object with each field strategy ({@link KryoFieldStrategy}): the plain
+ * field serializer, the tagged fields and the compatible fields.
+ * <p>
+ * The setup prints the serialized size of the value with each strategy. Run
+ * it with the {@code main} method, the GC profiler reports the allocation
+ * rate per operation ({@code gc.alloc.rate.norm}).
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KryoFieldStrategyBenchmark
+{
+	/**
+	 * Value object with tagged fields.
+	 */
+	public static final class Customer
+	{
+		@Tag(0)
+		String firstName;
+		@Tag(1)
+		String lastName;
+		@Tag(2)
+		String email;
+		@Tag(3)
+		int age;
+		@Tag(4)
+		long createdAt;
+		@Tag(5)
+		double balance;
+		@Tag(6)
+		boolean active;
+		@Tag(7)
+		int orderCount;
+	}
+
+	/**
+	 * Field strategy of the value.
+	 */
+	@Param({ "field", "tagged", "compatible" })
+	public String strategy;
+
+	private Customer value;
+	private byte[] serialized;
+
+	/**
+	 * Sets up the strategy, the value and its serialized form.
+	 */
+	@Setup
+	public void setUp()
+	{
+		KryoSerializer.setFieldStrategy(Customer.class.getName(), KryoFieldStrategy.fromLabel(strategy));
+
+		value = new Customer();
+		value.firstName = "Christophe";
+		value.lastName = "Resse";
+		value.email = "christophe.resse@hotmail.com";
+		value.age = 42;
+		value.createdAt = 1356998400000L;
+		value.balance = 1234.56;
+		value.active = true;
+		value.orderCount = 17;
+
+		serialized = KryoSerializer.write(value);
+		System.out.println("Serialized size (" + strategy + "): " + serialized.length + " bytes");
+	}
+
+	/**
+	 * Removes the strategy.
+	 */
+	@TearDown
+	public void tearDown()
+	{
+		KryoSerializer.setFieldStrategy(Customer.class.getName(), null);
+	}
+
+	/**
+	 * Writes the value.
+	 * <p>
+	 * @return Serialized value.
+	 */
+	@Benchmark
+	public byte[] write()
+	{
+		return KryoSerializer.write(value);
+	}
+
+	/**
+	 * Reads the value.
+	 * <p>
+	 * @return Value.
+	 */
+	@Benchmark
+	public Object read()
+	{
+		return KryoSerializer.read(serialized);
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.include(KryoFieldStrategyBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
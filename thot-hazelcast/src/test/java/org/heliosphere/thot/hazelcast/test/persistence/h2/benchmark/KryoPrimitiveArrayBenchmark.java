@@ -0,0 +1,193 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A JMH benchmark of the bulk copy of the arrays of primitives by the
+ * {@link KryoSerializer} ({@code bulk}, with fixed width arrays) against a
+ * default Kryo instance copying them element by element ({@code kryo}), on a
+ * 1MB array of doubles, a 1MB array of longs and a value object of 50
+ * primitive fields.
+ * <p>
+ * Run it with the {@code main} method, the GC profiler reports the allocation
+ * rate per operation ({@code gc.alloc.rate.norm}).
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KryoPrimitiveArrayBenchmark
+{
+	/**
+	 * Value object of 50 primitive fields.
+	 */
+	public static final class Sample
+	{
+		int i0, i1, i2, i3, i4, i5, i6, i7, i8, i9, i10, i11, i12, i13, i14, i15, i16;
+		long l0, l1, l2, l3, l4, l5, l6, l7, l8, l9, l10, l11, l12, l13, l14, l15, l16;
+		double d0, d1, d2, d3, d4, d5, d6, d7, d8, d9, d10, d11, d12, d13, d14, d15;
+	}
+
+	/**
+	 * Serialization path.
+	 */
+	@Param({ "kryo", "bulk" })
+	public String mode;
+
+	/**
+	 * Type of the value.
+	 */
+	@Param({ "doubles", "longs", "pojo" })
+	public String type;
+
+	private Kryo kryo;
+	private Object value;
+	private Output output;
+	private Input input;
+	private byte[] serialized;
+
+	/**
+	 * Sets up the value and its serialized form.
+	 */
+	@Setup
+	public void setUp()
+	{
+		switch (type)
+		{
+			case "doubles":
+				double[] doubles = new double[1024 * 1024 / 8];
+				for (int i = 0; i < doubles.length; i++)
+				{
+					doubles[i] = i * 1.1;
+				}
+				value = doubles;
+				break;
+			case "longs":
+				long[] longs = new long[1024 * 1024 / 8];
+				for (int i = 0; i < longs.length; i++)
+				{
+					longs[i] = i * 1000000007L;
+				}
+				value = longs;
+				break;
+			default:
+				Sample sample = new Sample();
+				sample.i7 = 7;
+				sample.l11 = 1L << 40;
+				sample.d3 = Math.PI;
+				value = sample;
+				break;
+		}
+
+		output = new Output(2 * 1024 * 1024, -1);
+		if ("kryo".equals(mode))
+		{
+			kryo = new Kryo();
+			kryo.writeClassAndObject(output, value);
+		}
+		else
+		{
+			KryoSerializer.setFixedWidthArrays(true);
+			KryoSerializer.write(value, output);
+		}
+		serialized = output.toBytes();
+		input = new Input();
+	}
+
+	/**
+	 * Restores the variable length arrays.
+	 */
+	@TearDown
+	public void tearDown()
+	{
+		KryoSerializer.setFixedWidthArrays(false);
+	}
+
+	/**
+	 * Writes the value into a reusable output.
+	 * <p>
+	 * @return Output.
+	 */
+	@Benchmark
+	public Output write()
+	{
+		output.clear();
+		if (kryo == null)
+		{
+			KryoSerializer.write(value, output);
+		}
+		else
+		{
+			kryo.writeClassAndObject(output, value);
+		}
+
+		return output;
+	}
+
+	/**
+	 * Reads the value from a reusable input.
+	 * <p>
+	 * @return Value.
+	 */
+	@Benchmark
+	public Object read()
+	{
+		input.setBuffer(serialized);
+
+		return kryo == null ? KryoSerializer.read(input) : kryo.readClassAndObject(input);
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.include(KryoPrimitiveArrayBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.heliosphere.thot.kryo.serializer.KryoRegistry;
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * A JMH benchmark of the {@link KryoSerializer} writing and reading small
+ * values with their class names ({@code names}) or with the class
+ * identifiers of a {@link KryoRegistry} ({@code registered}).
+ * <p>
+ * The setup prints the serialized size of the value in each mode. Run it with
+ * the {@code main} method, the GC profiler reports the allocation rate per
+ * operation ({@code gc.alloc.rate.norm}).
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KryoRegistrationBenchmark
+{
+	/**
+	 * Small value object.
+	 */
+	public static final class Customer
+	{
+		/**
+		 * Name.
+		 */
+		String name;
+
+		/**
+		 * Age.
+		 */
+		int age;
+
+		/**
+		 * Orders.
+		 */
+		ArrayList<Integer> orders;
+	}
+
+	/**
+	 * Registration mode.
+	 */
+	@Param({ "names", "registered" })
+	public String mode;
+
+	/**
+	 * Type of the values.
+	 */
+	@Param({ "pojo", "map", "integer" })
+	public String type;
+
+	private Object value;
+	private byte[] serialized;
+
+	/**
+	 * Sets up the registry, the value and its serialized form.
+	 */
+	@Setup
+	public void setUp()
+	{
+		if ("registered".equals(mode))
+		{
+			KryoSerializer.setRegistry(new KryoRegistry(1).register(100, Customer.class).register(101, ArrayList.class).register(102, HashMap.class), false);
+		}
+		else
+		{
+			KryoSerializer.setRegistry(null, false);
+		}
+
+		switch (type)
+		{
+			case "pojo":
+				Customer customer = new Customer();
+				customer.name = "Resse";
+				customer.age = 42;
+				customer.orders = new ArrayList<>();
+				customer.orders.add(Integer.valueOf(1));
+				customer.orders.add(Integer.valueOf(2));
+				value = customer;
+				break;
+			case "map":
+				HashMap<String, Integer> map = new HashMap<>();
+				map.put("a", Integer.valueOf(1));
+				map.put("b", Integer.valueOf(2));
+				value = map;
+				break;
+			default:
+				value = Integer.valueOf(123456);
+				break;
+		}
+
+		serialized = KryoSerializer.write(value);
+		System.out.println("Serialized size (" + mode + ", " + type + "): " + serialized.length + " bytes");
+	}
+
+	/**
+	 * Removes the registry.
+	 */
+	@TearDown
+	public void tearDown()
+	{
+		KryoSerializer.setRegistry(null, false);
+	}
+
+	/**
+	 * Writes the value.
+	 * <p>
+	 * @return Serialized value.
+	 */
+	@Benchmark
+	public byte[] write()
+	{
+		return KryoSerializer.write(value);
+	}
+
+	/**
+	 * Reads the value.
+	 * <p>
+	 * @return Value.
+	 */
+	@Benchmark
+	public Object read()
+	{
+		return KryoSerializer.read(serialized);
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.include(KryoRegistrationBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
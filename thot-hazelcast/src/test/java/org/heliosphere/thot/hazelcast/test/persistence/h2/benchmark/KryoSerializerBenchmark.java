@@ -0,0 +1,225 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A JMH benchmark of the {@link KryoSerializer} writing and reading the
+ * values of a map: strings, arrays of bytes and maps of strings of about
+ * {@code size} bytes, into arrays of bytes, reusable outputs and heap or
+ * direct byte buffers.
+ * <p>
+ * Run it with the {@code main} method, the GC profiler reports the allocation
+ * rate per operation ({@code gc.alloc.rate.norm}).
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KryoSerializerBenchmark
+{
+	/**
+	 * Approximate size of the values in bytes.
+	 */
+	@Param({ "64", "1024", "16384" })
+	public int size;
+
+	/**
+	 * Type of the values.
+	 */
+	@Param({ "string", "bytes", "map" })
+	public String type;
+
+	private Object value;
+	private byte[] serialized;
+	private Output output;
+	private Input input;
+	private ByteBuffer heap;
+	private ByteBuffer direct;
+
+	/**
+	 * Sets up the value and its serialized form.
+	 */
+	@Setup
+	public void setUp()
+	{
+		switch (type)
+		{
+			case "bytes":
+				byte[] bytes = new byte[size];
+				for (int i = 0; i < bytes.length; i++)
+				{
+					bytes[i] = (byte) (i * 31);
+				}
+				value = bytes;
+				break;
+			case "map":
+				HashMap<String, String> map = new HashMap<>();
+				for (int i = 0; i < Math.max(1, size / 32); i++)
+				{
+					map.put("attribute-" + i, "value-" + i + "-abcdefghijklm");
+				}
+				value = map;
+				break;
+			default:
+				StringBuilder builder = new StringBuilder(size);
+				for (int i = 0; i < size; i++)
+				{
+					builder.append((char) ('a' + i % 26));
+				}
+				value = builder.toString();
+				break;
+		}
+
+		serialized = KryoSerializer.write(value);
+		output = new Output(1024, -1);
+		input = new Input();
+		heap = ByteBuffer.allocate(serialized.length);
+		direct = ByteBuffer.allocateDirect(serialized.length);
+		direct.put(serialized).flip();
+	}
+
+	/**
+	 * Writes the value into a new array of bytes.
+	 * <p>
+	 * @return Serialized value.
+	 */
+	@Benchmark
+	public byte[] write()
+	{
+		return KryoSerializer.write(value);
+	}
+
+	/**
+	 * Writes the value into a reusable output.
+	 * <p>
+	 * @return Output.
+	 */
+	@Benchmark
+	public Output writeReusing()
+	{
+		output.clear();
+		KryoSerializer.write(value, output);
+
+		return output;
+	}
+
+	/**
+	 * Reads the value from an array of bytes.
+	 * <p>
+	 * @return Value.
+	 */
+	@Benchmark
+	public Object read()
+	{
+		return KryoSerializer.read(serialized);
+	}
+
+	/**
+	 * Reads the value from a reusable input.
+	 * <p>
+	 * @return Value.
+	 */
+	@Benchmark
+	public Object readReusing()
+	{
+		input.setBuffer(serialized);
+
+		return KryoSerializer.read(input);
+	}
+
+	/**
+	 * Writes the value in place into a heap byte buffer.
+	 * <p>
+	 * @return Byte buffer.
+	 */
+	@Benchmark
+	public ByteBuffer writeHeapBuffer()
+	{
+		heap.clear();
+		KryoSerializer.write(value, heap);
+
+		return heap;
+	}
+
+	/**
+	 * Writes the value into a direct byte buffer.
+	 * <p>
+	 * @return Byte buffer.
+	 */
+	@Benchmark
+	public ByteBuffer writeDirectBuffer()
+	{
+		direct.clear();
+		KryoSerializer.write(value, direct);
+
+		return direct;
+	}
+
+	/**
+	 * Reads the value from a direct byte buffer.
+	 * <p>
+	 * @return Value.
+	 */
+	@Benchmark
+	public Object readDirectBuffer()
+	{
+		direct.position(0);
+
+		return KryoSerializer.read(direct);
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.include(KryoSerializerBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
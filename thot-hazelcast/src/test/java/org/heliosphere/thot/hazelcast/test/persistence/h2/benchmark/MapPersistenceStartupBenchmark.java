@@ -0,0 +1,193 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.config.MapStoreConfig.InitialLoadMode;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * A startup benchmark of a map persisted by a {@link BerkeleyStoreMap},
+ * reporting the initial load time against the number of load threads.
+ * <p>
+ * The datastore is filled once with {@code thot.benchmark.entries} records
+ * ({@code 1000000} by default). Then, for each number of threads of
+ * {@code thot.benchmark.threads} ({@code 1,2,4,8} by default), it measures the
+ * time to stream all the keys out of the store and the time for a single
+ * {@code Hazelcast} member to eagerly load the whole map.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class MapPersistenceStartupBenchmark
+{
+	private final static int entries = Integer.getInteger("thot.benchmark.entries", 1000000).intValue();
+	private final static String threads = System.getProperty("thot.benchmark.threads", "1,2,4,8");
+	private final static String mapName = "MapPersistenceStartupBenchmark";
+
+	/**
+	 * Returns the properties of the map store.
+	 * <p>
+	 * @param loadThreads Number of load threads.
+	 * @return Properties.
+	 */
+	private static Properties properties(final int loadThreads)
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", mapName);
+		properties.setProperty("directory", "target/db/" + mapName);
+		properties.setProperty("cleanonclose", "false");
+		properties.setProperty("loadthreads", String.valueOf(loadThreads));
+
+		return properties;
+	}
+
+	/**
+	 * Fills the datastore unless it already holds the expected records.
+	 */
+	private static void fill()
+	{
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(1), mapName);
+		try
+		{
+			long count = 0;
+			for (@SuppressWarnings("unused") Integer key : store.loadAllKeys())
+			{
+				count++;
+			}
+			if (count == entries)
+			{
+				return;
+			}
+
+			Map<Integer, String> batch = new HashMap<>();
+			for (int i = 0; i < entries; i++)
+			{
+				batch.put(Integer.valueOf(i), "value-" + i);
+				if (batch.size() == 10000)
+				{
+					store.storeAll(batch);
+					batch.clear();
+				}
+			}
+			store.storeAll(batch);
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Measures the time to stream all the keys out of the store.
+	 * <p>
+	 * @param loadThreads Number of load threads.
+	 * @return Time in milliseconds.
+	 * @throws Exception In case an error occurs while closing the key source.
+	 */
+	private static long streamKeys(final int loadThreads) throws Exception
+	{
+		BerkeleyStoreMap<Integer, String> store = new BerkeleyStoreMap<>();
+		store.init(null, properties(loadThreads), mapName);
+		try
+		{
+			long start = System.nanoTime();
+			long count = 0;
+			Iterable<Integer> keys = store.loadAllKeys();
+			for (@SuppressWarnings("unused") Integer key : keys)
+			{
+				count++;
+			}
+			((Closeable) keys).close();
+			if (count != entries)
+			{
+				throw new IllegalStateException("Expected " + entries + " keys, read " + count);
+			}
+
+			return (System.nanoTime() - start) / 1000000;
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Measures the time for a member to eagerly load the whole map.
+	 * <p>
+	 * @param loadThreads Number of load threads.
+	 * @return Time in milliseconds.
+	 */
+	private static long loadMap(final int loadThreads)
+	{
+		MapStoreConfig storeConfig = new MapStoreConfig();
+		storeConfig.setEnabled(true);
+		storeConfig.setImplementation(new BerkeleyStoreMap<Integer, String>());
+		storeConfig.setProperties(properties(loadThreads));
+		storeConfig.setInitialLoadMode(InitialLoadMode.EAGER);
+
+		Config config = new Config();
+		config.getGroupConfig().setName(mapName);
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		config.getMapConfig(mapName).setMapStoreConfig(storeConfig);
+
+		HazelcastInstance instance = Hazelcast.newHazelcastInstance(config);
+		try
+		{
+			long start = System.nanoTime();
+			int size = instance.getMap(mapName).size();
+			if (size != entries)
+			{
+				throw new IllegalStateException("Expected " + entries + " entries, loaded " + size);
+			}
+
+			return (System.nanoTime() - start) / 1000000;
+		}
+		finally
+		{
+			instance.getLifecycleService().shutdown();
+		}
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the benchmark.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		fill();
+
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%n%-10s %15s %15s%n", "threads", "keys (ms)", "map (ms)"));
+		for (String value : threads.split(","))
+		{
+			int loadThreads = Integer.parseInt(value.trim());
+			long keys = streamKeys(loadThreads);
+			long map = loadMap(loadThreads);
+			report.append(String.format("%-10d %15d %15d%n", Integer.valueOf(loadThreads), Long.valueOf(keys), Long.valueOf(map)));
+		}
+		System.out.println(report);
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all the JMH benchmarks of the persistence path with the GC profiler
+ * and saves the results in {@code target/jmh-result.json}.
+ * <p>
+ * The JMH command line options are accepted as arguments, e.g.
+ * {@code -p valueSize=128 -wi 1 -i 3} or a regular expression restricting the
+ * benchmarks run. With Maven: {@code mvn test-compile exec:exec -Pbenchmark}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class PersistenceBenchmarkSuite
+{
+	/**
+	 * Runs the suite.
+	 * <p>
+	 * @param arguments JMH command line options.
+	 * @throws Exception In case an error occurs while running the benchmarks.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(arguments);
+		OptionsBuilder builder = new OptionsBuilder();
+		if (commandLine.getIncludes().isEmpty())
+		{
+			builder.include(PersistenceBenchmarkSuite.class.getPackage().getName() + ".*Benchmark");
+		}
+
+		Options options = builder
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("target/jmh-result.json")
+				.build();
+
+		new Runner(options).run();
+	}
+}
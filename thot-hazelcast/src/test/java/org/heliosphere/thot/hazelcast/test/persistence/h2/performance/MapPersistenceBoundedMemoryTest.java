@@ -0,0 +1,114 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.performance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A performance test case checking the initial load of a {@link BerkeleyStoreMap}
+ * holding millions of records stays memory bounded.
+ * <p>
+ * This test is run by a dedicated surefire execution with a small heap
+ * ({@code -Xmx64m}). The number of records defaults to 10 millions and can be
+ * changed using the {@code thot.test.entries} system property.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+public final class MapPersistenceBoundedMemoryTest
+{
+	private final static int iterations = Integer.getInteger("thot.test.entries", 10000000).intValue();
+	private final static int batch = 10000;
+	private BerkeleyStoreMap<Integer, Integer> store = null;
+
+	/**
+	 * Sets up the fixture.
+	 * <p>
+	 * @throws Exception In case an error occurs during the setup phase.
+	 */
+	@SuppressWarnings("nls")
+	@Before
+	public final void setUp() throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty("syncinterval", "3");
+		properties.setProperty("environment", "MapPersistenceBoundedMemoryTest");
+		properties.setProperty("directory", "target/db/MapPersistenceBoundedMemoryTest");
+		properties.setProperty("cachesize", "16777216");
+		properties.setProperty("cleanonclose", "false");
+
+		store = new BerkeleyStoreMap<>();
+		store.init(null, properties, "MapPersistenceBoundedMemoryTest");
+	}
+
+	/**
+	 * Tears down the fixture.
+	 * <p>
+	 * @throws Exception In case an error occurs during the tear down phase.
+	 */
+	@After
+	public final void tearDown() throws Exception
+	{
+		store.destroy();
+	}
+
+	/**
+	 * Tests all the keys and some values of millions of records can be loaded
+	 * with a heap too small to hold all the keys at once.
+	 */
+	@Test
+	public final void loadAll()
+	{
+		// Store millions of records in the datastore.
+		Map<Integer, Integer> entries = new HashMap<>(batch * 2);
+		for (int i = 0; i < iterations; i++)
+		{
+			entries.put(Integer.valueOf(i), Integer.valueOf(i));
+			if (entries.size() == batch)
+			{
+				store.storeAll(entries);
+				entries.clear();
+			}
+		}
+		store.storeAll(entries);
+
+		// Stream all the keys, they must never be held in memory at once.
+		long count = 0;
+		List<Integer> sample = new ArrayList<>();
+		for (Integer key : store.loadAllKeys())
+		{
+			if (count++ % (iterations / batch + 1) == 0)
+			{
+				sample.add(key);
+			}
+		}
+		Assert.assertEquals(iterations, count);
+
+		// Load a batch of values spread over the whole key space.
+		Map<Integer, Integer> values = store.loadAll(sample);
+		Assert.assertEquals(sample.size(), values.size());
+		for (Integer key : sample)
+		{
+			Assert.assertEquals(key, values.get(key));
+		}
+	}
+}
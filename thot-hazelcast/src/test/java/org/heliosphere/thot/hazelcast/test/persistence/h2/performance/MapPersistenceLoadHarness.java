@@ -0,0 +1,472 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.hazelcast.test.persistence.h2.performance;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyHistogram;
+import org.heliosphere.thot.hazelcast.persistence.h2.BerkeleyStoreMap;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * A load harness of a map persisted by a {@link BerkeleyStoreMap} on a
+ * cluster of embedded {@code Hazelcast} members, all running in this JVM on
+ * the loopback interface.
+ * <p>
+ * Each member persists its partitions with its own Berkeley DB environment
+ * in a temporary directory. Client threads call the members at a fixed
+ * target rate with a mix of puts, gets and removes over a key space filled
+ * beforehand, while members other than the first are killed and restarted
+ * on their directory in turn.
+ * <p>
+ * The latencies are recorded in {@link BerkeleyHistogram}s, both as service
+ * times (from the actual start of a call) and as response times corrected
+ * for the coordinated omission (from the time the call was scheduled by the
+ * fixed rate), so that a stall delaying the following calls of a client
+ * counts against all of them.
+ * <p>
+ * A restart reports three times from the kill of the member: until the
+ * restarted member has joined, its map store reopened, and until every
+ * partition is backed up again. The partitions of the restarted member are
+ * migrated from the replicas of the other members, not read from its
+ * directory, so these times do not include a reload. The reload is measured
+ * apart, once the cluster is safe: the time to read back every entry
+ * persisted in the directory of the member through a second map store, as
+ * the initial load of the map would after a restart of the whole cluster.
+ * <p>
+ * The harness is configured by system properties:
+ * <ul>
+ * <li>{@code thot.harness.members}: number of members ({@code 3} by
+ * default),</li>
+ * <li>{@code thot.harness.clients}: number of client threads ({@code 8} by
+ * default),</li>
+ * <li>{@code thot.harness.rate}: target rate of all the clients in
+ * operations per second ({@code 2000} by default),</li>
+ * <li>{@code thot.harness.duration}: duration of the run in seconds
+ * ({@code 60} by default),</li>
+ * <li>{@code thot.harness.keys}: size of the key space ({@code 100000} by
+ * default),</li>
+ * <li>{@code thot.harness.valuesize}: size of the values in bytes ({@code 256}
+ * by default),</li>
+ * <li>{@code thot.harness.mix}: percentages of puts, gets and removes
+ * ({@code 30,60,10} by default),</li>
+ * <li>{@code thot.harness.restart}: interval between two restarts in seconds,
+ * {@code 0} to keep the members up ({@code 20} by default).</li>
+ * </ul>
+ * Run it with {@code mvn test-compile exec:exec -Pharness
+ * -Dharness.arguments="-Dthot.harness.members=5 ..."}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class MapPersistenceLoadHarness
+{
+	private final static int members = Integer.getInteger("thot.harness.members", 3).intValue();
+	private final static int clients = Integer.getInteger("thot.harness.clients", 8).intValue();
+	private final static int rate = Integer.getInteger("thot.harness.rate", 2000).intValue();
+	private final static int duration = Integer.getInteger("thot.harness.duration", 60).intValue();
+	private final static int keys = Integer.getInteger("thot.harness.keys", 100000).intValue();
+	private final static int valueSize = Integer.getInteger("thot.harness.valuesize", 256).intValue();
+	private final static String mix = System.getProperty("thot.harness.mix", "30,60,10");
+	private final static int restart = Integer.getInteger("thot.harness.restart", 20).intValue();
+	private final static String mapName = "MapPersistenceLoadHarness";
+
+	/**
+	 * Operations of the workload.
+	 */
+	private enum Operation
+	{
+		PUT, GET, REMOVE;
+	}
+
+	/**
+	 * Members, {@code null} while a member is down.
+	 */
+	private static AtomicReferenceArray<HazelcastInstance> nodes;
+
+	/**
+	 * Directories of the environments of the members.
+	 */
+	private static File[] directories;
+
+	/**
+	 * Service times by operation, in nanoseconds.
+	 */
+	private static final Map<Operation, BerkeleyHistogram> serviceTimes = new HashMap<>();
+
+	/**
+	 * Response times corrected for the coordinated omission by operation, in
+	 * nanoseconds.
+	 */
+	private static final Map<Operation, BerkeleyHistogram> responseTimes = new HashMap<>();
+
+	/**
+	 * Errors by operation.
+	 */
+	private static final Map<Operation, LongAdder> errors = new HashMap<>();
+
+	static
+	{
+		for (Operation operation : Operation.values())
+		{
+			serviceTimes.put(operation, new BerkeleyHistogram());
+			responseTimes.put(operation, new BerkeleyHistogram());
+			errors.put(operation, new LongAdder());
+		}
+	}
+
+	/**
+	 * Returns the configuration of a member.
+	 * <p>
+	 * @param member Index of the member.
+	 * @return Configuration.
+	 */
+	private static Config config(final int member)
+	{
+		Properties properties = new Properties();
+		properties.setProperty("environment", mapName + "-" + member);
+		properties.setProperty("directory", directories[member].getPath());
+		properties.setProperty("keycodec", "integer");
+
+		MapStoreConfig storeConfig = new MapStoreConfig();
+		storeConfig.setEnabled(true);
+		storeConfig.setImplementation(new BerkeleyStoreMap<Integer, byte[]>());
+		storeConfig.setProperties(properties);
+
+		Config config = new Config();
+		config.getGroupConfig().setName(mapName);
+		config.setProperty("hazelcast.health.monitoring.level", "OFF");
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+		config.getMapConfig(mapName).setBackupCount(1);
+		config.getMapConfig(mapName).setMapStoreConfig(storeConfig);
+
+		return config;
+	}
+
+	/**
+	 * Returns a member that is up.
+	 * <p>
+	 * @return Member.
+	 */
+	private static HazelcastInstance node()
+	{
+		int start = ThreadLocalRandom.current().nextInt(members);
+		for (int i = 0; i < members; i++)
+		{
+			HazelcastInstance node = nodes.get((start + i) % members);
+			if (node != null)
+			{
+				return node;
+			}
+		}
+
+		return nodes.get(0);
+	}
+
+	/**
+	 * Client thread calling the members at a fixed rate.
+	 */
+	private static final class Client extends Thread
+	{
+		private final long end;
+		private final long interval;
+		private final int puts;
+		private final int gets;
+		private final byte[] value = new byte[valueSize];
+
+		/**
+		 * Creates a client.
+		 * <p>
+		 * @param index Index of the client.
+		 * @param end End of the run in nanoseconds.
+		 * @param mixes Percentages of puts, gets and removes.
+		 */
+		Client(final int index, final long end, final int[] mixes)
+		{
+			super(mapName + "-client-" + index);
+			this.end = end;
+			this.interval = TimeUnit.SECONDS.toNanos(1) * clients / rate;
+			this.puts = mixes[0];
+			this.gets = mixes[0] + mixes[1];
+		}
+
+		@Override
+		public void run()
+		{
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long scheduled = System.nanoTime() + random.nextLong(interval);
+			while (scheduled < end)
+			{
+				long now = System.nanoTime();
+				while (now < scheduled)
+				{
+					LockSupport.parkNanos(scheduled - now);
+					now = System.nanoTime();
+				}
+
+				int dice = random.nextInt(100);
+				Operation operation = dice < puts ? Operation.PUT : dice < gets ? Operation.GET : Operation.REMOVE;
+				Integer key = Integer.valueOf(random.nextInt(keys));
+				long start = System.nanoTime();
+				try
+				{
+					IMap<Integer, byte[]> map = node().getMap(mapName);
+					switch (operation)
+					{
+						case PUT:
+							map.set(key, value);
+							break;
+						case GET:
+							map.get(key);
+							break;
+						default:
+							map.delete(key);
+							break;
+					}
+				}
+				catch (RuntimeException e)
+				{
+					errors.get(operation).increment();
+				}
+				long done = System.nanoTime();
+				serviceTimes.get(operation).record(done - start);
+				responseTimes.get(operation).record(done - scheduled);
+
+				// The schedule does not slip when a call is late, the next calls catch up.
+				scheduled += interval;
+			}
+		}
+	}
+
+	/**
+	 * Reads back every entry persisted in the directory of a member.
+	 * <p>
+	 * @param member Index of the member.
+	 * @return Number of entries read.
+	 */
+	private static long reload(final int member)
+	{
+		// Opened on the environment of the member, shared by name.
+		BerkeleyStoreMap<Integer, byte[]> store = new BerkeleyStoreMap<>();
+		store.init(null, config(member).getMapConfig(mapName).getMapStoreConfig().getProperties(), mapName);
+		try
+		{
+			long count = 0;
+			List<Integer> chunk = new ArrayList<>(1000);
+			for (Integer key : store.loadAllKeys())
+			{
+				chunk.add(key);
+				if (chunk.size() == 1000)
+				{
+					count += store.loadAll(chunk).size();
+					chunk.clear();
+				}
+			}
+
+			return count + store.loadAll(chunk).size();
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * Kills a member, restarts it on its directory and reloads its entries.
+	 * <p>
+	 * @param member Index of the member.
+	 * @return Milliseconds until the member joined, until every partition was
+	 * backed up again and of the reload of its directory, then the number of
+	 * entries reloaded.
+	 * @throws InterruptedException In case the thread is interrupted while
+	 * waiting.
+	 */
+	private static long[] restart(final int member) throws InterruptedException
+	{
+		HazelcastInstance victim = nodes.getAndSet(member, null);
+		long start = System.nanoTime();
+		victim.getLifecycleService().terminate();
+
+		HazelcastInstance node = Hazelcast.newHazelcastInstance(config(member));
+		node.getMap(mapName);
+		long joined = System.nanoTime();
+		nodes.set(member, node);
+		while (!node.getPartitionService().isClusterSafe())
+		{
+			Thread.sleep(10);
+		}
+		long safe = System.nanoTime();
+		long entries = reload(member);
+		long reloaded = System.nanoTime();
+
+		return new long[] { (joined - start) / 1000000, (safe - start) / 1000000, (reloaded - safe) / 1000000, entries };
+	}
+
+	/**
+	 * Deletes a directory and its content.
+	 * <p>
+	 * @param directory Directory.
+	 */
+	private static void delete(final File directory)
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				delete(file);
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Formats a line of percentiles in microseconds.
+	 * <p>
+	 * @param label Label of the line.
+	 * @param histogram Histogram in nanoseconds.
+	 * @return Line.
+	 */
+	private static String line(final String label, final BerkeleyHistogram histogram)
+	{
+		return String.format("%-18s %10d %10d %10d %10d %10d %10d%n", label, Long.valueOf(histogram.getCount()), Long.valueOf(histogram.getPercentile(50) / 1000), Long.valueOf(histogram.getPercentile(90) / 1000), Long.valueOf(histogram.getPercentile(99) / 1000), Long.valueOf(histogram.getPercentile(99.9) / 1000), Long.valueOf(histogram.getMax() / 1000));
+	}
+
+	/**
+	 * Runs the harness.
+	 * <p>
+	 * @param arguments Command line arguments (unused).
+	 * @throws Exception In case an error occurs while running the harness.
+	 */
+	public static void main(final String[] arguments) throws Exception
+	{
+		String[] values = mix.split(",");
+		int[] mixes = new int[] { Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()), Integer.parseInt(values[2].trim()) };
+		if (mixes[0] + mixes[1] + mixes[2] != 100 || members < 1 || clients < 1 || rate < clients)
+		{
+			throw new IllegalArgumentException("Invalid harness configuration");
+		}
+
+		directories = new File[members];
+		nodes = new AtomicReferenceArray<>(members);
+		List<long[]> recoveries = new ArrayList<>();
+		try
+		{
+			for (int i = 0; i < members; i++)
+			{
+				directories[i] = Files.createTempDirectory(mapName + "-" + i + "-").toFile();
+				nodes.set(i, Hazelcast.newHazelcastInstance(config(i)));
+			}
+
+			IMap<Integer, byte[]> map = nodes.get(0).getMap(mapName);
+			Map<Integer, byte[]> batch = new HashMap<>();
+			for (int i = 0; i < keys; i++)
+			{
+				batch.put(Integer.valueOf(i), new byte[valueSize]);
+				if (batch.size() == 1000 || i == keys - 1)
+				{
+					map.putAll(batch);
+					batch.clear();
+				}
+			}
+
+			long start = System.nanoTime();
+			long end = start + TimeUnit.SECONDS.toNanos(duration);
+			List<Client> threads = new ArrayList<>();
+			for (int i = 0; i < clients; i++)
+			{
+				Client client = new Client(i, end, mixes);
+				client.start();
+				threads.add(client);
+			}
+
+			int round = 0;
+			while (restart > 0 && members > 1 && System.nanoTime() + TimeUnit.SECONDS.toNanos(restart) < end)
+			{
+				Thread.sleep(TimeUnit.SECONDS.toMillis(restart));
+				recoveries.add(restart(1 + round++ % (members - 1)));
+			}
+			for (Client client : threads)
+			{
+				client.join();
+			}
+			long elapsed = System.nanoTime() - start;
+
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("%n%d member(s), %d client(s), target %d op/s, achieved %d op/s over %d s%n", Integer.valueOf(members), Integer.valueOf(clients), Integer.valueOf(rate), Long.valueOf(count() * TimeUnit.SECONDS.toNanos(1) / elapsed), Long.valueOf(TimeUnit.NANOSECONDS.toSeconds(elapsed))));
+			report.append(String.format("%n%-18s %10s %10s %10s %10s %10s %10s%n", "latency (us)", "count", "p50", "p90", "p99", "p99.9", "max"));
+			for (Operation operation : Operation.values())
+			{
+				report.append(line(operation + " service", serviceTimes.get(operation)));
+				report.append(line(operation + " response", responseTimes.get(operation)));
+			}
+			report.append(String.format("%n%-18s %10s%n", "errors", "count"));
+			for (Operation operation : Operation.values())
+			{
+				report.append(String.format("%-18s %10d%n", operation, Long.valueOf(errors.get(operation).sum())));
+			}
+			report.append(String.format("%n%-18s %10s %10s %10s %10s%n", "restart (ms)", "joined", "safe", "reload", "entries"));
+			for (int i = 0; i < recoveries.size(); i++)
+			{
+				long[] recovery = recoveries.get(i);
+				report.append(String.format("%-18s %10d %10d %10d %10d%n", "restart " + (i + 1), Long.valueOf(recovery[0]), Long.valueOf(recovery[1]), Long.valueOf(recovery[2]), Long.valueOf(recovery[3])));
+			}
+			report.append(String.format("joined and safe: migration from the replicas, reload: read back of the directory%n"));
+			System.out.println(report);
+		}
+		finally
+		{
+			Hazelcast.shutdownAll();
+			for (File directory : directories)
+			{
+				if (directory != null)
+				{
+					delete(directory);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of operations run.
+	 * <p>
+	 * @return Number of operations.
+	 */
+	private static long count()
+	{
+		long count = 0;
+		for (Operation operation : Operation.values())
+		{
+			count += responseTimes.get(operation).getCount();
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A test unit case for the bulk serializers of the arrays of primitives of
+ * the {@link KryoSerializer}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class KryoArraySerializersTest
+{
+	/**
+	 * Value holding arrays.
+	 */
+	public static final class Sample
+	{
+		/**
+		 * Array of doubles, may be {@code null}.
+		 */
+		double[] doubles;
+
+		/**
+		 * Array of ints.
+		 */
+		int[] ints;
+
+		/**
+		 * Array of longs.
+		 */
+		long[] longs;
+	}
+
+	/**
+	 * Serializes an object with a default Kryo instance.
+	 * <p>
+	 * @param object Object.
+	 * @return Serialized object.
+	 */
+	private static byte[] kryo(final Object object)
+	{
+		Output output = new Output(1024, -1);
+		new Kryo().writeClassAndObject(output, object);
+
+		return output.toBytes();
+	}
+
+	/**
+	 * Tests the arrays copied in bulk are written as by Kryo, whether they
+	 * fit in the buffer of the output or not.
+	 */
+	@Test
+	public final void compatibility()
+	{
+		for (int length : new int[] { 0, 10, 100000 })
+		{
+			double[] doubles = new double[length];
+			float[] floats = new float[length];
+			short[] shorts = new short[length];
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++)
+			{
+				doubles[i] = i * 1.5 - 7;
+				floats[i] = i * 0.25f;
+				shorts[i] = (short) (i * 31);
+				chars[i] = (char) ('a' + i % 26);
+			}
+
+			Assert.assertArrayEquals(kryo(doubles), KryoSerializer.write(doubles));
+			Assert.assertArrayEquals(kryo(floats), KryoSerializer.write(floats));
+			Assert.assertArrayEquals(kryo(shorts), KryoSerializer.write(shorts));
+			Assert.assertArrayEquals(kryo(chars), KryoSerializer.write(chars));
+			Assert.assertArrayEquals(doubles, (double[]) KryoSerializer.read(kryo(doubles)), 0);
+			Assert.assertArrayEquals(chars, (char[]) KryoSerializer.read(kryo(chars)));
+		}
+	}
+
+	/**
+	 * Tests the fixed width arrays of ints and longs, and the null arrays.
+	 */
+	@Test
+	public final void fixedWidth()
+	{
+		Sample sample = new Sample();
+		sample.ints = new int[50000];
+		sample.longs = new long[50000];
+		for (int i = 0; i < sample.ints.length; i++)
+		{
+			sample.ints[i] = i * 1000003;
+			sample.longs[i] = i * 1000000000039L;
+		}
+		int variable = KryoSerializer.write(new int[] { 1, 2, 3 }).length;
+
+		KryoSerializer.setFixedWidthArrays(true);
+		try
+		{
+			Assert.assertEquals(variable + 9, KryoSerializer.write(new int[] { 1, 2, 3 }).length);
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			KryoSerializer.write(sample, output);
+			Sample read = (Sample) KryoSerializer.read(new ByteArrayInputStream(output.toByteArray()));
+			Assert.assertNull(read.doubles);
+			Assert.assertTrue(Arrays.equals(sample.ints, read.ints));
+			Assert.assertTrue(Arrays.equals(sample.longs, read.longs));
+
+			read = (Sample) KryoSerializer.read(KryoSerializer.write(sample));
+			Assert.assertTrue(Arrays.equals(sample.longs, read.longs));
+		}
+		finally
+		{
+			KryoSerializer.setFixedWidthArrays(false);
+		}
+		Assert.assertEquals(variable, KryoSerializer.write(new int[] { 1, 2, 3 }).length);
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer.test;
+
+import org.heliosphere.thot.kryo.serializer.KryoFieldStrategy;
+import org.heliosphere.thot.kryo.serializer.KryoRegistry;
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.serializers.TaggedFieldSerializer.Tag;
+
+/**
+ * A test unit case for the field strategies of the {@link KryoSerializer}.
+ * <p>
+ * A change of schema is simulated by registering the old and the new version
+ * of a class with the same identifier in turn.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class KryoFieldStrategyTest
+{
+	/**
+	 * First version of a value.
+	 */
+	public static final class Version1
+	{
+		/**
+		 * Name.
+		 */
+		@Tag(0)
+		String name;
+	}
+
+	/**
+	 * Second version of a value, with an added field.
+	 */
+	public static final class Version2
+	{
+		/**
+		 * Name.
+		 */
+		@Tag(0)
+		String name;
+
+		/**
+		 * Age.
+		 */
+		@Tag(1)
+		int age;
+	}
+
+	/**
+	 * Value without any tagged field.
+	 */
+	public static final class Untagged
+	{
+		/**
+		 * Name.
+		 */
+		String name;
+
+		/**
+		 * Age.
+		 */
+		int age;
+	}
+
+	/**
+	 * Writes a value with a version of its class and reads it with another
+	 * version.
+	 * <p>
+	 * @param value Value.
+	 * @param version Class of the value read.
+	 * @return Value read.
+	 */
+	private static Object evolve(final Object value, final Class<?> version)
+	{
+		try
+		{
+			KryoSerializer.setRegistry(new KryoRegistry(1).register(100, value.getClass()), false);
+			byte[] bytes = KryoSerializer.write(value);
+			KryoSerializer.setRegistry(null, false);
+			KryoSerializer.setRegistry(new KryoRegistry(1).register(100, version), false);
+
+			return KryoSerializer.read(bytes);
+		}
+		finally
+		{
+			KryoSerializer.setRegistry(null, false);
+		}
+	}
+
+	/**
+	 * Tests the most specific name gives the strategy of a class.
+	 */
+	@Test
+	public final void resolution()
+	{
+		String pack = Version1.class.getPackage().getName();
+		try
+		{
+			Assert.assertEquals(KryoFieldStrategy.FIELD, KryoSerializer.getFieldStrategy(Version1.class));
+			KryoSerializer.setFieldStrategy("", KryoFieldStrategy.COMPATIBLE);
+			KryoSerializer.setFieldStrategy(pack, KryoFieldStrategy.TAGGED);
+			KryoSerializer.setFieldStrategy(Version2.class.getName(), KryoFieldStrategy.FIELD);
+			Assert.assertEquals(KryoFieldStrategy.TAGGED, KryoSerializer.getFieldStrategy(Version1.class));
+			Assert.assertEquals(KryoFieldStrategy.FIELD, KryoSerializer.getFieldStrategy(Version2.class));
+			Assert.assertEquals(KryoFieldStrategy.COMPATIBLE, KryoSerializer.getFieldStrategy(String.class));
+			Assert.assertEquals(KryoFieldStrategy.COMPATIBLE, KryoFieldStrategy.fromLabel("Compatible"));
+		}
+		finally
+		{
+			KryoSerializer.setFieldStrategy("", null);
+			KryoSerializer.setFieldStrategy(pack, null);
+			KryoSerializer.setFieldStrategy(Version2.class.getName(), null);
+		}
+		Assert.assertEquals(KryoFieldStrategy.FIELD, KryoSerializer.getFieldStrategy(Version1.class));
+	}
+
+	/**
+	 * Tests a value written before a field was added is read with the
+	 * tagged and the compatible strategies.
+	 */
+	@Test
+	public final void evolution()
+	{
+		String pack = Version1.class.getPackage().getName();
+		for (KryoFieldStrategy strategy : new KryoFieldStrategy[] { KryoFieldStrategy.TAGGED, KryoFieldStrategy.COMPATIBLE })
+		{
+			KryoSerializer.setFieldStrategy(pack, strategy);
+			try
+			{
+				Version1 written = new Version1();
+				written.name = "Resse";
+				Version2 value = (Version2) evolve(written, Version2.class);
+				Assert.assertEquals("Resse", value.name);
+				Assert.assertEquals(0, value.age);
+			}
+			finally
+			{
+				KryoSerializer.setFieldStrategy(pack, null);
+			}
+		}
+	}
+
+	/**
+	 * Tests a value written before a tagged field was removed cannot be read
+	 * with the tagged strategy.
+	 */
+	@Test(expected = KryoException.class)
+	public final void removedTag()
+	{
+		String pack = Version1.class.getPackage().getName();
+		KryoSerializer.setFieldStrategy(pack, KryoFieldStrategy.TAGGED);
+		try
+		{
+			Version2 written = new Version2();
+			written.name = "Resse";
+			written.age = 42;
+			evolve(written, Version1.class);
+		}
+		finally
+		{
+			KryoSerializer.setFieldStrategy(pack, null);
+		}
+	}
+
+	/**
+	 * Tests the fields of a class without any tagged field are written with
+	 * the tagged strategy.
+	 */
+	@Test
+	public final void untagged()
+	{
+		String pack = Untagged.class.getPackage().getName();
+		KryoSerializer.setFieldStrategy(pack, KryoFieldStrategy.TAGGED);
+		try
+		{
+			Untagged value = new Untagged();
+			value.name = "Resse";
+			value.age = 42;
+			Untagged read = (Untagged) KryoSerializer.read(KryoSerializer.write(value));
+			Assert.assertEquals("Resse", read.name);
+			Assert.assertEquals(42, read.age);
+		}
+		finally
+		{
+			KryoSerializer.setFieldStrategy(pack, null);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.KryoException;
+
+/**
+ * A test unit case for the pooled Kryo instances of the
+ * {@link KryoSerializer}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class KryoPoolTest
+{
+	/**
+	 * Tests many threads share a bounded number of instances, a large value
+	 * and a failed operation leave the pool usable.
+	 * <p>
+	 * @throws Exception In case an error occurs while running the threads.
+	 */
+	@Test
+	public final void pool() throws Exception
+	{
+		int capacity = Integer.getInteger("thot.kryo.pool.size", 2 * Runtime.getRuntime().availableProcessors()).intValue();
+		ExecutorService executor = Executors.newFixedThreadPool(4 * capacity);
+		try
+		{
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 8 * capacity; i++)
+			{
+				final int index = i;
+				results.add(executor.submit(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call()
+					{
+						Map<String, Integer> map = new HashMap<>();
+						for (int j = 0; j < 100; j++)
+						{
+							map.put("key-" + index + "-" + j, Integer.valueOf(j));
+						}
+						for (int j = 0; j < 50; j++)
+						{
+							if (!map.equals(KryoSerializer.read(KryoSerializer.write(map))))
+							{
+								return Boolean.FALSE;
+							}
+						}
+
+						return Boolean.TRUE;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results)
+			{
+				Assert.assertTrue(result.get().booleanValue());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		Assert.assertTrue(KryoSerializer.getPooledCount() <= capacity);
+
+		byte[] large = new byte[4 * 1024 * 1024];
+		large[large.length - 1] = 7;
+		Assert.assertArrayEquals(large, (byte[]) KryoSerializer.read(KryoSerializer.write(large)));
+
+		try
+		{
+			KryoSerializer.write(new byte[2048], 100);
+			Assert.fail();
+		}
+		catch (KryoException e)
+		{
+			// Expected, the maximum buffer size is exceeded.
+		}
+		Assert.assertEquals("value", KryoSerializer.read(KryoSerializer.write("value", 100)));
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer.test;
+
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.heliosphere.thot.kryo.serializer.KryoRegistry;
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test unit case for the registration mode of the {@link KryoSerializer}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class KryoRegistryTest
+{
+	/**
+	 * Value of a registered class.
+	 */
+	public static final class Customer
+	{
+		/**
+		 * Name.
+		 */
+		private String name;
+
+		/**
+		 * Age.
+		 */
+		private int age;
+
+		/**
+		 * Creates a new customer.
+		 * <p>
+		 * @param name Name.
+		 * @param age Age.
+		 */
+		public Customer(final String name, final int age)
+		{
+			this.name = name;
+			this.age = age;
+		}
+
+		@Override
+		public boolean equals(final Object other)
+		{
+			return other instanceof Customer && ((Customer) other).name.equals(name) && ((Customer) other).age == age;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return name.hashCode() * 31 + age;
+		}
+	}
+
+	/**
+	 * Tests the values are written with the class identifiers, the
+	 * unregistered classes fail fast and the migration reader reads the
+	 * values written before the registry was enabled.
+	 */
+	@Test
+	public final void registration()
+	{
+		Customer customer = new Customer("Resse", 42);
+		TreeMap<String, String> tree = new TreeMap<>();
+		tree.put("key", "value");
+
+		KryoSerializer.setRegistry(null, false);
+		byte[] named = KryoSerializer.write(customer);
+		byte[] namedTree = KryoSerializer.write(tree);
+
+		KryoRegistry registry = new KryoRegistry(1).register(100, Customer.class).register(101, ArrayList.class);
+		try
+		{
+			KryoSerializer.setRegistry(registry, false);
+			byte[] registered = KryoSerializer.write(customer);
+			Assert.assertTrue(registered.length + Customer.class.getName().length() <= named.length);
+			Assert.assertEquals(customer, KryoSerializer.read(registered));
+			Assert.assertEquals(customer, KryoSerializer.read(named));
+
+			try
+			{
+				KryoSerializer.write(tree);
+				Assert.fail();
+			}
+			catch (IllegalArgumentException e)
+			{
+				// Expected, the class is not registered.
+			}
+			try
+			{
+				KryoSerializer.read(namedTree);
+				Assert.fail();
+			}
+			catch (RuntimeException e)
+			{
+				// Expected, the class is not registered.
+			}
+
+			KryoSerializer.setRegistry(registry, true);
+			Assert.assertEquals(tree, KryoSerializer.read(namedTree));
+			Assert.assertEquals(customer, KryoSerializer.read(registered));
+
+			try
+			{
+				registry.register(102, TreeMap.class);
+				Assert.fail();
+			}
+			catch (IllegalStateException e)
+			{
+				// Expected, the registry is installed.
+			}
+
+			Properties properties = new Properties();
+			properties.setProperty("version", "2");
+			properties.setProperty("100", TreeMap.class.getName());
+			try
+			{
+				KryoSerializer.setRegistry(KryoRegistry.fromProperties(properties), false);
+				Assert.fail();
+			}
+			catch (IllegalStateException e)
+			{
+				// Expected, identifier 100 is remapped.
+			}
+
+			properties.setProperty("100", Customer.class.getName());
+			properties.setProperty("101", ArrayList.class.getName());
+			properties.setProperty("102", TreeMap.class.getName());
+			KryoSerializer.setRegistry(KryoRegistry.fromProperties(properties), false);
+			Assert.assertEquals(2, KryoSerializer.getRegistry().getVersion());
+			Assert.assertEquals(tree, KryoSerializer.read(KryoSerializer.write(tree)));
+			Assert.assertEquals(customer, KryoSerializer.read(registered));
+		}
+		finally
+		{
+			KryoSerializer.setRegistry(null, false);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright(c) 2010-2013 Heliosphere Ltd.
+ * ---------------------------------------------------------------------------
+ * This file is part of the Heliosphere's Thot project which is licensed
+ * under the Apache license version 2 and use is subject to license terms.
+ * You should have received a copy of the license with the project artefact
+ * binaries and/or sources.
+ *
+ * License can be consulted at http://www.apache.org/licenses/LICENSE-2.0
+ * ---------------------------------------------------------------------------
+ */
+package org.heliosphere.thot.kryo.serializer.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.heliosphere.thot.kryo.serializer.KryoSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.KryoException;
+
+/**
+ * A test unit case for the streaming methods of the {@link KryoSerializer}.
+ * <hr>
+ * @author Resse Christophe, Heliosphere Corp. 2012-2013
+ * @version 1.0.0
+ */
+@SuppressWarnings("nls")
+public final class KryoStreamTest
+{
+	/**
+	 * Creates a value larger than the staging buffers.
+	 * <p>
+	 * @return Value.
+	 */
+	private static Map<String, Integer> value()
+	{
+		Map<String, Integer> map = new HashMap<>();
+		for (int i = 0; i < 1000; i++)
+		{
+			map.put("key-" + i, Integer.valueOf(i));
+		}
+
+		return map;
+	}
+
+	/**
+	 * Tests several objects written one after the other into heap, sliced and
+	 * direct buffers are read back, with the same bytes as an array.
+	 */
+	@Test
+	public final void byteBuffers()
+	{
+		Map<String, Integer> value = value();
+		byte[] bytes = KryoSerializer.write(value);
+
+		ByteBuffer[] buffers = { ByteBuffer.allocate(3 * bytes.length), ByteBuffer.allocateDirect(3 * bytes.length), ByteBuffer.allocate(4 * bytes.length).position(bytes.length).slice(), ByteBuffer.allocate(4 * bytes.length) };
+		buffers[3].limit(3 * bytes.length);
+		for (ByteBuffer buffer : buffers)
+		{
+			KryoSerializer.write(value, buffer);
+			KryoSerializer.write("second", buffer);
+			Assert.assertEquals(bytes.length + KryoSerializer.write("second").length, buffer.position());
+
+			buffer.flip();
+			byte[] written = new byte[bytes.length];
+			buffer.duplicate().get(written);
+			Assert.assertArrayEquals(bytes, written);
+			Assert.assertEquals(value, KryoSerializer.read(buffer));
+			Assert.assertEquals(bytes.length, buffer.position());
+			Assert.assertEquals("second", KryoSerializer.read(buffer));
+			Assert.assertFalse(buffer.hasRemaining());
+		}
+	}
+
+	/**
+	 * Tests a buffer too small fails.
+	 */
+	@Test
+	public final void overflow()
+	{
+		for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100) })
+		{
+			try
+			{
+				KryoSerializer.write(value(), buffer);
+				Assert.fail();
+			}
+			catch (KryoException | BufferOverflowException e)
+			{
+				// Expected.
+			}
+		}
+		Assert.assertEquals("value", KryoSerializer.read(KryoSerializer.write("value")));
+	}
+
+	/**
+	 * Tests an object written to a stream is read back from a stream.
+	 */
+	@Test
+	public final void streams()
+	{
+		Map<String, Integer> value = value();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		KryoSerializer.write(value, output);
+		Assert.assertArrayEquals(KryoSerializer.write(value), output.toByteArray());
+		Assert.assertEquals(value, KryoSerializer.read(new ByteArrayInputStream(output.toByteArray())));
+	}
+}